@@ -0,0 +1,107 @@
+package co.edu.escuelaing.uplearn.chat.config;
+
+import co.edu.escuelaing.uplearn.chat.dto.RolesResponse;
+import co.edu.escuelaing.uplearn.chat.service.AuthorizationService;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.util.AntPathMatcher;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Filtro de autenticación del modo reactivo, con las mismas reglas que
+ * {@link AuthFilter}: protege {@code /api/**}, deja pasar las rutas
+ * públicas y las solicitudes {@code OPTIONS}, y responde {@code 401} en
+ * JSON si el token no es válido. La consulta de roles no bloquea los hilos
+ * de E/S.
+ */
+@Component
+@Order(-100)
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+@RequiredArgsConstructor
+public class ReactiveAuthFilter implements WebFilter {
+
+    private final AuthorizationService authz;
+    private final AntPathMatcher matcher = new AntPathMatcher();
+
+    private static final String[] PUBLIC = { "/", "/error", "/favicon.ico", "/actuator/**" };
+    private static final String[] PROTECTED = { "/api/**" };
+
+    /**
+     * Autentica las rutas protegidas y deja el ID del usuario en el
+     * atributo {@code meId}.
+     *
+     * @param exchange el intercambio HTTP
+     * @param chain    la cadena de filtros
+     * @return completa al terminar la solicitud
+     */
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+        ServerHttpRequest req = exchange.getRequest();
+        if (shouldNotFilter(req.getPath().value()) || HttpMethod.OPTIONS.equals(req.getMethod())) {
+            return chain.filter(exchange);
+        }
+        String auth = req.getHeaders().getFirst(HttpHeaders.AUTHORIZATION);
+        // Primero se decide y luego se continúa: los errores de la cadena no son 401
+        return Mono.defer(() -> authz.meAsync(auth))
+                .map(me -> proceed(exchange, chain, me))
+                .switchIfEmpty(Mono.fromSupplier(() -> sendCorsAware(exchange, "Unauthorized")))
+                .onErrorResume(e -> Mono.just(sendCorsAware(exchange, "Invalid token")))
+                .flatMap(next -> next);
+    }
+
+    private static Mono<Void> proceed(ServerWebExchange exchange, WebFilterChain chain, RolesResponse me) {
+        if (me.getId() == null) {
+            return sendCorsAware(exchange, "Unauthorized");
+        }
+        exchange.getAttributes().put("meId", me.getId());
+        return chain.filter(exchange);
+    }
+
+    private boolean shouldNotFilter(String path) {
+        for (String p : PUBLIC)
+            if (matcher.match(p, path))
+                return true;
+        return Arrays.stream(PROTECTED).noneMatch(p -> matcher.match(p, path));
+    }
+
+    /**
+     * Envía una respuesta de error {@code 401} CORS-aware, como
+     * {@link AuthFilter}.
+     */
+    private static Mono<Void> sendCorsAware(ServerWebExchange exchange, String msg) {
+        ServerHttpRequest req = exchange.getRequest();
+        ServerHttpResponse res = exchange.getResponse();
+        if (res.isCommitted()) {
+            return Mono.empty();
+        }
+        String origin = req.getHeaders().getOrigin();
+        HttpHeaders headers = res.getHeaders();
+        if (origin != null) {
+            headers.set("Access-Control-Allow-Origin", origin);
+            headers.set("Vary", "Origin");
+            headers.set("Access-Control-Allow-Credentials", "true");
+            String reqHeaders = req.getHeaders().getFirst("Access-Control-Request-Headers");
+            if (reqHeaders != null)
+                headers.set("Access-Control-Allow-Headers", reqHeaders);
+            headers.set("Access-Control-Allow-Methods", "GET,POST,PUT,PATCH,DELETE,OPTIONS");
+        }
+        res.setStatusCode(HttpStatus.UNAUTHORIZED);
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        byte[] body = ("{\"error\":\"" + msg + "\"}").getBytes(StandardCharsets.UTF_8);
+        return res.writeWith(Mono.just(res.bufferFactory().wrap(body)));
+    }
+}
@@ -0,0 +1,55 @@
+package co.edu.escuelaing.uplearn.chat.config;
+
+import co.edu.escuelaing.uplearn.chat.repository.ReactiveChatRepository;
+import com.mongodb.reactivestreams.client.MongoClient;
+import com.mongodb.reactivestreams.client.MongoClients;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.repository.config.EnableReactiveMongoRepositories;
+
+/**
+ * Repositorios reactivos de la API REST no bloqueante
+ * ({@code chat.rest.mode=reactive}). En el perfil {@code reactive} usan el
+ * cliente reactivo de Mongo autoconfigurado; con servlets esa
+ * autoconfiguración está excluida y el cliente se crea aquí, solo en este
+ * modo.
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "chat.rest", name = "mode", havingValue = "reactive")
+@EnableReactiveMongoRepositories(basePackageClasses = ReactiveChatRepository.class)
+public class ReactiveRestConfig {
+
+    /** Cliente reactivo de Mongo para el modo servlet. */
+    @Configuration
+    @ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+    static class ServletReactiveMongo {
+
+        /**
+         * Cliente reactivo sobre la misma URI que el cliente bloqueante.
+         *
+         * @param uri la URI de Mongo
+         * @return el cliente
+         */
+        @Bean(destroyMethod = "close")
+        public MongoClient reactiveMongoClient(@Value("${spring.data.mongodb.uri}") String uri) {
+            return MongoClients.create(uri);
+        }
+
+        /**
+         * Plantilla que respalda los repositorios reactivos.
+         *
+         * @param client   el cliente reactivo
+         * @param database el nombre de la base
+         * @return la plantilla
+         */
+        @Bean
+        public ReactiveMongoTemplate reactiveMongoTemplate(MongoClient client,
+                @Value("${spring.data.mongodb.database}") String database) {
+            return new ReactiveMongoTemplate(client, database);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package co.edu.escuelaing.uplearn.chat.config;
+
+import co.edu.escuelaing.uplearn.chat.ws.ReactiveChatGateway;
+import co.edu.escuelaing.uplearn.chat.ws.TokenHandshakeInterceptor;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.Ordered;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.cors.CorsConfiguration;
+import org.springframework.web.reactive.HandlerMapping;
+import org.springframework.web.reactive.config.BlockingExecutionConfigurer;
+import org.springframework.web.reactive.config.CorsRegistry;
+import org.springframework.web.reactive.config.WebFluxConfigurer;
+import org.springframework.web.reactive.handler.SimpleUrlHandlerMapping;
+import org.springframework.web.reactive.socket.WebSocketHandler;
+import org.springframework.web.reactive.socket.server.WebSocketService;
+import org.springframework.web.reactive.socket.server.support.HandshakeWebSocketService;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Mono;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Configuración web del modo reactivo (perfil {@code reactive}): CORS,
+ * ejecutor para los controladores REST bloqueantes y
+ * el endpoint {@code /ws/chat} sobre {@link ReactiveChatGateway} con la
+ * misma autenticación de handshake que el modo servlet.
+ */
+@Configuration
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+@RequiredArgsConstructor
+public class ReactiveWebConfig implements WebFluxConfigurer {
+
+    private static final Set<String> SESSION_ATTRIBUTES = Set.of(TokenHandshakeInterceptor.ATTR_USER_ID,
+            TokenHandshakeInterceptor.ATTR_BEARER, TokenHandshakeInterceptor.ATTR_RESUME);
+
+    private final TokenHandshakeInterceptor tokenInterceptor;
+
+    @Value("${app.cors.allowed-origins:${APP_CORS_ALLOWED_ORIGINS:*}}")
+    private String allowed;
+
+    @Value("${chat.reactive.blocking-threads:64}")
+    private int blockingThreads = 64;
+
+    /**
+     * Configura los mapeos CORS igual que {@link WebConfig}.
+     *
+     * @param registry el registro de CORS
+     */
+    @Override
+    public void addCorsMappings(CorsRegistry registry) {
+        registry.addMapping("/**")
+                .allowedOriginPatterns(allowed.split(","))
+                .allowedMethods("GET", "POST", "PUT", "PATCH", "DELETE", "OPTIONS")
+                .allowedHeaders("*")
+                .exposedHeaders("Authorization", "Content-Type")
+                .allowCredentials(true)
+                .maxAge(3600);
+    }
+
+    /**
+     * Con {@code chat.rest.mode=blocking} los controladores REST devuelven
+     * valores, no {@code Mono}: se ejecutan en este ejecutor para no bloquear
+     * los hilos de E/S de Netty.
+     *
+     * @param configurer el configurador de ejecución bloqueante
+     */
+    @Override
+    public void configureBlockingExecution(BlockingExecutionConfigurer configurer) {
+        configurer.setExecutor(restExecutor());
+    }
+
+    /**
+     * Ejecutor de los controladores REST ({@code chat.reactive.blocking-threads}).
+     *
+     * @return el ejecutor
+     */
+    @Bean
+    public ThreadPoolTaskExecutor restExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(Math.max(1, blockingThreads));
+        executor.setMaxPoolSize(Math.max(1, blockingThreads));
+        executor.setThreadNamePrefix("rest-");
+        return executor;
+    }
+
+    /**
+     * Registra {@code /ws/chat} antes que los controladores anotados, con los
+     * orígenes permitidos.
+     *
+     * @param gateway el gateway reactivo
+     * @return el mapeo del endpoint
+     */
+    @Bean
+    public HandlerMapping chatWebSocketMapping(ReactiveChatGateway gateway) {
+        CorsConfiguration cors = new CorsConfiguration();
+        cors.setAllowedOriginPatterns(Arrays.asList(allowed.split(",")));
+        cors.setAllowedMethods(List.of("GET"));
+        SimpleUrlHandlerMapping mapping = new SimpleUrlHandlerMapping(Map.of("/ws/chat", gateway),
+                Ordered.HIGHEST_PRECEDENCE);
+        mapping.setCorsConfigurations(Map.of("/ws/chat", cors));
+        return mapping;
+    }
+
+    /**
+     * Servicio de handshake que valida el token antes del upgrade: sin token
+     * válido responde {@code 401}. Solo pasan a la sesión los atributos del
+     * token.
+     *
+     * @return el servicio de handshake
+     */
+    @Override
+    public WebSocketService getWebSocketService() {
+        HandshakeWebSocketService service = new HandshakeWebSocketService() {
+            @Override
+            public Mono<Void> handleRequest(ServerWebExchange exchange, WebSocketHandler handler) {
+                Map<String, Object> attributes = tokenInterceptor.authenticate(exchange.getRequest().getURI());
+                if (attributes == null) {
+                    exchange.getResponse().setStatusCode(HttpStatus.UNAUTHORIZED);
+                    return exchange.getResponse().setComplete();
+                }
+                exchange.getAttributes().putAll(attributes);
+                return super.handleRequest(exchange, handler);
+            }
+        };
+        service.setSessionAttributePredicate(SESSION_ATTRIBUTES::contains);
+        return service;
+    }
+}
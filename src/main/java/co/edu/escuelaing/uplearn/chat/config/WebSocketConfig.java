@@ -1,8 +1,10 @@
 package co.edu.escuelaing.uplearn.chat.config;
 
 import co.edu.escuelaing.uplearn.chat.ws.ChatWebSocketGateway;
+import co.edu.escuelaing.uplearn.chat.ws.TokenHandshakeInterceptor;
 import lombok.RequiredArgsConstructor;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.web.socket.config.annotation.EnableWebSocket;
 import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
@@ -10,27 +12,32 @@ import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry
 
 /**
  * Configuración de WebSocket para la aplicación de chat.
- * Registra los manejadores de WebSocket y configura CORS.
+ * Registra los manejadores de WebSocket, la autenticación del handshake y
+ * configura CORS.
  */
 @Configuration
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
 @EnableWebSocket
 @RequiredArgsConstructor
 public class WebSocketConfig implements WebSocketConfigurer {
 
     private final ChatWebSocketGateway chatGateway;
+    private final TokenHandshakeInterceptor tokenInterceptor;
 
     @Value("${app.cors.allowed-origins:*}")
     private String allowed;
 
     /**
      * Registra los manejadores de WebSocket y configura los orígenes permitidos para CORS.
-     * Usa patrones para permitir comodines/subdominios sin usar '*' duro.
+     * Usa patrones para permitir comodines/subdominios sin usar '*' duro. El
+     * token se valida antes del upgrade: sin token válido se responde 401.
      * 
      * @param registry el registro de manejadores de WebSocket
      */
     @Override
     public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
         registry.addHandler(chatGateway, "/ws/chat")
+                .addInterceptors(tokenInterceptor)
                 .setAllowedOriginPatterns(allowed.split(","));
     }
 }
@@ -5,35 +5,47 @@ import co.edu.escuelaing.uplearn.chat.dto.ChatContact;
 import co.edu.escuelaing.uplearn.chat.dto.ChatMessageData;
 import co.edu.escuelaing.uplearn.chat.dto.PublicProfile;
 import co.edu.escuelaing.uplearn.chat.service.AuthorizationService;
+import co.edu.escuelaing.uplearn.chat.service.ChatPermissionCache;
 import co.edu.escuelaing.uplearn.chat.service.ChatService;
 import co.edu.escuelaing.uplearn.chat.service.ReservationClient;
 import co.edu.escuelaing.uplearn.chat.service.UserServiceClient;
+import co.edu.escuelaing.uplearn.chat.ws.ChatGateway;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import java.io.IOException;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 /**
- * Controlador REST para la funcionalidad de chat.
+ * Controlador REST para la funcionalidad de chat. Activo con
+ * {@code chat.rest.mode=blocking} (por defecto); la variante no bloqueante
+ * es {@link ReactiveChatController}.
  */
 @Slf4j
 @RestController
 @RequestMapping("/api/chat")
+@ConditionalOnProperty(prefix = "chat.rest", name = "mode", havingValue = "blocking", matchIfMissing = true)
 @RequiredArgsConstructor
 public class ChatController {
 
     private static final String UNKNOWN_MESSAGE_ID = "<unknown>";
+    private static final int MAX_HISTORY_PAGE = 500;
 
     private final AuthorizationService authz;
     private final ChatService chat;
     private final ReservationClient reservations;
     private final UserServiceClient users;
+    private final ChatPermissionCache permissions;
+    private final ChatGateway gateway;
 
     /**
      * Lista de contactos con los que el usuario autenticado tiene reservas válidas.
@@ -81,7 +93,7 @@ public class ChatController {
         }
 
         try {
-            var raw = chat.history(chatId);
+            var raw = chat.history(chatId, meId);
             if (raw == null)
                 return ResponseEntity.ok(List.of());
             var out = new ArrayList<ChatMessageData>(raw.size());
@@ -95,6 +107,42 @@ public class ChatController {
         }
     }
 
+    /**
+     * Mensajes de un chat posteriores a un número de secuencia. Permite al
+     * cliente rellenar un hueco detectado en {@code seq} sin volver a pedir
+     * todo el historial.
+     *
+     * @param chatId ID del chat
+     * @param seq    último número de secuencia que el cliente ya tiene
+     * @param limit  máximo de mensajes a devolver (1 a 500)
+     * @return Lista de mensajes en orden de secuencia o un error en caso de fallo
+     */
+    @GetMapping("/history/{chatId}/after/{seq}")
+    public ResponseEntity<Object> historyAfter(
+            @PathVariable String chatId,
+            @PathVariable long seq,
+            @RequestParam(defaultValue = "200") int limit,
+            @RequestHeader("Authorization") String authorization) {
+
+        String meId = authz.subject(authorization);
+        if (!chat.isParticipant(chatId, meId)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN)
+                    .body(Map.of("error", "Forbidden: not a participant of this chat"));
+        }
+
+        try {
+            var raw = chat.historyAfter(chatId, seq, Math.max(1, Math.min(limit, MAX_HISTORY_PAGE)), meId);
+            var out = new ArrayList<ChatMessageData>(raw.size());
+            for (Message m : raw)
+                addMessageIfConvertible(out, m, chatId);
+            return ResponseEntity.ok(out);
+        } catch (Exception e) {
+            log.error("Error cargando historial {} desde seq {}: {}", chatId, seq, e.toString(), e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(Map.of("error", "Error cargando historial", "details", e.getMessage()));
+        }
+    }
+
     /**
      * Intenta convertir un Message a ChatMessageData y añadirlo a la lista destino.
      * En caso de error, se loguea y se continúa sin romper el flujo.
@@ -148,4 +196,60 @@ public class ChatController {
                 "chatId", chatId,
                 "meId", meId);
     }
+
+    /**
+     * Marca como leído el chat con otro usuario hasta {@code upTo} (ISO-8601,
+     * opcional; por defecto, ahora) y avisa al otro participante por WebSocket.
+     *
+     * @param otherUserId   ID del otro usuario
+     * @param body          cuerpo opcional con {@code upTo}
+     * @param authorization encabezado de autorización del usuario autenticado
+     * @return el chatId y si la marca avanzó, 403 si no participa del chat o
+     *         400 si {@code upTo} no es válido
+     * @throws IOException si el aviso no se puede serializar
+     */
+    @PostMapping("/read/with/{otherUserId}")
+    public ResponseEntity<Object> markRead(
+            @PathVariable("otherUserId") String otherUserId,
+            @RequestBody(required = false) Map<String, String> body,
+            @RequestHeader("Authorization") String authorization) throws IOException {
+
+        String meId = authz.subject(authorization);
+        String chatId = chat.chatIdOf(meId, otherUserId);
+        if (!chat.isParticipant(chatId, meId)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN)
+                    .body(Map.of("error", "Forbidden: not a participant of this chat"));
+        }
+
+        Instant upTo = null;
+        String raw = body != null ? body.get("upTo") : null;
+        if (raw != null && !raw.isBlank()) {
+            try {
+                upTo = Instant.parse(raw);
+            } catch (DateTimeParseException e) {
+                return ResponseEntity.badRequest().body(Map.of("error", "upTo inválido"));
+            }
+        }
+
+        boolean advanced = gateway.markRead(meId, otherUserId, upTo);
+        return ResponseEntity.ok(Map.of("chatId", chatId, "advanced", advanced));
+    }
+
+    /**
+     * Invalida la decisión cacheada de "puede chatear" entre el usuario
+     * autenticado y otro usuario, p. ej. tras aceptar o cancelar una reserva.
+     *
+     * @param otherUserId   ID del otro usuario
+     * @param authorization encabezado de autorización del usuario autenticado
+     * @return respuesta vacía 204
+     */
+    @DeleteMapping("/permissions/{otherUserId}")
+    public ResponseEntity<Void> invalidatePermission(
+            @PathVariable("otherUserId") String otherUserId,
+            @RequestHeader("Authorization") String authorization) {
+
+        String meId = authz.subject(authorization);
+        permissions.invalidate(meId, otherUserId);
+        return ResponseEntity.noContent().build();
+    }
 }
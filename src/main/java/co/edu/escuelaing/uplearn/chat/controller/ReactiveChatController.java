@@ -0,0 +1,254 @@
+package co.edu.escuelaing.uplearn.chat.controller;
+
+import co.edu.escuelaing.uplearn.chat.domain.Message;
+import co.edu.escuelaing.uplearn.chat.dto.ChatContact;
+import co.edu.escuelaing.uplearn.chat.dto.ChatMessageData;
+import co.edu.escuelaing.uplearn.chat.dto.PublicProfile;
+import co.edu.escuelaing.uplearn.chat.dto.RolesResponse;
+import co.edu.escuelaing.uplearn.chat.service.AuthorizationService;
+import co.edu.escuelaing.uplearn.chat.service.ChatPermissionCache;
+import co.edu.escuelaing.uplearn.chat.service.ChatService;
+import co.edu.escuelaing.uplearn.chat.service.ReactiveChatService;
+import co.edu.escuelaing.uplearn.chat.service.ReservationClient;
+import co.edu.escuelaing.uplearn.chat.service.UserServiceClient;
+import co.edu.escuelaing.uplearn.chat.ws.ChatGateway;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Variante no bloqueante de {@link ChatController}, activa con
+ * {@code chat.rest.mode=reactive}: mismas rutas y mismas respuestas, pero
+ * ningún hilo queda esperando a Mongo, al servicio de usuarios ni al de
+ * reservas. Con servlets, Spring MVC libera el hilo de Tomcat mientras la
+ * respuesta está pendiente; con WebFlux, corre en los hilos de E/S.
+ */
+@Slf4j
+@RestController
+@RequestMapping("/api/chat")
+@ConditionalOnProperty(prefix = "chat.rest", name = "mode", havingValue = "reactive")
+@RequiredArgsConstructor
+public class ReactiveChatController {
+
+    private static final String UNKNOWN_MESSAGE_ID = "<unknown>";
+    private static final int MAX_HISTORY_PAGE = 500;
+    private static final int PROFILE_CONCURRENCY = 16;
+
+    private final AuthorizationService authz;
+    private final ChatService chat;
+    private final ReactiveChatService reactiveChat;
+    private final ReservationClient reservations;
+    private final UserServiceClient users;
+    private final ChatPermissionCache permissions;
+    private final ChatGateway gateway;
+
+    /**
+     * Lista de contactos con los que el usuario autenticado tiene reservas
+     * válidas. Los perfiles se piden en paralelo y se devuelven en el orden
+     * de las contrapartes.
+     *
+     * @param authorization encabezado de autorización del usuario autenticado
+     * @return Lista de contactos de chat
+     */
+    @GetMapping("/contacts")
+    public Mono<List<ChatContact>> contacts(@RequestHeader("Authorization") String authorization) {
+        return authz.meAsync(authorization)
+                .mapNotNull(RolesResponse::getId)
+                .switchIfEmpty(Mono.error(() -> new ResponseStatusException(HttpStatus.UNAUTHORIZED)))
+                .flatMap(myId -> reservations.counterpartIdsAsync(authorization, myId))
+                .flatMapMany(ids -> Flux.fromIterable(ids)
+                        .flatMapSequential(id -> users.getPublicProfileByIdAsync(id)
+                                .defaultIfEmpty(PublicProfile.builder().id(id).name("Usuario").email("").build()),
+                                PROFILE_CONCURRENCY))
+                .map(p -> ChatContact.builder()
+                        .id(p.getId())
+                        .sub(p.getSub())
+                        .name(p.getName())
+                        .email(p.getEmail())
+                        .avatarUrl(p.getAvatarUrl())
+                        .build())
+                .collectList();
+    }
+
+    /**
+     * Historial de mensajes para un chat concreto.
+     * Se intenta mapear cada mensaje; si alguno falla, se loguea y se omite.
+     *
+     * @param chatId        ID del chat
+     * @param authorization encabezado de autorización del usuario autenticado
+     * @return Lista de mensajes del chat o un error en caso de fallo
+     */
+    @GetMapping("/history/{chatId}")
+    public Mono<ResponseEntity<Object>> history(
+            @PathVariable String chatId,
+            @RequestHeader("Authorization") String authorization) {
+
+        String meId = authz.subject(authorization);
+        return ifParticipant(chatId, meId, () -> toDtos(reactiveChat.history(chatId, meId), chatId))
+                .onErrorResume(e -> {
+                    log.error("Error cargando historial {}: {}", chatId, e.toString(), e);
+                    return Mono.just(historyError(e));
+                });
+    }
+
+    /**
+     * Mensajes de un chat posteriores a un número de secuencia, como
+     * {@link ChatController#historyAfter}.
+     *
+     * @param chatId        ID del chat
+     * @param seq           último número de secuencia que el cliente ya tiene
+     * @param limit         máximo de mensajes a devolver (1 a 500)
+     * @param authorization encabezado de autorización del usuario autenticado
+     * @return Lista de mensajes en orden de secuencia o un error en caso de fallo
+     */
+    @GetMapping("/history/{chatId}/after/{seq}")
+    public Mono<ResponseEntity<Object>> historyAfter(
+            @PathVariable String chatId,
+            @PathVariable long seq,
+            @RequestParam(defaultValue = "200") int limit,
+            @RequestHeader("Authorization") String authorization) {
+
+        String meId = authz.subject(authorization);
+        int page = Math.max(1, Math.min(limit, MAX_HISTORY_PAGE));
+        return ifParticipant(chatId, meId, () -> toDtos(reactiveChat.historyAfter(chatId, seq, page, meId), chatId))
+                .onErrorResume(e -> {
+                    log.error("Error cargando historial {} desde seq {}: {}", chatId, seq, e.toString(), e);
+                    return Mono.just(historyError(e));
+                });
+    }
+
+    /**
+     * Calcula el chatId entre el usuario autenticado y otro usuario.
+     *
+     * @param otherUserId   ID del otro usuario
+     * @param authorization encabezado de autorización del usuario autenticado
+     * @return Mapa con el chatId y el ID del usuario autenticado
+     */
+    @GetMapping("/chat-id/with/{otherUserId}")
+    public Mono<Map<String, String>> chatId(
+            @PathVariable("otherUserId") String otherUserId,
+            @RequestHeader("Authorization") String authorization) {
+
+        String meId = authz.subject(authorization);
+        return Mono.just(Map.of(
+                "chatId", chat.chatIdOf(meId, otherUserId),
+                "meId", meId));
+    }
+
+    /**
+     * Marca como leído el chat con otro usuario hasta {@code upTo} (ISO-8601,
+     * opcional; por defecto, ahora) y avisa al otro participante por WebSocket.
+     *
+     * @param otherUserId   ID del otro usuario
+     * @param body          cuerpo opcional con {@code upTo}
+     * @param authorization encabezado de autorización del usuario autenticado
+     * @return el chatId y si la marca avanzó, 403 si no participa del chat o
+     *         400 si {@code upTo} no es válido
+     */
+    @PostMapping("/read/with/{otherUserId}")
+    public Mono<ResponseEntity<Object>> markRead(
+            @PathVariable("otherUserId") String otherUserId,
+            @RequestBody(required = false) Map<String, String> body,
+            @RequestHeader("Authorization") String authorization) {
+
+        String meId = authz.subject(authorization);
+        String chatId = chat.chatIdOf(meId, otherUserId);
+        return ifParticipant(chatId, meId, () -> {
+            Instant upTo = null;
+            String raw = body != null ? body.get("upTo") : null;
+            if (raw != null && !raw.isBlank()) {
+                try {
+                    upTo = Instant.parse(raw);
+                } catch (DateTimeParseException e) {
+                    return Mono.just(ResponseEntity.badRequest().<Object>body(Map.of("error", "upTo inválido")));
+                }
+            }
+            return gateway.markReadAsync(meId, otherUserId, upTo)
+                    .map(advanced -> ResponseEntity.<Object>ok(Map.of("chatId", chatId, "advanced", advanced)));
+        });
+    }
+
+    /**
+     * Invalida la decisión cacheada de "puede chatear" entre el usuario
+     * autenticado y otro usuario, p. ej. tras aceptar o cancelar una reserva.
+     *
+     * @param otherUserId   ID del otro usuario
+     * @param authorization encabezado de autorización del usuario autenticado
+     * @return respuesta vacía 204
+     */
+    @DeleteMapping("/permissions/{otherUserId}")
+    public Mono<ResponseEntity<Void>> invalidatePermission(
+            @PathVariable("otherUserId") String otherUserId,
+            @RequestHeader("Authorization") String authorization) {
+
+        String meId = authz.subject(authorization);
+        permissions.invalidate(meId, otherUserId);
+        return Mono.just(ResponseEntity.noContent().build());
+    }
+
+    /**
+     * Responde 403 si el usuario no participa del chat; si participa,
+     * continúa con {@code then}.
+     */
+    private Mono<ResponseEntity<Object>> ifParticipant(String chatId, String meId,
+            Supplier<Mono<ResponseEntity<Object>>> then) {
+        return reactiveChat.isParticipant(chatId, meId)
+                .flatMap(participant -> {
+                    if (!participant) {
+                        return Mono.just(ResponseEntity.status(HttpStatus.FORBIDDEN)
+                                .<Object>body(Map.of("error", "Forbidden: not a participant of this chat")));
+                    }
+                    return then.get();
+                });
+    }
+
+    /**
+     * Convierte los mensajes a DTO en orden; los que no se pueden convertir
+     * se loguean y se omiten.
+     */
+    private Mono<ResponseEntity<Object>> toDtos(Flux<Message> raw, String chatId) {
+        return raw.concatMap(m -> {
+            try {
+                return Mono.just(chat.toDto(m));
+            } catch (Exception ex) {
+                log.error("Error convirtiendo mensaje {} de chat {}: {}", safeMessageId(m), chatId, ex.toString(),
+                        ex);
+                return Mono.<ChatMessageData>empty();
+            }
+        }).collectList().map(ResponseEntity::<Object>ok);
+    }
+
+    private static ResponseEntity<Object> historyError(Throwable e) {
+        return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                .<Object>body(Map.of("error", "Error cargando historial", "details", String.valueOf(e.getMessage())));
+    }
+
+    /**
+     * Obtener un ID de mensaje seguro para logging.
+     *
+     * @param m el mensaje del cual obtener el ID
+     * @return ID del mensaje o "<unknown>" si no está disponible
+     */
+    private static String safeMessageId(Message m) {
+        try {
+            if (m != null && m.getId() != null) {
+                return m.getId();
+            }
+        } catch (Exception ex) {
+            log.debug("Ignored error obtaining message id", ex);
+        }
+        return UNKNOWN_MESSAGE_ID;
+    }
+}
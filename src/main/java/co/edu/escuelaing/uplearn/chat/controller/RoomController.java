@@ -0,0 +1,189 @@
+package co.edu.escuelaing.uplearn.chat.controller;
+
+import co.edu.escuelaing.uplearn.chat.domain.Chat;
+import co.edu.escuelaing.uplearn.chat.dto.ChatRoom;
+import co.edu.escuelaing.uplearn.chat.dto.RoomRequest;
+import co.edu.escuelaing.uplearn.chat.service.AuthorizationService;
+import co.edu.escuelaing.uplearn.chat.service.RoomService;
+import co.edu.escuelaing.uplearn.chat.ws.RoomFanOut;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Controlador REST de las salas de chat. El historial de una sala se pide
+ * con las rutas de {@link ChatController} usando el ID de la sala como
+ * chatId, y los mensajes se envían por WebSocket con
+ * {@code {"roomId":...,"content":...}}. El estado {@code read} de un mensaje
+ * de sala se calcula con la marca de quien pide el historial.
+ */
+@Slf4j
+@RestController
+@RequestMapping("/api/chat/rooms")
+@RequiredArgsConstructor
+public class RoomController {
+
+    /** Rol requerido para crear salas. */
+    static final String OWNER_ROLE = "TUTOR";
+    private static final String FORBIDDEN = "Forbidden: not allowed to manage this room";
+
+    private final AuthorizationService authz;
+    private final RoomService rooms;
+    private final RoomFanOut fanOut;
+
+    /**
+     * Crea una sala con el usuario autenticado como dueño y avisa a los
+     * miembros conectados.
+     *
+     * @param body          nombre y miembros de la sala
+     * @param authorization encabezado de autorización del usuario autenticado
+     * @return la sala creada (201) o 400 si el nombre falta o se excede el cupo
+     * @throws IOException si el aviso no se puede serializar
+     */
+    @PostMapping
+    public ResponseEntity<Object> create(
+            @RequestBody RoomRequest body,
+            @RequestHeader("Authorization") String authorization) throws IOException {
+
+        authz.requireRole(authorization, OWNER_ROLE);
+        String meId = authz.subject(authorization);
+        Chat room;
+        try {
+            room = rooms.create(meId, body.getName(), body.getMembers());
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        }
+        fanOut.membershipChanged(meId, new RoomService.Change(room, room.getParticipants(), Set.of()));
+        return ResponseEntity.status(HttpStatus.CREATED).body(toDto(room));
+    }
+
+    /**
+     * Salas de las que el usuario autenticado es miembro.
+     *
+     * @param authorization encabezado de autorización del usuario autenticado
+     * @return las salas, de la más reciente a la más antigua
+     */
+    @GetMapping
+    public List<ChatRoom> list(@RequestHeader("Authorization") String authorization) {
+        String meId = authz.subject(authorization);
+        return rooms.roomsOf(meId).stream().map(RoomController::toDto).toList();
+    }
+
+    /**
+     * Agrega miembros a una sala; solo el dueño puede hacerlo.
+     *
+     * @param roomId        ID de la sala
+     * @param body          miembros a agregar
+     * @param authorization encabezado de autorización del usuario autenticado
+     * @return la sala actualizada, 403 si no es el dueño o 400 si se excede
+     *         el cupo
+     * @throws IOException si el aviso no se puede serializar
+     */
+    @PostMapping("/{roomId}/members")
+    public ResponseEntity<Object> addMembers(
+            @PathVariable String roomId,
+            @RequestBody RoomRequest body,
+            @RequestHeader("Authorization") String authorization) throws IOException {
+
+        String meId = authz.subject(authorization);
+        RoomService.Change change;
+        try {
+            change = rooms.addMembers(roomId, meId, body.getMembers());
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        }
+        if (change == null) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body(Map.of("error", FORBIDDEN));
+        }
+        fanOut.membershipChanged(meId, change);
+        return ResponseEntity.ok(toDto(change.room()));
+    }
+
+    /**
+     * Quita un miembro de una sala: el dueño puede quitar a cualquiera y cada
+     * miembro puede salir por su cuenta.
+     *
+     * @param roomId        ID de la sala
+     * @param userId        ID del miembro a quitar
+     * @param authorization encabezado de autorización del usuario autenticado
+     * @return 204, 403 si no puede quitarlo o 400 si es el dueño
+     * @throws IOException si el aviso no se puede serializar
+     */
+    @DeleteMapping("/{roomId}/members/{userId}")
+    public ResponseEntity<Object> removeMember(
+            @PathVariable String roomId,
+            @PathVariable String userId,
+            @RequestHeader("Authorization") String authorization) throws IOException {
+
+        String meId = authz.subject(authorization);
+        RoomService.Change change;
+        try {
+            change = rooms.removeMember(roomId, meId, userId);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        }
+        if (change == null) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body(Map.of("error", FORBIDDEN));
+        }
+        fanOut.membershipChanged(meId, change);
+        return ResponseEntity.noContent().build();
+    }
+
+    /**
+     * Marca la sala como leída por el usuario autenticado hasta {@code upTo}
+     * (ISO-8601, opcional; por defecto, ahora) y avisa a los miembros por
+     * WebSocket.
+     *
+     * @param roomId        ID de la sala
+     * @param body          cuerpo opcional con {@code upTo}
+     * @param authorization encabezado de autorización del usuario autenticado
+     * @return la sala y si la marca avanzó, 403 si no es miembro o 400 si
+     *         {@code upTo} no es válido
+     * @throws IOException si el aviso no se puede serializar
+     */
+    @PostMapping("/{roomId}/read")
+    public ResponseEntity<Object> markRead(
+            @PathVariable String roomId,
+            @RequestBody(required = false) Map<String, String> body,
+            @RequestHeader("Authorization") String authorization) throws IOException {
+
+        String meId = authz.subject(authorization);
+        if (!rooms.isMember(roomId, meId)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN)
+                    .body(Map.of("error", "Forbidden: not a member of this room"));
+        }
+
+        Instant upTo = null;
+        String raw = body != null ? body.get("upTo") : null;
+        if (raw != null && !raw.isBlank()) {
+            try {
+                upTo = Instant.parse(raw);
+            } catch (DateTimeParseException e) {
+                return ResponseEntity.badRequest().body(Map.of("error", "upTo inválido"));
+            }
+        }
+
+        boolean advanced = fanOut.markRead(roomId, meId, upTo);
+        return ResponseEntity.ok(Map.of("roomId", roomId, "advanced", advanced));
+    }
+
+    private static ChatRoom toDto(Chat room) {
+        return ChatRoom.builder()
+                .id(room.getId())
+                .name(room.getName())
+                .ownerId(room.getOwnerId())
+                .members(room.getParticipants())
+                .createdAt(room.getCreatedAt() != null ? room.getCreatedAt().toString() : null)
+                .seq(room.getSeq())
+                .build();
+    }
+}
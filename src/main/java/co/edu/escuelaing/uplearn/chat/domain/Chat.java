@@ -6,10 +6,13 @@ import org.springframework.data.mongodb.core.mapping.Document;
 import org.springframework.data.mongodb.core.index.Indexed;
 
 import java.time.Instant;
+import java.util.Map;
 import java.util.Set;
 
 /**
- * Representa un chat entre dos usuarios.
+ * Representa un chat entre dos usuarios o una sala con varios miembros.
+ * En las salas {@code userA}/{@code userB} quedan vacíos: la membresía se
+ * guarda una sola vez en {@code participants}.
  */
 @Data
 @Builder
@@ -24,5 +27,16 @@ public class Chat {
     @Indexed
     private String userB;
     private Instant createdAt;
+    @Indexed
     private Set<String> participants;
+    /** true si es una sala; false en los chats entre dos usuarios. */
+    private boolean room;
+    /** Nombre visible de la sala. */
+    private String name;
+    /** Usuario que creó la sala y administra sus miembros. */
+    private String ownerId;
+    /** Marca de lectura por participante: leído hasta este instante inclusive. */
+    private Map<String, Instant> readUpTo;
+    /** Último número de secuencia asignado a un mensaje del chat. */
+    private long seq;
 }
@@ -17,7 +17,10 @@ import java.time.Instant;
 @AllArgsConstructor
 @Document("messages")
 @CompoundIndex(name = "chat_created_idx", def = "{'chatId': 1, 'createdAt': 1}", background = true)
+@CompoundIndex(name = "chat_seq_idx", def = "{'chatId': 1, 'seq': 1, 'createdAt': 1}", background = true)
 @CompoundIndex(name = "to_delivered_created_idx", def = "{'toUserId': 1, 'delivered': 1, 'createdAt': 1}", background = true)
+@CompoundIndex(name = "to_created_idx", def = "{'toUserId': 1, 'createdAt': 1}", background = true)
+@CompoundIndex(name = "from_created_idx", def = "{'fromUserId': 1, 'createdAt': 1}", background = true)
 public class Message {
     @Id
     private String id;
@@ -25,12 +28,15 @@ public class Message {
     private String chatId;
     @Indexed
     private String fromUserId;
+    /** Receptor en un chat entre dos usuarios; null en los mensajes de sala. */
     @Indexed
     private String toUserId;
     private String content;
     private Instant createdAt;
+    /** Número de secuencia dentro del chat (desde 1); 0 en mensajes anteriores a la secuencia. */
+    private long seq;
     @Indexed
     private boolean delivered;
-    @Indexed
+    /** Se deriva de {@link Chat#getReadUpTo()} al leer; ya no se escribe por mensaje. */
     private boolean read;
 }
@@ -0,0 +1,37 @@
+package co.edu.escuelaing.uplearn.chat.dto;
+
+import lombok.*;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.List;
+
+/**
+ * Representa la confirmación de un lote ({@code "type": "batch-ack"}), con
+ * un resultado por mensaje en el mismo orden del lote.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class BatchAck {
+    @Builder.Default
+    private String type = "batch-ack";
+    private String batchId;
+    private List<Item> results;
+
+    /**
+     * Resultado de un mensaje del lote: el ID asignado o el motivo del rechazo.
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    @Builder
+    public static class Item {
+        private int index;
+        private String clientId;
+        private String id;
+        private String error;
+    }
+}
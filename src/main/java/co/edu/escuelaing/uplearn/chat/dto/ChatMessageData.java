@@ -16,6 +16,7 @@ public class ChatMessageData {
     private String toUserId;
     private String content;
     private String createdAt;
+    private long seq;
     private boolean delivered;
     private boolean read;
 }
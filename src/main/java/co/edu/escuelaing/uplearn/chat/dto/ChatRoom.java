@@ -0,0 +1,22 @@
+package co.edu.escuelaing.uplearn.chat.dto;
+
+import lombok.*;
+
+import java.util.Set;
+
+/**
+ * Representa una sala de chat con varios miembros.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class ChatRoom {
+    private String id;
+    private String name;
+    private String ownerId;
+    private Set<String> members;
+    private String createdAt;
+    /** Último número de secuencia de la sala, para pedir lo que falte con {@code /history/{id}/after/{seq}}. */
+    private long seq;
+}
@@ -0,0 +1,21 @@
+package co.edu.escuelaing.uplearn.chat.dto;
+
+import lombok.*;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * Aviso de lectura ({@code "type": "read"}): el usuario {@code userId} leyó
+ * el chat {@code chatId} hasta el instante {@code upTo} inclusive.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class ReadReceipt {
+    @Builder.Default
+    private String type = "read";
+    private String chatId;
+    private String userId;
+    private String upTo;
+}
@@ -0,0 +1,20 @@
+package co.edu.escuelaing.uplearn.chat.dto;
+
+import lombok.*;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+import java.util.List;
+
+/**
+ * Representa la solicitud para crear una sala o agregarle miembros; al
+ * agregar miembros se ignora el nombre.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class RoomRequest {
+    private String name;
+    private List<String> members;
+}
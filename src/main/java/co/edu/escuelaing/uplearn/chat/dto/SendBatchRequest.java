@@ -0,0 +1,20 @@
+package co.edu.escuelaing.uplearn.chat.dto;
+
+import lombok.*;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+import java.util.List;
+
+/**
+ * Representa una trama de envío por lotes ({@code "type": "batch"}), usada
+ * por los clientes para vaciar su bandeja de salida al reconectar.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class SendBatchRequest {
+    private String batchId;
+    private List<SendMessageRequest> messages;
+}
@@ -13,5 +13,9 @@ import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 @Builder
 public class SendMessageRequest {
     private String toUserId;
+    /** Sala destino; si viene, el mensaje es para todos sus miembros y se ignora {@code toUserId}. */
+    private String roomId;
     private String content;
+    /** Identificador opcional del cliente, devuelto en la confirmación de un lote. */
+    private String clientId;
 }
@@ -11,5 +11,7 @@ import java.util.List;
 public interface MessageRepository extends MongoRepository<Message, String> {
     List<Message> findByChatIdOrderByCreatedAtAsc(String chatId);
 
+    List<Message> findByChatIdOrderBySeqAscCreatedAtAsc(String chatId);
+
     List<Message> findByToUserIdAndDeliveredIsFalseOrderByCreatedAtAsc(String toUserId);
 }
@@ -0,0 +1,10 @@
+package co.edu.escuelaing.uplearn.chat.repository;
+
+import co.edu.escuelaing.uplearn.chat.domain.Chat;
+import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
+
+/**
+ * Repositorio reactivo de entidades Chat, para la API REST no bloqueante.
+ */
+public interface ReactiveChatRepository extends ReactiveMongoRepository<Chat, String> {
+}
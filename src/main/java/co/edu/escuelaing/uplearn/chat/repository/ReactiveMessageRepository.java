@@ -0,0 +1,15 @@
+package co.edu.escuelaing.uplearn.chat.repository;
+
+import co.edu.escuelaing.uplearn.chat.domain.Message;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
+import reactor.core.publisher.Flux;
+
+/**
+ * Repositorio reactivo de entidades Message, para la API REST no bloqueante.
+ */
+public interface ReactiveMessageRepository extends ReactiveMongoRepository<Message, String> {
+    Flux<Message> findByChatIdOrderBySeqAscCreatedAtAsc(String chatId);
+
+    Flux<Message> findByChatIdAndSeqGreaterThanOrderBySeqAsc(String chatId, long seq, Pageable page);
+}
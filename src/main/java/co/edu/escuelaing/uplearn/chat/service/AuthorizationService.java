@@ -7,6 +7,7 @@ import lombok.RequiredArgsConstructor;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
 import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Mono;
 
 import java.nio.charset.StandardCharsets;
 import java.util.Base64;
@@ -31,6 +32,16 @@ public class AuthorizationService {
         return client.getMyRolesCached(bearer);
     }
 
+    /**
+     * Versión no bloqueante de {@link #me}
+     * 
+     * @param bearer el token Bearer del usuario
+     * @return los roles del usuario autenticado
+     */
+    public Mono<RolesResponse> meAsync(String bearer) {
+        return client.getMyRolesAsync(bearer);
+    }
+
     /**
      * Verificar que el usuario autenticado tiene el rol requerido
      * 
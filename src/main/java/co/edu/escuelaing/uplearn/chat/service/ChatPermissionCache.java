@@ -0,0 +1,191 @@
+package co.edu.escuelaing.uplearn.chat.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caché de decisiones "puede chatear" por par (usuario, contraparte), para
+ * que los mensajes de una conversación activa no consulten al servicio de
+ * reservas en cada envío. Las negativas se cachean con un TTL más corto y los
+ * fallos de comunicación no se cachean.
+ */
+@Component
+public class ChatPermissionCache {
+
+    private static final char SEP = '\u0000';
+
+    private final ReservationClient reservations;
+    private final Cache<String, Boolean> decisions;
+    private final Timer upstream;
+    private final Map<String, Mono<Boolean>> inFlight = new ConcurrentHashMap<>();
+
+    @Autowired
+    public ChatPermissionCache(ReservationClient reservations, MeterRegistry registry,
+            @Value("${chat.authz.cache.ttl-seconds:300}") long ttlSeconds,
+            @Value("${chat.authz.cache.negative-ttl-seconds:30}") long negativeTtlSeconds,
+            @Value("${chat.authz.cache.max-size:10000}") long maxSize) {
+        this.reservations = reservations;
+        long positiveNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        long negativeNanos = TimeUnit.SECONDS.toNanos(negativeTtlSeconds);
+        this.decisions = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfter(new Expiry<String, Boolean>() {
+                    @Override
+                    public long expireAfterCreate(String key, Boolean allowed, long currentTime) {
+                        return Boolean.TRUE.equals(allowed) ? positiveNanos : negativeNanos;
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String key, Boolean allowed, long currentTime,
+                            long currentDuration) {
+                        return expireAfterCreate(key, allowed, currentTime);
+                    }
+
+                    @Override
+                    public long expireAfterRead(String key, Boolean allowed, long currentTime,
+                            long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .recordStats()
+                .build();
+        this.upstream = Timer.builder("chat.authz.upstream")
+                .description("Latencia de can-chat contra el servicio de reservas")
+                .register(registry);
+        CaffeineCacheMetrics.monitor(registry, decisions, "chatPermissions");
+        Gauge.builder("chat.authz.cache.hit.ratio", decisions, c -> c.stats().hitRate())
+                .register(registry);
+        Gauge.builder("chat.authz.latency.saved", this, ChatPermissionCache::latencySavedSeconds)
+                .description("Latencia estimada ahorrada por aciertos de caché")
+                .baseUnit("seconds")
+                .register(registry);
+    }
+
+    /**
+     * Indica si el usuario puede chatear con la contraparte, consultando al
+     * servicio de reservas solo si la decisión no está en caché. Cargas
+     * concurrentes de la misma clave se agrupan en una sola llamada.
+     *
+     * @param userId        ID del usuario autenticado.
+     * @param bearer        token Bearer del usuario, usado solo en un fallo de caché.
+     * @param counterpartId ID de la contraparte.
+     * @return true si puede chatear.
+     */
+    public boolean canChat(String userId, String bearer, String counterpartId) {
+        Boolean allowed = decisions.get(key(userId, counterpartId), k -> load(bearer, counterpartId));
+        return Boolean.TRUE.equals(allowed);
+    }
+
+    /**
+     * Versión no bloqueante de {@link #canChat}, para el gateway reactivo.
+     * Comparte la caché con la versión bloqueante, y las consultas
+     * concurrentes de un mismo par que falla en caché comparten una sola
+     * llamada remota.
+     *
+     * @param userId        ID del usuario autenticado.
+     * @param bearer        token Bearer del usuario, usado solo en un fallo de caché.
+     * @param counterpartId ID de la contraparte.
+     * @return true si puede chatear; false también si el servicio no respondió.
+     */
+    public Mono<Boolean> canChatAsync(String userId, String bearer, String counterpartId) {
+        String key = key(userId, counterpartId);
+        Boolean allowed = decisions.getIfPresent(key);
+        if (allowed != null) {
+            return Mono.just(allowed);
+        }
+        return inFlight.computeIfAbsent(key, k -> loadAsync(k, bearer, counterpartId));
+    }
+
+    /**
+     * Decisión cacheada para el par, sin consultar al servicio de reservas.
+     *
+     * @param userId        ID del usuario autenticado.
+     * @param counterpartId ID de la contraparte.
+     * @return la decisión, o null si no está en caché.
+     */
+    public Boolean cachedDecision(String userId, String counterpartId) {
+        return decisions.getIfPresent(key(userId, counterpartId));
+    }
+
+    /**
+     * Consulta al servicio de reservas midiendo la latencia.
+     *
+     * @return la decisión, o null si hubo un fallo (no se cachea).
+     */
+    private Boolean load(String bearer, String counterpartId) {
+        long start = System.nanoTime();
+        try {
+            return reservations.checkCanChat(bearer, counterpartId).orElse(null);
+        } finally {
+            upstream.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Consulta no bloqueante: la decisión se cachea igual que en
+     * {@link #load}, y la consulta deja de compartirse al terminar.
+     */
+    private Mono<Boolean> loadAsync(String key, String bearer, String counterpartId) {
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            return reservations.checkCanChatAsync(bearer, counterpartId)
+                    .doFinally(s -> upstream.record(System.nanoTime() - start, TimeUnit.NANOSECONDS));
+        }).map(decision -> {
+            decision.ifPresent(d -> decisions.put(key, d));
+            return decision.orElse(false);
+        }).doFinally(s -> inFlight.remove(key)).cache();
+    }
+
+    /**
+     * Invalida la decisión para un par de usuarios, en ambos sentidos.
+     *
+     * @param userId        ID de un usuario.
+     * @param counterpartId ID del otro usuario.
+     */
+    public void invalidate(String userId, String counterpartId) {
+        decisions.invalidate(key(userId, counterpartId));
+        decisions.invalidate(key(counterpartId, userId));
+    }
+
+    /**
+     * Invalida todas las decisiones en las que participa un usuario.
+     *
+     * @param userId ID del usuario.
+     */
+    public void invalidateUser(String userId) {
+        String asUser = userId + SEP;
+        String asCounterpart = SEP + userId;
+        decisions.asMap().keySet().removeIf(k -> k.startsWith(asUser) || k.endsWith(asCounterpart));
+    }
+
+    /** Invalida todas las decisiones cacheadas. */
+    public void invalidateAll() {
+        decisions.invalidateAll();
+    }
+
+    /**
+     * Latencia ahorrada estimada: aciertos por latencia media de la llamada remota.
+     *
+     * @return segundos ahorrados.
+     */
+    double latencySavedSeconds() {
+        return decisions.stats().hitCount() * upstream.mean(TimeUnit.SECONDS);
+    }
+
+    private static String key(String userId, String counterpartId) {
+        return userId + SEP + counterpartId;
+    }
+}
@@ -3,23 +3,35 @@ package co.edu.escuelaing.uplearn.chat.service;
 import co.edu.escuelaing.uplearn.chat.domain.Chat;
 import co.edu.escuelaing.uplearn.chat.domain.Message;
 import co.edu.escuelaing.uplearn.chat.dto.ChatMessageData;
+import co.edu.escuelaing.uplearn.chat.dto.SendMessageRequest;
 import co.edu.escuelaing.uplearn.chat.repository.ChatRepository;
 import co.edu.escuelaing.uplearn.chat.repository.MessageRepository;
 import lombok.RequiredArgsConstructor;
 
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.data.domain.Sort;
 
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.time.Instant;
 import java.time.ZonedDateTime;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.ArrayList;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 /**
  * Servicio para manejar la lógica de chats y mensajes.
@@ -28,6 +40,10 @@ import java.util.ArrayList;
 @RequiredArgsConstructor
 public class ChatService {
 
+    private static final String READ_UP_TO = "readUpTo";
+    private static final String SEQ = "seq";
+    private static final String CREATED_AT = "createdAt";
+
     private final ChatRepository chats;
     private final MessageRepository messages;
     private final CryptoService crypto;
@@ -78,7 +94,42 @@ public class ChatService {
     }
 
     /**
-     * Guardar un mensaje en un chat (contenido cifrado en BD)
+     * Reservar un bloque de números de secuencia consecutivos en un chat con
+     * una sola operación atómica ({@code findAndModify} con {@code $inc}),
+     * creando el chat si no existe. Reemplaza la consulta de
+     * {@link #ensureChat}, así numerar no agrega idas y vueltas a Mongo
+     * 
+     * @param chatId el ID del chat
+     * @param a      el ID de un participante
+     * @param b      el ID del otro participante
+     * @param count  cuántos números reservar
+     * @return el primer número del bloque
+     */
+    private long reserveSeq(String chatId, String a, String b, int count) {
+        String userA = a.compareTo(b) <= 0 ? a : b;
+        String userB = a.compareTo(b) <= 0 ? b : a;
+        Query q = new Query(Criteria.where("id").is(chatId));
+        Update u = new Update().inc(SEQ, count)
+                .setOnInsert("userA", userA)
+                .setOnInsert("userB", userB)
+                .setOnInsert("participants", Set.of(userA, userB))
+                .setOnInsert(CREATED_AT, Instant.now());
+        FindAndModifyOptions opts = FindAndModifyOptions.options().upsert(true).returnNew(true);
+        Chat chat;
+        try {
+            chat = mongo.findAndModify(q, u, opts, Chat.class);
+        } catch (DuplicateKeyException e) {
+            // Dos altas simultáneas del mismo chat: el reintento ya lo encuentra
+            chat = mongo.findAndModify(q, u, opts, Chat.class);
+        }
+        if (chat == null)
+            throw new IllegalStateException("No se pudo reservar secuencia en el chat " + chatId);
+        return chat.getSeq() - count + 1;
+    }
+
+    /**
+     * Guardar un mensaje en un chat (contenido cifrado en BD) con el siguiente
+     * número de secuencia del chat
      * 
      * @param chatId  el ID del chat
      * @param from    el ID del usuario remitente
@@ -88,12 +139,14 @@ public class ChatService {
      */
     public Message saveMessage(String chatId, String from, String to, String content) {
         String encrypted = crypto.encrypt(content);
+        long seq = reserveSeq(chatId, from, to, 1);
         Message msg = Message.builder()
                 .chatId(chatId)
                 .fromUserId(from)
                 .toUserId(to)
                 .content(encrypted)
                 .createdAt(Instant.now())
+                .seq(seq)
                 .delivered(false)
                 .read(false)
                 .build();
@@ -101,13 +154,208 @@ public class ChatService {
     }
 
     /**
-     * Obtener el historial de mensajes de un chat (entidades)
+     * Guardar varios mensajes de un mismo remitente con una sola inserción
+     * masiva. Los mensajes de un lote comparten el instante base y se
+     * separan por un milisegundo; los números de secuencia se reservan en un
+     * bloque por chat, en el orden del lote.
+     * 
+     * @param from     el ID del usuario remitente
+     * @param requests las solicitudes de envío, ya validadas y autorizadas
+     * @return las entidades guardadas, en el mismo orden y con sus IDs
+     */
+    public List<Message> saveMessages(String from, List<SendMessageRequest> requests) {
+        if (requests.isEmpty())
+            return List.of();
+        Instant base = Instant.now();
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        for (SendMessageRequest req : requests)
+            counts.merge(req.getToUserId(), 1, Integer::sum);
+        Map<String, String> chatIds = new HashMap<>();
+        Map<String, Long> nextSeq = new HashMap<>();
+        counts.forEach((to, n) -> {
+            String chatId = chatIdOf(from, to);
+            chatIds.put(to, chatId);
+            nextSeq.put(to, reserveSeq(chatId, from, to, n));
+        });
+        List<Message> batch = new ArrayList<>(requests.size());
+        for (int i = 0; i < requests.size(); i++) {
+            SendMessageRequest req = requests.get(i);
+            String to = req.getToUserId();
+            long seq = nextSeq.merge(to, 1L, Long::sum) - 1;
+            batch.add(Message.builder()
+                    .chatId(chatIds.get(to))
+                    .fromUserId(from)
+                    .toUserId(to)
+                    .content(crypto.encrypt(req.getContent()))
+                    .createdAt(base.plusMillis(i))
+                    .seq(seq)
+                    .delivered(false)
+                    .read(false)
+                    .build());
+        }
+        mongo.insertAll(batch);
+        return batch;
+    }
+
+    /**
+     * Obtener el historial de mensajes de un chat (entidades) en orden de
+     * secuencia, con el estado de lectura derivado de las marcas de lectura
+     * del chat
      * 
      * @param chatId ID del chat
      * @return Lista de mensajes del chat
      */
     public List<Message> history(String chatId) {
-        return messages.findByChatIdOrderByCreatedAtAsc(chatId);
+        return history(chatId, null);
+    }
+
+    /**
+     * Obtener el historial de un chat o sala para un lector: los mensajes de
+     * sala, sin receptor, se marcan como leídos según la marca del propio
+     * lector
+     * 
+     * @param chatId   ID del chat o de la sala
+     * @param readerId ID de quien consulta, o null
+     * @return Lista de mensajes del chat
+     */
+    public List<Message> history(String chatId, String readerId) {
+        return withReadState(chatId, messages.findByChatIdOrderBySeqAscCreatedAtAsc(chatId), readerId);
+    }
+
+    /**
+     * Obtener solo los mensajes de un chat posteriores a un número de
+     * secuencia, con un recorrido por rango sobre el índice
+     * {@code (chatId, seq)}
+     * 
+     * @param chatId   ID del chat
+     * @param afterSeq último número de secuencia que el cliente ya tiene
+     * @param limit    máximo de mensajes a devolver
+     * @return los mensajes siguientes, en orden de secuencia
+     */
+    public List<Message> historyAfter(String chatId, long afterSeq, int limit) {
+        return historyAfter(chatId, afterSeq, limit, null);
+    }
+
+    /**
+     * Como {@link #historyAfter(String, long, int)}, con el estado de lectura
+     * de los mensajes de sala según la marca del lector
+     * 
+     * @param chatId   ID del chat o de la sala
+     * @param afterSeq último número de secuencia que el cliente ya tiene
+     * @param limit    máximo de mensajes a devolver
+     * @param readerId ID de quien consulta, o null
+     * @return los mensajes siguientes, en orden de secuencia
+     */
+    public List<Message> historyAfter(String chatId, long afterSeq, int limit, String readerId) {
+        Query q = new Query(Criteria.where("chatId").is(chatId).and(SEQ).gt(afterSeq))
+                .with(Sort.by(Sort.Direction.ASC, SEQ))
+                .limit(limit);
+        return withReadState(chatId, mongo.find(q, Message.class), readerId);
+    }
+
+    /**
+     * Marca como leídos los mensajes cubiertos por la marca de su receptor o,
+     * en una sala, por la del lector
+     * 
+     * @param chatId   ID del chat
+     * @param list     mensajes del chat
+     * @param readerId ID de quien consulta, o null
+     * @return la misma lista
+     */
+    private List<Message> withReadState(String chatId, List<Message> list, String readerId) {
+        if (list != null && !list.isEmpty()) {
+            Map<String, Instant> marks = readMarks(chatId);
+            for (Message m : list) {
+                if (isRead(marks, m.getToUserId(), readerId, m.getCreatedAt())) {
+                    m.setRead(true);
+                }
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Avanzar la marca de lectura de un participante con una sola escritura
+     * pequeña sobre el chat, sin tocar los mensajes. La marca nunca retrocede
+     * ({@code $max}) y solo se aplica si el usuario participa del chat. La
+     * clave se escapa con {@link #readMarkKey}, así cualquier ID es válido
+     * 
+     * @param chatId ID del chat
+     * @param userId ID del participante que leyó
+     * @param upTo   instante hasta el que leyó, inclusive
+     * @return true si la marca avanzó
+     */
+    public boolean advanceReadMark(String chatId, String userId, Instant upTo) {
+        var result = mongo.updateFirst(
+                new Query(Criteria.where("id").is(chatId).and("participants").is(userId)),
+                new Update().max(READ_UP_TO + "." + readMarkKey(userId), upTo), Chat.class);
+        return result.getModifiedCount() > 0;
+    }
+
+    /**
+     * Obtener las marcas de lectura de un chat
+     * 
+     * @param chatId ID del chat
+     * @return marca por participante (vacío si no hay)
+     */
+    public Map<String, Instant> readMarks(String chatId) {
+        Map<String, Instant> marks = chats.findById(chatId).map(Chat::getReadUpTo).orElse(null);
+        return marks != null ? decodeReadMarks(marks) : Map.of();
+    }
+
+    /**
+     * Clave de la marca de un usuario dentro de {@code readUpTo}. Mongo no
+     * admite '.' ni '$' en una clave, así que se escapan como en una URL
+     * ({@code %2E}, {@code %24}, y {@code %25} para el propio '%'); un UUID
+     * queda igual
+     * 
+     * @param userId ID del usuario
+     * @return la clave a usar en la ruta {@code readUpTo.<clave>}
+     */
+    public static String readMarkKey(String userId) {
+        if (userId.indexOf('.') < 0 && userId.indexOf('$') < 0 && userId.indexOf('%') < 0)
+            return userId;
+        return userId.replace("%", "%25").replace(".", "%2E").replace("$", "%24");
+    }
+
+    /**
+     * Marcas de lectura leídas de Mongo, con las claves vueltas a IDs de
+     * usuario (inverso de {@link #readMarkKey})
+     * 
+     * @param stored el mapa {@code readUpTo} guardado
+     * @return marca por ID de usuario
+     */
+    public static Map<String, Instant> decodeReadMarks(Map<String, Instant> stored) {
+        boolean escaped = false;
+        for (String key : stored.keySet()) {
+            if (key.indexOf('%') >= 0) {
+                escaped = true;
+                break;
+            }
+        }
+        if (!escaped)
+            return stored;
+        Map<String, Instant> out = new HashMap<>(stored.size());
+        stored.forEach((key, mark) -> out.put(
+                key.replace("%2E", ".").replace("%24", "$").replace("%25", "%"), mark));
+        return out;
+    }
+
+    /**
+     * Indica si un mensaje está cubierto por la marca de lectura de su
+     * receptor. Un mensaje de sala no tiene receptor: cuenta la marca del
+     * lector que consulta
+     * 
+     * @param marks     marcas de lectura del chat
+     * @param toUserId  receptor del mensaje, o null en una sala
+     * @param readerId  quien consulta, o null
+     * @param createdAt instante del mensaje
+     * @return true si el receptor (o el lector, en una sala) lo leyó
+     */
+    static boolean isRead(Map<String, Instant> marks, String toUserId, String readerId, Instant createdAt) {
+        String owner = toUserId != null && !toUserId.isEmpty() ? toUserId : readerId;
+        Instant mark = owner != null ? marks.get(owner) : null;
+        return mark != null && createdAt != null && !createdAt.isAfter(mark);
     }
 
     /**
@@ -121,13 +369,130 @@ public class ChatService {
     }
 
     /**
-     * Marcar una lista de mensajes como entregados
+     * Recorre los mensajes pendientes de un usuario con un cursor de Mongo,
+     * entregándolos por páginas en orden cronológico sin cargar todos en memoria.
+     * 
+     * @param userId   ID del usuario
+     * @param pageSize tamaño de página (y de lote del cursor)
+     * @param onPage   consumidor de cada página; puede lanzar para detener el recorrido
+     * @return total de mensajes recorridos
+     */
+    public int streamPending(String userId, int pageSize, Consumer<List<Message>> onPage) {
+        Query q = new Query(Criteria.where("toUserId").is(userId).and("delivered").is(false))
+                .with(Sort.by(Sort.Direction.ASC, CREATED_AT))
+                .cursorBatchSize(pageSize);
+        return streamPages(q, pageSize, onPage);
+    }
+
+    /**
+     * Recorre, en un solo orden cronológico, los mensajes de todos los chats
+     * del usuario (recibidos y enviados desde cualquier dispositivo) creados
+     * desde un instante. Cada rama del {@code $or} es un rango sobre un
+     * índice {@code (toUserId, createdAt)} o {@code (fromUserId, createdAt)},
+     * así el costo depende del tamaño del delta y no del historial. Los
+     * mensajes de sala no tienen receptor y quedan fuera: una sala se pone
+     * al día con {@link #historyAfter(String, long, int, String)} desde su
+     * último {@code seq}.
+     * 
+     * @param userId   ID del usuario
+     * @param since    instante desde el que se buscan mensajes (inclusive)
+     * @param limit    máximo de mensajes a recorrer
+     * @param pageSize tamaño de página (y de lote del cursor)
+     * @param onPage   consumidor de cada página; puede lanzar para detener el recorrido
+     * @return total de mensajes recorridos
+     */
+    public int streamSince(String userId, Instant since, int limit, int pageSize, Consumer<List<Message>> onPage) {
+        Query q = new Query(new Criteria().orOperator(
+                Criteria.where("toUserId").is(userId).and(CREATED_AT).gte(since),
+                Criteria.where("fromUserId").is(userId).and("toUserId").ne(null).and(CREATED_AT).gte(since)))
+                .with(Sort.by(Sort.Direction.ASC, CREATED_AT))
+                .limit(limit)
+                .cursorBatchSize(pageSize);
+        return streamPages(q, pageSize, onPage);
+    }
+
+    /**
+     * Instante de creación de un mensaje del usuario, para usarlo como cursor
+     * de reanudación
+     * 
+     * @param userId    ID del usuario
+     * @param messageId ID del mensaje
+     * @return el instante, o null si el mensaje no existe o no es del usuario
+     */
+    public Instant createdAtOf(String userId, String messageId) {
+        return messages.findById(messageId)
+                .filter(m -> userId.equals(m.getToUserId()) || userId.equals(m.getFromUserId()))
+                .map(Message::getCreatedAt)
+                .orElse(null);
+    }
+
+    /**
+     * Entrega por páginas los resultados de una consulta leída con cursor.
+     */
+    private int streamPages(Query q, int pageSize, Consumer<List<Message>> onPage) {
+        int total = 0;
+        try (Stream<Message> stream = mongo.stream(q, Message.class)) {
+            Iterator<Message> it = stream.iterator();
+            List<Message> page = new ArrayList<>(pageSize);
+            while (it.hasNext()) {
+                page.add(it.next());
+                if (page.size() == pageSize) {
+                    total += page.size();
+                    onPage.accept(page);
+                    page = new ArrayList<>(pageSize);
+                }
+            }
+            if (!page.isEmpty()) {
+                total += page.size();
+                onPage.accept(page);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Marcar mensajes como entregados con una sola actualización masiva por id,
+     * sin reescribir los documentos completos
+     * 
+     * @param ids IDs de los mensajes
+     */
+    public void markDeliveredByIds(Collection<String> ids) {
+        if (ids.isEmpty())
+            return;
+        mongo.updateMulti(new Query(Criteria.where("id").in(ids)),
+                new Update().set("delivered", true), Message.class);
+    }
+
+    /**
+     * Marcar como entregados los mensajes confirmados por sus receptores, con
+     * una sola operación masiva. Cada grupo solo afecta mensajes dirigidos a
+     * ese usuario, así un cliente no puede confirmar mensajes ajenos
+     * 
+     * @param idsByRecipient IDs confirmados agrupados por usuario receptor
+     */
+    public void markDeliveredFor(Map<String, ? extends Collection<String>> idsByRecipient) {
+        if (idsByRecipient.isEmpty())
+            return;
+        BulkOperations bulk = mongo.bulkOps(BulkOperations.BulkMode.UNORDERED, Message.class);
+        idsByRecipient.forEach((userId, ids) -> bulk.updateMulti(
+                new Query(Criteria.where("id").in(ids).and("toUserId").is(userId)),
+                new Update().set("delivered", true)));
+        bulk.execute();
+    }
+
+    /**
+     * Marcar una lista de mensajes como entregados con una sola actualización
+     * por id
      * 
      * @param list la lista de mensajes a marcar
      */
     public void markDelivered(List<Message> list) {
-        list.forEach(m -> m.setDelivered(true));
-        messages.saveAll(list);
+        List<String> ids = new ArrayList<>(list.size());
+        for (Message m : list) {
+            m.setDelivered(true);
+            ids.add(m.getId());
+        }
+        markDeliveredByIds(ids);
     }
 
     /**
@@ -149,6 +514,7 @@ public class ChatService {
                 .toUserId(m.getToUserId())
                 .content(plainContent)
                 .createdAt(created)
+                .seq(m.getSeq())
                 .delivered(m.isDelivered())
                 .read(m.isRead())
                 .build();
@@ -162,8 +528,9 @@ public class ChatService {
      */
     public List<ChatMessageData> historyDtoTolerant(String chatId) {
         Query q = new Query(Criteria.where("chatId").is(chatId))
-                .with(Sort.by(Sort.Direction.ASC, "createdAt"));
+                .with(Sort.by(Sort.Direction.ASC, SEQ, CREATED_AT));
         List<org.bson.Document> docs = mongo.find(q, org.bson.Document.class, "messages");
+        Map<String, Instant> marks = docs.isEmpty() ? Map.of() : readMarks(chatId);
 
         List<ChatMessageData> out = new ArrayList<>(docs.size());
         for (org.bson.Document d : docs) {
@@ -173,9 +540,9 @@ public class ChatService {
             String enc = asStr(d.get("content"));
             String content = crypto.decrypt(enc);
 
-            String createdIso = toIso(d.get("createdAt"));
+            String createdIso = toIso(d.get(CREATED_AT));
             boolean delivered = toBool(d.get("delivered"));
-            boolean read = toBool(d.get("read"));
+            boolean read = toBool(d.get("read")) || isRead(marks, to, null, parseInstant(createdIso));
 
             out.add(ChatMessageData.builder()
                     .id(id)
@@ -184,6 +551,7 @@ public class ChatService {
                     .toUserId(to)
                     .content(content)
                     .createdAt(createdIso)
+                    .seq(d.get(SEQ) instanceof Number n ? n.longValue() : 0L)
                     .delivered(delivered)
                     .read(read)
                     .build());
@@ -230,6 +598,20 @@ public class ChatService {
         return Instant.now().toString();
     }
 
+    /**
+     * Interpreta una cadena ISO-8601 como instante de forma segura
+     * 
+     * @param iso la cadena a interpretar
+     * @return el instante, o null si no es válida
+     */
+    private static Instant parseInstant(String iso) {
+        try {
+            return Instant.parse(iso);
+        } catch (Exception ignored) {
+            return null;
+        }
+    }
+
     /**
      * Convierte un valor a booleano de forma segura
      * 
@@ -0,0 +1,280 @@
+package co.edu.escuelaing.uplearn.chat.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Buffer de escritura diferida para las confirmaciones de entrega. Agrupa los
+ * IDs confirmados durante una ventana corta y los marca como entregados con
+ * una sola actualización masiva, en lugar de una escritura por mensaje.
+ * <p>
+ * Con {@code chat.delivery.flush-window-ms=0} la confirmación se escribe de
+ * inmediato (sin agrupar). Si la escritura falla, los mensajes siguen como
+ * pendientes y se reenvían al reconectar, igual que antes. Un lote lleno
+ * se escribe en el hilo del temporizador, no en el de quien confirma (por
+ * ejemplo, el hilo que drena la cola de salida de una sesión).
+ * <p>
+ * Las confirmaciones pueden venir del servidor (al escribir el mensaje en una
+ * sesión del receptor) o del cliente, con tramas {@code {"type":"ack"}}. Las
+ * del cliente se agrupan por usuario y solo marcan mensajes dirigidos a él.
+ * Con {@code chat.delivery.confirm=client} el servidor deja de marcar por su
+ * cuenta y solo cuentan las confirmaciones del cliente.
+ */
+@Slf4j
+@Component
+public class DeliveryAckBuffer {
+
+    private final ChatService chatService;
+    private final ScheduledExecutorService scheduler;
+    private final int maxBatch;
+    private final boolean clientConfirmed;
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private final Map<String, Set<String>> confirmedByUser = new ConcurrentHashMap<>();
+    private final AtomicInteger confirmedCount = new AtomicInteger();
+    private final Object flushLock = new Object();
+    private final AtomicBoolean flushQueued = new AtomicBoolean();
+    private final Counter acks;
+    private final Counter clientAcks;
+    private final Counter writes;
+
+    @Autowired
+    public DeliveryAckBuffer(ChatService chatService, MeterRegistry registry,
+            @Value("${chat.delivery.flush-window-ms:50}") long flushWindowMs,
+            @Value("${chat.delivery.max-batch:500}") int maxBatch,
+            @Value("${chat.delivery.confirm:server}") String confirm) {
+        this(chatService, registry, flushWindowMs > 0 ? newScheduler() : null, flushWindowMs, maxBatch,
+                "client".equalsIgnoreCase(confirm.trim()));
+    }
+
+    public DeliveryAckBuffer(ChatService chatService, MeterRegistry registry, ScheduledExecutorService scheduler,
+            long flushWindowMs, int maxBatch) {
+        this(chatService, registry, scheduler, flushWindowMs, maxBatch, false);
+    }
+
+    public DeliveryAckBuffer(ChatService chatService, MeterRegistry registry, ScheduledExecutorService scheduler,
+            long flushWindowMs, int maxBatch, boolean clientConfirmed) {
+        this.chatService = chatService;
+        this.scheduler = scheduler;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.clientConfirmed = clientConfirmed;
+        this.acks = Counter.builder("chat.delivery.acks")
+                .description("Confirmaciones de entrega recibidas")
+                .register(registry);
+        this.clientAcks = Counter.builder("chat.delivery.client-acks")
+                .description("IDs confirmados por los clientes con tramas ack")
+                .register(registry);
+        this.writes = Counter.builder("chat.delivery.writes")
+                .description("Actualizaciones masivas de entrega enviadas a Mongo")
+                .register(registry);
+        if (scheduler != null) {
+            scheduler.scheduleWithFixedDelay(this::flushQuietly, flushWindowMs, flushWindowMs,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static ScheduledExecutorService newScheduler() {
+        return Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "delivery-ack-flush");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Indica si solo las confirmaciones del cliente marcan la entrega.
+     *
+     * @return true con {@code chat.delivery.confirm=client}.
+     */
+    public boolean isClientConfirmed() {
+        return clientConfirmed;
+    }
+
+    /**
+     * Registra la entrega de un mensaje.
+     *
+     * @param messageId ID del mensaje entregado.
+     */
+    public void acknowledge(String messageId) {
+        if (messageId != null) {
+            acknowledgeAll(List.of(messageId));
+        }
+    }
+
+    /**
+     * Registra la entrega de varios mensajes. Se escriben en la siguiente
+     * ventana, en cuanto el temporizador quede libre si el lote alcanza
+     * {@code chat.delivery.max-batch}, o de inmediato si el buffer no tiene
+     * ventana.
+     *
+     * @param messageIds IDs de los mensajes entregados.
+     */
+    public void acknowledgeAll(Collection<String> messageIds) {
+        pending.addAll(messageIds);
+        acks.increment(messageIds.size());
+        if (scheduler == null) {
+            flushQuietly();
+        } else if (pending.size() >= maxBatch) {
+            requestFlush();
+        }
+    }
+
+    /**
+     * Registra los IDs que un cliente confirmó haber recibido. Se agrupan por
+     * usuario y se escriben junto con el resto en la siguiente ventana.
+     *
+     * @param userId     el usuario que confirma (receptor de los mensajes).
+     * @param messageIds IDs confirmados.
+     */
+    public void confirm(String userId, Collection<String> messageIds) {
+        if (userId == null || messageIds.isEmpty()) {
+            return;
+        }
+        confirmedByUser.compute(userId, (k, ids) -> {
+            Set<String> set = ids != null ? ids : new HashSet<>();
+            for (String id : messageIds) {
+                if (id != null && set.add(id)) {
+                    confirmedCount.incrementAndGet();
+                }
+            }
+            return set;
+        });
+        clientAcks.increment(messageIds.size());
+        if (scheduler == null) {
+            flushQuietly();
+        } else if (confirmedCount.get() >= maxBatch) {
+            requestFlush();
+        }
+    }
+
+    /**
+     * Escribe todas las confirmaciones acumuladas.
+     *
+     * @return número de mensajes marcados.
+     */
+    public int flush() {
+        synchronized (flushLock) {
+            return flushServerAcks() + flushClientAcks();
+        }
+    }
+
+    private int flushServerAcks() {
+        if (pending.isEmpty()) {
+            return 0;
+        }
+        int total = 0;
+        List<String> batch = new ArrayList<>(Math.min(pending.size(), maxBatch));
+        for (String id : pending) {
+            batch.add(id);
+            total++;
+            if (batch.size() == maxBatch) {
+                write(batch);
+                batch = new ArrayList<>(maxBatch);
+            }
+        }
+        if (!batch.isEmpty()) {
+            write(batch);
+        }
+        return total;
+    }
+
+    /**
+     * Escribe las confirmaciones de clientes en operaciones masivas de hasta
+     * {@code maxBatch} IDs. Cada usuario se retira del mapa de forma atómica,
+     * así una confirmación concurrente va a un conjunto nuevo y no se pierde.
+     */
+    private int flushClientAcks() {
+        if (confirmedByUser.isEmpty()) {
+            return 0;
+        }
+        int total = 0;
+        int chunkSize = 0;
+        Map<String, Set<String>> chunk = new HashMap<>();
+        for (String userId : confirmedByUser.keySet()) {
+            Set<String> ids = confirmedByUser.remove(userId);
+            if (ids == null) {
+                continue;
+            }
+            confirmedCount.addAndGet(-ids.size());
+            chunk.put(userId, ids);
+            chunkSize += ids.size();
+            total += ids.size();
+            if (chunkSize >= maxBatch) {
+                writeConfirmed(chunk);
+                chunk = new HashMap<>();
+                chunkSize = 0;
+            }
+        }
+        if (!chunk.isEmpty()) {
+            writeConfirmed(chunk);
+        }
+        return total;
+    }
+
+    private void writeConfirmed(Map<String, Set<String>> chunk) {
+        chatService.markDeliveredFor(chunk);
+        writes.increment();
+    }
+
+    private void write(List<String> batch) {
+        batch.forEach(pending::remove);
+        chatService.markDeliveredByIds(batch);
+        writes.increment();
+    }
+
+    /**
+     * Programa una escritura en el hilo del temporizador sin esperar la
+     * ventana. Solo queda una en cola a la vez; si el temporizador ya se
+     * detuvo, se escribe en el hilo actual.
+     */
+    private void requestFlush() {
+        if (!flushQueued.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            scheduler.execute(() -> {
+                flushQueued.set(false);
+                flushQuietly();
+            });
+        } catch (RejectedExecutionException e) {
+            flushQueued.set(false);
+            flushQuietly();
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (Exception e) {
+            log.warn("No se pudieron marcar entregas: {}", e.toString());
+        }
+    }
+
+    /** Escribe lo pendiente y detiene el temporizador al apagar la aplicación. */
+    @PreDestroy
+    void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+        flushQuietly();
+    }
+}
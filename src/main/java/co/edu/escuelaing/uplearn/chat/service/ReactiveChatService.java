@@ -0,0 +1,121 @@
+package co.edu.escuelaing.uplearn.chat.service;
+
+import co.edu.escuelaing.uplearn.chat.domain.Chat;
+import co.edu.escuelaing.uplearn.chat.domain.Message;
+import co.edu.escuelaing.uplearn.chat.repository.ReactiveChatRepository;
+import co.edu.escuelaing.uplearn.chat.repository.ReactiveMessageRepository;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Instant;
+import java.util.Map;
+
+/**
+ * Variante no bloqueante de las consultas de {@link ChatService} que usa la
+ * API REST con {@code chat.rest.mode=reactive}. Lee los mismos documentos con
+ * los repositorios reactivos; el cálculo de chatId y la conversión a DTO
+ * siguen en {@link ChatService}, que no hacen E/S.
+ */
+@Service
+@ConditionalOnProperty(prefix = "chat.rest", name = "mode", havingValue = "reactive")
+@RequiredArgsConstructor
+public class ReactiveChatService {
+
+    private final ReactiveChatRepository chats;
+    private final ReactiveMessageRepository messages;
+
+    /**
+     * Indica si un usuario participa de un chat.
+     *
+     * @param chatId ID del chat
+     * @param userId ID del usuario
+     * @return true si participa; false si no o si el chat no existe
+     */
+    public Mono<Boolean> isParticipant(String chatId, String userId) {
+        return chats.findById(chatId)
+                .map(c -> c.getParticipants() != null && c.getParticipants().contains(userId))
+                .defaultIfEmpty(false);
+    }
+
+    /**
+     * Mensajes de un chat en orden de secuencia, con el estado de lectura
+     * según las marcas del chat, como {@link ChatService#history}.
+     *
+     * @param chatId ID del chat
+     * @return los mensajes del chat
+     */
+    public Flux<Message> history(String chatId) {
+        return history(chatId, null);
+    }
+
+    /**
+     * Historial para un lector, como {@link ChatService#history(String, String)}.
+     *
+     * @param chatId   ID del chat o de la sala
+     * @param readerId ID de quien consulta, o null
+     * @return los mensajes del chat
+     */
+    public Flux<Message> history(String chatId, String readerId) {
+        return withReadState(chatId, messages.findByChatIdOrderBySeqAscCreatedAtAsc(chatId), readerId);
+    }
+
+    /**
+     * Mensajes de un chat posteriores a un número de secuencia, como
+     * {@link ChatService#historyAfter}.
+     *
+     * @param chatId   ID del chat
+     * @param afterSeq último número de secuencia que el cliente ya tiene
+     * @param limit    máximo de mensajes a devolver
+     * @return los mensajes siguientes, en orden de secuencia
+     */
+    public Flux<Message> historyAfter(String chatId, long afterSeq, int limit) {
+        return historyAfter(chatId, afterSeq, limit, null);
+    }
+
+    /**
+     * Como {@link ChatService#historyAfter(String, long, int, String)}.
+     *
+     * @param chatId   ID del chat o de la sala
+     * @param afterSeq último número de secuencia que el cliente ya tiene
+     * @param limit    máximo de mensajes a devolver
+     * @param readerId ID de quien consulta, o null
+     * @return los mensajes siguientes, en orden de secuencia
+     */
+    public Flux<Message> historyAfter(String chatId, long afterSeq, int limit, String readerId) {
+        return withReadState(chatId,
+                messages.findByChatIdAndSeqGreaterThanOrderBySeqAsc(chatId, afterSeq, PageRequest.of(0, limit)),
+                readerId);
+    }
+
+    /**
+     * Marcas de lectura de un chat.
+     *
+     * @param chatId ID del chat
+     * @return marca por participante (vacío si no hay)
+     */
+    public Mono<Map<String, Instant>> readMarks(String chatId) {
+        return chats.findById(chatId)
+                .mapNotNull(Chat::getReadUpTo)
+                .map(ChatService::decodeReadMarks)
+                .defaultIfEmpty(Map.of());
+    }
+
+    /**
+     * Marca como leídos los mensajes cubiertos por la marca de su receptor o,
+     * en una sala, por la del lector. Las marcas se leen una sola vez y solo
+     * si el chat tiene mensajes.
+     */
+    private Flux<Message> withReadState(String chatId, Flux<Message> list, String readerId) {
+        Mono<Map<String, Instant>> marks = Mono.defer(() -> readMarks(chatId)).cache();
+        return list.concatMap(m -> marks.map(mk -> {
+            if (ChatService.isRead(mk, m.getToUserId(), readerId, m.getCreatedAt())) {
+                m.setRead(true);
+            }
+            return m;
+        }));
+    }
+}
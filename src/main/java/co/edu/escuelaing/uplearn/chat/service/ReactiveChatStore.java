@@ -0,0 +1,222 @@
+package co.edu.escuelaing.uplearn.chat.service;
+
+import co.edu.escuelaing.uplearn.chat.domain.Chat;
+import co.edu.escuelaing.uplearn.chat.domain.Message;
+import co.edu.escuelaing.uplearn.chat.dto.SendMessageRequest;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Persistencia de mensajes sin bloquear, para el gateway reactivo. Escribe y
+ * lee los mismos documentos que {@link ChatService}, con el driver reactivo
+ * de Mongo: la numeración, el cifrado y los índices usados son los mismos,
+ * así ambos modos pueden convivir sobre la misma base durante un despliegue.
+ */
+@Service
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+@RequiredArgsConstructor
+public class ReactiveChatStore {
+
+    private static final String READ_UP_TO = "readUpTo";
+    private static final String SEQ = "seq";
+    private static final String CREATED_AT = "createdAt";
+
+    private final ReactiveMongoTemplate mongo;
+    private final CryptoService crypto;
+    private final ChatService chats;
+
+    /**
+     * Reserva un bloque de números de secuencia en un chat, creándolo si no
+     * existe, como {@code ChatService#reserveSeq}.
+     *
+     * @param chatId el ID del chat
+     * @param a      el ID de un participante
+     * @param b      el ID del otro participante
+     * @param count  cuántos números reservar
+     * @return el primer número del bloque
+     */
+    private Mono<Long> reserveSeq(String chatId, String a, String b, int count) {
+        String userA = a.compareTo(b) <= 0 ? a : b;
+        String userB = a.compareTo(b) <= 0 ? b : a;
+        Query q = new Query(Criteria.where("id").is(chatId));
+        Update u = new Update().inc(SEQ, count)
+                .setOnInsert("userA", userA)
+                .setOnInsert("userB", userB)
+                .setOnInsert("participants", Set.of(userA, userB))
+                .setOnInsert(CREATED_AT, Instant.now());
+        FindAndModifyOptions opts = FindAndModifyOptions.options().upsert(true).returnNew(true);
+        return mongo.findAndModify(q, u, opts, Chat.class)
+                // Dos altas simultáneas del mismo chat: el reintento ya lo encuentra
+                .onErrorResume(DuplicateKeyException.class, e -> mongo.findAndModify(q, u, opts, Chat.class))
+                .switchIfEmpty(Mono.error(() -> new IllegalStateException(
+                        "No se pudo reservar secuencia en el chat " + chatId)))
+                .map(chat -> chat.getSeq() - count + 1);
+    }
+
+    /**
+     * Guarda un mensaje (contenido cifrado) con el siguiente número de
+     * secuencia del chat.
+     *
+     * @param chatId  el ID del chat
+     * @param from    el ID del usuario remitente
+     * @param to      el ID del usuario destinatario
+     * @param content el contenido del mensaje
+     * @return el mensaje guardado, con su ID
+     */
+    public Mono<Message> saveMessage(String chatId, String from, String to, String content) {
+        String encrypted = crypto.encrypt(content);
+        return reserveSeq(chatId, from, to, 1)
+                .flatMap(seq -> mongo.insert(Message.builder()
+                        .chatId(chatId)
+                        .fromUserId(from)
+                        .toUserId(to)
+                        .content(encrypted)
+                        .createdAt(Instant.now())
+                        .seq(seq)
+                        .delivered(false)
+                        .read(false)
+                        .build()));
+    }
+
+    /**
+     * Guarda varios mensajes de un remitente con una sola inserción masiva,
+     * con las mismas reglas de instante y secuencia que
+     * {@link ChatService#saveMessages}. Las reservas de secuencia de los
+     * distintos chats del lote se piden en paralelo.
+     *
+     * @param from     el ID del usuario remitente
+     * @param requests las solicitudes de envío, ya validadas y autorizadas
+     * @return las entidades guardadas, en el mismo orden y con sus IDs
+     */
+    public Mono<List<Message>> saveMessages(String from, List<SendMessageRequest> requests) {
+        if (requests.isEmpty()) {
+            return Mono.just(List.of());
+        }
+        Instant base = Instant.now();
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        for (SendMessageRequest req : requests) {
+            counts.merge(req.getToUserId(), 1, Integer::sum);
+        }
+        return Flux.fromIterable(counts.entrySet())
+                .flatMap(e -> reserveSeq(chats.chatIdOf(from, e.getKey()), from, e.getKey(), e.getValue())
+                        .map(first -> Map.entry(e.getKey(), first)))
+                .collectMap(Map.Entry::getKey, Map.Entry::getValue)
+                .flatMap(firstSeq -> {
+                    Map<String, Long> nextSeq = new LinkedHashMap<>(firstSeq);
+                    List<Message> batch = new ArrayList<>(requests.size());
+                    for (int i = 0; i < requests.size(); i++) {
+                        SendMessageRequest req = requests.get(i);
+                        String to = req.getToUserId();
+                        long seq = nextSeq.merge(to, 1L, Long::sum) - 1;
+                        batch.add(Message.builder()
+                                .chatId(chats.chatIdOf(from, to))
+                                .fromUserId(from)
+                                .toUserId(to)
+                                .content(crypto.encrypt(req.getContent()))
+                                .createdAt(base.plusMillis(i))
+                                .seq(seq)
+                                .delivered(false)
+                                .read(false)
+                                .build());
+                    }
+                    return mongo.insertAll(batch).collectList().thenReturn(batch);
+                });
+    }
+
+    /**
+     * Mensajes pendientes de entrega de un usuario, en orden cronológico,
+     * leídos con un cursor por lotes de {@code pageSize}.
+     *
+     * @param userId   ID del usuario
+     * @param pageSize tamaño de lote del cursor
+     * @return los pendientes, según los pida el consumidor
+     */
+    public Flux<Message> pending(String userId, int pageSize) {
+        Query q = new Query(Criteria.where("toUserId").is(userId).and("delivered").is(false))
+                .with(Sort.by(Sort.Direction.ASC, CREATED_AT))
+                .cursorBatchSize(pageSize);
+        return mongo.find(q, Message.class);
+    }
+
+    /**
+     * Mensajes de todos los chats del usuario desde un instante, sin los de
+     * sala, como {@link ChatService#streamSince}.
+     *
+     * @param userId   ID del usuario
+     * @param since    instante desde el que se buscan mensajes (inclusive)
+     * @param limit    máximo de mensajes
+     * @param pageSize tamaño de lote del cursor
+     * @return los mensajes en orden cronológico
+     */
+    public Flux<Message> since(String userId, Instant since, int limit, int pageSize) {
+        Query q = new Query(new Criteria().orOperator(
+                Criteria.where("toUserId").is(userId).and(CREATED_AT).gte(since),
+                Criteria.where("fromUserId").is(userId).and("toUserId").ne(null).and(CREATED_AT).gte(since)))
+                .with(Sort.by(Sort.Direction.ASC, CREATED_AT))
+                .limit(limit)
+                .cursorBatchSize(pageSize);
+        return mongo.find(q, Message.class);
+    }
+
+    /**
+     * Instante de creación de un mensaje del usuario, para usarlo como cursor
+     * de reanudación.
+     *
+     * @param userId    ID del usuario
+     * @param messageId ID del mensaje
+     * @return el instante, o vacío si el mensaje no existe o no es del usuario
+     */
+    public Mono<Instant> createdAtOf(String userId, String messageId) {
+        return mongo.findById(messageId, Message.class)
+                .filter(m -> userId.equals(m.getToUserId()) || userId.equals(m.getFromUserId()))
+                .mapNotNull(Message::getCreatedAt);
+    }
+
+    /**
+     * Marca mensajes como entregados con una sola actualización masiva.
+     *
+     * @param ids IDs de los mensajes
+     * @return completa al escribir
+     */
+    public Mono<Void> markDeliveredByIds(Collection<String> ids) {
+        if (ids.isEmpty()) {
+            return Mono.empty();
+        }
+        return mongo.updateMulti(new Query(Criteria.where("id").in(ids)),
+                new Update().set("delivered", true), Message.class).then();
+    }
+
+    /**
+     * Avanza la marca de lectura de un participante, como
+     * {@link ChatService#advanceReadMark}.
+     *
+     * @param chatId ID del chat
+     * @param userId ID del participante que leyó
+     * @param upTo   instante hasta el que leyó, inclusive
+     * @return true si la marca avanzó
+     */
+    public Mono<Boolean> advanceReadMark(String chatId, String userId, Instant upTo) {
+        return mongo.updateFirst(
+                new Query(Criteria.where("id").is(chatId).and("participants").is(userId)),
+                new Update().max(READ_UP_TO + "." + ChatService.readMarkKey(userId), upTo), Chat.class)
+                .map(result -> result.getModifiedCount() > 0);
+    }
+}
@@ -8,6 +8,7 @@ import org.springframework.http.MediaType;
 import org.springframework.stereotype.Component;
 import org.springframework.web.reactive.function.client.WebClient;
 import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Mono;
 
 import java.util.*;
 
@@ -30,21 +31,56 @@ public class ReservationClient {
      * @return true si puede chatear, false en caso contrario
      */
     public boolean canChat(String bearer, String withUserId) {
-        try {
-            Map<String, Object> resp = http.get()
-                    .uri(uriBuilder -> uriBuilder.path("/can-chat").queryParam("withUserId", withUserId).build())
-                    .header(HttpHeaders.AUTHORIZATION, bearer)
-                    .accept(MediaType.APPLICATION_JSON)
-                    .retrieve().bodyToMono(new ParameterizedTypeReference<Map<String, Object>>() {
-                    }).block();
-            return resp != null && Boolean.TRUE.equals(resp.get("canChat"));
-        } catch (WebClientResponseException e) {
+        return checkCanChat(bearer, withUserId).orElse(false);
+    }
+
+    /**
+     * Igual que {@link #canChat}, pero distingue una respuesta negativa del
+     * servicio de reservas de un fallo de comunicación, para que quien cachee
+     * la decisión no guarde errores transitorios como negativas.
+     * 
+     * @param bearer     token de autorización Bearer
+     * @param withUserId ID del otro usuario
+     * @return la decisión del servicio, o vacío si no se pudo obtener
+     */
+    public Optional<Boolean> checkCanChat(String bearer, String withUserId) {
+        return checkCanChatAsync(bearer, withUserId).block();
+    }
+
+    /**
+     * Versión no bloqueante de {@link #checkCanChat}, para el gateway
+     * reactivo. Nunca termina con error: los fallos se traducen igual que en
+     * la versión bloqueante.
+     * 
+     * @param bearer     token de autorización Bearer
+     * @param withUserId ID del otro usuario
+     * @return la decisión del servicio, o vacío si no se pudo obtener
+     */
+    public Mono<Optional<Boolean>> checkCanChatAsync(String bearer, String withUserId) {
+        return http.get()
+                .uri(uriBuilder -> uriBuilder.path("/can-chat").queryParam("withUserId", withUserId).build())
+                .header(HttpHeaders.AUTHORIZATION, bearer)
+                .accept(MediaType.APPLICATION_JSON)
+                .retrieve().bodyToMono(new ParameterizedTypeReference<Map<String, Object>>() {
+                })
+                .map(resp -> Optional.of(Boolean.TRUE.equals(resp.get("canChat"))))
+                .defaultIfEmpty(Optional.of(false))
+                .onErrorResume(e -> Mono.just(fromError(e)));
+    }
+
+    /**
+     * Traduce un fallo de can-chat: un 4xx distinto de 401/429 es una
+     * negativa del servicio; lo demás es un fallo de comunicación.
+     */
+    private static Optional<Boolean> fromError(Throwable error) {
+        if (error instanceof WebClientResponseException e) {
             log.warn("canChat error {} {}", e.getStatusCode().value(), e.getResponseBodyAsString());
-            return false;
-        } catch (Exception e) {
-            log.warn("canChat error {}", e.toString());
-            return false;
+            int status = e.getStatusCode().value();
+            boolean definitive = e.getStatusCode().is4xxClientError() && status != 401 && status != 429;
+            return definitive ? Optional.of(false) : Optional.empty();
         }
+        log.warn("canChat error {}", error.toString());
+        return Optional.empty();
     }
 
     /**
@@ -56,22 +92,34 @@ public class ReservationClient {
      * @return conjunto de IDs de contrapartes válidas
      */
     public Set<String> counterpartIds(String bearer, String myId) {
-        Set<String> out = new HashSet<>();
-        try {
-            List<Map<String, Object>> my = fetchReservations(bearer, "/my");
-            addCounterpartsFromReservations(out, my, myId, "tutorId");
-        } catch (Exception e) {
-            log.debug("reservations/my fallo: {}", e.toString());
-        }
-
-        try {
-            List<Map<String, Object>> forMe = fetchReservations(bearer, "/for-me");
-            addCounterpartsFromReservations(out, forMe, myId, "studentId");
-        } catch (Exception e) {
-            log.debug("reservations/for-me fallo: {}", e.toString());
-        }
+        return counterpartIdsAsync(bearer, myId).block();
+    }
 
-        return out;
+    /**
+     * Versión no bloqueante de {@link #counterpartIds}: consulta {@code /my} y
+     * {@code /for-me} en paralelo; si una falla, sigue con la otra.
+     * 
+     * @param bearer token de autorización Bearer
+     * @param myId   ID del usuario autenticado
+     * @return conjunto de IDs de contrapartes válidas
+     */
+    public Mono<Set<String>> counterpartIdsAsync(String bearer, String myId) {
+        Mono<List<Map<String, Object>>> my = fetchReservations(bearer, "/my")
+                .onErrorResume(e -> {
+                    log.debug("reservations/my fallo: {}", e.toString());
+                    return Mono.just(List.of());
+                });
+        Mono<List<Map<String, Object>>> forMe = fetchReservations(bearer, "/for-me")
+                .onErrorResume(e -> {
+                    log.debug("reservations/for-me fallo: {}", e.toString());
+                    return Mono.just(List.of());
+                });
+        return Mono.zip(my, forMe).map(both -> {
+            Set<String> out = new HashSet<>();
+            addCounterpartsFromReservations(out, both.getT1(), myId, "tutorId");
+            addCounterpartsFromReservations(out, both.getT2(), myId, "studentId");
+            return out;
+        });
     }
 
     /**
@@ -80,13 +128,13 @@ public class ReservationClient {
      * @param bearer token de autorización Bearer
      * @param uri    la URI del endpoint de reservas
      */
-    private List<Map<String, Object>> fetchReservations(String bearer, String uri) {
+    private Mono<List<Map<String, Object>>> fetchReservations(String bearer, String uri) {
         return http.get()
                 .uri(uri)
                 .header(HttpHeaders.AUTHORIZATION, bearer)
                 .accept(MediaType.APPLICATION_JSON)
                 .retrieve().bodyToFlux(new ParameterizedTypeReference<Map<String, Object>>() {
-                }).collectList().block();
+                }).collectList();
     }
 
     /**
@@ -0,0 +1,277 @@
+package co.edu.escuelaing.uplearn.chat.service;
+
+import co.edu.escuelaing.uplearn.chat.domain.Chat;
+import co.edu.escuelaing.uplearn.chat.domain.Message;
+import lombok.RequiredArgsConstructor;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Salas de chat con varios miembros (p. ej. un tutor y su grupo). Una sala
+ * es un documento de {@code chats} con {@code room=true}: la membresía se
+ * guarda una sola vez en {@code participants} y cada mensaje se persiste
+ * como un único documento con {@code toUserId} vacío, no uno por miembro.
+ * El historial y la secuencia son los mismos que en los chats entre dos
+ * usuarios; cada miembro avanza su propia marca en {@code readUpTo} y el
+ * estado de lectura de un mensaje de sala se calcula con la marca de quien
+ * lo consulta.
+ */
+@Service
+@RequiredArgsConstructor
+public class RoomService {
+
+    private static final String PARTICIPANTS = "participants";
+    private static final String SEQ = "seq";
+    private static final String ROOM = "room";
+    private static final String READ_UP_TO = "readUpTo.";
+
+    private final MongoTemplate mongo;
+    private final CryptoService crypto;
+
+    @Value("${chat.rooms.max-members:250}")
+    private int maxMembers = 250;
+
+    /** Mensaje de sala guardado junto con los miembros vigentes al numerarlo. */
+    public static final class Post {
+        private final Message message;
+        private final Set<String> members;
+
+        public Post(Message message, Set<String> members) {
+            this.message = message;
+            this.members = members;
+        }
+
+        public Message message() {
+            return message;
+        }
+
+        public Set<String> members() {
+            return members;
+        }
+    }
+
+    /** Resultado de un cambio de membresía: la sala actualizada y quiénes entraron o salieron. */
+    public static final class Change {
+        private final Chat room;
+        private final Set<String> joined;
+        private final Set<String> left;
+
+        public Change(Chat room, Set<String> joined, Set<String> left) {
+            this.room = room;
+            this.joined = joined;
+            this.left = left;
+        }
+
+        public Chat room() {
+            return room;
+        }
+
+        public Set<String> joined() {
+            return joined;
+        }
+
+        public Set<String> left() {
+            return left;
+        }
+    }
+
+    /**
+     * Crear una sala; el dueño queda como miembro.
+     *
+     * @param ownerId el ID del usuario que la crea
+     * @param name    el nombre de la sala
+     * @param members los IDs de los demás miembros
+     * @return la sala creada
+     * @throws IllegalArgumentException si falta el nombre o se excede el cupo
+     */
+    public Chat create(String ownerId, String name, Collection<String> members) {
+        if (name == null || name.isBlank())
+            throw new IllegalArgumentException("La sala necesita un nombre");
+        Set<String> participants = new LinkedHashSet<>();
+        participants.add(ownerId);
+        participants.addAll(clean(members));
+        if (participants.size() > maxMembers)
+            throw new IllegalArgumentException("La sala admite hasta " + maxMembers + " miembros");
+        Chat room = Chat.builder()
+                .id(new ObjectId().toHexString())
+                .room(true)
+                .name(name.trim())
+                .ownerId(ownerId)
+                .participants(participants)
+                .createdAt(Instant.now())
+                .build();
+        return mongo.insert(room);
+    }
+
+    /**
+     * Salas de las que un usuario es miembro, de la más reciente a la más
+     * antigua
+     *
+     * @param userId el ID del usuario
+     * @return las salas del usuario
+     */
+    public List<Chat> roomsOf(String userId) {
+        Query q = new Query(Criteria.where(ROOM).is(true).and(PARTICIPANTS).is(userId))
+                .with(Sort.by(Sort.Direction.DESC, "createdAt"));
+        return mongo.find(q, Chat.class);
+    }
+
+    /**
+     * IDs de las salas de un usuario, sin traer la membresía completa; lo
+     * usa el índice local de salas al conectarse el usuario
+     *
+     * @param userId el ID del usuario
+     * @return los IDs de sus salas
+     */
+    public Set<String> roomIdsOf(String userId) {
+        Query q = new Query(Criteria.where(ROOM).is(true).and(PARTICIPANTS).is(userId));
+        q.fields().include("id");
+        return mongo.find(q, Chat.class).stream().map(Chat::getId).collect(Collectors.toSet());
+    }
+
+    /**
+     * Agregar miembros a una sala. Solo el dueño puede hacerlo; el cupo se
+     * vuelve a comprobar en la misma escritura, así dos altas simultáneas no
+     * lo exceden
+     *
+     * @param roomId  el ID de la sala
+     * @param ownerId el ID de quien agrega, que debe ser el dueño
+     * @param members los IDs a agregar
+     * @return el cambio aplicado, o null si la sala no existe o no es el dueño
+     * @throws IllegalArgumentException si se excede el cupo
+     */
+    public Change addMembers(String roomId, String ownerId, Collection<String> members) {
+        Set<String> requested = clean(members);
+        Query q = new Query(Criteria.where("id").is(roomId).and(ROOM).is(true).and("ownerId").is(ownerId));
+        Chat before = mongo.findOne(q, Chat.class);
+        if (before == null)
+            return null;
+        Set<String> joined = new LinkedHashSet<>(requested);
+        joined.removeAll(before.getParticipants() != null ? before.getParticipants() : Set.of());
+        if (joined.isEmpty())
+            return new Change(before, Set.of(), Set.of());
+        int current = before.getParticipants() != null ? before.getParticipants().size() : 0;
+        if (current + joined.size() > maxMembers)
+            throw new IllegalArgumentException("La sala admite hasta " + maxMembers + " miembros");
+        // 'participants.<n>' existe solo si el arreglo tiene más de n elementos
+        q.addCriteria(Criteria.where(PARTICIPANTS + "." + (maxMembers - joined.size())).exists(false));
+        Chat after = mongo.findAndModify(q, new Update().addToSet(PARTICIPANTS).each(joined.toArray()),
+                FindAndModifyOptions.options().returnNew(true), Chat.class);
+        if (after == null)
+            throw new IllegalArgumentException("La sala admite hasta " + maxMembers + " miembros");
+        return new Change(after, joined, Set.of());
+    }
+
+    /**
+     * Quitar un miembro de una sala. El dueño puede quitar a cualquiera y
+     * cada miembro puede salir por su cuenta; el dueño no puede salir
+     *
+     * @param roomId   el ID de la sala
+     * @param actorId  el ID de quien pide el cambio
+     * @param memberId el ID del miembro a quitar
+     * @return el cambio aplicado, o null si la sala no existe, el miembro no
+     *         está o el actor no puede quitarlo
+     * @throws IllegalArgumentException si se intenta quitar al dueño
+     */
+    public Change removeMember(String roomId, String actorId, String memberId) {
+        boolean leaving = actorId.equals(memberId);
+        Criteria c = Criteria.where("id").is(roomId).and(ROOM).is(true).and(PARTICIPANTS).is(memberId);
+        c = leaving ? c.and("ownerId").ne(memberId) : c.and("ownerId").is(actorId);
+        Chat after = mongo.findAndModify(new Query(c),
+                new Update().pull(PARTICIPANTS, memberId).unset(READ_UP_TO + ChatService.readMarkKey(memberId)),
+                FindAndModifyOptions.options().returnNew(true), Chat.class);
+        if (after == null) {
+            if (leaving && mongo.exists(new Query(Criteria.where("id").is(roomId).and("ownerId").is(memberId)),
+                    Chat.class))
+                throw new IllegalArgumentException("El dueño no puede salir de la sala");
+            return null;
+        }
+        return new Change(after, Set.of(), Set.of(memberId));
+    }
+
+    /**
+     * Indica si un usuario es miembro de una sala
+     *
+     * @param roomId el ID de la sala
+     * @param userId el ID del usuario
+     * @return true si la sala existe y el usuario es miembro
+     */
+    public boolean isMember(String roomId, String userId) {
+        return mongo.exists(new Query(Criteria.where("id").is(roomId).and(ROOM).is(true).and(PARTICIPANTS).is(userId)),
+                Chat.class);
+    }
+
+    /**
+     * Avanzar la marca de lectura de un miembro con una sola escritura. La
+     * marca nunca retrocede: si ya cubre {@code upTo}, el documento no
+     * coincide y no se escribe. Devuelve los miembros en la misma ida y
+     * vuelta, para avisar a la sala
+     *
+     * @param roomId   el ID de la sala
+     * @param readerId el ID del miembro que leyó
+     * @param upTo     instante hasta el que leyó, inclusive
+     * @return los miembros, o null si no es miembro o la marca no avanzó
+     */
+    public Set<String> markRead(String roomId, String readerId, Instant upTo) {
+        Query q = new Query(Criteria.where("id").is(roomId).and(ROOM).is(true).and(PARTICIPANTS).is(readerId)
+                .and(READ_UP_TO + ChatService.readMarkKey(readerId)).not().gte(upTo));
+        q.fields().include(PARTICIPANTS);
+        Chat room = mongo.findAndModify(q, new Update().max(READ_UP_TO + ChatService.readMarkKey(readerId), upTo),
+                FindAndModifyOptions.options().returnNew(true), Chat.class);
+        return room != null ? room.getParticipants() : null;
+    }
+
+    /**
+     * Guardar un mensaje de sala: un solo documento, con el siguiente número
+     * de secuencia. La reserva de secuencia comprueba la membresía del
+     * emisor y devuelve los miembros en la misma ida y vuelta a Mongo
+     *
+     * @param roomId     el ID de la sala
+     * @param fromUserId el ID del emisor
+     * @param content    el contenido del mensaje
+     * @return el mensaje y los miembros, o null si el emisor no es miembro
+     */
+    public Post post(String roomId, String fromUserId, String content) {
+        Query q = new Query(Criteria.where("id").is(roomId).and(ROOM).is(true).and(PARTICIPANTS).is(fromUserId));
+        q.fields().include(PARTICIPANTS).include(SEQ);
+        Chat room = mongo.findAndModify(q, new Update().inc(SEQ, 1),
+                FindAndModifyOptions.options().returnNew(true), Chat.class);
+        if (room == null)
+            return null;
+        Message msg = Message.builder()
+                .chatId(roomId)
+                .fromUserId(fromUserId)
+                .content(crypto.encrypt(content))
+                .createdAt(Instant.now())
+                .seq(room.getSeq())
+                .delivered(false)
+                .read(false)
+                .build();
+        return new Post(mongo.insert(msg), room.getParticipants());
+    }
+
+    private static Set<String> clean(Collection<String> ids) {
+        Set<String> out = new LinkedHashSet<>();
+        if (ids != null) {
+            for (String id : ids) {
+                if (id != null && !id.isBlank())
+                    out.add(id.trim());
+            }
+        }
+        return out;
+    }
+}
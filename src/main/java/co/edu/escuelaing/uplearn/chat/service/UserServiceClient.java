@@ -43,34 +43,41 @@ public class UserServiceClient {
      * @return los roles del usuario autenticado
      */
     public RolesResponse getMyRolesCached(String bearer) {
+        return getMyRolesAsync(bearer).block();
+    }
+
+    /**
+     * Versión no bloqueante de {@link #getMyRolesCached}: un acierto de caché
+     * responde sin ir a la red y un fallo termina con
+     * {@link UserServiceException}.
+     * 
+     * @param bearer el token Bearer del usuario
+     * @return los roles del usuario autenticado
+     */
+    public Mono<RolesResponse> getMyRolesAsync(String bearer) {
         String key = "me:" + bearer.hashCode();
         RolesResponse c = rolesCache.get(key, RolesResponse.class);
         if (c != null)
-            return c;
-        try {
-            RolesResponse resp = http.get()
-                    .uri("/my-roles")
-                    .header(HttpHeaders.AUTHORIZATION, bearer)
-                    .accept(MediaType.APPLICATION_JSON)
-                    .retrieve()
-                    .bodyToMono(RolesResponse.class)
-                    .onErrorResume(WebClientResponseException.class, ex -> {
-                        log.error("Users /my-roles error: {} {}", ex.getStatusCode().value(),
-                                ex.getResponseBodyAsString());
-                        return Mono.error(ex);
-                    })
-                    .block();
-            if (resp != null) {
-                if (resp.getRoles() != null) {
-                    resp.setRoles(
-                            resp.getRoles().stream().map(r -> r == null ? null : r.toUpperCase(Locale.ROOT)).toList());
-                }
-                rolesCache.put(key, resp);
-            }
-            return resp;
-        } catch (Exception e) {
-            throw new UserServiceException("Error llamando Users /my-roles", e);
-        }
+            return Mono.just(c);
+        return http.get()
+                .uri("/my-roles")
+                .header(HttpHeaders.AUTHORIZATION, bearer)
+                .accept(MediaType.APPLICATION_JSON)
+                .retrieve()
+                .bodyToMono(RolesResponse.class)
+                .onErrorResume(WebClientResponseException.class, ex -> {
+                    log.error("Users /my-roles error: {} {}", ex.getStatusCode().value(),
+                            ex.getResponseBodyAsString());
+                    return Mono.error(ex);
+                })
+                .doOnNext(resp -> {
+                    if (resp.getRoles() != null) {
+                        resp.setRoles(resp.getRoles().stream()
+                                .map(r -> r == null ? null : r.toUpperCase(Locale.ROOT)).toList());
+                    }
+                    rolesCache.put(key, resp);
+                })
+                .onErrorMap(e -> new UserServiceException("Error llamando Users /my-roles", e));
     }
 
     /**
@@ -110,27 +117,34 @@ public class UserServiceClient {
      * @return el perfil público del usuario
      */
     public PublicProfile getPublicProfileById(String id) {
+        return getPublicProfileByIdAsync(id).block();
+    }
+
+    /**
+     * Versión no bloqueante de {@link #getPublicProfileById}.
+     * 
+     * @param id el ID del usuario
+     * @return el perfil público del usuario, o vacío si no se pudo obtener
+     */
+    public Mono<PublicProfile> getPublicProfileByIdAsync(String id) {
         String key = "id:" + id;
         PublicProfile cached = profilesCache.get(key, PublicProfile.class);
         if (cached != null)
-            return cached;
-        try {
-            PublicProfile p = http.get()
-                    .uri(publicPath + "/by-id/{id}", id)
-                    .accept(MediaType.APPLICATION_JSON)
-                    .retrieve()
-                    .bodyToMono(PublicProfile.class)
-                    .block();
-            if (p != null) {
-                if (p.getEmail() != null)
-                    p.setEmail(p.getEmail().trim().toLowerCase(Locale.ROOT));
-                profilesCache.put(key, p);
-            }
-            return p;
-        } catch (Exception e) {
-            log.warn("No se encontró perfil público por id={}", id);
-            return null;
-        }
+            return Mono.just(cached);
+        return http.get()
+                .uri(publicPath + "/by-id/{id}", id)
+                .accept(MediaType.APPLICATION_JSON)
+                .retrieve()
+                .bodyToMono(PublicProfile.class)
+                .doOnNext(p -> {
+                    if (p.getEmail() != null)
+                        p.setEmail(p.getEmail().trim().toLowerCase(Locale.ROOT));
+                    profilesCache.put(key, p);
+                })
+                .onErrorResume(e -> {
+                    log.warn("No se encontró perfil público por id={}", id);
+                    return Mono.empty();
+                });
     }
 
     /** Excepción genérica para errores en UserServiceClient */
@@ -0,0 +1,44 @@
+package co.edu.escuelaing.uplearn.chat.ws;
+
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.time.Instant;
+
+/**
+ * Operaciones del gateway de chat que usa la API REST, comunes al gateway de
+ * servlets ({@link ChatWebSocketGateway}) y al reactivo
+ * ({@link ReactiveChatGateway}); solo uno de los dos está activo según el
+ * tipo de aplicación web.
+ */
+public interface ChatGateway {
+
+    /**
+     * Avanza la marca de lectura de un usuario en su chat con otro y, si
+     * avanzó, avisa a las sesiones de ambos participantes en todos los nodos.
+     *
+     * @param readerId    el usuario que leyó.
+     * @param otherUserId el otro participante del chat.
+     * @param upTo        leído hasta este instante inclusive; null o futuro
+     *                    equivale a ahora.
+     * @return true si la marca avanzó.
+     * @throws IOException si el aviso no se puede serializar.
+     */
+    boolean markRead(String readerId, String otherUserId, Instant upTo) throws IOException;
+
+    /**
+     * Versión no bloqueante de {@link #markRead}, para la API REST reactiva.
+     * Por defecto ejecuta la versión bloqueante fuera de los hilos de E/S.
+     *
+     * @param readerId    el usuario que leyó.
+     * @param otherUserId el otro participante del chat.
+     * @param upTo        leído hasta este instante inclusive; null o futuro
+     *                    equivale a ahora.
+     * @return true si la marca avanzó.
+     */
+    default Mono<Boolean> markReadAsync(String readerId, String otherUserId, Instant upTo) {
+        return Mono.fromCallable(() -> markRead(readerId, otherUserId, upTo))
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+}
@@ -1,66 +1,121 @@
 package co.edu.escuelaing.uplearn.chat.ws;
 
 import co.edu.escuelaing.uplearn.chat.domain.Message;
-import co.edu.escuelaing.uplearn.chat.dto.ChatMessageData;
+import co.edu.escuelaing.uplearn.chat.dto.BatchAck;
+import co.edu.escuelaing.uplearn.chat.dto.ReadReceipt;
+import co.edu.escuelaing.uplearn.chat.dto.SendBatchRequest;
 import co.edu.escuelaing.uplearn.chat.dto.SendMessageRequest;
-import co.edu.escuelaing.uplearn.chat.service.AuthorizationService;
+import co.edu.escuelaing.uplearn.chat.service.ChatPermissionCache;
 import co.edu.escuelaing.uplearn.chat.service.ChatService;
-import co.edu.escuelaing.uplearn.chat.service.ReservationClient;
+import co.edu.escuelaing.uplearn.chat.service.DeliveryAckBuffer;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import jakarta.annotation.PostConstruct;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.listener.PatternTopic;
-import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
 import org.springframework.stereotype.Component;
+import org.springframework.web.socket.BinaryMessage;
 import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.PongMessage;
+import org.springframework.web.socket.SubProtocolCapable;
 import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
 import org.springframework.web.socket.WebSocketSession;
-import org.springframework.web.socket.handler.TextWebSocketHandler;
-import org.springframework.web.util.UriComponentsBuilder;
+import org.springframework.web.socket.handler.AbstractWebSocketHandler;
 
 import java.io.IOException;
-import java.util.Collections;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static co.edu.escuelaing.uplearn.chat.ws.InboundFrames.isRoomMessage;
+import static co.edu.escuelaing.uplearn.chat.ws.InboundFrames.isType;
+import static co.edu.escuelaing.uplearn.chat.ws.InboundFrames.isValid;
+import static co.edu.escuelaing.uplearn.chat.ws.InboundFrames.isValidRoomMessage;
+import static co.edu.escuelaing.uplearn.chat.ws.InboundFrames.readBinary;
+import static co.edu.escuelaing.uplearn.chat.ws.InboundFrames.readText;
+import static co.edu.escuelaing.uplearn.chat.ws.InboundFrames.textValues;
 
 /**
  * Gateway WebSocket para la funcionalidad de chat.
  * Maneja conexiones, mensajes entrantes y salientes,
  * y utiliza Redis para la publicación/suscripción de mensajes
  * en un entorno distribuido.
+ * <p>
+ * Cada sesión habla JSON en tramas de texto o CBOR en tramas binarias según
+ * el subprotocolo negociado (ver {@link WireFormat}); ambos tipos de cliente
+ * conviven en el mismo endpoint.
  */
 @Slf4j
 @Component
-public class ChatWebSocketGateway extends TextWebSocketHandler {
-
-    private static final String ATTR_USER_ID = "userId";
-    private static final String QUERY_PARAM_TOKEN = "token";
-    private static final String BEARER_PREFIX = "Bearer ";
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+public class ChatWebSocketGateway extends AbstractWebSocketHandler implements SubProtocolCapable, ChatGateway {
+
+    private static final String ATTR_USER_ID = TokenHandshakeInterceptor.ATTR_USER_ID;
+    private static final String ATTR_OUTBOUND = "outbound";
+    private static final String ATTR_BEARER = TokenHandshakeInterceptor.ATTR_BEARER;
+    private static final String ATTR_ADMITTED = "admitted";
+    private static final String TYPE_BATCH = InboundFrames.TYPE_BATCH;
+    private static final String TYPE_ACK = InboundFrames.TYPE_ACK;
+    private static final String TYPE_READ = InboundFrames.TYPE_READ;
+    private static final String TYPE_TYPING = InboundFrames.TYPE_TYPING;
+    private static final int MAX_TYPING_FRAME_BYTES = InboundFrames.MAX_TYPING_FRAME_BYTES;
+    static final CloseStatus IDLE = CloseStatus.SESSION_NOT_RELIABLE.withReason("Sin actividad");
+    static final String RETRY_AFTER_REASON = "Servidor saturado; retryAfterMs=";
 
-    private final AuthorizationService authz;
     private final ChatService chatService;
-    private final ReservationClient reservations;
+    private final ChatPermissionCache permissions;
+    private final OutboundSessionFactory outbound;
+    private final InboundDispatcher inbound;
+    private final PendingReplay replay;
+    private final DeliveryAckBuffer acks;
+    private final ClusterRelay relay;
+    private final TypingThrottle typing;
+    private final SessionHeartbeat heartbeat;
+    private final SendRateLimiter limiter;
+    private final SessionAdmission admission;
+    private final SessionRegistry<WebSocketSession> sessions;
+    private final RoomFanOut rooms;
     private final ObjectMapper json = new ObjectMapper();
 
-    private final StringRedisTemplate redis;
-
-    private final RedisMessageListenerContainer container;
-
-    private final Map<String, Set<WebSocketSession>> sessionsByUser = new ConcurrentHashMap<>();
+    @Value("${ws.batch.max-messages:100}")
+    private int maxBatchMessages = 100;
 
-    public ChatWebSocketGateway(AuthorizationService authz, ChatService chatService, ReservationClient reservations,
-            @Autowired(required = false) StringRedisTemplate redis,
-            @Autowired(required = false) RedisMessageListenerContainer container) {
-        this.authz = authz;
+    public ChatWebSocketGateway(ChatService chatService, ChatPermissionCache permissions,
+            OutboundSessionFactory outbound, InboundDispatcher inbound, PendingReplay replay,
+            DeliveryAckBuffer acks, ClusterRelay relay, TypingThrottle typing, SessionHeartbeat heartbeat,
+            SendRateLimiter limiter, SessionAdmission admission, SessionRegistry<WebSocketSession> sessions,
+            RoomFanOut rooms) {
         this.chatService = chatService;
-        this.reservations = reservations;
-        this.redis = redis;
-        this.container = container;
+        this.permissions = permissions;
+        this.outbound = outbound;
+        this.inbound = inbound;
+        this.replay = replay;
+        this.acks = acks;
+        this.relay = relay;
+        this.typing = typing;
+        this.heartbeat = heartbeat;
+        this.limiter = limiter;
+        this.admission = admission;
+        this.sessions = sessions;
+        this.rooms = rooms;
+    }
+
+    /**
+     * Subprotocolos aceptados en el handshake.
+     *
+     * @return los subprotocolos de {@link WireFormat}.
+     */
+    @Override
+    public List<String> getSubProtocols() {
+        return WireFormat.subProtocols();
     }
 
     /**
@@ -69,103 +124,399 @@ public class ChatWebSocketGateway extends TextWebSocketHandler {
      */
     @PostConstruct
     public void initRedisListener() {
-        if (container == null) {
-            log.info("Redis deshabilitado: usando entrega local de mensajes (single-instance).");
-            return;
-        }
-        container.addMessageListener((message, pattern) -> {
-            try {
-                String payload = new String(message.getBody());
-                ChatMessageData dto = json.readValue(payload, ChatMessageData.class);
-                // Entregar a ambos participantes conectados
-                deliverTo(dto.getToUserId(), payload);
-                deliverTo(dto.getFromUserId(), payload);
-            } catch (Exception e) {
-                log.error("Error procesando mensaje Redis: {}", e.toString());
-            }
-        }, new PatternTopic("chat:*"));
+        relay.start(this::onRelay);
     }
 
     /**
-     * Entrega un mensaje serializado a todas las sesiones WebSocket
-     * asociadas con un usuario específico.
+     * Registra la entrega local de los mensajes de sala.
+     */
+    @PostConstruct
+    public void initRooms() {
+        rooms.start(this::deliverTo);
+    }
+
+    /**
+     * Registra el cierre de sesiones inactivas detectadas por el latido.
+     */
+    @PostConstruct
+    public void initHeartbeat() {
+        heartbeat.start(this::onIdle);
+    }
+
+    /**
+     * Cierra una sesión que no respondió a los pings: la da de baja de
+     * inmediato, sin esperar al contenedor, que en conexiones semiabiertas
+     * puede tardar en notar el cierre.
      *
-     * @param userId         el ID del usuario destinatario.
-     * @param serializedJson el mensaje serializado en formato JSON.
+     * @param session la sesión registrada que venció.
      */
-    private void deliverTo(String userId, String serializedJson) {
-        var sessions = sessionsByUser.getOrDefault(userId, Collections.emptySet());
-        for (var s : sessions) {
+    void onIdle(WebSocketSession session) {
+        String userId = (String) session.getAttributes().get(ATTR_USER_ID);
+        if (userId != null) {
+            unregister(userId, session);
+        }
+        if (session instanceof OutboundSession os) {
+            os.evict(IDLE, "idle");
+        } else {
             try {
-                s.sendMessage(new TextMessage(serializedJson));
+                session.close(IDLE);
             } catch (IOException e) {
-                log.debug("Ignoring IOException sending to user {}: {}", userId, e.toString());
+                log.debug("WS: error cerrando sesión inactiva {}: {}", session.getId(), e.toString());
             }
         }
     }
 
+    /**
+     * Entrega un mensaje publicado por otro nodo a las sesiones locales. En
+     * difusión se entrega a ambos participantes; por canal de usuario, solo
+     * al dueño del canal. Si el servidor confirma entregas, el mensaje se
+     * marca como entregado cuando se escribe en una sesión del receptor. Los
+     * sobres de sala los atiende {@link RoomFanOut}.
+     *
+     * @param channelUser usuario del canal, o null en difusión.
+     * @param envelope    el sobre recibido.
+     */
+    private void onRelay(String channelUser, RelayEnvelope envelope) {
+        if (envelope.roomId() != null) {
+            rooms.onRelay(channelUser, envelope);
+            return;
+        }
+        String to = envelope.toUserId();
+        String messageId = envelope.messageId();
+        Runnable onWritten = messageId != null ? onFirstWrite(() -> acks.acknowledge(messageId)) : null;
+        if (channelUser == null) {
+            deliverTo(to, envelope.frame(), onWritten);
+            deliverTo(envelope.fromUserId(), envelope.frame());
+        } else {
+            deliverTo(channelUser, envelope.frame(), channelUser.equals(to) ? onWritten : null);
+        }
+    }
+
+    /**
+     * Indica si el usuario tiene sesiones conectadas a este nodo.
+     *
+     * @param userId el ID del usuario.
+     * @return true si hay al menos una sesión.
+     */
+    private boolean hasSessions(String userId) {
+        return sessions.has(userId);
+    }
+
+    /**
+     * Entrega una trama ya codificada a todas las sesiones WebSocket
+     * asociadas con un usuario específico. Las sesiones registradas encolan
+     * el envío, por lo que este método no bloquea ante clientes lentos.
+     *
+     * @param userId el ID del usuario destinatario.
+     * @param frame  la trama compartida a enviar.
+     * @return número de sesiones que aceptaron la trama.
+     */
+    private int deliverTo(String userId, OutboundFrame frame) {
+        return deliverTo(userId, frame, null);
+    }
+
+    /**
+     * Entrega una trama a las sesiones de un usuario y ejecuta
+     * {@code onWritten} cuando una de ellas la escribe en el socket. Una
+     * trama rechazada o descartada por una sesión desalojada no cuenta.
+     *
+     * @param userId    el ID del usuario destinatario.
+     * @param frame     la trama compartida a enviar.
+     * @param onWritten acción tras escribir la trama, o null.
+     * @return número de sesiones que aceptaron la trama.
+     */
+    private int deliverTo(String userId, OutboundFrame frame, Runnable onWritten) {
+        return sessions.forEach(userId, s -> OutboundSession.send(s, frame.messageFor(WireFormat.of(s)), onWritten));
+    }
+
+    /**
+     * Confirmación de entrega del servidor que se ejecuta una sola vez, con
+     * la primera sesión del receptor que escribe el mensaje.
+     *
+     * @param confirm la confirmación a registrar.
+     * @return la acción, o null si solo confirman los clientes.
+     */
+    private Runnable onFirstWrite(Runnable confirm) {
+        if (acks.isClientConfirmed()) {
+            return null;
+        }
+        AtomicBoolean done = new AtomicBoolean();
+        return () -> {
+            if (done.compareAndSet(false, true)) {
+                confirm.run();
+            }
+        };
+    }
+
     /**
      * Maneja la conexión establecida de un cliente WebSocket.
-     * Valida el token, registra la sesión y envía mensajes pendientes.
+     * El token ya se validó en el handshake ({@link TokenHandshakeInterceptor});
+     * aquí se toma el usuario de los atributos, se registra la sesión y se
+     * envían los mensajes pendientes, o el delta desde el cursor
+     * {@code resume} si el cliente lo indica. El ritmo de conexiones y los
+     * topes ya se revisaron en el handshake; aquí se reserva el lugar y, si
+     * otra sesión lo ocupó entre tanto, la sesión se cierra con {@code 1013}
+     * y una sugerencia de reintento. La presencia, la suscripción en Redis y
+     * el índice de salas se registran en el ejecutor de reenvío, no en el
+     * hilo del contenedor.
      * 
      * @param session la sesión WebSocket del cliente.
      * @throws Exception en caso de errores durante la conexión.
      */
     @Override
     public void afterConnectionEstablished(WebSocketSession session) throws Exception {
-        String token = UriComponentsBuilder.fromUri(session.getUri())
-                .build()
-                .getQueryParams()
-                .getFirst(QUERY_PARAM_TOKEN);
-        if (token == null || token.isBlank()) {
-            session.close(CloseStatus.NOT_ACCEPTABLE.withReason("Falta token"));
+        String userId = SessionRegistry.intern((String) session.getAttributes().get(ATTR_USER_ID));
+        if (userId == null) {
+            // Sin principal del handshake: el manejador se registró sin el interceptor
+            session.close(CloseStatus.NOT_ACCEPTABLE.withReason("No autenticado"));
             return;
         }
 
-        String userId;
-        try {
-            userId = authz.subject(BEARER_PREFIX + token);
-        } catch (Exception e) {
-            session.close(CloseStatus.NOT_ACCEPTABLE.withReason("Token inválido"));
+        long retryAfterMs = admission.tryAdmit(sessions.count(userId));
+        if (retryAfterMs > 0) {
+            rejectOverloaded(session, retryAfterMs);
             return;
         }
-
+        session.getAttributes().put(ATTR_ADMITTED, Boolean.TRUE);
         session.getAttributes().put(ATTR_USER_ID, userId);
-        sessionsByUser.computeIfAbsent(userId, k -> ConcurrentHashMap.newKeySet()).add(session);
-        log.info("WS conectado userId={} sessions={}", userId, sessionsByUser.get(userId).size());
-
-        var pending = chatService.pendingFor(userId);
-        if (!pending.isEmpty()) {
-            for (Message m : pending) {
-                try {
-                    ChatMessageData dto = chatService.toDto(m);
-                    session.sendMessage(new TextMessage(json.writeValueAsString(dto)));
-                } catch (Exception ex) {
-                    log.error("Error enviando pendiente {} a {}: {}", m.getId(), userId, ex.toString(), ex);
-                }
+        OutboundSession out = outbound.wrap(session);
+        session.getAttributes().put(ATTR_OUTBOUND, out);
+        session.getAttributes().put(WireFormat.ATTR, WireFormat.fromSubProtocol(session.getAcceptedProtocol()));
+        int count = sessions.add(userId, out);
+        heartbeat.register(out);
+        replay.onConnect(userId, () -> {
+            relay.userConnected(userId, () -> hasSessions(userId));
+            rooms.userConnected(userId, () -> hasSessions(userId));
+        });
+        log.info("WS conectado userId={} sessions={}", userId, count);
+
+        replay.resume(userId, (String) session.getAttributes().remove(TokenHandshakeInterceptor.ATTR_RESUME), out);
+    }
+
+    /**
+     * Cierra una conexión no admitida con {@code 1013} (servicio saturado);
+     * el motivo lleva los ms sugeridos antes de reintentar.
+     */
+    private static void rejectOverloaded(WebSocketSession session, long retryAfterMs) throws IOException {
+        session.getAttributes().remove(ATTR_USER_ID);
+        log.debug("WS: conexión {} rechazada por admisión, reintentar en {} ms", session.getId(), retryAfterMs);
+        session.close(CloseStatus.SERVICE_OVERLOAD.withReason(RETRY_AFTER_REASON + retryAfterMs));
+    }
+
+    /**
+     * Recibe un mensaje de texto en el hilo del contenedor y lo despacha al
+     * ejecutor de entrada, que conserva el orden por sesión. Los indicadores
+     * de escritura se atienden aquí mismo: no tocan la base de datos y así no
+     * compiten con los mensajes por los hilos del ejecutor.
+     * 
+     * @param session la sesión WebSocket del cliente.
+     * @param message el mensaje de texto entrante.
+     * @throws Exception en modo inline, si el procesamiento falla.
+     */
+    @Override
+    public void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
+        heartbeat.touch(session);
+        String payload = message.getPayload();
+        if (payload.length() <= MAX_TYPING_FRAME_BYTES && payload.contains(TYPE_TYPING)) {
+            JsonNode root = readText(payload);
+            if (!handleTyping(session, root)) {
+                inbound.dispatch(session, () -> processDecoded(session, root));
             }
-            chatService.markDelivered(pending);
+            return;
         }
+        inbound.dispatch(session, () -> processTextMessage(session, message));
     }
 
     /**
-     * Maneja los mensajes de texto entrantes de un cliente WebSocket.
+     * Recibe una trama binaria (CBOR) y la despacha igual que las de texto.
+     * Las tramas pequeñas se decodifican aquí para reconocer los indicadores
+     * de escritura y el árbol ya decodificado pasa al ejecutor.
+     * 
+     * @param session la sesión WebSocket del cliente.
+     * @param message la trama binaria entrante.
+     * @throws Exception en modo inline, si el procesamiento falla.
+     */
+    @Override
+    protected void handleBinaryMessage(WebSocketSession session, BinaryMessage message) throws Exception {
+        heartbeat.touch(session);
+        if (message.getPayloadLength() <= MAX_TYPING_FRAME_BYTES) {
+            JsonNode root = readBinary(message.getPayload());
+            if (!handleTyping(session, root)) {
+                inbound.dispatch(session, () -> processDecoded(session, root));
+            }
+            return;
+        }
+        inbound.dispatch(session, () -> processBinaryMessage(session, message));
+    }
+
+    /**
+     * Registra la respuesta del cliente a un ping del latido.
+     * 
+     * @param session la sesión WebSocket del cliente.
+     * @param message el pong recibido.
+     */
+    @Override
+    protected void handlePongMessage(WebSocketSession session, PongMessage message) {
+        heartbeat.touch(session);
+    }
+
+    /**
+     * Atiende un indicador de escritura
+     * {@code {"type":"typing","toUserId":...,"state":"start"|"stop"}} sin
+     * persistirlo: se descartan los repetidos dentro de la ventana y se
+     * reenvía solo al receptor, local o en otro nodo. Si la autorización del
+     * par no está en caché, la comprobación va al ejecutor de entrada. La
+     * publicación en Redis es asíncrona: un fallo del relé se registra y no
+     * cierra la sesión del emisor.
+     * 
+     * @param session la sesión WebSocket del cliente.
+     * @param root    la trama decodificada, o null.
+     * @return true si la trama era un indicador de escritura.
+     * @throws Exception en modo inline, si la comprobación diferida falla.
+     */
+    private boolean handleTyping(WebSocketSession session, JsonNode root) throws Exception {
+        String userId = (String) session.getAttributes().get(ATTR_USER_ID);
+        if (root == null || userId == null || !isType(root, TYPE_TYPING)) {
+            return false;
+        }
+        String to = root.path("toUserId").asText(null);
+        if (to == null || to.isBlank() || to.equals(userId)) {
+            return true;
+        }
+        boolean stop = "stop".equalsIgnoreCase(root.path("state").asText());
+        Boolean allowed = permissions.cachedDecision(userId, to);
+        if (allowed == null) {
+            String bearer = (String) session.getAttributes().get(ATTR_BEARER);
+            inbound.dispatch(session, () -> {
+                if (permissions.canChat(userId, bearer, to)) {
+                    forwardTyping(userId, to, stop);
+                }
+            });
+        } else if (allowed) {
+            forwardTyping(userId, to, stop);
+        }
+        return true;
+    }
+
+    private void forwardTyping(String userId, String to, boolean stop) {
+        if (!typing.shouldForward(userId, to, stop)) {
+            return;
+        }
+        String chatId = chatService.chatIdOf(userId, to);
+        Map<String, String> event = new LinkedHashMap<>();
+        event.put("type", TYPE_TYPING);
+        event.put("chatId", chatId);
+        event.put("fromUserId", userId);
+        event.put("state", stop ? "stop" : "start");
+        OutboundFrame frame;
+        try {
+            frame = OutboundFrame.encode(json, event);
+        } catch (IOException e) {
+            log.debug("WS: no se codificó typing de {}: {}", userId, e.toString());
+            return;
+        }
+        deliverTo(to, frame);
+        relay.publishToRecipientAsync(chatId, userId, to, frame)
+                .subscribe(null, e -> log.debug("WS: no se reenvió typing de {}: {}", userId, e.toString()));
+    }
+
+    /**
+     * Procesa un mensaje de texto entrante.
      * Valida, persiste y entrega mensajes, y publica en Redis si está configurado.
      * 
      * @param session la sesión WebSocket del cliente.
      * @param message el mensaje de texto entrante.
      * @throws Exception en caso de errores durante el manejo del mensaje.
      */
-    @Override
-    public void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
+    void processTextMessage(WebSocketSession session, TextMessage message) throws Exception {
+        String userId = authenticatedUser(session);
+        JsonNode root = userId != null ? readText(message.getPayload()) : null;
+        if (root != null) {
+            processFrame(session, userId, root);
+        }
+    }
+
+    /**
+     * Procesa una trama binaria CBOR con la misma forma que las de texto.
+     * 
+     * @param session la sesión WebSocket del cliente.
+     * @param message la trama binaria entrante.
+     * @throws Exception en caso de errores durante el manejo del mensaje.
+     */
+    void processBinaryMessage(WebSocketSession session, BinaryMessage message) throws Exception {
+        String userId = authenticatedUser(session);
+        JsonNode root = userId != null ? readBinary(message.getPayload()) : null;
+        if (root != null) {
+            processFrame(session, userId, root);
+        }
+    }
+
+    /**
+     * Procesa una trama que ya se decodificó en el hilo del contenedor.
+     * 
+     * @param session la sesión WebSocket del cliente.
+     * @param root    la trama decodificada, o null.
+     * @throws Exception en caso de errores durante el manejo del mensaje.
+     */
+    void processDecoded(WebSocketSession session, JsonNode root) throws Exception {
+        String userId = authenticatedUser(session);
+        if (userId != null && root != null) {
+            processFrame(session, userId, root);
+        }
+    }
+
+    /**
+     * Obtiene el usuario autenticado de la sesión, o la cierra si no lo hay.
+     * 
+     * @param session la sesión WebSocket del cliente.
+     * @return el ID del usuario, o null si la sesión se cerró.
+     * @throws IOException si falla el cierre.
+     */
+    private String authenticatedUser(WebSocketSession session) throws IOException {
         String userId = (String) session.getAttributes().get(ATTR_USER_ID);
         if (userId == null) {
             session.close(CloseStatus.NOT_ACCEPTABLE.withReason("No autenticado"));
+        }
+        return userId;
+    }
+
+    /**
+     * Procesa una trama ya decodificada, independiente del formato.
+     * Las tramas {@code "type": "batch"} se procesan como un lote y las que
+     * traen {@code roomId} van a la sala.
+     * 
+     * @param session la sesión WebSocket del cliente.
+     * @param userId  el ID del usuario emisor.
+     * @param root    el contenido de la trama.
+     * @throws IOException en caso de errores al responder.
+     */
+    private void processFrame(WebSocketSession session, String userId, JsonNode root) throws IOException {
+        if (isType(root, TYPE_ACK)) {
+            acks.confirm(userId, textValues(root.get("ids")));
             return;
         }
 
-        SendMessageRequest req = parseAndValidatePayload(message.getPayload());
-        if (req == null) {
+        if (isType(root, TYPE_READ)) {
+            processRead(userId, root);
+            return;
+        }
+
+        if (isType(root, TYPE_BATCH)) {
+            processBatch(session, userId, json.treeToValue(root, SendBatchRequest.class));
+            return;
+        }
+
+        SendMessageRequest req = json.treeToValue(root, SendMessageRequest.class);
+        if (isRoomMessage(req)) {
+            processRoomMessage(session, userId, req);
+            return;
+        }
+        if (!isValid(req)) {
+            log.warn("WS: payload inválido, faltan campos requeridos: {}", root);
+            return;
+        }
+
+        if (isRateLimited(session, userId, 1, "clientId", req.getClientId())) {
             return;
         }
 
@@ -174,53 +525,217 @@ public class ChatWebSocketGateway extends TextWebSocketHandler {
         }
 
         Message savedMessage = persistMessage(userId, req.getToUserId(), req.getContent());
-        String serializedDto = json.writeValueAsString(chatService.toDto(savedMessage));
+        fanOut(savedMessage);
+    }
+
+    /**
+     * Procesa un mensaje {@code {"roomId":...,"content":...}}: la membresía
+     * se comprueba al reservar la secuencia, sin consultar reservas, y el
+     * mensaje se guarda una vez y se difunde con {@link RoomFanOut}.
+     * 
+     * @param session la sesión WebSocket del cliente.
+     * @param userId  el ID del usuario emisor.
+     * @param req     la solicitud de envío.
+     * @throws IOException en caso de errores al responder.
+     */
+    private void processRoomMessage(WebSocketSession session, String userId, SendMessageRequest req)
+            throws IOException {
+        if (!isValidRoomMessage(req)) {
+            log.warn("WS: mensaje de sala inválido de {}", userId);
+            return;
+        }
+        if (isRateLimited(session, userId, 1, "clientId", req.getClientId())) {
+            return;
+        }
+        if (rooms.send(req.getRoomId(), userId, req.getContent()) == null) {
+            log.warn("Bloqueado mensaje de {} a la sala {} sin ser miembro", userId, req.getRoomId());
+            reply(session, Map.of("error", "No eres miembro de la sala"));
+        }
+    }
+
+    /**
+     * Entrega un mensaje ya persistido a las sesiones locales y lo publica
+     * para el resto del clúster. Salvo que solo confirmen los clientes, se
+     * marca como entregado cuando una sesión del receptor lo escribe, aquí o
+     * en el nodo que lo recibe por Redis; si ninguna lo escribe, sigue
+     * pendiente y se reenvía al reconectar.
+     * 
+     * @param savedMessage el mensaje persistido.
+     * @throws IOException si el mensaje no se puede serializar.
+     */
+    private void fanOut(Message savedMessage) throws IOException {
+        OutboundFrame frame = OutboundFrame.encode(json, chatService.toDto(savedMessage));
+
+        deliverTo(savedMessage.getToUserId(), frame, onFirstWrite(() -> markMessageAsDelivered(savedMessage)));
+        deliverTo(savedMessage.getFromUserId(), frame);
 
-        boolean recipientOnline = deliverLocally(userId, req.getToUserId(), serializedDto);
+        relay.publish(savedMessage, frame);
+    }
 
-        if (recipientOnline) {
-            markMessageAsDelivered(savedMessage);
+    /**
+     * Procesa una trama {@code {"type":"read","withUserId":...,"upTo":...}},
+     * o {@code {"type":"read","roomId":...}} para una sala. Sin {@code upTo}
+     * se marca como leído hasta el momento actual.
+     * 
+     * @param userId el usuario que leyó.
+     * @param root   la trama recibida.
+     * @throws IOException si el aviso no se puede serializar.
+     */
+    private void processRead(String userId, JsonNode root) throws IOException {
+        String with = root.path("withUserId").asText(null);
+        String roomId = root.path("roomId").asText(null);
+        boolean room = roomId != null && !roomId.isBlank();
+        if (!room && (with == null || with.isBlank())) {
+            log.debug("WS: trama read sin withUserId ni roomId de {}", userId);
+            return;
+        }
+        Instant upTo = null;
+        if (root.hasNonNull("upTo")) {
+            try {
+                upTo = Instant.parse(root.get("upTo").asText());
+            } catch (DateTimeParseException e) {
+                log.debug("WS: upTo inválido de {}: {}", userId, root.get("upTo"));
+                return;
+            }
+        }
+        if (room) {
+            rooms.markRead(roomId, userId, upTo);
+        } else {
+            markRead(userId, with, upTo);
         }
+    }
 
-        publishToRedis(savedMessage.getChatId(), serializedDto);
+    /**
+     * Avanza la marca de lectura de un usuario en su chat con otro y, si
+     * avanzó, envía un aviso {@code "type": "read"} a las sesiones de ambos
+     * participantes en todos los nodos. Cuesta una sola escritura sin
+     * importar cuántos mensajes cubra.
+     * 
+     * @param readerId    el usuario que leyó.
+     * @param otherUserId el otro participante del chat.
+     * @param upTo        leído hasta este instante inclusive; null o futuro
+     *                    equivale a ahora.
+     * @return true si la marca avanzó.
+     * @throws IOException si el aviso no se puede serializar.
+     */
+    @Override
+    public boolean markRead(String readerId, String otherUserId, Instant upTo) throws IOException {
+        String chatId = chatService.chatIdOf(readerId, otherUserId);
+        Instant now = Instant.now();
+        Instant mark = upTo == null || upTo.isAfter(now) ? now : upTo;
+        if (!chatService.advanceReadMark(chatId, readerId, mark)) {
+            return false;
+        }
+        ReadReceipt receipt = ReadReceipt.builder()
+                .chatId(chatId)
+                .userId(readerId)
+                .upTo(mark.toString())
+                .build();
+        OutboundFrame frame = OutboundFrame.encode(json, receipt);
+        deliverLocally(readerId, otherUserId, frame);
+        relay.publish(chatId, null, readerId, otherUserId, frame);
+        return true;
     }
 
     /**
-     * Parsea y valida el payload JSON entrante.
-     * Ignora mensajes de ping y verifica campos requeridos.
+     * Procesa un lote de envíos: autoriza una sola vez por contraparte,
+     * persiste los mensajes aceptados con una única inserción y responde al
+     * emisor con una confirmación que lista los IDs asignados.
      * 
-     * @param payload el payload JSON entrante.
-     * @return la solicitud de envío de mensaje válida, o null si es inválida o un ping.
-     * @throws IOException en caso de errores de parseo.
+     * @param session la sesión WebSocket del cliente.
+     * @param userId  el ID del usuario emisor.
+     * @param batch   el lote recibido.
+     * @throws IOException en caso de errores al enviar la confirmación.
      */
-    private SendMessageRequest parseAndValidatePayload(String payload) throws IOException {
-        if (payload == null || payload.isBlank() || "ping".equalsIgnoreCase(payload.trim())) {
-            return null;
+    private void processBatch(WebSocketSession session, String userId, SendBatchRequest batch) throws IOException {
+        List<SendMessageRequest> items = batch.getMessages() != null ? batch.getMessages() : List.of();
+        if (items.isEmpty() || items.size() > maxBatchMessages) {
+            log.warn("WS: lote inválido de {} con {} mensajes", userId, items.size());
+            Map<String, Object> error = new LinkedHashMap<>();
+            error.put("error", "Lote vacío o con más de " + maxBatchMessages + " mensajes");
+            error.put("batchId", batch.getBatchId());
+            reply(session, error);
+            return;
+        }
+        if (isRateLimited(session, userId, items.size(), "batchId", batch.getBatchId())) {
+            return;
         }
 
-        JsonNode root;
-        try {
-            root = json.readTree(payload);
-        } catch (Exception ex) {
-            log.debug("WS: ignorando payload no JSON: {}", payload);
-            return null;
+        String bearer = (String) session.getAttributes().get(ATTR_BEARER);
+        Map<String, Boolean> allowed = new LinkedHashMap<>();
+        BatchAck.Item[] results = new BatchAck.Item[items.size()];
+        List<SendMessageRequest> accepted = new ArrayList<>(items.size());
+        List<Integer> acceptedIndexes = new ArrayList<>(items.size());
+        for (int i = 0; i < items.size(); i++) {
+            SendMessageRequest req = items.get(i);
+            if (!isValid(req)) {
+                results[i] = batchItem(i, req, null, "invalid");
+            } else if (!allowed.computeIfAbsent(req.getToUserId(),
+                    to -> permissions.canChat(userId, bearer, to))) {
+                results[i] = batchItem(i, req, null, "forbidden");
+            } else {
+                accepted.add(req);
+                acceptedIndexes.add(i);
+            }
         }
 
-        if (root.has("type") && "ping".equalsIgnoreCase(root.get("type").asText())) {
-            return null;
+        List<Message> saved = chatService.saveMessages(userId, accepted);
+        for (int j = 0; j < saved.size(); j++) {
+            int index = acceptedIndexes.get(j);
+            results[index] = batchItem(index, items.get(index), saved.get(j).getId(), null);
         }
 
-        SendMessageRequest req = json.treeToValue(root, SendMessageRequest.class);
-        if (req.getToUserId() == null || req.getToUserId().isBlank() || req.getContent() == null
-                || req.getContent().isBlank()) {
-            log.warn("WS: payload inválido, faltan campos requeridos: {}", payload);
-            return null;
+        BatchAck ack = BatchAck.builder().batchId(batch.getBatchId()).results(Arrays.asList(results)).build();
+        reply(session, ack);
+
+        for (Message m : saved) {
+            fanOut(m);
         }
-        return req;
+    }
+
+    private static BatchAck.Item batchItem(int index, SendMessageRequest req, String id, String error) {
+        return BatchAck.Item.builder()
+                .index(index)
+                .clientId(req != null ? req.getClientId() : null)
+                .id(id)
+                .error(error)
+                .build();
     }
 
     /**
-     * Verifica si el usuario está autorizado para chatear con otro usuario.
+     * Consume fichas del límite de envío del usuario. Si no alcanzan, responde
+     * {@code {"error":...,"code":"rate_limited","retryAfterMs":n}} con el ID
+     * del lote o del mensaje del cliente, sin persistir nada.
+     * 
+     * @param session la sesión WebSocket del cliente.
+     * @param userId  el usuario que envía.
+     * @param count   cuántos mensajes quiere enviar.
+     * @param idField el campo de correlación ({@code clientId} o {@code batchId}).
+     * @param id      el valor de correlación, o null.
+     * @return true si se rechazó el envío.
+     * @throws IOException en caso de errores al responder.
+     */
+    private boolean isRateLimited(WebSocketSession session, String userId, int count, String idField, String id)
+            throws IOException {
+        long retryAfterMs = limiter.acquire(userId, count);
+        if (retryAfterMs == 0) {
+            return false;
+        }
+        log.debug("WS: límite de envío excedido por {} ({} mensajes)", userId, count);
+        Map<String, Object> error = new LinkedHashMap<>();
+        error.put("error", "Demasiados mensajes, intenta más tarde");
+        error.put("code", "rate_limited");
+        error.put("retryAfterMs", retryAfterMs);
+        if (id != null) {
+            error.put(idField, id);
+        }
+        reply(session, error);
+        return true;
+    }
+
+    /**
+     * Verifica si el usuario está autorizado para chatear con otro usuario,
+     * usando el token guardado al conectar y la caché de decisiones.
      * Envía un mensaje de error y retorna false si no está autorizado.
      * 
      * @param session    la sesión WebSocket del cliente.
@@ -230,21 +745,47 @@ public class ChatWebSocketGateway extends TextWebSocketHandler {
      * @throws IOException en caso de errores al enviar mensajes.
      */
     private boolean isAuthorizedToChat(WebSocketSession session, String fromUserId, String toUserId) throws IOException {
-        String token = UriComponentsBuilder.fromUri(session.getUri()).build().getQueryParams()
-                .getFirst(QUERY_PARAM_TOKEN);
-        String bearer = BEARER_PREFIX + token;
+        String bearer = (String) session.getAttributes().get(ATTR_BEARER);
 
-        if (!reservations.canChat(bearer, toUserId)) {
+        if (!permissions.canChat(fromUserId, bearer, toUserId)) {
             log.warn("Bloqueado intento de chat entre {} y {} sin reservas válidas", fromUserId, toUserId);
-            session.sendMessage(
-                    new TextMessage(json.writeValueAsString(Map.of("error", "No autorizado para chatear"))));
+            reply(session, Map.of("error", "No autorizado para chatear"));
             return false;
         }
         return true;
     }
 
     /**
-     * Persiste un mensaje en el sistema de chat.
+     * Responde solo al emisor en el formato de su sesión. Si la sesión ya fue
+     * desalojada, la respuesta se descarta.
+     * 
+     * @param session la sesión WebSocket del cliente.
+     * @param payload el objeto a enviar.
+     * @throws IOException si la respuesta no se puede serializar.
+     */
+    private void reply(WebSocketSession session, Object payload) throws IOException {
+        WebSocketMessage<?> message = OutboundFrame.encode(json, payload).messageFor(WireFormat.of(session));
+        if (!OutboundSession.send(outboundOf(session), message, null)) {
+            log.debug("WS: respuesta descartada para la sesión {}", session.getId());
+        }
+    }
+
+    /**
+     * Obtiene la cola de salida asociada a la sesión, o la sesión misma si no
+     * fue registrada. Todo envío debe pasar por aquí para no escribir en el
+     * socket desde dos hilos a la vez.
+     * 
+     * @param session la sesión WebSocket del cliente.
+     * @return la sesión por la que se debe enviar.
+     */
+    private WebSocketSession outboundOf(WebSocketSession session) {
+        Object out = session.getAttributes().get(ATTR_OUTBOUND);
+        return out instanceof WebSocketSession ws ? ws : session;
+    }
+
+    /**
+     * Persiste un mensaje en el sistema de chat. El chat se crea, si falta,
+     * en la misma operación que reserva el número de secuencia.
      * 
      * @param fromUserId el ID del usuario que envía el mensaje.
      * @param toUserId   el ID del usuario destinatario.
@@ -253,53 +794,36 @@ public class ChatWebSocketGateway extends TextWebSocketHandler {
      */
     private Message persistMessage(String fromUserId, String toUserId, String content) {
         String chatId = chatService.chatIdOf(fromUserId, toUserId);
-        chatService.ensureChat(fromUserId, toUserId);
         return chatService.saveMessage(chatId, fromUserId, toUserId, content);
     }
 
     /**
-     * Entrega un mensaje serializado a ambos usuarios localmente.
+     * Entrega una trama a ambos usuarios localmente.
      * 
-     * @param fromUserId    el ID del usuario que envía el mensaje.
-     * @param toUserId      el ID del usuario destinatario.
-     * @param serializedDto el mensaje serializado en formato JSON.
-     * @return true si el destinatario está en línea, false en caso contrario.
+     * @param fromUserId el ID del usuario que envía el mensaje.
+     * @param toUserId   el ID del usuario destinatario.
+     * @param frame      la trama codificada una sola vez.
      */
-    private boolean deliverLocally(String fromUserId, String toUserId, String serializedDto) {
-        boolean recipientOnline = !sessionsByUser.getOrDefault(toUserId, Collections.emptySet()).isEmpty();
-
-        deliverTo(toUserId, serializedDto);
-        deliverTo(fromUserId, serializedDto);
-
-        return recipientOnline;
+    private void deliverLocally(String fromUserId, String toUserId, OutboundFrame frame) {
+        deliverTo(toUserId, frame);
+        deliverTo(fromUserId, frame);
     }
 
     /**
-     * Marca un mensaje como entregado en el sistema de chat.
+     * Marca un mensaje como entregado. La escritura se agrupa con otras
+     * confirmaciones en el buffer de entregas.
      * 
      * @param message el mensaje a marcar como entregado.
      */
     private void markMessageAsDelivered(Message message) {
         message.setDelivered(true);
         try {
-            chatService.markDelivered(Collections.singletonList(message));
+            acks.acknowledge(message.getId());
         } catch (Exception ignored) {
             // Ignorar errores al marcar como entregado
         }
     }
 
-    /**
-     * Publica un mensaje serializado en Redis para entrega distribuida.
-     * 
-     * @param chatId        el ID del chat.
-     * @param serializedDto el mensaje serializado en formato JSON.
-     */
-    private void publishToRedis(String chatId, String serializedDto) {
-        if (redis != null) {
-            redis.convertAndSend("chat:" + chatId, serializedDto);
-        }
-    }
-
     /**
      * Maneja la desconexión de un cliente WebSocket.
      * Limpia la sesión del usuario desconectado.
@@ -312,12 +836,29 @@ public class ChatWebSocketGateway extends TextWebSocketHandler {
     public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
         String userId = (String) session.getAttributes().get(ATTR_USER_ID);
         if (userId != null) {
-            var set = sessionsByUser.get(userId);
-            if (set != null) {
-                set.remove(session);
-                if (set.isEmpty())
-                    sessionsByUser.remove(userId);
+            WebSocketSession out = outboundOf(session);
+            if (out instanceof OutboundSession os) {
+                os.onClosed();
             }
+            unregister(userId, out);
+        }
+    }
+
+    /**
+     * Retira la sesión del registro local, del latido y, si era la última
+     * del usuario, de la presencia, y libera su lugar en la admisión. Es
+     * idempotente.
+     *
+     * @param userId el usuario dueño de la sesión.
+     * @param out    la sesión registrada (con cola de salida).
+     */
+    private void unregister(String userId, WebSocketSession out) {
+        if (out.getAttributes().remove(ATTR_ADMITTED) != null) {
+            admission.release();
         }
+        heartbeat.unregister(out);
+        sessions.remove(userId, out);
+        relay.userDisconnected(userId, () -> hasSessions(userId));
+        rooms.userDisconnected(userId, () -> hasSessions(userId));
     }
 }
@@ -0,0 +1,534 @@
+package co.edu.escuelaing.uplearn.chat.ws;
+
+import co.edu.escuelaing.uplearn.chat.domain.Message;
+import com.fasterxml.jackson.core.JsonFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.ReactiveRedisConnectionFactory;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.PatternTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.RedisSerializationContext;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Reenvío de mensajes entre réplicas mediante Redis Pub/Sub.
+ * <p>
+ * Modos ({@code redis.routing}):
+ * <ul>
+ * <li>{@code broadcast}: se publica en {@code chat:<chatId>} y todos los nodos
+ * escuchan {@code chat:*} (comportamiento previo).</li>
+ * <li>{@code user}: se publica en {@code user:<id>} del emisor y del receptor,
+ * y cada nodo se suscribe solo a los canales de los usuarios conectados a
+ * él. Un nodo sin participantes conectados no recibe el mensaje.</li>
+ * <li>{@code node}: cada nodo escucha solo {@code node:<id>}; el emisor
+ * consulta el {@link PresenceRegistry} y publica una vez a cada nodo donde
+ * el emisor o el receptor tienen sesiones.</li>
+ * </ul>
+ * Los mensajes de sala se publican una sola vez por sala, no por miembro:
+ * en {@code broadcast} en {@code chat:<roomId>}, en {@code user} en
+ * {@code room:<roomId>} (al que se suscriben los nodos con miembros
+ * conectados, ver {@link RoomFanOut}) y en {@code node} una vez a cada nodo
+ * con algún miembro presente.
+ * <p>
+ * Todas las réplicas deben usar el mismo modo. Las variantes
+ * {@code ...Async} publican con el cliente reactivo de Redis, para el
+ * gateway reactivo.
+ */
+@Slf4j
+@Component
+public class ClusterRelay {
+
+    static final String CHAT_PREFIX = "chat:";
+    static final String USER_PREFIX = "user:";
+    static final String NODE_PREFIX = "node:";
+    static final String ROOM_PREFIX = "room:";
+
+    /** Modos de enrutamiento soportados. */
+    public enum Routing {
+        BROADCAST, USER, NODE
+    }
+
+    /** Receptor de sobres publicados por otros nodos. */
+    @FunctionalInterface
+    public interface Handler {
+        /**
+         * @param channelUser usuario dueño del canal en modo {@code user}, o
+         *                    null si el sobre llegó por difusión o por el
+         *                    canal del nodo.
+         * @param envelope    el sobre recibido.
+         */
+        void onRelay(String channelUser, RelayEnvelope envelope);
+    }
+
+    private final NodeIdentity node;
+    private final PresenceRegistry presence;
+    private final Routing routing;
+    private final StringRedisTemplate redis;
+    private final ReactiveRedisTemplate<String, byte[]> reactiveRedis;
+    private final RedisMessageListenerContainer container;
+    private final JsonFactory json = new JsonFactory();
+    private final Set<String> subscribedUsers = ConcurrentHashMap.newKeySet();
+    private final Set<String> subscribedRooms = ConcurrentHashMap.newKeySet();
+    private final Set<String> localUsers = ConcurrentHashMap.newKeySet();
+    private final Set<String> syncing = ConcurrentHashMap.newKeySet();
+    private MessageListener listener;
+
+    public ClusterRelay(NodeIdentity node, PresenceRegistry presence, String routing, StringRedisTemplate redis,
+            RedisMessageListenerContainer container) {
+        this(node, presence, routing, redis, container, null);
+    }
+
+    @Autowired
+    public ClusterRelay(NodeIdentity node, PresenceRegistry presence,
+            @Value("${redis.routing:broadcast}") String routing,
+            @Autowired(required = false) StringRedisTemplate redis,
+            @Autowired(required = false) RedisMessageListenerContainer container,
+            @Autowired(required = false) ReactiveRedisConnectionFactory reactiveFactory) {
+        this.node = node;
+        this.presence = presence;
+        this.routing = Routing.valueOf(routing.trim().toUpperCase(Locale.ROOT));
+        if (this.routing == Routing.NODE && redis != null && !presence.isEnabled()) {
+            throw new IllegalStateException("redis.routing=node requiere chat.presence.enabled=true");
+        }
+        this.redis = redis;
+        this.reactiveRedis = redis != null && reactiveFactory != null ? bytesTemplate(reactiveFactory) : null;
+        this.container = container;
+    }
+
+    private static ReactiveRedisTemplate<String, byte[]> bytesTemplate(ReactiveRedisConnectionFactory factory) {
+        RedisSerializationContext<String, byte[]> context = RedisSerializationContext
+                .<String, byte[]>newSerializationContext(RedisSerializer.string())
+                .value(RedisSerializer.byteArray())
+                .build();
+        return new ReactiveRedisTemplate<>(factory, context);
+    }
+
+    /**
+     * Modo de enrutamiento en uso.
+     *
+     * @return el modo.
+     */
+    public Routing routing() {
+        return routing;
+    }
+
+    /**
+     * Registra el receptor de sobres. En modo {@code broadcast} se suscribe
+     * de inmediato a {@code chat:*} y en modo {@code node} a
+     * {@code node:<id>}; en modo {@code user} las suscripciones se crean al
+     * conectarse cada usuario.
+     *
+     * @param handler receptor de los sobres de otros nodos.
+     */
+    public void start(Handler handler) {
+        if (container == null) {
+            log.info("Redis deshabilitado: usando entrega local de mensajes (single-instance).");
+            return;
+        }
+        this.listener = (message, pattern) -> {
+            try {
+                RelayEnvelope envelope = RelayEnvelope.decode(json, message.getBody());
+                if (envelope.isFrom(node.id())) {
+                    // Publicación propia: ya se entregó localmente antes de publicar
+                    return;
+                }
+                handler.onRelay(channelUser(message.getChannel()), envelope);
+            } catch (Exception e) {
+                log.error("Error procesando mensaje Redis: {}", e.toString());
+            }
+        };
+        if (routing == Routing.BROADCAST) {
+            container.addMessageListener(listener, new PatternTopic(CHAT_PREFIX + "*"));
+        } else if (routing == Routing.NODE) {
+            container.addMessageListener(listener, new ChannelTopic(NODE_PREFIX + node.id()));
+        }
+        log.info("Redis: reenvío entre nodos en modo {}", routing);
+    }
+
+    /**
+     * Extrae el usuario de un canal {@code user:<id>}.
+     *
+     * @return el ID de usuario, o null si es un canal de chat o de nodo.
+     */
+    private static String channelUser(byte[] channel) {
+        if (channel == null) {
+            return null;
+        }
+        String name = new String(channel, StandardCharsets.UTF_8);
+        return name.startsWith(USER_PREFIX) ? name.substring(USER_PREFIX.length()) : null;
+    }
+
+    /**
+     * Registra la presencia del usuario en este nodo y, en modo {@code user},
+     * lo suscribe a su canal, como si conservara sus sesiones.
+     *
+     * @param userId el usuario conectado.
+     */
+    public void userConnected(String userId) {
+        userConnected(userId, () -> true);
+    }
+
+    /**
+     * Registra la presencia del usuario en este nodo y, en modo {@code user},
+     * lo suscribe a su canal si aún tiene sesiones. Hace llamadas a Redis,
+     * así que el gateway la llama fuera del hilo del contenedor.
+     *
+     * @param userId         el usuario conectado.
+     * @param stillConnected indica si el usuario conserva sesiones en este nodo.
+     */
+    public void userConnected(String userId, BooleanSupplier stillConnected) {
+        sync(userId, stillConnected);
+    }
+
+    /**
+     * Retira la presencia y la suscripción del usuario si ya no tiene
+     * sesiones en este nodo.
+     *
+     * @param userId          el usuario desconectado.
+     * @param stillConnected  indica si el usuario conserva sesiones en este nodo.
+     */
+    public void userDisconnected(String userId, BooleanSupplier stillConnected) {
+        sync(userId, stillConnected);
+    }
+
+    /**
+     * Deja la presencia y la suscripción del usuario acordes con sus sesiones
+     * locales. Las llamadas a Redis se hacen sin candado: un solo hilo a la
+     * vez sincroniza a cada usuario y, al terminar, vuelve a comprobar; si
+     * otro hilo encuentra la sincronización en curso, la deja a ese hilo. Así
+     * una conexión y una desconexión cruzadas no dejan al usuario sin canal
+     * ni con un canal de más.
+     */
+    private void sync(String userId, BooleanSupplier stillConnected) {
+        while (syncing.add(userId)) {
+            try {
+                boolean wanted;
+                while ((wanted = stillConnected.getAsBoolean()) != localUsers.contains(userId)) {
+                    if (wanted) {
+                        presence.userConnected(userId);
+                        if (subscribesPerUser() && subscribedUsers.add(userId)) {
+                            container.addMessageListener(listener, new ChannelTopic(USER_PREFIX + userId));
+                        }
+                        localUsers.add(userId);
+                    } else {
+                        presence.userDisconnected(userId);
+                        if (subscribesPerUser() && subscribedUsers.remove(userId)) {
+                            container.removeMessageListener(listener, new ChannelTopic(USER_PREFIX + userId));
+                        }
+                        localUsers.remove(userId);
+                    }
+                }
+            } finally {
+                syncing.remove(userId);
+            }
+            if (stillConnected.getAsBoolean() == localUsers.contains(userId)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * En modo {@code user}, suscribe este nodo al canal de una sala al
+     * conectarse aquí su primer miembro. En los demás modos no hace nada.
+     *
+     * @param roomId la sala.
+     */
+    public void subscribeRoom(String roomId) {
+        if (subscribesPerUser() && subscribedRooms.add(roomId)) {
+            container.addMessageListener(listener, new ChannelTopic(ROOM_PREFIX + roomId));
+        }
+    }
+
+    /**
+     * Retira la suscripción al canal de una sala cuando ya no quedan
+     * miembros conectados a este nodo.
+     *
+     * @param roomId la sala.
+     */
+    public void unsubscribeRoom(String roomId) {
+        if (subscribesPerUser() && subscribedRooms.remove(roomId)) {
+            container.removeMessageListener(listener, new ChannelTopic(ROOM_PREFIX + roomId));
+        }
+    }
+
+    private boolean subscribesPerUser() {
+        return routing == Routing.USER && container != null && listener != null;
+    }
+
+    /**
+     * Publica un mensaje ya entregado localmente para el resto de nodos.
+     *
+     * @param message el mensaje persistido.
+     * @param frame   la trama ya codificada.
+     */
+    public void publish(Message message, OutboundFrame frame) {
+        publish(message.getChatId(), message.getId(), message.getFromUserId(), message.getToUserId(), frame);
+    }
+
+    /**
+     * Publica una trama entre dos participantes de un chat (un mensaje o un
+     * evento sin persistir) para el resto de nodos.
+     *
+     * @param chatId     el chat, usado como canal en modo {@code broadcast}.
+     * @param messageId  el mensaje a confirmar en destino, o null si es un evento.
+     * @param fromUserId el usuario que origina la trama.
+     * @param toUserId   el otro participante.
+     * @param frame      la trama ya codificada.
+     */
+    public void publish(String chatId, String messageId, String fromUserId, String toUserId, OutboundFrame frame) {
+        if (redis == null) {
+            return;
+        }
+        byte[] body = RelayEnvelope.encode(node.id(), messageId, fromUserId, toUserId, frame);
+        if (routing == Routing.BROADCAST) {
+            byte[] channel = (CHAT_PREFIX + chatId).getBytes(StandardCharsets.UTF_8);
+            redis.execute((RedisCallback<Long>) c -> c.publish(channel, body));
+            return;
+        }
+        if (routing == Routing.NODE) {
+            publishToNodes(fromUserId, toUserId, body);
+            return;
+        }
+        redis.execute((RedisCallback<Void>) c -> {
+            if (toUserId != null) {
+                c.publish((USER_PREFIX + toUserId).getBytes(StandardCharsets.UTF_8), body);
+            }
+            if (fromUserId != null && !fromUserId.equals(toUserId)) {
+                c.publish((USER_PREFIX + fromUserId).getBytes(StandardCharsets.UTF_8), body);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Publica un evento efímero solo hacia el receptor: en modo {@code user}
+     * únicamente en su canal y en modo {@code node} solo a los nodos donde
+     * tiene sesiones. En {@code broadcast} se usa el canal del chat.
+     *
+     * @param chatId     el chat del evento.
+     * @param fromUserId el usuario que origina el evento.
+     * @param toUserId   el receptor.
+     * @param frame      la trama ya codificada.
+     */
+    public void publishToRecipient(String chatId, String fromUserId, String toUserId, OutboundFrame frame) {
+        if (redis == null || toUserId == null) {
+            return;
+        }
+        if (routing == Routing.BROADCAST) {
+            publish(chatId, null, fromUserId, toUserId, frame);
+            return;
+        }
+        byte[] body = RelayEnvelope.encode(node.id(), null, fromUserId, toUserId, frame);
+        if (routing == Routing.NODE) {
+            publishToNodes(null, toUserId, body);
+            return;
+        }
+        byte[] channel = (USER_PREFIX + toUserId).getBytes(StandardCharsets.UTF_8);
+        redis.execute((RedisCallback<Long>) c -> c.publish(channel, body));
+    }
+
+    /**
+     * Publica el sobre una vez en el canal de cada otro nodo donde el emisor
+     * o el receptor tienen presencia.
+     */
+    private void publishToNodes(String fromUserId, String toUserId, byte[] body) {
+        publishToNodes(Arrays.asList(toUserId, fromUserId), body);
+    }
+
+    /**
+     * Publica el sobre una vez en el canal de cada otro nodo donde alguno de
+     * los usuarios tiene presencia; la presencia se consulta en un solo
+     * pipeline.
+     */
+    private void publishToNodes(Collection<String> userIds, byte[] body) {
+        Set<String> targets = presence.nodesOfAny(userIds);
+        targets.remove(node.id());
+        if (targets.isEmpty()) {
+            return;
+        }
+        redis.execute((RedisCallback<Void>) c -> {
+            for (String target : targets) {
+                c.publish((NODE_PREFIX + target).getBytes(StandardCharsets.UTF_8), body);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Publica una trama para todos los miembros de una sala con un solo
+     * sobre, sin importar cuántos miembros tenga. En modo {@code user} los
+     * recién agregados aún no están en nodos suscritos a la sala, así que el
+     * sobre también va a sus canales de usuario.
+     *
+     * @param roomId     la sala.
+     * @param messageId  el mensaje, o null si es un evento de la sala.
+     * @param fromUserId el usuario que origina la trama.
+     * @param members    los miembros a alcanzar (modo {@code node}).
+     * @param newcomers  los miembros recién agregados (modo {@code user}).
+     * @param frame      la trama ya codificada.
+     */
+    public void publishRoom(String roomId, String messageId, String fromUserId, Collection<String> members,
+            Collection<String> newcomers, OutboundFrame frame) {
+        if (redis == null) {
+            return;
+        }
+        byte[] body = RelayEnvelope.encodeRoom(node.id(), roomId, messageId, fromUserId, frame);
+        if (routing == Routing.BROADCAST) {
+            byte[] channel = (CHAT_PREFIX + roomId).getBytes(StandardCharsets.UTF_8);
+            redis.execute((RedisCallback<Long>) c -> c.publish(channel, body));
+            return;
+        }
+        if (routing == Routing.NODE) {
+            publishToNodes(members, body);
+            return;
+        }
+        redis.execute((RedisCallback<Void>) c -> {
+            c.publish((ROOM_PREFIX + roomId).getBytes(StandardCharsets.UTF_8), body);
+            for (String userId : newcomers) {
+                c.publish((USER_PREFIX + userId).getBytes(StandardCharsets.UTF_8), body);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Versión no bloqueante de {@link PresenceRegistry#isOnlineElsewhere}: la consulta de
+     * presencia corre fuera del hilo que la pide.
+     *
+     * @param userId el usuario.
+     * @return true si está conectado en otro nodo.
+     */
+    public Mono<Boolean> isOnlineElsewhereAsync(String userId) {
+        if (!presence.isEnabled()) {
+            return Mono.just(false);
+        }
+        return Mono.fromCallable(() -> presence.isOnlineElsewhere(userId)).subscribeOn(Schedulers.boundedElastic());
+    }
+
+    /**
+     * Versión no bloqueante de {@link #publish(Message, OutboundFrame)}.
+     *
+     * @param message el mensaje persistido.
+     * @param frame   la trama ya codificada.
+     * @return completa al publicar.
+     */
+    public Mono<Void> publishAsync(Message message, OutboundFrame frame) {
+        return publishAsync(message.getChatId(), message.getId(), message.getFromUserId(), message.getToUserId(),
+                frame);
+    }
+
+    /**
+     * Versión no bloqueante de
+     * {@link #publish(String, String, String, String, OutboundFrame)}, con el
+     * cliente reactivo de Redis. Si no hay fábrica reactiva, la publicación
+     * bloqueante corre en {@code boundedElastic}.
+     *
+     * @param chatId     el chat, usado como canal en modo {@code broadcast}.
+     * @param messageId  el mensaje a confirmar en destino, o null si es un evento.
+     * @param fromUserId el usuario que origina la trama.
+     * @param toUserId   el otro participante.
+     * @param frame      la trama ya codificada.
+     * @return completa al publicar.
+     */
+    public Mono<Void> publishAsync(String chatId, String messageId, String fromUserId, String toUserId,
+            OutboundFrame frame) {
+        if (redis == null) {
+            return Mono.empty();
+        }
+        if (reactiveRedis == null) {
+            return Mono.fromRunnable(() -> publish(chatId, messageId, fromUserId, toUserId, frame))
+                    .subscribeOn(Schedulers.boundedElastic()).then();
+        }
+        byte[] body = RelayEnvelope.encode(node.id(), messageId, fromUserId, toUserId, frame);
+        if (routing == Routing.BROADCAST) {
+            return reactiveRedis.convertAndSend(CHAT_PREFIX + chatId, body).then();
+        }
+        if (routing == Routing.NODE) {
+            return publishToNodesAsync(fromUserId, toUserId, body);
+        }
+        Mono<Long> toRecipient = toUserId != null
+                ? reactiveRedis.convertAndSend(USER_PREFIX + toUserId, body)
+                : Mono.empty();
+        Mono<Long> toSender = fromUserId != null && !fromUserId.equals(toUserId)
+                ? reactiveRedis.convertAndSend(USER_PREFIX + fromUserId, body)
+                : Mono.empty();
+        return Mono.when(toRecipient, toSender);
+    }
+
+    /**
+     * Versión no bloqueante de {@link #publishToRecipient}.
+     *
+     * @param chatId     el chat del evento.
+     * @param fromUserId el usuario que origina el evento.
+     * @param toUserId   el receptor.
+     * @param frame      la trama ya codificada.
+     * @return completa al publicar.
+     */
+    public Mono<Void> publishToRecipientAsync(String chatId, String fromUserId, String toUserId,
+            OutboundFrame frame) {
+        if (redis == null || toUserId == null) {
+            return Mono.empty();
+        }
+        if (routing == Routing.BROADCAST) {
+            return publishAsync(chatId, null, fromUserId, toUserId, frame);
+        }
+        if (reactiveRedis == null) {
+            return Mono.fromRunnable(() -> publishToRecipient(chatId, fromUserId, toUserId, frame))
+                    .subscribeOn(Schedulers.boundedElastic()).then();
+        }
+        byte[] body = RelayEnvelope.encode(node.id(), null, fromUserId, toUserId, frame);
+        if (routing == Routing.NODE) {
+            return publishToNodesAsync(null, toUserId, body);
+        }
+        return reactiveRedis.convertAndSend(USER_PREFIX + toUserId, body).then();
+    }
+
+    /**
+     * Como {@link #publishToNodes}: la consulta de presencia corre en
+     * {@code boundedElastic} y las publicaciones con el cliente reactivo.
+     */
+    private Mono<Void> publishToNodesAsync(String fromUserId, String toUserId, byte[] body) {
+        return Mono.fromCallable(() -> presence.nodesOfAny(Arrays.asList(toUserId, fromUserId)))
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMapMany(Flux::fromIterable)
+                .filter(target -> !target.equals(node.id()))
+                .flatMap(target -> reactiveRedis.convertAndSend(NODE_PREFIX + target, body))
+                .then();
+    }
+
+    /**
+     * Número de canales de usuario a los que este nodo está suscrito.
+     *
+     * @return la cantidad de suscripciones por usuario.
+     */
+    int subscribedUserCount() {
+        return subscribedUsers.size();
+    }
+
+    /**
+     * Número de canales de sala a los que este nodo está suscrito.
+     *
+     * @return la cantidad de suscripciones por sala.
+     */
+    int subscribedRoomCount() {
+        return subscribedRooms.size();
+    }
+}
@@ -0,0 +1,273 @@
+package co.edu.escuelaing.uplearn.chat.ws;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Despacha el procesamiento de tramas entrantes fuera de los hilos de E/S del
+ * contenedor WebSocket. Cada sesión tiene un carril serial, de modo que sus
+ * mensajes se procesan en orden aunque el ejecutor sea concurrente.
+ * <p>
+ * Modos ({@code ws.inbound.mode}):
+ * <ul>
+ * <li>{@code inline}: procesa en el hilo del contenedor (comportamiento previo).</li>
+ * <li>{@code platform}: pool acotado de hilos de plataforma; si la cola se
+ * llena, el hilo del contenedor ejecuta la tarea (contrapresión).</li>
+ * <li>{@code virtual}: un hilo virtual por tarea en JDK 21+; en JDK anteriores
+ * se usa el pool de plataforma.</li>
+ * </ul>
+ * Al sacar el trabajo del hilo del contenedor se pierde la contrapresión de
+ * TCP, así que cada carril admite como máximo
+ * {@code ws.inbound.max-lane-depth} tramas pendientes: un cliente que envía
+ * más rápido de lo que se procesa pierde la trama que excede el tope y su
+ * sesión se cierra con {@code 1008} (violación de política).
+ */
+@Slf4j
+@Component
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+public class InboundDispatcher {
+
+    static final String ATTR_LANE = "inboundLane";
+    static final int DEFAULT_MAX_LANE_DEPTH = 256;
+    static final CloseStatus FLOODING = CloseStatus.POLICY_VIOLATION.withReason("Demasiadas tramas en cola");
+
+    /** Modos de ejecución soportados. */
+    public enum Mode {
+        INLINE, PLATFORM, VIRTUAL
+    }
+
+    /** Tarea de procesamiento de una trama entrante. */
+    @FunctionalInterface
+    public interface Task {
+        void run() throws Exception;
+    }
+
+    private final Mode mode;
+    private final Executor executor;
+    private final int maxLaneDepth;
+    private final AtomicLong pending = new AtomicLong();
+    private final Timer queueWait;
+    private final Counter rejected;
+
+    public InboundDispatcher(MeterRegistry registry, String mode, int threads, int queueCapacity) {
+        this(registry, mode, threads, queueCapacity, DEFAULT_MAX_LANE_DEPTH);
+    }
+
+    @Autowired
+    public InboundDispatcher(MeterRegistry registry,
+            @Value("${ws.inbound.mode:platform}") String mode,
+            @Value("${ws.inbound.threads:32}") int threads,
+            @Value("${ws.inbound.queue-capacity:10000}") int queueCapacity,
+            @Value("${ws.inbound.max-lane-depth:256}") int maxLaneDepth) {
+        this(registry, Mode.valueOf(mode.trim().toUpperCase(Locale.ROOT)), threads, queueCapacity, maxLaneDepth);
+    }
+
+    private InboundDispatcher(MeterRegistry registry, Mode mode, int threads, int queueCapacity, int maxLaneDepth) {
+        this(registry, mode, executorFor(mode, threads, queueCapacity), maxLaneDepth);
+    }
+
+    InboundDispatcher(MeterRegistry registry, Mode mode, Executor executor) {
+        this(registry, mode, executor, DEFAULT_MAX_LANE_DEPTH);
+    }
+
+    InboundDispatcher(MeterRegistry registry, Mode mode, Executor executor, int maxLaneDepth) {
+        this.mode = executor == null ? Mode.INLINE : mode;
+        this.executor = executor;
+        this.maxLaneDepth = Math.max(1, maxLaneDepth);
+        this.rejected = Counter.builder("chat.ws.inbound.rejected")
+                .description("Tramas descartadas por exceder el tope del carril de su sesión")
+                .register(registry);
+        this.queueWait = Timer.builder("chat.ws.inbound.wait")
+                .description("Espera de tramas entrantes antes de procesarse")
+                .publishPercentiles(0.5, 0.99)
+                .register(registry);
+        Gauge.builder("chat.ws.inbound.pending", pending, AtomicLong::get)
+                .description("Tramas entrantes en cola o en proceso")
+                .register(registry);
+        log.info("WS: procesamiento de entrada en modo {}", this.mode);
+    }
+
+    /**
+     * Crea el ejecutor para el modo indicado.
+     *
+     * @param mode          el modo de ejecución.
+     * @param threads       hilos del pool de plataforma.
+     * @param queueCapacity capacidad de la cola del pool de plataforma.
+     * @return el ejecutor, o null para el modo inline.
+     */
+    private static Executor executorFor(Mode mode, int threads, int queueCapacity) {
+        if (mode == Mode.INLINE) {
+            return null;
+        }
+        if (mode == Mode.VIRTUAL) {
+            try {
+                return (Executor) Executors.class
+                        .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                log.warn("WS: hilos virtuales no disponibles en este JDK, usando pool de plataforma");
+            }
+        }
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), OutboundSessionFactory.named("ws-inbound-"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Modo efectivo de ejecución.
+     *
+     * @return el modo en uso.
+     */
+    public Mode mode() {
+        return mode;
+    }
+
+    /**
+     * Tramas aceptadas que aún no terminan de procesarse (en cola o en
+     * curso); siempre 0 en modo inline.
+     *
+     * @return la cantidad de tramas.
+     */
+    public long pendingTasks() {
+        return pending.get();
+    }
+
+    /**
+     * Procesa una tarea de la sesión respetando el orden de llegada. En modo
+     * inline se ejecuta de inmediato y las excepciones se propagan al
+     * contenedor; en los demás modos un error inesperado cierra la sesión.
+     * Si el carril de la sesión ya tiene {@code ws.inbound.max-lane-depth}
+     * tramas pendientes, la tarea se descarta y la sesión se cierra con
+     * {@link #FLOODING}.
+     *
+     * @param session la sesión que originó la trama.
+     * @param task    la tarea a ejecutar.
+     * @throws Exception solo en modo inline, si la tarea falla.
+     */
+    public void dispatch(WebSocketSession session, Task task) throws Exception {
+        if (executor == null) {
+            task.run();
+            return;
+        }
+        Lane lane = (Lane) session.getAttributes().computeIfAbsent(ATTR_LANE, k -> new Lane());
+        if (!lane.reserve()) {
+            rejected.increment();
+            if (lane.overflowed.compareAndSet(false, true)) {
+                log.warn("WS: sesión {} excede {} tramas en cola; se cierra", session.getId(), maxLaneDepth);
+                closeQuietly(session, FLOODING);
+            }
+            return;
+        }
+        pending.incrementAndGet();
+        long enqueuedAt = System.nanoTime();
+        lane.submit(() -> {
+            queueWait.record(System.nanoTime() - enqueuedAt, TimeUnit.NANOSECONDS);
+            try {
+                task.run();
+            } catch (Exception e) {
+                log.error("WS: error procesando trama de sesión {}: {}", session.getId(), e.toString(), e);
+                closeQuietly(session, CloseStatus.SERVER_ERROR);
+            } finally {
+                pending.decrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * Cierra la sesión tras un error inesperado, como hace el contenedor en
+     * modo inline, o porque su carril se llenó.
+     *
+     * @param session la sesión a cerrar.
+     * @param status  el estado de cierre.
+     */
+    private static void closeQuietly(WebSocketSession session, CloseStatus status) {
+        try {
+            session.close(status);
+        } catch (Exception e) {
+            log.debug("WS: error cerrando sesión {}: {}", session.getId(), e.toString());
+        }
+    }
+
+    /** Detiene el ejecutor al apagar la aplicación. */
+    @PreDestroy
+    void shutdown() {
+        if (executor instanceof ExecutorService es) {
+            es.shutdown();
+        }
+    }
+
+    /**
+     * Carril serial de una sesión: encola tareas y garantiza que como máximo
+     * una se ejecute a la vez, en orden FIFO. Admite hasta
+     * {@code maxLaneDepth} tareas pendientes, contando la que está en curso.
+     */
+    private final class Lane {
+
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean running = new AtomicBoolean();
+        private final AtomicInteger depth = new AtomicInteger();
+        private final AtomicBoolean overflowed = new AtomicBoolean();
+
+        /** Reserva lugar para una tarea; false si el carril está lleno. */
+        boolean reserve() {
+            if (depth.incrementAndGet() > maxLaneDepth) {
+                depth.decrementAndGet();
+                return false;
+            }
+            return true;
+        }
+
+        void submit(Runnable task) {
+            tasks.add(task);
+            schedule();
+        }
+
+        private void schedule() {
+            if (running.compareAndSet(false, true)) {
+                executor.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            try {
+                Runnable next;
+                while ((next = tasks.poll()) != null) {
+                    try {
+                        next.run();
+                    } finally {
+                        depth.decrementAndGet();
+                    }
+                }
+            } finally {
+                running.set(false);
+            }
+            if (!tasks.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+}
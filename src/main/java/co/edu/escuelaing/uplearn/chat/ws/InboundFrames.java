@@ -0,0 +1,134 @@
+package co.edu.escuelaing.uplearn.chat.ws;
+
+import co.edu.escuelaing.uplearn.chat.dto.SendMessageRequest;
+import com.fasterxml.jackson.databind.JsonNode;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lectura de las tramas entrantes del protocolo de chat, compartida por el
+ * gateway de servlets y el reactivo para que ambos acepten exactamente las
+ * mismas tramas.
+ */
+@Slf4j
+final class InboundFrames {
+
+    static final String TYPE_BATCH = "batch";
+    static final String TYPE_ACK = "ack";
+    static final String TYPE_READ = "read";
+    static final String TYPE_TYPING = "typing";
+    static final int MAX_TYPING_FRAME_BYTES = 512;
+
+    private InboundFrames() {
+    }
+
+    /**
+     * Lee el payload JSON entrante.
+     * Ignora mensajes de ping y payloads que no son JSON.
+     *
+     * @param payload el payload JSON entrante.
+     * @return el árbol JSON, o null si es un ping o no es JSON.
+     */
+    static JsonNode readText(String payload) {
+        if (payload == null || payload.isBlank() || "ping".equalsIgnoreCase(payload.trim())) {
+            return null;
+        }
+
+        JsonNode root;
+        try {
+            root = WireFormat.JSON.mapper().readTree(payload);
+        } catch (Exception ex) {
+            log.debug("WS: ignorando payload no JSON: {}", payload);
+            return null;
+        }
+
+        return root.isObject() && !isType(root, "ping") ? root : null;
+    }
+
+    /**
+     * Lee una trama binaria CBOR. Ignora tramas vacías o mal formadas.
+     *
+     * @param payload el contenido de la trama; no se modifica su posición.
+     * @return el árbol decodificado, o null si es un ping o no es CBOR válido.
+     */
+    static JsonNode readBinary(ByteBuffer payload) {
+        if (!payload.hasRemaining()) {
+            return null;
+        }
+        ByteBuffer buf = payload.duplicate();
+        JsonNode root;
+        try {
+            if (buf.hasArray()) {
+                root = WireFormat.CBOR.mapper().readTree(buf.array(), buf.arrayOffset() + buf.position(),
+                        buf.remaining());
+            } else {
+                byte[] bytes = new byte[buf.remaining()];
+                buf.get(bytes);
+                root = WireFormat.CBOR.mapper().readTree(bytes);
+            }
+        } catch (Exception ex) {
+            log.debug("WS: ignorando trama binaria no CBOR de {} bytes", payload.remaining());
+            return null;
+        }
+        return root != null && root.isObject() && !isType(root, "ping") ? root : null;
+    }
+
+    /**
+     * Lee los valores de texto de un arreglo JSON.
+     *
+     * @param array el nodo arreglo, o null.
+     * @return los valores no vacíos, en orden.
+     */
+    static List<String> textValues(JsonNode array) {
+        if (array == null || !array.isArray()) {
+            return List.of();
+        }
+        List<String> values = new ArrayList<>(array.size());
+        for (JsonNode n : array) {
+            if (n.isTextual() && !n.asText().isBlank()) {
+                values.add(n.asText());
+            }
+        }
+        return values;
+    }
+
+    static boolean isType(JsonNode root, String type) {
+        return root.has("type") && type.equalsIgnoreCase(root.get("type").asText());
+    }
+
+    /**
+     * Verifica que una solicitud de envío entre dos usuarios tenga los campos
+     * requeridos.
+     *
+     * @param req la solicitud.
+     * @return true si tiene receptor y contenido y no va a una sala.
+     */
+    static boolean isValid(SendMessageRequest req) {
+        return req != null && req.getRoomId() == null && req.getToUserId() != null && !req.getToUserId().isBlank()
+                && req.getContent() != null && !req.getContent().isBlank();
+    }
+
+    /**
+     * Indica si la solicitud va a una sala ({@code roomId} presente).
+     *
+     * @param req la solicitud.
+     * @return true si es un mensaje de sala.
+     */
+    static boolean isRoomMessage(SendMessageRequest req) {
+        return req != null && req.getRoomId() != null;
+    }
+
+    /**
+     * Verifica que un mensaje de sala tenga sala y contenido.
+     *
+     * @param req la solicitud.
+     * @return true si tiene sala y contenido.
+     */
+    static boolean isValidRoomMessage(SendMessageRequest req) {
+        return isRoomMessage(req) && !req.getRoomId().isBlank()
+                && req.getContent() != null && !req.getContent().isBlank();
+    }
+}
@@ -0,0 +1,35 @@
+package co.edu.escuelaing.uplearn.chat.ws;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.UUID;
+
+/**
+ * Identificador de esta instancia del servicio dentro del clúster. Se usa
+ * para marcar el origen de las publicaciones entre nodos. Si no se configura
+ * {@code chat.node-id}, se genera uno aleatorio en cada arranque.
+ */
+@Slf4j
+@Component
+public class NodeIdentity {
+
+    private final String id;
+
+    public NodeIdentity(@Value("${chat.node-id:}") String configured) {
+        this.id = configured == null || configured.isBlank()
+                ? UUID.randomUUID().toString()
+                : configured.trim();
+        log.info("Nodo de chat id={}", id);
+    }
+
+    /**
+     * ID de este nodo.
+     *
+     * @return el ID del nodo.
+     */
+    public String id() {
+        return id;
+    }
+}
@@ -0,0 +1,134 @@
+package co.edu.escuelaing.uplearn.chat.ws;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Trama de salida ya codificada. Un mensaje se serializa una sola vez a
+ * JSON UTF-8 y la misma instancia se reutiliza para el eco al emisor, cada
+ * dispositivo del receptor y la publicación entre nodos, en lugar de crear
+ * un {@link TextMessage} y un String por sesión.
+ * <p>
+ * La versión CBOR se codifica a demanda, la primera vez que una sesión
+ * binaria la necesita, y se comparte igual que la de texto. Entre nodos
+ * siempre viaja el JSON.
+ */
+public final class OutboundFrame {
+
+    private final byte[] utf8;
+    private final TextMessage text;
+    private final Object payload;
+    private volatile BinaryMessage binary;
+
+    private OutboundFrame(byte[] utf8, Object payload) {
+        this.utf8 = utf8;
+        this.text = new TextMessage(utf8);
+        this.payload = payload;
+    }
+
+    /**
+     * Serializa un objeto a una trama JSON. El objeto se conserva para
+     * codificar la versión CBOR a demanda y no debe modificarse después.
+     *
+     * @param json    el ObjectMapper a usar.
+     * @param payload el objeto a serializar.
+     * @return la trama codificada.
+     * @throws JsonProcessingException si el objeto no se puede serializar.
+     */
+    public static OutboundFrame encode(ObjectMapper json, Object payload) throws JsonProcessingException {
+        return new OutboundFrame(json.writeValueAsBytes(payload), payload);
+    }
+
+    /**
+     * Envuelve bytes JSON UTF-8 ya codificados (por ejemplo, recibidos de
+     * Redis). El arreglo pasa a ser propiedad de la trama y no debe modificarse.
+     *
+     * @param utf8 los bytes JSON en UTF-8.
+     * @return la trama.
+     */
+    public static OutboundFrame wrap(byte[] utf8) {
+        return new OutboundFrame(utf8, null);
+    }
+
+    /**
+     * Mensaje de texto compartido por todas las sesiones destino.
+     *
+     * @return el TextMessage de la trama.
+     */
+    public TextMessage text() {
+        return text;
+    }
+
+    /**
+     * Mensaje binario CBOR compartido por todas las sesiones binarias. Si la
+     * trama se creó desde un objeto se serializa directamente; si se envolvió
+     * JSON, se transcodifica token a token sin materializar el DTO.
+     *
+     * @return el BinaryMessage de la trama.
+     */
+    public BinaryMessage binary() {
+        BinaryMessage b = binary;
+        if (b == null) {
+            b = new BinaryMessage(toCbor());
+            binary = b;
+        }
+        return b;
+    }
+
+    /**
+     * Mensaje a enviar a una sesión según su formato.
+     *
+     * @param format el formato de la sesión.
+     * @return el mensaje de texto o binario compartido.
+     */
+    public WebSocketMessage<?> messageFor(WireFormat format) {
+        return format == WireFormat.CBOR ? binary() : text;
+    }
+
+    private byte[] toCbor() {
+        ObjectMapper cbor = WireFormat.CBOR.mapper();
+        try {
+            if (payload != null) {
+                return cbor.writeValueAsBytes(payload);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream(utf8.length);
+            try (JsonParser p = WireFormat.JSON.mapper().getFactory().createParser(utf8);
+                    JsonGenerator g = cbor.getFactory().createGenerator(out)) {
+                while (p.nextToken() != null) {
+                    g.copyCurrentEvent(p);
+                }
+            }
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException("No se pudo codificar la trama en CBOR", e);
+        }
+    }
+
+    /**
+     * Bytes UTF-8 de la trama, sin copiar. Solo para escritura directa en
+     * transportes (Redis); no deben modificarse.
+     *
+     * @return los bytes codificados.
+     */
+    byte[] bytes() {
+        return utf8;
+    }
+
+    /**
+     * Tamaño de la trama en bytes.
+     *
+     * @return la longitud en bytes UTF-8.
+     */
+    public int size() {
+        return utf8.length;
+    }
+}
@@ -0,0 +1,328 @@
+package co.edu.escuelaing.uplearn.chat.ws;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.WebSocketSessionDecorator;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decorador de sesión WebSocket con una cola de salida acotada y asíncrona.
+ * Los envíos solo encolan el mensaje; un único drenador por sesión lo escribe
+ * en el socket desde un ejecutor compartido, de modo que un cliente lento no
+ * bloquea al hilo que entrega. Si la cola supera sus límites o un envío tarda
+ * más de lo permitido, la sesión se desconecta como consumidor lento.
+ * <p>
+ * Encolar no es entregar: un mensaje rechazado se informa al llamador y uno
+ * descartado al desalojar la sesión nunca se da por escrito. Quien necesite
+ * saber que el mensaje salió (p. ej. para confirmar la entrega) pasa una
+ * acción a {@link #offer}, que el drenador ejecuta solo después de escribirlo
+ * en el socket.
+ */
+@Slf4j
+public class OutboundSession extends WebSocketSessionDecorator {
+
+    static final CloseStatus SLOW_CONSUMER = CloseStatus.SESSION_NOT_RELIABLE.withReason("Cliente lento");
+    static final CloseStatus SEND_FAILED = CloseStatus.SESSION_NOT_RELIABLE.withReason("Error de envío");
+
+    private final OutboundSessionFactory factory;
+    private final Executor executor;
+    private final int maxMessages;
+    private final int bufferSizeLimit;
+    private final long sendTimeLimitNanos;
+
+    private final Queue<Outgoing> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queuedMessages = new AtomicInteger();
+    private final AtomicInteger queuedBytes = new AtomicInteger();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final AtomicBoolean evicted = new AtomicBoolean();
+    private volatile long sendStartNanos;
+
+    OutboundSession(WebSocketSession delegate, OutboundSessionFactory factory, Executor executor,
+            int maxMessages, int bufferSizeLimit, long sendTimeLimitMs) {
+        super(delegate);
+        this.factory = factory;
+        this.executor = executor;
+        this.maxMessages = maxMessages;
+        this.bufferSizeLimit = bufferSizeLimit;
+        this.sendTimeLimitNanos = sendTimeLimitMs * 1_000_000L;
+    }
+
+    /**
+     * Encola un mensaje para envío asíncrono. Nunca bloquea.
+     *
+     * @param message el mensaje a enviar.
+     * @throws IOException si el mensaje se descartó (ver {@link #offer}).
+     */
+    @Override
+    public void sendMessage(WebSocketMessage<?> message) throws IOException {
+        if (!offer(message, null)) {
+            throw new IOException("Mensaje descartado: sesión " + getId() + " desalojada o cerrada");
+        }
+    }
+
+    /**
+     * Encola un mensaje para envío asíncrono sin bloquear. Si la sesión ya fue
+     * desalojada el mensaje se descarta, y si la cola está llena o el envío en
+     * curso excede el tiempo límite, la sesión se desaloja.
+     *
+     * @param message   el mensaje a enviar.
+     * @param onWritten acción a ejecutar, en el hilo de salida, cuando el
+     *                  mensaje se haya escrito en el socket; no se ejecuta si
+     *                  el mensaje se descarta. Puede ser null.
+     * @return true si el mensaje quedó encolado, false si se descartó.
+     */
+    public boolean offer(WebSocketMessage<?> message, Runnable onWritten) {
+        if (evicted.get() || !isOpen()) {
+            factory.onDropped(1);
+            return false;
+        }
+        if (isSendTimeExceeded()) {
+            factory.onDropped(1);
+            evict(SLOW_CONSUMER, "send-time");
+            return false;
+        }
+        int size = message.getPayloadLength();
+        if (queuedMessages.get() >= maxMessages || queuedBytes.get() + size > bufferSizeLimit) {
+            factory.onDropped(1);
+            evict(SLOW_CONSUMER, "buffer");
+            return false;
+        }
+        queuedMessages.incrementAndGet();
+        queuedBytes.addAndGet(size);
+        factory.onEnqueued();
+        queue.add(new Outgoing(message, onWritten));
+        return scheduleDrain();
+    }
+
+    /**
+     * Envía un mensaje por la cola de salida de la sesión, o directamente si
+     * la sesión no tiene cola; en ese caso la acción corre tras la escritura.
+     *
+     * @param session   la sesión destino.
+     * @param message   el mensaje a enviar.
+     * @param onWritten acción tras escribir el mensaje, o null.
+     * @return true si el mensaje se encoló o se escribió.
+     */
+    static boolean send(WebSocketSession session, WebSocketMessage<?> message, Runnable onWritten) {
+        if (session instanceof OutboundSession out) {
+            return out.offer(message, onWritten);
+        }
+        try {
+            session.sendMessage(message);
+        } catch (IOException e) {
+            log.debug("WS: fallo enviando a sesión {}: {}", session.getId(), e.toString());
+            return false;
+        }
+        if (onWritten != null) {
+            onWritten.run();
+        }
+        return true;
+    }
+
+    /**
+     * Indica si hay un envío en curso que ya superó el tiempo límite.
+     *
+     * @return true si el envío actual excede el límite configurado.
+     */
+    boolean isSendTimeExceeded() {
+        long start = sendStartNanos;
+        return start != 0 && System.nanoTime() - start > sendTimeLimitNanos;
+    }
+
+    /**
+     * Número de mensajes pendientes en la cola de salida.
+     *
+     * @return la profundidad actual de la cola.
+     */
+    public int getQueueDepth() {
+        return queuedMessages.get();
+    }
+
+    /**
+     * Máximo de mensajes que admite la cola antes de desalojar la sesión.
+     *
+     * @return la capacidad de la cola.
+     */
+    public int getCapacity() {
+        return maxMessages;
+    }
+
+    /**
+     * Indica si la sesión fue desalojada por exceder sus límites.
+     *
+     * @return true si la sesión fue desalojada.
+     */
+    public boolean isEvicted() {
+        return evicted.get();
+    }
+
+    /**
+     * Cierra la sesión descartando lo que quede en la cola.
+     *
+     * @param status el estado de cierre.
+     */
+    @Override
+    public void close(CloseStatus status) throws IOException {
+        if (evicted.compareAndSet(false, true)) {
+            discardQueued();
+        }
+        super.close(status);
+    }
+
+    /**
+     * Libera la cola cuando el contenedor ya cerró la conexión.
+     */
+    void onClosed() {
+        if (evicted.compareAndSet(false, true)) {
+            discardQueued();
+        }
+    }
+
+    /**
+     * Programa el drenado de la cola si no hay uno en curso.
+     *
+     * @return false si el ejecutor rechazó el drenado y la sesión se desalojó.
+     */
+    private boolean scheduleDrain() {
+        if (!draining.compareAndSet(false, true)) {
+            return true;
+        }
+        try {
+            executor.execute(this::drain);
+            return true;
+        } catch (RejectedExecutionException e) {
+            draining.set(false);
+            log.warn("WS: ejecutor de salida saturado, descartando sesión {}", getId());
+            evict(SLOW_CONSUMER, "rejected");
+            return false;
+        }
+    }
+
+    /**
+     * Envía en orden todos los mensajes encolados. Solo un hilo drena la cola
+     * de una sesión a la vez, lo que además serializa los envíos sobre el socket.
+     */
+    private void drain() {
+        try {
+            Outgoing next;
+            while (!evicted.get() && (next = queue.poll()) != null) {
+                release(next.message);
+                if (!sendNow(next.message)) {
+                    return;
+                }
+                written(next);
+            }
+        } finally {
+            draining.set(false);
+        }
+        if (!queue.isEmpty() && !evicted.get()) {
+            scheduleDrain();
+        }
+    }
+
+    /**
+     * Escribe un mensaje en el socket, registrando el inicio del envío para el
+     * control de tiempo límite.
+     *
+     * @param message el mensaje a escribir.
+     * @return true si se envió, false si la sesión fue desalojada.
+     */
+    private boolean sendNow(WebSocketMessage<?> message) {
+        factory.onSendStarted(this);
+        sendStartNanos = System.nanoTime();
+        try {
+            getDelegate().sendMessage(message);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            log.debug("WS: fallo enviando a sesión {}: {}", getId(), e.toString());
+            evict(SEND_FAILED, "send-error");
+            return false;
+        } finally {
+            sendStartNanos = 0;
+            factory.onSendFinished(this);
+        }
+    }
+
+    /**
+     * Ejecuta la acción asociada a un mensaje ya escrito; un error en ella no
+     * detiene el drenado.
+     *
+     * @param sent el mensaje escrito.
+     */
+    private void written(Outgoing sent) {
+        if (sent.onWritten == null) {
+            return;
+        }
+        try {
+            sent.onWritten.run();
+        } catch (RuntimeException e) {
+            log.warn("WS: error tras enviar a sesión {}: {}", getId(), e.toString());
+        }
+    }
+
+    /**
+     * Desaloja la sesión: descarta la cola y la cierra con el estado indicado.
+     *
+     * @param status el estado de cierre a enviar al cliente.
+     * @param reason la razón para métricas.
+     */
+    void evict(CloseStatus status, String reason) {
+        if (!evicted.compareAndSet(false, true)) {
+            return;
+        }
+        discardQueued();
+        factory.onEvicted(reason);
+        log.info("WS: desalojando sesión {} ({})", getId(), reason);
+        try {
+            getDelegate().close(status);
+        } catch (IOException | RuntimeException e) {
+            log.debug("WS: error cerrando sesión {}: {}", getId(), e.toString());
+        }
+    }
+
+    /**
+     * Vacía la cola contando los mensajes descartados.
+     */
+    private void discardQueued() {
+        int dropped = 0;
+        Outgoing next;
+        while ((next = queue.poll()) != null) {
+            release(next.message);
+            dropped++;
+        }
+        if (dropped > 0) {
+            factory.onDropped(dropped);
+        }
+    }
+
+    /**
+     * Descuenta un mensaje de los contadores de la cola.
+     *
+     * @param message el mensaje que sale de la cola.
+     */
+    private void release(WebSocketMessage<?> message) {
+        queuedMessages.decrementAndGet();
+        queuedBytes.addAndGet(-message.getPayloadLength());
+        factory.onDequeued();
+    }
+
+    /** Mensaje encolado junto con la acción a ejecutar tras escribirlo. */
+    private static final class Outgoing {
+        private final WebSocketMessage<?> message;
+        private final Runnable onWritten;
+
+        Outgoing(WebSocketMessage<?> message, Runnable onWritten) {
+            this.message = message;
+            this.onWritten = onWritten;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package co.edu.escuelaing.uplearn.chat.ws;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Crea las colas de salida de las sesiones WebSocket y mantiene sus
+ * recursos compartidos: el ejecutor que drena las colas, el vigilante de
+ * envíos atascados y las métricas de profundidad, descartes y desalojos.
+ */
+@Slf4j
+@Component
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+public class OutboundSessionFactory {
+
+    private final Executor executor;
+    private final int maxMessages;
+    private final int bufferSizeLimit;
+    private final long sendTimeLimitMs;
+    private final ScheduledExecutorService watchdog;
+
+    private final MeterRegistry registry;
+    private final AtomicLong queued = new AtomicLong();
+    private final Counter dropped;
+    private final Set<OutboundSession> inFlight = ConcurrentHashMap.newKeySet();
+
+    @Autowired
+    public OutboundSessionFactory(MeterRegistry registry,
+            @Value("${ws.outbound.threads:16}") int threads,
+            @Value("${ws.outbound.max-messages:256}") int maxMessages,
+            @Value("${ws.outbound.buffer-size-limit:524288}") int bufferSizeLimit,
+            @Value("${ws.outbound.send-time-limit-ms:10000}") long sendTimeLimitMs) {
+        this(registry, Executors.newFixedThreadPool(threads, named("ws-outbound-")),
+                maxMessages, bufferSizeLimit, sendTimeLimitMs,
+                Executors.newSingleThreadScheduledExecutor(named("ws-outbound-watchdog-")));
+    }
+
+    OutboundSessionFactory(MeterRegistry registry, Executor executor, int maxMessages, int bufferSizeLimit,
+            long sendTimeLimitMs, ScheduledExecutorService watchdog) {
+        this.registry = registry;
+        this.executor = executor;
+        this.maxMessages = maxMessages;
+        this.bufferSizeLimit = bufferSizeLimit;
+        this.sendTimeLimitMs = sendTimeLimitMs;
+        this.watchdog = watchdog;
+        this.dropped = registry.counter("chat.ws.outbound.dropped");
+        Gauge.builder("chat.ws.outbound.queued", queued, AtomicLong::get)
+                .description("Mensajes en colas de salida WebSocket")
+                .register(registry);
+        if (watchdog != null) {
+            long period = Math.max(100, Math.min(1000, sendTimeLimitMs / 2));
+            watchdog.scheduleAtFixedRate(this::evictStalledSends, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Envuelve una sesión con su cola de salida acotada.
+     *
+     * @param session la sesión nativa del contenedor.
+     * @return la sesión decorada.
+     */
+    public OutboundSession wrap(WebSocketSession session) {
+        return new OutboundSession(session, this, executor, maxMessages, bufferSizeLimit, sendTimeLimitMs);
+    }
+
+    /**
+     * Desaloja las sesiones cuyo envío en curso excede el tiempo límite, para
+     * liberar el hilo de salida aunque no lleguen nuevos mensajes a esa sesión.
+     */
+    void evictStalledSends() {
+        for (OutboundSession s : inFlight) {
+            if (s.isSendTimeExceeded()) {
+                s.evict(OutboundSession.SLOW_CONSUMER, "send-time");
+            }
+        }
+    }
+
+    /**
+     * Total de mensajes encolados en todas las sesiones.
+     *
+     * @return la profundidad agregada de las colas.
+     */
+    public long queuedMessages() {
+        return queued.get();
+    }
+
+    void onEnqueued() {
+        queued.incrementAndGet();
+    }
+
+    void onDequeued() {
+        queued.decrementAndGet();
+    }
+
+    void onDropped(int count) {
+        dropped.increment(count);
+    }
+
+    void onEvicted(String reason) {
+        registry.counter("chat.ws.outbound.evicted", "reason", reason).increment();
+    }
+
+    void onSendStarted(OutboundSession session) {
+        inFlight.add(session);
+    }
+
+    void onSendFinished(OutboundSession session) {
+        inFlight.remove(session);
+    }
+
+    /** Detiene los hilos de salida al apagar la aplicación. */
+    @PreDestroy
+    void shutdown() {
+        if (watchdog != null) {
+            watchdog.shutdownNow();
+        }
+        if (executor instanceof ExecutorService es) {
+            es.shutdown();
+        }
+    }
+
+    /**
+     * Fábrica de hilos daemon con prefijo de nombre.
+     *
+     * @param prefix el prefijo para los nombres de hilo.
+     * @return la fábrica de hilos.
+     */
+    static ThreadFactory named(String prefix) {
+        AtomicInteger seq = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
@@ -0,0 +1,321 @@
+package co.edu.escuelaing.uplearn.chat.ws;
+
+import co.edu.escuelaing.uplearn.chat.domain.Message;
+import co.edu.escuelaing.uplearn.chat.dto.ChatMessageData;
+import co.edu.escuelaing.uplearn.chat.service.ChatService;
+import co.edu.escuelaing.uplearn.chat.service.DeliveryAckBuffer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Predicate;
+
+/**
+ * Reenvía los mensajes pendientes a un usuario que se conecta. La lectura se
+ * hace con un cursor de Mongo por páginas, varios mensajes pueden viajar en
+ * una misma trama (arreglo JSON) y cada página se confirma con una única
+ * actualización masiva cuando su última trama se escribe en el socket (si la
+ * sesión se desaloja antes, la página sigue pendiente). Corre en un ejecutor
+ * propio, así el handshake termina sin esperar al reenvío.
+ * <p>
+ * Si el cliente se conecta con un cursor de reanudación, en lugar de los
+ * pendientes recibe el delta de todos sus chats desde ese punto (incluidos
+ * los mensajes que envió desde otros dispositivos), acotado a
+ * {@code ws.resume.max-messages}, y al final una trama
+ * {@code {"type":"resume","cursor":...}} con el nuevo cursor.
+ */
+@Slf4j
+@Component
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+public class PendingReplay {
+
+    private final ChatService chatService;
+    private final DeliveryAckBuffer acks;
+    private final ObjectMapper json;
+    private final Executor executor;
+    private final int pageSize;
+    private final int messagesPerFrame;
+    private final long drainTimeoutMs;
+    private final int resumeMaxMessages;
+    private final long resumeSkewMs;
+
+    @Autowired
+    public PendingReplay(ChatService chatService, DeliveryAckBuffer acks,
+            @Value("${ws.replay.threads:4}") int threads,
+            @Value("${ws.replay.page-size:200}") int pageSize,
+            @Value("${ws.replay.messages-per-frame:1}") int messagesPerFrame,
+            @Value("${ws.outbound.send-time-limit-ms:10000}") long drainTimeoutMs,
+            @Value("${ws.resume.max-messages:1000}") int resumeMaxMessages,
+            @Value("${ws.resume.skew-ms:2000}") long resumeSkewMs) {
+        this(chatService, acks, new ObjectMapper(),
+                Executors.newFixedThreadPool(threads, OutboundSessionFactory.named("ws-replay-")),
+                pageSize, messagesPerFrame, drainTimeoutMs, resumeMaxMessages, resumeSkewMs);
+    }
+
+    PendingReplay(ChatService chatService, DeliveryAckBuffer acks, ObjectMapper json, Executor executor,
+            int pageSize, int messagesPerFrame, long drainTimeoutMs) {
+        this(chatService, acks, json, executor, pageSize, messagesPerFrame, drainTimeoutMs, 1000, 2000);
+    }
+
+    PendingReplay(ChatService chatService, DeliveryAckBuffer acks, ObjectMapper json, Executor executor,
+            int pageSize, int messagesPerFrame, long drainTimeoutMs, int resumeMaxMessages, long resumeSkewMs) {
+        this.resumeMaxMessages = Math.max(1, resumeMaxMessages);
+        this.resumeSkewMs = Math.max(0, resumeSkewMs);
+        this.chatService = chatService;
+        this.acks = acks;
+        this.json = json;
+        this.executor = executor;
+        this.pageSize = Math.max(1, pageSize);
+        this.messagesPerFrame = Math.max(1, messagesPerFrame);
+        this.drainTimeoutMs = drainTimeoutMs;
+    }
+
+    /**
+     * Programa el reenvío de pendientes de un usuario a una sesión.
+     *
+     * @param userId  ID del usuario conectado.
+     * @param session la sesión (con cola de salida) a la que enviar.
+     */
+    public void replayPending(String userId, WebSocketSession session) {
+        try {
+            executor.execute(() -> run(userId, session));
+        } catch (RejectedExecutionException e) {
+            log.warn("WS: reenvío de pendientes rechazado para {}: {}", userId, e.toString());
+        }
+    }
+
+    /**
+     * Programa en el mismo ejecutor una tarea de conexión que consulta Mongo
+     * o Redis, como registrar la presencia o cargar las salas del usuario,
+     * para no hacerlo en el hilo del contenedor.
+     *
+     * @param userId ID del usuario conectado.
+     * @param task   la tarea a ejecutar.
+     */
+    public void onConnect(String userId, Runnable task) {
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    log.warn("WS: tarea de conexión falló para {}: {}", userId, e.toString());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.warn("WS: tarea de conexión rechazada para {}: {}", userId, e.toString());
+        }
+    }
+
+    /**
+     * Programa la reanudación de una sesión desde el cursor del cliente: un
+     * instante ISO-8601 o el ID del último mensaje que vio. Sin cursor se
+     * reenvían los pendientes como siempre.
+     *
+     * @param userId  ID del usuario conectado.
+     * @param cursor  el cursor enviado por el cliente, o null.
+     * @param session la sesión (con cola de salida) a la que enviar.
+     */
+    public void resume(String userId, String cursor, WebSocketSession session) {
+        if (cursor == null || cursor.isBlank()) {
+            replayPending(userId, session);
+            return;
+        }
+        try {
+            executor.execute(() -> runResume(userId, cursor.trim(), session));
+        } catch (RejectedExecutionException e) {
+            log.warn("WS: reanudación rechazada para {}: {}", userId, e.toString());
+        }
+    }
+
+    /**
+     * Envía el delta desde el cursor. El cursor se retrocede
+     * {@code ws.resume.skew-ms} para cubrir mensajes con la misma marca de
+     * tiempo o escritos por nodos con relojes algo desfasados; el cliente
+     * descarta por ID los que ya tiene. Si el cursor no se reconoce se
+     * reenvían los pendientes y la trama final lleva {@code "reset":true}
+     * para que el cliente recargue el historial.
+     */
+    private void runResume(String userId, String cursor, WebSocketSession session) {
+        try {
+            acks.flush();
+            Instant since = parseCursor(userId, cursor);
+            if (since == null) {
+                int total = chatService.streamPending(userId, pageSize,
+                        page -> sendPage(userId, session, page, m -> true));
+                sendResumeFrame(session, null, total, false, true);
+                return;
+            }
+            Instant[] last = { since };
+            int total = chatService.streamSince(userId, since.minusMillis(resumeSkewMs), resumeMaxMessages,
+                    pageSize, page -> {
+                        sendPage(userId, session, page,
+                                m -> !m.isDelivered() && userId.equals(m.getToUserId()));
+                        Instant created = page.get(page.size() - 1).getCreatedAt();
+                        if (created != null && created.isAfter(last[0])) {
+                            last[0] = created;
+                        }
+                    });
+            sendResumeFrame(session, last[0], total, total >= resumeMaxMessages, false);
+            log.debug("WS: reanudación de {} desde {}: {} mensajes", userId, since, total);
+        } catch (SessionGoneException e) {
+            log.debug("WS: sesión de {} cerrada durante la reanudación", userId);
+        } catch (Exception e) {
+            log.error("Error reanudando sesión de {}: {}", userId, e.toString(), e);
+        }
+    }
+
+    private Instant parseCursor(String userId, String cursor) {
+        try {
+            return Instant.parse(cursor);
+        } catch (DateTimeParseException e) {
+            return chatService.createdAtOf(userId, cursor);
+        }
+    }
+
+    /**
+     * Trama final de la reanudación: nuevo cursor, mensajes enviados y si
+     * quedó delta sin enviar por el tope (el cliente completa por historial).
+     */
+    private void sendResumeFrame(WebSocketSession session, Instant cursor, int count, boolean more,
+            boolean reset) {
+        Map<String, Object> frame = new LinkedHashMap<>();
+        frame.put("type", "resume");
+        frame.put("cursor", cursor != null ? cursor.toString() : null);
+        frame.put("count", count);
+        frame.put("more", more);
+        if (reset) {
+            frame.put("reset", true);
+        }
+        sendFrame(session, frame, null);
+    }
+
+    /**
+     * Recorre los pendientes página a página. Antes escribe las entregas aún
+     * en el buffer, para no reenviar mensajes ya entregados. Si la sesión se
+     * cierra, se detiene sin confirmar la página en curso.
+     */
+    private void run(String userId, WebSocketSession session) {
+        try {
+            acks.flush();
+            int total = chatService.streamPending(userId, pageSize, page -> sendPage(userId, session, page, m -> true));
+            if (total > 0) {
+                log.debug("WS: reenviados {} pendientes a {}", total, userId);
+            }
+        } catch (SessionGoneException e) {
+            log.debug("WS: sesión de {} cerrada durante el reenvío de pendientes", userId);
+        } catch (Exception e) {
+            log.error("Error reenviando pendientes a {}: {}", userId, e.toString(), e);
+        }
+    }
+
+    /**
+     * Envía una página en tramas de hasta {@code messagesPerFrame} mensajes,
+     * con un solo mensaje como objeto (protocolo original) o varios como
+     * arreglo, y confirma los que cumplen {@code confirm} con una sola
+     * actualización, salvo que solo confirmen los clientes. La confirmación
+     * viaja con la última trama: la cola de salida la registra al escribirla,
+     * cuando las anteriores ya salieron.
+     */
+    private void sendPage(String userId, WebSocketSession session, List<Message> page, Predicate<Message> confirm) {
+        List<String> ids = new ArrayList<>(page.size());
+        List<Object> frames = new ArrayList<>();
+        List<ChatMessageData> batch = new ArrayList<>(messagesPerFrame);
+        for (Message m : page) {
+            if (confirm.test(m)) {
+                ids.add(m.getId());
+            }
+            try {
+                batch.add(chatService.toDto(m));
+            } catch (Exception ex) {
+                log.error("Error enviando pendiente {} a {}: {}", m.getId(), userId, ex.toString(), ex);
+            }
+            if (batch.size() == messagesPerFrame) {
+                frames.add(batch.size() == 1 ? batch.get(0) : List.copyOf(batch));
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            frames.add(batch.size() == 1 ? batch.get(0) : List.copyOf(batch));
+        }
+        Runnable onWritten = !acks.isClientConfirmed() && !ids.isEmpty() ? () -> acks.acknowledgeAll(ids) : null;
+        for (int i = 0; i < frames.size(); i++) {
+            sendFrame(session, frames.get(i), i == frames.size() - 1 ? onWritten : null);
+        }
+        if (frames.isEmpty() && onWritten != null) {
+            // Ninguno se pudo convertir: se confirman para no reenviarlos en cada conexión
+            onWritten.run();
+        }
+    }
+
+    /**
+     * Envía una trama en el formato de la sesión, esperando si la cola de
+     * salida está muy llena.
+     *
+     * @param onWritten acción tras escribir la trama en el socket, o null.
+     */
+    private void sendFrame(WebSocketSession session, Object payload, Runnable onWritten) {
+        awaitCapacity(session);
+        try {
+            if (!OutboundSession.send(session, OutboundFrame.encode(json, payload).messageFor(WireFormat.of(session)),
+                    onWritten)) {
+                throw new SessionGoneException();
+            }
+        } catch (IOException e) {
+            throw new SessionGoneException();
+        }
+    }
+
+    /**
+     * Contrapresión: espera a que la cola de salida baje de la mitad de su
+     * ocupación para no desalojar al propio cliente durante el reenvío.
+     */
+    private void awaitCapacity(WebSocketSession session) {
+        if (!(session instanceof OutboundSession out)) {
+            return;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainTimeoutMs);
+        int highWatermark = Math.max(1, out.getCapacity() / 2);
+        while (out.getQueueDepth() >= highWatermark) {
+            if (out.isEvicted() || !out.isOpen() || System.nanoTime() > deadline) {
+                throw new SessionGoneException();
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(5));
+        }
+        if (out.isEvicted() || !out.isOpen()) {
+            throw new SessionGoneException();
+        }
+    }
+
+    /** Detiene el ejecutor al apagar la aplicación. */
+    @PreDestroy
+    void shutdown() {
+        if (executor instanceof ExecutorService es) {
+            es.shutdown();
+        }
+    }
+
+    /** Señal interna para abortar el recorrido cuando la sesión ya no existe. */
+    private static final class SessionGoneException extends RuntimeException {
+        SessionGoneException() {
+            super(null, null, false, false);
+        }
+    }
+}
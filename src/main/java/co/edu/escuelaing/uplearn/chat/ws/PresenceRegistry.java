@@ -0,0 +1,270 @@
+package co.edu.escuelaing.uplearn.chat.ws;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Registro de presencia distribuido: qué nodos tienen sesiones de cada
+ * usuario. Se guarda en Redis como un conjunto ordenado
+ * {@code presence:<userId>} cuyos miembros son IDs de nodo y cuyo puntaje es
+ * el instante de expiración. Cada nodo renueva periódicamente las entradas de
+ * sus usuarios conectados; si un nodo cae, sus entradas vencen solas tras
+ * {@code chat.presence.ttl-seconds}.
+ * <p>
+ * Sin Redis (o con {@code chat.presence.enabled=false}) el registro queda
+ * inactivo y solo se conoce la presencia local.
+ */
+@Slf4j
+@Component
+public class PresenceRegistry {
+
+    static final String KEY_PREFIX = "presence:";
+
+    private final NodeIdentity node;
+    private final StringRedisTemplate redis;
+    private final long ttlMillis;
+    private final LongSupplier clock;
+    private final ScheduledExecutorService scheduler;
+    private final Set<String> localUsers = ConcurrentHashMap.newKeySet();
+
+    @Autowired
+    public PresenceRegistry(NodeIdentity node,
+            @Autowired(required = false) StringRedisTemplate redis,
+            @Value("${chat.presence.enabled:true}") boolean enabled,
+            @Value("${chat.presence.ttl-seconds:30}") long ttlSeconds) {
+        this(node, enabled ? redis : null, TimeUnit.SECONDS.toMillis(ttlSeconds), System::currentTimeMillis,
+                enabled && redis != null ? newScheduler() : null);
+    }
+
+    PresenceRegistry(NodeIdentity node, StringRedisTemplate redis, long ttlMillis, LongSupplier clock,
+            ScheduledExecutorService scheduler) {
+        this.node = node;
+        this.redis = redis;
+        this.ttlMillis = ttlMillis;
+        this.clock = clock;
+        this.scheduler = scheduler;
+        if (scheduler != null) {
+            long period = Math.max(1, ttlMillis / 3);
+            scheduler.scheduleWithFixedDelay(this::heartbeatQuietly, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static ScheduledExecutorService newScheduler() {
+        return Executors.newSingleThreadScheduledExecutor(OutboundSessionFactory.named("presence-"));
+    }
+
+    /**
+     * Indica si el registro distribuido está activo.
+     *
+     * @return true si hay Redis y la presencia está habilitada.
+     */
+    public boolean isEnabled() {
+        return redis != null;
+    }
+
+    /**
+     * Registra que el usuario tiene sesiones en este nodo.
+     *
+     * @param userId el usuario conectado.
+     */
+    public void userConnected(String userId) {
+        if (!isEnabled()) {
+            return;
+        }
+        localUsers.add(userId);
+        long expiresAt = clock.getAsLong() + ttlMillis;
+        byte[] key = key(userId);
+        byte[] member = nodeBytes();
+        try {
+            redis.executePipelined((RedisCallback<Object>) c -> {
+                c.zSetCommands().zAdd(key, expiresAt, member);
+                c.keyCommands().pExpire(key, ttlMillis);
+                return null;
+            });
+        } catch (Exception e) {
+            // El siguiente latido vuelve a registrar al usuario
+            log.warn("Presencia: no se pudo registrar a {}: {}", userId, e.toString());
+        }
+    }
+
+    /**
+     * Retira la presencia del usuario en este nodo.
+     *
+     * @param userId el usuario sin sesiones locales.
+     */
+    public void userDisconnected(String userId) {
+        if (!isEnabled() || !localUsers.remove(userId)) {
+            return;
+        }
+        byte[] key = key(userId);
+        byte[] member = nodeBytes();
+        try {
+            redis.execute((RedisCallback<Long>) c -> c.zSetCommands().zRem(key, member));
+        } catch (Exception e) {
+            // La entrada vence sola tras el TTL
+            log.warn("Presencia: no se pudo retirar a {}: {}", userId, e.toString());
+        }
+    }
+
+    /**
+     * Nodos donde el usuario tiene sesiones vigentes, incluido este.
+     *
+     * @param userId el usuario.
+     * @return IDs de nodo; vacío si no está conectado o el registro está inactivo.
+     */
+    public Set<String> nodesOf(String userId) {
+        if (!isEnabled() || userId == null) {
+            return Collections.emptySet();
+        }
+        Set<String> nodes = redis.opsForZSet().rangeByScore(KEY_PREFIX + userId, clock.getAsLong(),
+                Double.POSITIVE_INFINITY);
+        return nodes != null ? nodes : Collections.emptySet();
+    }
+
+    /**
+     * Nodos donde tiene sesiones alguno de los usuarios, en una sola ida y
+     * vuelta a Redis.
+     *
+     * @param userIds los usuarios a consultar.
+     * @return la unión de IDs de nodo.
+     */
+    public Set<String> nodesOfAny(Collection<String> userIds) {
+        if (!isEnabled() || userIds.isEmpty()) {
+            return Collections.emptySet();
+        }
+        long now = clock.getAsLong();
+        List<String> keys = new ArrayList<>(userIds.size());
+        for (String userId : new LinkedHashSet<>(userIds)) {
+            if (userId != null) {
+                keys.add(KEY_PREFIX + userId);
+            }
+        }
+        List<Object> results = redis.executePipelined((RedisCallback<Object>) c -> {
+            for (String k : keys) {
+                c.zSetCommands().zRangeByScore(k.getBytes(StandardCharsets.UTF_8), now, Double.POSITIVE_INFINITY);
+            }
+            return null;
+        });
+        Set<String> nodes = new HashSet<>();
+        for (Object r : results) {
+            if (r instanceof Collection<?> members) {
+                for (Object m : members) {
+                    nodes.add(String.valueOf(m));
+                }
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * Indica si el usuario está conectado en otro nodo del clúster. Ante un
+     * fallo de Redis responde false: el mensaje queda pendiente y se reenvía
+     * al reconectar, como sin registro de presencia.
+     *
+     * @param userId el usuario.
+     * @return true si algún otro nodo tiene presencia vigente.
+     */
+    public boolean isOnlineElsewhere(String userId) {
+        try {
+            for (String n : nodesOf(userId)) {
+                if (!n.equals(node.id())) {
+                    return true;
+                }
+            }
+        } catch (Exception e) {
+            log.warn("Presencia: no se pudo consultar a {}: {}", userId, e.toString());
+        }
+        return false;
+    }
+
+    /**
+     * Renueva las entradas de todos los usuarios conectados a este nodo y
+     * purga las vencidas.
+     */
+    void heartbeat() {
+        if (!isEnabled() || localUsers.isEmpty()) {
+            return;
+        }
+        long now = clock.getAsLong();
+        long expiresAt = now + ttlMillis;
+        byte[] member = nodeBytes();
+        List<String> users = new ArrayList<>(localUsers);
+        redis.executePipelined((RedisCallback<Object>) c -> {
+            for (String userId : users) {
+                byte[] key = key(userId);
+                c.zSetCommands().zAdd(key, expiresAt, member);
+                c.zSetCommands().zRemRangeByScore(key, Double.NEGATIVE_INFINITY, now);
+                c.keyCommands().pExpire(key, ttlMillis);
+            }
+            return null;
+        });
+    }
+
+    private void heartbeatQuietly() {
+        try {
+            heartbeat();
+        } catch (Exception e) {
+            log.warn("Presencia: no se pudo renovar el latido: {}", e.toString());
+        }
+    }
+
+    /**
+     * Número de usuarios con presencia registrada desde este nodo.
+     *
+     * @return la cantidad de usuarios locales.
+     */
+    int localUserCount() {
+        return localUsers.size();
+    }
+
+    private static byte[] key(String userId) {
+        return (KEY_PREFIX + userId).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] nodeBytes() {
+        return node.id().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Retira la presencia de este nodo y detiene el latido al apagar. */
+    @PreDestroy
+    void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+        if (!isEnabled() || localUsers.isEmpty()) {
+            return;
+        }
+        byte[] member = nodeBytes();
+        List<String> users = new ArrayList<>(localUsers);
+        try {
+            redis.executePipelined((RedisCallback<Object>) c -> {
+                for (String userId : users) {
+                    c.zSetCommands().zRem(key(userId), member);
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            log.warn("Presencia: no se pudo limpiar al apagar: {}", e.toString());
+        }
+        localUsers.clear();
+    }
+}
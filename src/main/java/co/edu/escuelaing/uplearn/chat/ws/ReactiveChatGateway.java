@@ -0,0 +1,846 @@
+package co.edu.escuelaing.uplearn.chat.ws;
+
+import co.edu.escuelaing.uplearn.chat.domain.Message;
+import co.edu.escuelaing.uplearn.chat.dto.BatchAck;
+import co.edu.escuelaing.uplearn.chat.dto.ChatMessageData;
+import co.edu.escuelaing.uplearn.chat.dto.ReadReceipt;
+import co.edu.escuelaing.uplearn.chat.dto.SendBatchRequest;
+import co.edu.escuelaing.uplearn.chat.dto.SendMessageRequest;
+import co.edu.escuelaing.uplearn.chat.service.ChatPermissionCache;
+import co.edu.escuelaing.uplearn.chat.service.ChatService;
+import co.edu.escuelaing.uplearn.chat.service.DeliveryAckBuffer;
+import co.edu.escuelaing.uplearn.chat.service.ReactiveChatStore;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.socket.CloseStatus;
+import org.springframework.web.reactive.socket.WebSocketHandler;
+import org.springframework.web.reactive.socket.WebSocketMessage;
+import org.springframework.web.reactive.socket.WebSocketSession;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.concurrent.Queues;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import static co.edu.escuelaing.uplearn.chat.ws.InboundFrames.isType;
+import static co.edu.escuelaing.uplearn.chat.ws.InboundFrames.isRoomMessage;
+import static co.edu.escuelaing.uplearn.chat.ws.InboundFrames.isValid;
+import static co.edu.escuelaing.uplearn.chat.ws.InboundFrames.isValidRoomMessage;
+import static co.edu.escuelaing.uplearn.chat.ws.InboundFrames.readBinary;
+import static co.edu.escuelaing.uplearn.chat.ws.InboundFrames.readText;
+import static co.edu.escuelaing.uplearn.chat.ws.InboundFrames.textValues;
+
+/**
+ * Gateway WebSocket del modo reactivo ({@code spring.profiles.active=reactive}),
+ * sobre WebFlux y Reactor Netty. Habla exactamente el mismo protocolo que
+ * {@link ChatWebSocketGateway}: mismas tramas de entrada y salida, mismos
+ * subprotocolos, mismos códigos de cierre y la misma reanudación por cursor.
+ * <p>
+ * Cada conexión es un flujo: la entrada se decodifica en el hilo del socket y
+ * se procesa en orden con {@code concatMap}; la salida es una cola acotada
+ * ({@code ws.outbound.max-messages}) fusionada con la reanudación y el
+ * latido, cuya contrapresión la da el propio transporte. Mongo, Redis y el
+ * servicio de reservas se usan con sus clientes no bloqueantes; lo que sigue
+ * siendo bloqueante (buffer de confirmaciones, presencia y el límite de envío
+ * en modo clúster) se ejecuta en {@code boundedElastic}, fuera de los hilos
+ * de E/S.
+ */
+@Slf4j
+@Component
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveChatGateway implements WebSocketHandler, ChatGateway {
+
+    private static final String ATTR_USER_ID = TokenHandshakeInterceptor.ATTR_USER_ID;
+    private static final String ATTR_BEARER = TokenHandshakeInterceptor.ATTR_BEARER;
+    private static final String TYPE_BATCH = InboundFrames.TYPE_BATCH;
+    private static final String TYPE_ACK = InboundFrames.TYPE_ACK;
+    private static final String TYPE_READ = InboundFrames.TYPE_READ;
+    private static final String TYPE_TYPING = InboundFrames.TYPE_TYPING;
+    private static final int MAX_TYPING_FRAME_BYTES = InboundFrames.MAX_TYPING_FRAME_BYTES;
+    /** El reactivo no trae {@code SESSION_NOT_RELIABLE}: mismo código 4500 que el gateway servlet. */
+    private static final int SESSION_NOT_RELIABLE = 4500;
+    static final CloseStatus IDLE = new CloseStatus(SESSION_NOT_RELIABLE, "Sin actividad");
+    static final CloseStatus SLOW_CONSUMER = new CloseStatus(SESSION_NOT_RELIABLE, "Cliente lento");
+    static final String RETRY_AFTER_REASON = ChatWebSocketGateway.RETRY_AFTER_REASON;
+
+    private final ChatService chatService;
+    private final ReactiveChatStore store;
+    private final ChatPermissionCache permissions;
+    private final DeliveryAckBuffer acks;
+    private final ClusterRelay relay;
+    private final TypingThrottle typing;
+    private final SendRateLimiter limiter;
+    private final SessionAdmission admission;
+    private final SessionRegistry<Connection> connections;
+    private final RoomFanOut rooms;
+    private final Counter evicted;
+    private final Scheduler blocking = Schedulers.boundedElastic();
+    private final ObjectMapper json = new ObjectMapper();
+
+    @Value("${ws.batch.max-messages:100}")
+    private int maxBatchMessages = 100;
+
+    @Value("${ws.outbound.max-messages:256}")
+    private int maxQueuedMessages = 256;
+
+    @Value("${ws.heartbeat.interval-ms:25000}")
+    private long pingIntervalMs = 25_000;
+
+    @Value("${ws.heartbeat.idle-timeout-ms:60000}")
+    private long idleTimeoutMs = 60_000;
+
+    @Value("${ws.replay.page-size:200}")
+    private int pageSize = 200;
+
+    @Value("${ws.replay.messages-per-frame:1}")
+    private int messagesPerFrame = 1;
+
+    @Value("${ws.resume.max-messages:1000}")
+    private int resumeMaxMessages = 1000;
+
+    @Value("${ws.resume.skew-ms:2000}")
+    private long resumeSkewMs = 2000;
+
+    @Autowired
+    public ReactiveChatGateway(MeterRegistry registry, ChatService chatService, ReactiveChatStore store,
+            ChatPermissionCache permissions, DeliveryAckBuffer acks, ClusterRelay relay, TypingThrottle typing,
+            SendRateLimiter limiter, SessionAdmission admission, RoomFanOut rooms,
+            @Value("${ws.registry.shards:16}") int registryShards) {
+        this.chatService = chatService;
+        this.store = store;
+        this.permissions = permissions;
+        this.acks = acks;
+        this.relay = relay;
+        this.typing = typing;
+        this.limiter = limiter;
+        this.admission = admission;
+        this.rooms = rooms;
+        this.connections = new SessionRegistry<>(registryShards);
+        this.evicted = registry.counter("chat.ws.outbound.evicted", "reason", "buffer");
+        Gauge.builder("chat.ws.sessions", connections, SessionRegistry::size)
+                .description("Conexiones WebSocket registradas en este nodo")
+                .register(registry);
+    }
+
+    /**
+     * Una conexión registrada: la sesión, su usuario y su cola de salida.
+     * Los envíos se serializan con el monitor de la conexión, porque la cola
+     * admite un solo productor a la vez.
+     */
+    static final class Connection {
+        final WebSocketSession session;
+        final String userId;
+        final String bearer;
+        final WireFormat format;
+        private final Sinks.Many<WebSocketMessage> out;
+        private final AtomicBoolean admitted = new AtomicBoolean(true);
+
+        Connection(WebSocketSession session, String userId, String bearer, WireFormat format, int capacity) {
+            this.session = session;
+            this.userId = userId;
+            this.bearer = bearer;
+            this.format = format;
+            this.out = Sinks.many().unicast().onBackpressureBuffer(Queues.<WebSocketMessage>get(capacity).get());
+        }
+
+        /**
+         * Mensaje de la trama en el formato de la conexión. Envuelve los bytes
+         * compartidos de la trama sin copiarlos.
+         */
+        WebSocketMessage message(OutboundFrame frame) {
+            if (format == WireFormat.CBOR) {
+                ByteBuffer cbor = frame.binary().getPayload().duplicate();
+                return new WebSocketMessage(WebSocketMessage.Type.BINARY, session.bufferFactory().wrap(cbor));
+            }
+            return new WebSocketMessage(WebSocketMessage.Type.TEXT, session.bufferFactory().wrap(frame.bytes()));
+        }
+
+        synchronized Sinks.EmitResult emit(OutboundFrame frame) {
+            return out.tryEmitNext(message(frame));
+        }
+
+        synchronized void complete() {
+            out.tryEmitComplete();
+        }
+
+        Flux<WebSocketMessage> outbound() {
+            return out.asFlux();
+        }
+    }
+
+    /**
+     * Subprotocolos aceptados en el handshake.
+     *
+     * @return los subprotocolos de {@link WireFormat}.
+     */
+    @Override
+    public List<String> getSubProtocols() {
+        return WireFormat.subProtocols();
+    }
+
+    /**
+     * Inicializa la recepción de mensajes publicados por otros nodos.
+     */
+    @PostConstruct
+    public void initRelay() {
+        relay.start(this::onRelay);
+        rooms.start(this::deliverTo);
+    }
+
+    /**
+     * Atiende una conexión de principio a fin. El token ya se validó en el
+     * handshake; aquí pasa por la admisión, se registra, envía pendientes o
+     * el delta desde el cursor {@code resume} y procesa las tramas hasta que
+     * el cliente cierra, deja de responder o se queda atrás en la salida.
+     *
+     * @param session la sesión WebSocket del cliente.
+     * @return completa cuando la conexión termina.
+     */
+    @Override
+    public Mono<Void> handle(WebSocketSession session) {
+        long retryAfterMs = admission.checkRate();
+        if (retryAfterMs > 0) {
+            return rejectOverloaded(session, retryAfterMs);
+        }
+        Map<String, Object> attributes = session.getAttributes();
+        String userId = SessionRegistry.intern((String) attributes.get(ATTR_USER_ID));
+        if (userId == null) {
+            return session.close(CloseStatus.NOT_ACCEPTABLE.withReason("No autenticado"));
+        }
+        retryAfterMs = admission.tryAdmit(connections.count(userId));
+        if (retryAfterMs > 0) {
+            return rejectOverloaded(session, retryAfterMs);
+        }
+
+        WireFormat format = WireFormat.fromSubProtocol(session.getHandshakeInfo().getSubProtocol());
+        Connection conn = new Connection(session, userId, (String) attributes.get(ATTR_BEARER), format,
+                maxQueuedMessages);
+        int count = connections.add(userId, conn);
+        offload("presencia", () -> relay.userConnected(userId, () -> connections.has(userId)));
+        offload("salas", () -> rooms.userConnected(userId, () -> connections.has(userId)));
+        log.info("WS conectado userId={} sessions={}", userId, count);
+
+        Flux<WebSocketMessage> replay = resume(conn, (String) attributes.remove(TokenHandshakeInterceptor.ATTR_RESUME))
+                .map(conn::message);
+        Flux<WebSocketMessage> pings = Flux.interval(Duration.ofMillis(pingIntervalMs))
+                .map(i -> session.pingMessage(factory -> factory.wrap(new byte[0])));
+        Mono<Void> output = session.send(Flux.merge(replay, conn.outbound(), pings));
+
+        Mono<Void> input = session.receive()
+                .timeout(Duration.ofMillis(idleTimeoutMs))
+                .<JsonNode>handle((message, sink) -> {
+                    JsonNode root = decode(conn, message);
+                    if (root != null) {
+                        sink.next(root);
+                    }
+                })
+                .concatMap(root -> processFrame(conn, root)
+                        .onErrorResume(e -> {
+                            log.error("WS: error procesando trama de {}: {}", userId, e.toString(), e);
+                            return Mono.empty();
+                        }))
+                .then()
+                .onErrorResume(TimeoutException.class, e -> session.close(IDLE));
+
+        return Mono.firstWithSignal(input, output)
+                .doFinally(signal -> unregister(conn));
+    }
+
+    /**
+     * Cierra una conexión no admitida con {@code 1013} (servicio saturado);
+     * el motivo lleva los ms sugeridos antes de reintentar.
+     */
+    private static Mono<Void> rejectOverloaded(WebSocketSession session, long retryAfterMs) {
+        session.getAttributes().remove(ATTR_USER_ID);
+        log.debug("WS: conexión {} rechazada por admisión, reintentar en {} ms", session.getId(), retryAfterMs);
+        return session.close(CloseStatus.SERVICE_OVERLOAD.withReason(RETRY_AFTER_REASON + retryAfterMs));
+    }
+
+    /**
+     * Retira la conexión del registro y, si era la última del usuario, de la
+     * presencia, y libera su lugar en la admisión. Es idempotente.
+     */
+    private void unregister(Connection conn) {
+        if (!conn.admitted.compareAndSet(true, false)) {
+            return;
+        }
+        admission.release();
+        connections.remove(conn.userId, conn);
+        conn.complete();
+        offload("presencia", () -> relay.userDisconnected(conn.userId, () -> connections.has(conn.userId)));
+        offload("salas", () -> rooms.userDisconnected(conn.userId, () -> connections.has(conn.userId)));
+    }
+
+    /**
+     * Decodifica una trama en el hilo del socket, mientras su buffer sigue
+     * vigente. Los indicadores de escritura se atienden aquí mismo y no
+     * ocupan el turno de los mensajes.
+     *
+     * @return la trama decodificada, o null si no hay nada más que hacer.
+     */
+    private JsonNode decode(Connection conn, WebSocketMessage message) {
+        DataBuffer payload = message.getPayload();
+        int size = payload.readableByteCount();
+        JsonNode root;
+        switch (message.getType()) {
+            case TEXT -> root = readText(payload.toString(StandardCharsets.UTF_8));
+            case BINARY -> {
+                byte[] bytes = new byte[size];
+                payload.read(bytes);
+                root = readBinary(ByteBuffer.wrap(bytes));
+            }
+            default -> {
+                return null;
+            }
+        }
+        if (root != null && size <= MAX_TYPING_FRAME_BYTES && handleTyping(conn, root)) {
+            return null;
+        }
+        return root;
+    }
+
+    /**
+     * Atiende un indicador de escritura
+     * {@code {"type":"typing","toUserId":...,"state":"start"|"stop"}} como el
+     * gateway servlet: sin persistirlo y solo hacia el receptor. Si la
+     * autorización no está en caché se consulta sin bloquear.
+     *
+     * @return true si la trama era un indicador de escritura.
+     */
+    private boolean handleTyping(Connection conn, JsonNode root) {
+        if (!isType(root, TYPE_TYPING)) {
+            return false;
+        }
+        String to = root.path("toUserId").asText(null);
+        if (to == null || to.isBlank() || to.equals(conn.userId)) {
+            return true;
+        }
+        boolean stop = "stop".equalsIgnoreCase(root.path("state").asText());
+        Boolean allowed = permissions.cachedDecision(conn.userId, to);
+        Mono<Boolean> decision = allowed != null
+                ? Mono.just(allowed)
+                : permissions.canChatAsync(conn.userId, conn.bearer, to);
+        decision.filter(Boolean::booleanValue)
+                .flatMap(ok -> forwardTyping(conn.userId, to, stop))
+                .subscribe(null, e -> log.debug("WS: no se reenvió typing de {}: {}", conn.userId, e.toString()));
+        return true;
+    }
+
+    private Mono<Void> forwardTyping(String userId, String to, boolean stop) {
+        if (!typing.shouldForward(userId, to, stop)) {
+            return Mono.empty();
+        }
+        String chatId = chatService.chatIdOf(userId, to);
+        Map<String, String> event = new LinkedHashMap<>();
+        event.put("type", TYPE_TYPING);
+        event.put("chatId", chatId);
+        event.put("fromUserId", userId);
+        event.put("state", stop ? "stop" : "start");
+        OutboundFrame frame = encode(event);
+        deliverTo(to, frame);
+        return relay.publishToRecipientAsync(chatId, userId, to, frame);
+    }
+
+    /**
+     * Procesa una trama ya decodificada, independiente del formato, con las
+     * mismas reglas que {@link ChatWebSocketGateway}.
+     *
+     * @param conn la conexión emisora.
+     * @param root el contenido de la trama.
+     * @return completa al terminar de procesarla.
+     */
+    Mono<Void> processFrame(Connection conn, JsonNode root) {
+        if (isType(root, TYPE_ACK)) {
+            return offload(() -> acks.confirm(conn.userId, textValues(root.get("ids"))));
+        }
+        if (isType(root, TYPE_READ)) {
+            return processRead(conn.userId, root);
+        }
+        if (isType(root, TYPE_BATCH)) {
+            return Mono.fromCallable(() -> json.treeToValue(root, SendBatchRequest.class))
+                    .flatMap(batch -> processBatch(conn, batch));
+        }
+        return Mono.fromCallable(() -> json.treeToValue(root, SendMessageRequest.class))
+                .flatMap(req -> {
+                    if (isRoomMessage(req)) {
+                        return processRoomMessage(conn, req);
+                    }
+                    if (!isValid(req)) {
+                        log.warn("WS: payload inválido, faltan campos requeridos: {}", root);
+                        return Mono.empty();
+                    }
+                    return isRateLimited(conn, 1, "clientId", req.getClientId())
+                            .filter(limited -> !limited)
+                            .flatMap(ok -> isAuthorizedToChat(conn, req.getToUserId()))
+                            .filter(Boolean::booleanValue)
+                            .flatMap(ok -> store.saveMessage(chatService.chatIdOf(conn.userId, req.getToUserId()),
+                                    conn.userId, req.getToUserId(), req.getContent()))
+                            .flatMap(this::fanOut);
+                });
+    }
+
+    /**
+     * Procesa un mensaje de sala como el gateway servlet; el guardado y la
+     * publicación corren en {@code boundedElastic}.
+     */
+    private Mono<Void> processRoomMessage(Connection conn, SendMessageRequest req) {
+        if (!isValidRoomMessage(req)) {
+            log.warn("WS: mensaje de sala inválido de {}", conn.userId);
+            return Mono.empty();
+        }
+        return isRateLimited(conn, 1, "clientId", req.getClientId())
+                .filter(limited -> !limited)
+                .flatMap(ok -> Mono.fromCallable(() -> rooms.send(req.getRoomId(), conn.userId, req.getContent()))
+                        .subscribeOn(blocking)
+                        .hasElement())
+                .filter(sent -> !sent)
+                .doOnNext(sent -> {
+                    log.warn("Bloqueado mensaje de {} a la sala {} sin ser miembro", conn.userId, req.getRoomId());
+                    reply(conn, Map.of("error", "No eres miembro de la sala"));
+                })
+                .then();
+    }
+
+    /**
+     * Entrega un mensaje ya persistido a las conexiones locales, lo marca
+     * como entregado si el receptor está conectado en algún nodo (salvo que
+     * solo confirmen los clientes) y lo publica para el resto del clúster.
+     */
+    private Mono<Void> fanOut(Message saved) {
+        OutboundFrame frame = encode(chatService.toDto(saved));
+        String to = saved.getToUserId();
+        boolean deliveredHere = deliverLocally(saved.getFromUserId(), to, frame);
+
+        Mono<Void> ack = Mono.empty();
+        if (!acks.isClientConfirmed()) {
+            Mono<Boolean> online = deliveredHere ? Mono.just(true) : relay.isOnlineElsewhereAsync(to);
+            ack = online.filter(Boolean::booleanValue)
+                    .flatMap(yes -> {
+                        saved.setDelivered(true);
+                        return offload(() -> acks.acknowledge(saved.getId()));
+                    })
+                    .onErrorResume(e -> Mono.empty());
+        }
+        return ack.then(relay.publishAsync(saved, frame));
+    }
+
+    /**
+     * Procesa una trama {@code {"type":"read","withUserId":...,"upTo":...}},
+     * o {@code {"type":"read","roomId":...}} para una sala. Sin {@code upTo}
+     * se marca como leído hasta el momento actual.
+     */
+    private Mono<Void> processRead(String userId, JsonNode root) {
+        String with = root.path("withUserId").asText(null);
+        String roomId = root.path("roomId").asText(null);
+        boolean room = roomId != null && !roomId.isBlank();
+        if (!room && (with == null || with.isBlank())) {
+            log.debug("WS: trama read sin withUserId ni roomId de {}", userId);
+            return Mono.empty();
+        }
+        Instant upTo = null;
+        if (root.hasNonNull("upTo")) {
+            try {
+                upTo = Instant.parse(root.get("upTo").asText());
+            } catch (DateTimeParseException e) {
+                log.debug("WS: upTo inválido de {}: {}", userId, root.get("upTo"));
+                return Mono.empty();
+            }
+        }
+        if (room) {
+            Instant mark = upTo;
+            return Mono.fromCallable(() -> rooms.markRead(roomId, userId, mark)).subscribeOn(blocking).then();
+        }
+        return markReadAsync(userId, with, upTo).then();
+    }
+
+    /**
+     * Avanza la marca de lectura y avisa a ambos participantes, como
+     * {@link ChatWebSocketGateway#markRead}.
+     *
+     * @param readerId    el usuario que leyó.
+     * @param otherUserId el otro participante del chat.
+     * @param upTo        leído hasta este instante inclusive; null o futuro
+     *                    equivale a ahora.
+     * @return true si la marca avanzó.
+     */
+    @Override
+    public Mono<Boolean> markReadAsync(String readerId, String otherUserId, Instant upTo) {
+        String chatId = chatService.chatIdOf(readerId, otherUserId);
+        Instant now = Instant.now();
+        Instant mark = upTo == null || upTo.isAfter(now) ? now : upTo;
+        return store.advanceReadMark(chatId, readerId, mark)
+                .flatMap(advanced -> {
+                    if (!advanced) {
+                        return Mono.just(false);
+                    }
+                    ReadReceipt receipt = ReadReceipt.builder()
+                            .chatId(chatId)
+                            .userId(readerId)
+                            .upTo(mark.toString())
+                            .build();
+                    OutboundFrame frame = encode(receipt);
+                    deliverLocally(readerId, otherUserId, frame);
+                    return relay.publishAsync(chatId, null, readerId, otherUserId, frame).thenReturn(true);
+                });
+    }
+
+    /**
+     * Versión bloqueante para los controladores REST, que en este modo corren
+     * en el ejecutor de bloqueo de WebFlux y nunca en un hilo de E/S.
+     */
+    @Override
+    public boolean markRead(String readerId, String otherUserId, Instant upTo) throws IOException {
+        try {
+            return Boolean.TRUE.equals(markReadAsync(readerId, otherUserId, upTo).block());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Procesa un lote de envíos: autoriza una sola vez por contraparte (las
+     * consultas a distintas contrapartes van en paralelo), persiste los
+     * aceptados con una única inserción y responde con la confirmación.
+     */
+    private Mono<Void> processBatch(Connection conn, SendBatchRequest batch) {
+        List<SendMessageRequest> items = batch.getMessages() != null ? batch.getMessages() : List.of();
+        if (items.isEmpty() || items.size() > maxBatchMessages) {
+            log.warn("WS: lote inválido de {} con {} mensajes", conn.userId, items.size());
+            Map<String, Object> error = new LinkedHashMap<>();
+            error.put("error", "Lote vacío o con más de " + maxBatchMessages + " mensajes");
+            error.put("batchId", batch.getBatchId());
+            reply(conn, error);
+            return Mono.empty();
+        }
+        return isRateLimited(conn, items.size(), "batchId", batch.getBatchId())
+                .filter(limited -> !limited)
+                .flatMap(ok -> authorizeAll(conn, items))
+                .flatMap(allowed -> {
+                    BatchAck.Item[] results = new BatchAck.Item[items.size()];
+                    List<SendMessageRequest> accepted = new ArrayList<>(items.size());
+                    List<Integer> acceptedIndexes = new ArrayList<>(items.size());
+                    for (int i = 0; i < items.size(); i++) {
+                        SendMessageRequest req = items.get(i);
+                        if (!isValid(req)) {
+                            results[i] = batchItem(i, req, null, "invalid");
+                        } else if (!allowed.getOrDefault(req.getToUserId(), false)) {
+                            results[i] = batchItem(i, req, null, "forbidden");
+                        } else {
+                            accepted.add(req);
+                            acceptedIndexes.add(i);
+                        }
+                    }
+                    return store.saveMessages(conn.userId, accepted).flatMap(saved -> {
+                        for (int j = 0; j < saved.size(); j++) {
+                            int index = acceptedIndexes.get(j);
+                            results[index] = batchItem(index, items.get(index), saved.get(j).getId(), null);
+                        }
+                        reply(conn, BatchAck.builder()
+                                .batchId(batch.getBatchId())
+                                .results(Arrays.asList(results))
+                                .build());
+                        return Flux.fromIterable(saved).concatMap(this::fanOut).then();
+                    });
+                });
+    }
+
+    private Mono<Map<String, Boolean>> authorizeAll(Connection conn, List<SendMessageRequest> items) {
+        return Flux.fromIterable(items)
+                .filter(InboundFrames::isValid)
+                .map(SendMessageRequest::getToUserId)
+                .distinct()
+                .flatMap(to -> permissions.canChatAsync(conn.userId, conn.bearer, to).map(ok -> Map.entry(to, ok)))
+                .collectMap(Map.Entry::getKey, Map.Entry::getValue);
+    }
+
+    private static BatchAck.Item batchItem(int index, SendMessageRequest req, String id, String error) {
+        return BatchAck.Item.builder()
+                .index(index)
+                .clientId(req != null ? req.getClientId() : null)
+                .id(id)
+                .error(error)
+                .build();
+    }
+
+    /**
+     * Consume fichas del límite de envío del usuario; si no alcanzan,
+     * responde el mismo error {@code rate_limited} que el gateway servlet.
+     * En modo clúster el límite consulta Redis y se ejecuta fuera del hilo
+     * de E/S.
+     *
+     * @return true si se rechazó el envío.
+     */
+    private Mono<Boolean> isRateLimited(Connection conn, int count, String idField, String id) {
+        Mono<Long> acquire = Mono.fromCallable(() -> limiter.acquire(conn.userId, count));
+        if (limiter.mode() == SendRateLimiter.Mode.CLUSTER) {
+            acquire = acquire.subscribeOn(blocking);
+        }
+        return acquire.map(retryAfterMs -> {
+            if (retryAfterMs == 0) {
+                return false;
+            }
+            log.debug("WS: límite de envío excedido por {} ({} mensajes)", conn.userId, count);
+            Map<String, Object> error = new LinkedHashMap<>();
+            error.put("error", "Demasiados mensajes, intenta más tarde");
+            error.put("code", "rate_limited");
+            error.put("retryAfterMs", retryAfterMs);
+            if (id != null) {
+                error.put(idField, id);
+            }
+            reply(conn, error);
+            return true;
+        });
+    }
+
+    /**
+     * Verifica con la caché de decisiones si el usuario puede chatear con el
+     * destinatario; si no, responde el error al emisor.
+     */
+    private Mono<Boolean> isAuthorizedToChat(Connection conn, String toUserId) {
+        return permissions.canChatAsync(conn.userId, conn.bearer, toUserId).map(allowed -> {
+            if (!allowed) {
+                log.warn("Bloqueado intento de chat entre {} y {} sin reservas válidas", conn.userId, toUserId);
+                reply(conn, Map.of("error", "No autorizado para chatear"));
+            }
+            return allowed;
+        });
+    }
+
+    /**
+     * Entrega un mensaje publicado por otro nodo a las conexiones locales,
+     * con las mismas reglas que el gateway servlet.
+     */
+    private void onRelay(String channelUser, RelayEnvelope envelope) {
+        if (envelope.roomId() != null) {
+            rooms.onRelay(channelUser, envelope);
+            return;
+        }
+        String to = envelope.toUserId();
+        int toRecipient;
+        if (channelUser == null) {
+            toRecipient = deliverTo(to, envelope.frame());
+            deliverTo(envelope.fromUserId(), envelope.frame());
+        } else {
+            int sent = deliverTo(channelUser, envelope.frame());
+            toRecipient = channelUser.equals(to) ? sent : 0;
+        }
+        if (toRecipient > 0 && envelope.messageId() != null && !acks.isClientConfirmed()) {
+            offload("confirmación", () -> acks.acknowledge(envelope.messageId()));
+        }
+    }
+
+    /**
+     * Entrega una trama a ambos usuarios localmente.
+     *
+     * @return true si alguna conexión del destinatario aceptó la trama.
+     */
+    private boolean deliverLocally(String fromUserId, String toUserId, OutboundFrame frame) {
+        boolean recipientOnline = deliverTo(toUserId, frame) > 0;
+        deliverTo(fromUserId, frame);
+        return recipientOnline;
+    }
+
+    /**
+     * Encola una trama en todas las conexiones locales de un usuario. No
+     * bloquea: si la cola de una conexión está llena, esa conexión se cierra
+     * como cliente lento y el cliente se pone al día al reconectar.
+     *
+     * @return número de conexiones que aceptaron la trama.
+     */
+    private int deliverTo(String userId, OutboundFrame frame) {
+        return connections.forEach(userId, c -> send(c, frame));
+    }
+
+    private boolean send(Connection conn, OutboundFrame frame) {
+        Sinks.EmitResult result = conn.emit(frame);
+        if (result == Sinks.EmitResult.FAIL_OVERFLOW) {
+            evicted.increment();
+            log.debug("WS: cola de salida llena para {}, cerrando sesión {}", conn.userId, conn.session.getId());
+            conn.session.close(SLOW_CONSUMER).subscribe(null, e -> log.debug("WS: error cerrando sesión {}: {}",
+                    conn.session.getId(), e.toString()));
+        }
+        return result.isSuccess();
+    }
+
+    private void reply(Connection conn, Object payload) {
+        send(conn, encode(payload));
+    }
+
+    private OutboundFrame encode(Object payload) {
+        try {
+            return OutboundFrame.encode(json, payload);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Programa los pendientes o, con cursor, el delta desde él, como
+     * {@link PendingReplay}. Las tramas salen por el flujo de la conexión a
+     * medida que el socket las acepta, así la reanudación no llena la cola de
+     * salida. Antes escribe las entregas aún en el buffer.
+     *
+     * @param conn   la conexión.
+     * @param cursor el cursor enviado por el cliente, o null.
+     * @return las tramas a enviar.
+     */
+    Flux<OutboundFrame> resume(Connection conn, String cursor) {
+        String userId = conn.userId;
+        AtomicInteger total = new AtomicInteger();
+        Flux<OutboundFrame> frames;
+        if (cursor == null || cursor.isBlank()) {
+            frames = pages(userId, store.pending(userId, pageSize), m -> true, page -> total.addAndGet(page.size()))
+                    .doOnComplete(() -> {
+                        if (total.get() > 0) {
+                            log.debug("WS: reenviados {} pendientes a {}", total.get(), userId);
+                        }
+                    });
+        } else {
+            frames = parseCursor(userId, cursor.trim())
+                    .map(Optional::of)
+                    .defaultIfEmpty(Optional.empty())
+                    .flatMapMany(since -> since.isPresent()
+                            ? resumeSince(userId, since.get(), total)
+                            : pages(userId, store.pending(userId, pageSize), m -> true,
+                                    page -> total.addAndGet(page.size()))
+                                    .concatWith(Mono.fromCallable(() -> resumeFrame(null, total.get(), false, true))));
+        }
+        return offload(acks::flush)
+                .thenMany(frames)
+                .onErrorResume(e -> {
+                    log.error("Error reanudando sesión de {}: {}", userId, e.toString(), e);
+                    return Flux.empty();
+                });
+    }
+
+    /**
+     * Envía el delta desde el cursor, retrocedido {@code ws.resume.skew-ms},
+     * y al final la trama {@code "type":"resume"} con el nuevo cursor.
+     */
+    private Flux<OutboundFrame> resumeSince(String userId, Instant since, AtomicInteger total) {
+        AtomicReference<Instant> last = new AtomicReference<>(since);
+        return pages(userId, store.since(userId, since.minusMillis(resumeSkewMs), resumeMaxMessages, pageSize),
+                m -> !m.isDelivered() && userId.equals(m.getToUserId()),
+                page -> {
+                    total.addAndGet(page.size());
+                    Instant created = page.get(page.size() - 1).getCreatedAt();
+                    if (created != null && created.isAfter(last.get())) {
+                        last.set(created);
+                    }
+                })
+                .concatWith(Mono.fromCallable(
+                        () -> resumeFrame(last.get(), total.get(), total.get() >= resumeMaxMessages, false)))
+                .doOnComplete(() -> log.debug("WS: reanudación de {} desde {}: {} mensajes", userId, since,
+                        total.get()));
+    }
+
+    private Mono<Instant> parseCursor(String userId, String cursor) {
+        try {
+            return Mono.just(Instant.parse(cursor));
+        } catch (DateTimeParseException e) {
+            return store.createdAtOf(userId, cursor);
+        }
+    }
+
+    /**
+     * Agrupa los mensajes en páginas de {@code ws.replay.page-size}; cada
+     * página sale en tramas de hasta {@code ws.replay.messages-per-frame}
+     * mensajes y luego confirma con una sola actualización los que cumplen
+     * {@code confirm}, salvo que solo confirmen los clientes.
+     */
+    private Flux<OutboundFrame> pages(String userId, Flux<Message> source, Predicate<Message> confirm,
+            Consumer<List<Message>> onPage) {
+        return source.buffer(Math.max(1, pageSize)).concatMap(page -> {
+            onPage.accept(page);
+            List<String> ids = new ArrayList<>(page.size());
+            List<ChatMessageData> dtos = new ArrayList<>(page.size());
+            for (Message m : page) {
+                if (confirm.test(m)) {
+                    ids.add(m.getId());
+                }
+                try {
+                    dtos.add(chatService.toDto(m));
+                } catch (Exception ex) {
+                    log.error("Error enviando pendiente {} a {}: {}", m.getId(), userId, ex.toString(), ex);
+                }
+            }
+            Flux<OutboundFrame> frames = Flux.fromIterable(dtos)
+                    .buffer(Math.max(1, messagesPerFrame))
+                    .map(batch -> encode(batch.size() == 1 ? batch.get(0) : batch));
+            Mono<Void> mark = acks.isClientConfirmed() ? Mono.empty() : store.markDeliveredByIds(ids);
+            return frames.concatWith(mark.then(Mono.<OutboundFrame>empty()));
+        });
+    }
+
+    /**
+     * Trama final de la reanudación: nuevo cursor, mensajes enviados y si
+     * quedó delta sin enviar por el tope.
+     */
+    private OutboundFrame resumeFrame(Instant cursor, int count, boolean more, boolean reset) {
+        Map<String, Object> frame = new LinkedHashMap<>();
+        frame.put("type", "resume");
+        frame.put("cursor", cursor != null ? cursor.toString() : null);
+        frame.put("count", count);
+        frame.put("more", more);
+        if (reset) {
+            frame.put("reset", true);
+        }
+        return encode(frame);
+    }
+
+    /**
+     * Ejecuta una operación bloqueante en {@code boundedElastic}.
+     */
+    private Mono<Void> offload(Runnable task) {
+        return Mono.fromRunnable(task).subscribeOn(blocking).then();
+    }
+
+    /**
+     * Ejecuta una operación bloqueante en {@code boundedElastic} sin esperar
+     * su resultado; los errores solo se registran.
+     */
+    private void offload(String what, Runnable task) {
+        offload(task).subscribe(null, e -> log.warn("WS: error en {}: {}", what, e.toString()));
+    }
+
+    /**
+     * Número de conexiones registradas en este nodo.
+     *
+     * @return el total de conexiones.
+     */
+    public int connectionCount() {
+        return connections.size();
+    }
+}
@@ -0,0 +1,206 @@
+package co.edu.escuelaing.uplearn.chat.ws;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Sobre binario para las publicaciones entre nodos. Antepone a los bytes de
+ * la trama el nodo de origen, el ID del mensaje y la ruta (emisor y
+ * receptor), de modo que el receptor enruta sin parsear el JSON y el nodo de
+ * origen puede descartar su propia publicación.
+ * <p>
+ * Formato: {@code 0x00, versión, origen, messageId, fromUserId, toUserId}
+ * (cadenas con {@link DataOutputStream#writeUTF}) seguido de la trama. La
+ * versión 2, solo para salas, agrega el {@code roomId} tras el receptor
+ * (vacío). Un cuerpo que no empieza con {@code 0x00} se trata como JSON
+ * plano de un nodo anterior.
+ * <p>
+ * La compatibilidad es en un solo sentido: un nodo anterior no entiende el
+ * sobre binario y descarta o malinterpreta esas publicaciones, igual que un
+ * nodo con solo la versión 1 ante un sobre de sala. Todas las réplicas deben
+ * actualizarse juntas (detener las anteriores antes de publicar con las
+ * nuevas); no hay despliegue gradual entre formatos.
+ */
+public final class RelayEnvelope {
+
+    static final byte MAGIC = 0x00;
+    static final byte VERSION = 1;
+    static final byte VERSION_ROOM = 2;
+
+    private final String origin;
+    private final String messageId;
+    private final String fromUserId;
+    private final String toUserId;
+    private final String roomId;
+    private final OutboundFrame frame;
+
+    private RelayEnvelope(String origin, String messageId, String fromUserId, String toUserId, String roomId,
+            OutboundFrame frame) {
+        this.origin = origin;
+        this.messageId = messageId;
+        this.fromUserId = fromUserId;
+        this.toUserId = toUserId;
+        this.roomId = roomId;
+        this.frame = frame;
+    }
+
+    /**
+     * Codifica un sobre con la trama ya serializada.
+     *
+     * @param origin     ID del nodo que publica.
+     * @param messageId  ID del mensaje.
+     * @param fromUserId ID del emisor.
+     * @param toUserId   ID del receptor.
+     * @param frame      la trama a reenviar.
+     * @return los bytes a publicar.
+     */
+    public static byte[] encode(String origin, String messageId, String fromUserId, String toUserId,
+            OutboundFrame frame) {
+        return encode(VERSION, origin, messageId, fromUserId, toUserId, null, frame);
+    }
+
+    /**
+     * Codifica un sobre para todos los miembros de una sala: lleva la sala en
+     * lugar del receptor, así el nodo destino entrega a sus miembros locales.
+     *
+     * @param origin     ID del nodo que publica.
+     * @param roomId     ID de la sala.
+     * @param messageId  ID del mensaje, o null si es un evento de la sala.
+     * @param fromUserId ID del emisor.
+     * @param frame      la trama a reenviar.
+     * @return los bytes a publicar.
+     */
+    public static byte[] encodeRoom(String origin, String roomId, String messageId, String fromUserId,
+            OutboundFrame frame) {
+        return encode(VERSION_ROOM, origin, messageId, fromUserId, null, roomId, frame);
+    }
+
+    private static byte[] encode(byte version, String origin, String messageId, String fromUserId,
+            String toUserId, String roomId, OutboundFrame frame) {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(frame.size() + 128);
+        try (DataOutputStream out = new DataOutputStream(buf)) {
+            out.writeByte(MAGIC);
+            out.writeByte(version);
+            writeNullable(out, origin);
+            writeNullable(out, messageId);
+            writeNullable(out, fromUserId);
+            writeNullable(out, toUserId);
+            if (version == VERSION_ROOM) {
+                writeNullable(out, roomId);
+            }
+            out.write(frame.bytes());
+        } catch (IOException e) {
+            throw new IllegalStateException("No se pudo codificar el sobre", e);
+        }
+        return buf.toByteArray();
+    }
+
+    /**
+     * Decodifica un cuerpo publicado, sea un sobre binario o JSON plano.
+     *
+     * @param json fábrica JSON para leer la ruta de cuerpos sin sobre.
+     * @param body los bytes recibidos.
+     * @return el sobre; en JSON plano el origen y el messageId son null.
+     * @throws IOException si el cuerpo no es válido.
+     */
+    public static RelayEnvelope decode(JsonFactory json, byte[] body) throws IOException {
+        if (body.length == 0 || body[0] != MAGIC) {
+            String[] route = readRoute(json, body);
+            return new RelayEnvelope(null, null, route[0], route[1], null, OutboundFrame.wrap(body));
+        }
+        ByteArrayInputStream buf = new ByteArrayInputStream(body, 1, body.length - 1);
+        DataInputStream in = new DataInputStream(buf);
+        byte version = in.readByte();
+        if (version != VERSION && version != VERSION_ROOM) {
+            throw new IOException("Versión de sobre no soportada: " + version);
+        }
+        String origin = readNullable(in);
+        String messageId = readNullable(in);
+        String from = readNullable(in);
+        String to = readNullable(in);
+        String roomId = version == VERSION_ROOM ? readNullable(in) : null;
+        byte[] frame = Arrays.copyOfRange(body, body.length - buf.available(), body.length);
+        return new RelayEnvelope(origin, messageId, from, to, roomId, OutboundFrame.wrap(frame));
+    }
+
+    /**
+     * Lee solo los campos de enrutamiento (fromUserId, toUserId) de un mensaje
+     * JSON, sin materializar el DTO completo.
+     */
+    private static String[] readRoute(JsonFactory json, byte[] body) throws IOException {
+        String[] route = new String[2];
+        try (JsonParser p = json.createParser(body)) {
+            if (p.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Payload no es un objeto JSON");
+            }
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String field = p.currentName();
+                p.nextToken();
+                if ("fromUserId".equals(field)) {
+                    route[0] = p.getValueAsString();
+                } else if ("toUserId".equals(field)) {
+                    route[1] = p.getValueAsString();
+                } else {
+                    p.skipChildren();
+                }
+            }
+        }
+        return route;
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeUTF(value == null ? "" : value);
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        String value = in.readUTF();
+        return value.isEmpty() ? null : value;
+    }
+
+    /**
+     * Indica si el sobre fue publicado por el nodo indicado.
+     *
+     * @param nodeId ID del nodo.
+     * @return true si el origen coincide.
+     */
+    public boolean isFrom(String nodeId) {
+        return origin != null && origin.equals(nodeId);
+    }
+
+    public String origin() {
+        return origin;
+    }
+
+    public String messageId() {
+        return messageId;
+    }
+
+    public String fromUserId() {
+        return fromUserId;
+    }
+
+    public String toUserId() {
+        return toUserId;
+    }
+
+    /**
+     * Sala destino, en los sobres de versión 2.
+     *
+     * @return el ID de la sala, o null si el sobre va entre dos usuarios.
+     */
+    public String roomId() {
+        return roomId;
+    }
+
+    public OutboundFrame frame() {
+        return frame;
+    }
+}
@@ -0,0 +1,401 @@
+package co.edu.escuelaing.uplearn.chat.ws;
+
+import co.edu.escuelaing.uplearn.chat.domain.Chat;
+import co.edu.escuelaing.uplearn.chat.domain.Message;
+import co.edu.escuelaing.uplearn.chat.dto.ReadReceipt;
+import co.edu.escuelaing.uplearn.chat.service.ChatService;
+import co.edu.escuelaing.uplearn.chat.service.RoomService;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+
+import static co.edu.escuelaing.uplearn.chat.ws.InboundFrames.TYPE_READ;
+import static co.edu.escuelaing.uplearn.chat.ws.InboundFrames.isType;
+import static co.edu.escuelaing.uplearn.chat.ws.InboundFrames.textValues;
+
+/**
+ * Difusión de las salas. Cada mensaje se codifica una sola vez y la misma
+ * trama llega a todas las sesiones de todos los miembros; entre nodos viaja
+ * un único sobre por sala (ver {@link ClusterRelay#publishRoom}), no uno por
+ * miembro.
+ * <p>
+ * Cada nodo guarda un índice de sus miembros conectados por sala: se carga
+ * al conectarse un usuario con sus salas (fuera del hilo del contenedor) y
+ * se actualiza con los eventos de
+ * membresía {@code {"type":"room","roomId":...,"joined":[...],"left":[...]}},
+ * que también se entregan a los clientes. El nodo que recibe un sobre de sala
+ * entrega solo a los miembros de su índice. Si un evento se pierde, el
+ * usuario se pone al día al reconectar o con {@code /history/{roomId}/after/{seq}}.
+ * Los avisos de lectura de un miembro viajan como un evento más de la sala.
+ * <p>
+ * El candado global solo protege el índice en memoria. Las suscripciones a
+ * Redis se hacen fuera de él, con un candado por franja de salas: cada
+ * cambio del índice deja la suscripción de la sala acorde con sus miembros
+ * locales en ese momento.
+ * <p>
+ * El gateway activo registra su entrega local con {@link #start}.
+ */
+@Slf4j
+@Component
+public class RoomFanOut {
+
+    static final String TYPE_ROOM = "room";
+    private static final int LOCK_STRIPES = 64;
+
+    /** Entrega de una trama ya codificada a las sesiones locales de un usuario. */
+    @FunctionalInterface
+    public interface LocalDelivery {
+        /**
+         * @param userId el usuario destinatario.
+         * @param frame  la trama compartida.
+         * @return número de sesiones que aceptaron la trama.
+         */
+        int deliverTo(String userId, OutboundFrame frame);
+    }
+
+    private final RoomService rooms;
+    private final ChatService chatService;
+    private final ClusterRelay relay;
+    private final ObjectMapper json = new ObjectMapper();
+    private final Object lock = new Object();
+    private final Object[] roomLocks = new Object[LOCK_STRIPES];
+    /** Miembros conectados a este nodo, por sala. */
+    private final Map<String, Set<String>> localMembers = new ConcurrentHashMap<>();
+    /** Salas de cada usuario conectado a este nodo. */
+    private final Map<String, Set<String>> roomsOfUser = new ConcurrentHashMap<>();
+    private volatile LocalDelivery local = (userId, frame) -> 0;
+
+    public RoomFanOut(RoomService rooms, ChatService chatService, ClusterRelay relay) {
+        this.rooms = rooms;
+        this.chatService = chatService;
+        this.relay = relay;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            roomLocks[i] = new Object();
+        }
+    }
+
+    /**
+     * Registra la entrega local del gateway activo.
+     *
+     * @param local entrega a las sesiones de un usuario en este nodo.
+     */
+    public void start(LocalDelivery local) {
+        this.local = local;
+    }
+
+    /**
+     * Indexa las salas de un usuario al abrir su primera sesión en este nodo.
+     * Consulta Mongo, así que el gateway la llama fuera del hilo del
+     * contenedor; la consulta se hace fuera del candado y, si el usuario se
+     * desconectó mientras tanto, no se indexa. Hasta que termine, los
+     * mensajes de sus salas no le llegan en vivo y se pone al día con
+     * {@code seq}.
+     *
+     * @param userId         el usuario conectado.
+     * @param stillConnected indica si el usuario conserva sesiones aquí.
+     */
+    public void userConnected(String userId, BooleanSupplier stillConnected) {
+        if (roomsOfUser.containsKey(userId)) {
+            return;
+        }
+        Set<String> ids;
+        try {
+            ids = rooms.roomIdsOf(userId);
+        } catch (Exception e) {
+            log.warn("Salas: no se pudieron cargar las salas de {}: {}", userId, e.toString());
+            return;
+        }
+        Set<String> changed = new HashSet<>();
+        synchronized (lock) {
+            if (!stillConnected.getAsBoolean() || roomsOfUser.containsKey(userId)) {
+                return;
+            }
+            roomsOfUser.put(userId, ConcurrentHashMap.newKeySet());
+            for (String roomId : ids) {
+                join(roomId, userId, changed);
+            }
+        }
+        syncSubscriptions(changed);
+    }
+
+    /**
+     * Saca al usuario del índice si ya no tiene sesiones en este nodo.
+     *
+     * @param userId         el usuario desconectado.
+     * @param stillConnected indica si el usuario conserva sesiones aquí.
+     */
+    public void userDisconnected(String userId, BooleanSupplier stillConnected) {
+        Set<String> changed = new HashSet<>();
+        synchronized (lock) {
+            if (stillConnected.getAsBoolean()) {
+                return;
+            }
+            Set<String> own = roomsOfUser.remove(userId);
+            if (own == null) {
+                return;
+            }
+            for (String roomId : own) {
+                leave(roomId, userId, changed);
+            }
+        }
+        syncSubscriptions(changed);
+    }
+
+    /**
+     * Persiste un mensaje de sala como un único documento, lo entrega a los
+     * miembros conectados aquí y lo publica una vez para el resto del
+     * clúster. La trama se codifica una sola vez para todos.
+     *
+     * @param roomId     la sala.
+     * @param fromUserId el emisor.
+     * @param content    el contenido.
+     * @return el mensaje guardado, o null si el emisor no es miembro.
+     * @throws IOException si el mensaje no se puede serializar.
+     */
+    public Message send(String roomId, String fromUserId, String content) throws IOException {
+        RoomService.Post post = rooms.post(roomId, fromUserId, content);
+        if (post == null) {
+            return null;
+        }
+        Message saved = post.message();
+        OutboundFrame frame = OutboundFrame.encode(json, chatService.toDto(saved));
+        deliverLocal(roomId, frame);
+        relay.publishRoom(roomId, saved.getId(), fromUserId, post.members(), List.of(), frame);
+        return saved;
+    }
+
+    /**
+     * Avanza la marca de lectura de un miembro y, si avanzó, envía un aviso
+     * {@code "type": "read"} con {@code chatId} igual a la sala a todos los
+     * miembros en todos los nodos.
+     *
+     * @param roomId   la sala.
+     * @param readerId el miembro que leyó.
+     * @param upTo     leído hasta este instante inclusive; null o futuro
+     *                 equivale a ahora.
+     * @return true si la marca avanzó; false si no avanzó o no es miembro.
+     * @throws IOException si el aviso no se puede serializar.
+     */
+    public boolean markRead(String roomId, String readerId, Instant upTo) throws IOException {
+        Instant now = Instant.now();
+        Instant mark = upTo == null || upTo.isAfter(now) ? now : upTo;
+        Set<String> members = rooms.markRead(roomId, readerId, mark);
+        if (members == null || members.isEmpty()) {
+            return false;
+        }
+        OutboundFrame frame = OutboundFrame.encode(json, ReadReceipt.builder()
+                .chatId(roomId)
+                .userId(readerId)
+                .upTo(mark.toString())
+                .build());
+        deliverLocal(roomId, frame);
+        relay.publishRoom(roomId, null, readerId, members, List.of(), frame);
+        return true;
+    }
+
+    /**
+     * Aplica un cambio de membresía hecho en este nodo: actualiza el índice,
+     * avisa a los miembros locales (también a quienes entraron o salieron) y
+     * publica el evento para los demás nodos.
+     *
+     * @param actorId el usuario que hizo el cambio.
+     * @param change  el cambio aplicado en Mongo.
+     * @throws IOException si el evento no se puede serializar.
+     */
+    public void membershipChanged(String actorId, RoomService.Change change) throws IOException {
+        if (change.joined().isEmpty() && change.left().isEmpty()) {
+            return;
+        }
+        Chat room = change.room();
+        OutboundFrame frame = OutboundFrame.encode(json, roomEvent(room, change.joined(), change.left()));
+        apply(room.getId(), change.joined(), change.left(), frame, false);
+        Set<String> reach = new LinkedHashSet<>(room.getParticipants() != null ? room.getParticipants() : Set.of());
+        reach.addAll(change.left());
+        relay.publishRoom(room.getId(), null, actorId, reach, change.joined(), frame);
+    }
+
+    /**
+     * Atiende un sobre de sala publicado por otro nodo. Un mensaje o un aviso
+     * de lectura se entrega a los miembros locales; un evento de membresía
+     * actualiza el índice. En
+     * modo {@code user} los recién agregados reciben el evento por su canal
+     * de usuario, así que por el canal de la sala se omiten.
+     *
+     * @param channelUser usuario del canal, o null si llegó por la sala, por
+     *                    difusión o por el canal del nodo.
+     * @param envelope    el sobre recibido.
+     */
+    public void onRelay(String channelUser, RelayEnvelope envelope) {
+        String roomId = envelope.roomId();
+        if (envelope.messageId() != null) {
+            deliverLocal(roomId, envelope.frame());
+            return;
+        }
+        JsonNode event;
+        try {
+            event = json.readTree(envelope.frame().bytes());
+        } catch (IOException e) {
+            log.warn("Salas: evento inválido para {}: {}", roomId, e.toString());
+            return;
+        }
+        if (isType(event, TYPE_READ)) {
+            if (channelUser == null) {
+                deliverLocal(roomId, envelope.frame());
+            }
+            return;
+        }
+        Set<String> joined = new HashSet<>(textValues(event.get("joined")));
+        Set<String> left = new HashSet<>(textValues(event.get("left")));
+        if (channelUser != null) {
+            if (joined.contains(channelUser)) {
+                Set<String> changed = new HashSet<>();
+                synchronized (lock) {
+                    join(roomId, channelUser, changed);
+                }
+                syncSubscriptions(changed);
+                local.deliverTo(channelUser, envelope.frame());
+            }
+            return;
+        }
+        apply(roomId, joined, left, envelope.frame(), relay.routing() == ClusterRelay.Routing.USER);
+    }
+
+    /**
+     * Entrega una trama a los miembros de la sala conectados a este nodo.
+     *
+     * @return número de sesiones que aceptaron la trama.
+     */
+    int deliverLocal(String roomId, OutboundFrame frame) {
+        Set<String> members = localMembers.get(roomId);
+        if (members == null) {
+            return 0;
+        }
+        LocalDelivery delivery = local;
+        int sent = 0;
+        for (String userId : members) {
+            sent += delivery.deliverTo(userId, frame);
+        }
+        return sent;
+    }
+
+    /**
+     * Actualiza el índice con un evento y lo entrega a los miembros locales
+     * previos (incluidos los que salen) y, salvo que lleguen por su canal,
+     * a los que entran.
+     */
+    private void apply(String roomId, Collection<String> joined, Collection<String> left, OutboundFrame frame,
+            boolean joinedByUserChannel) {
+        Set<String> targets;
+        Set<String> changed = new HashSet<>();
+        synchronized (lock) {
+            targets = new LinkedHashSet<>(localMembers.getOrDefault(roomId, Set.of()));
+            for (String userId : left) {
+                leave(roomId, userId, changed);
+            }
+            for (String userId : joined) {
+                if (join(roomId, userId, changed) && !joinedByUserChannel) {
+                    targets.add(userId);
+                }
+            }
+            if (joinedByUserChannel) {
+                targets.removeAll(joined);
+            }
+        }
+        syncSubscriptions(changed);
+        for (String userId : targets) {
+            local.deliverTo(userId, frame);
+        }
+    }
+
+    /**
+     * Agrega un usuario conectado aquí a la sala en el índice; si es el
+     * primer miembro local, anota la sala para suscribirla. Se llama con el
+     * candado.
+     *
+     * @return true si el usuario está conectado a este nodo.
+     */
+    private boolean join(String roomId, String userId, Set<String> changed) {
+        Set<String> own = roomsOfUser.get(userId);
+        if (own == null) {
+            return false;
+        }
+        own.add(roomId);
+        Set<String> members = localMembers.computeIfAbsent(roomId, k -> ConcurrentHashMap.newKeySet());
+        if (members.add(userId) && members.size() == 1) {
+            changed.add(roomId);
+        }
+        return true;
+    }
+
+    /**
+     * Quita un usuario de la sala en el índice; si era el último miembro
+     * local, anota la sala para retirar la suscripción. Se llama con el
+     * candado.
+     */
+    private void leave(String roomId, String userId, Set<String> changed) {
+        Set<String> own = roomsOfUser.get(userId);
+        if (own != null) {
+            own.remove(roomId);
+        }
+        Set<String> members = localMembers.get(roomId);
+        if (members != null && members.remove(userId) && members.isEmpty()) {
+            localMembers.remove(roomId);
+            changed.add(roomId);
+        }
+    }
+
+    /**
+     * Suscribe o retira cada sala según tenga o no miembros locales en este
+     * momento. Corre fuera del candado global, con el de la franja de la
+     * sala: si dos cambios se cruzan, el último en sincronizar ve el índice
+     * final, y las llamadas a {@link ClusterRelay} son idempotentes.
+     */
+    private void syncSubscriptions(Collection<String> roomIds) {
+        for (String roomId : roomIds) {
+            synchronized (lockFor(roomId)) {
+                if (localMembers.containsKey(roomId)) {
+                    relay.subscribeRoom(roomId);
+                } else {
+                    relay.unsubscribeRoom(roomId);
+                }
+            }
+        }
+    }
+
+    private Object lockFor(String roomId) {
+        return roomLocks[Math.floorMod(roomId.hashCode(), LOCK_STRIPES)];
+    }
+
+    private static Map<String, Object> roomEvent(Chat room, Collection<String> joined, Collection<String> left) {
+        Map<String, Object> event = new LinkedHashMap<>();
+        event.put("type", TYPE_ROOM);
+        event.put("roomId", room.getId());
+        event.put("name", room.getName());
+        event.put("joined", joined);
+        event.put("left", left);
+        return event;
+    }
+
+    /**
+     * Miembros de la sala conectados a este nodo.
+     *
+     * @param roomId la sala.
+     * @return los miembros locales (vacío si no hay).
+     */
+    Set<String> localMembersOf(String roomId) {
+        return localMembers.getOrDefault(roomId, Set.of());
+    }
+}
@@ -0,0 +1,219 @@
+package co.edu.escuelaing.uplearn.chat.ws;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * Límite de envío de mensajes por usuario con un balde de fichas
+ * (<i>token bucket</i>): {@code chat.ratelimit.per-second} fichas por
+ * segundo y hasta {@code chat.ratelimit.burst} acumuladas.
+ * <p>
+ * Modos ({@code chat.ratelimit.mode}):
+ * <ul>
+ * <li>{@code off}: sin límite.</li>
+ * <li>{@code local}: un balde en memoria por usuario y réplica.</li>
+ * <li>{@code cluster}: el balde vive en Redis y se actualiza con un script
+ * atómico. Cada réplica toma fichas en préstamo de a
+ * {@code chat.ratelimit.lease} y las gasta localmente, así el tráfico normal
+ * consulta Redis una vez cada varios mensajes. Sin Redis se usa el modo
+ * {@code local}.</li>
+ * </ul>
+ * Si Redis falla, el mensaje se admite: el límite protege la base de datos
+ * de clientes desbocados, no debe cortar el chat.
+ */
+@Slf4j
+@Component
+public class SendRateLimiter {
+
+    static final String KEY_PREFIX = "ratelimit:";
+
+    /**
+     * Toma hasta ARGV[3] fichas del balde KEYS[1] (ARGV[1] fichas por ms,
+     * capacidad ARGV[2]) con la hora del servidor Redis. Devuelve las fichas
+     * concedidas y, si no hubo ninguna, los ms hasta la próxima.
+     */
+    @SuppressWarnings("rawtypes")
+    static final RedisScript<List> TAKE = new DefaultRedisScript<>("""
+            local rate = tonumber(ARGV[1])
+            local burst = tonumber(ARGV[2])
+            local want = tonumber(ARGV[3])
+            local t = redis.call('TIME')
+            local now = tonumber(t[1]) * 1000 + math.floor(tonumber(t[2]) / 1000)
+            local b = redis.call('HMGET', KEYS[1], 'tokens', 'ts')
+            local tokens = tonumber(b[1]) or burst
+            local ts = tonumber(b[2]) or now
+            tokens = math.min(burst, tokens + math.max(0, now - ts) * rate)
+            local granted = math.min(want, math.floor(tokens))
+            tokens = tokens - granted
+            redis.call('HSET', KEYS[1], 'tokens', tostring(tokens), 'ts', now)
+            redis.call('PEXPIRE', KEYS[1], math.ceil(burst / rate) + 1000)
+            if granted > 0 then
+              return {granted, 0}
+            end
+            return {0, math.ceil((1 - tokens) / rate)}
+            """, List.class);
+
+    /** Modos soportados. */
+    public enum Mode {
+        OFF, LOCAL, CLUSTER
+    }
+
+    private final Mode mode;
+    private final double tokensPerNano;
+    private final double tokensPerMs;
+    private final int burst;
+    private final int lease;
+    private final StringRedisTemplate redis;
+    private final LongSupplier nanoClock;
+    private final Cache<String, Bucket> buckets;
+    private final Function<String, Bucket> newBucket;
+    private final Counter rejected;
+    private final Counter leases;
+
+    @Autowired
+    public SendRateLimiter(MeterRegistry registry,
+            @Value("${chat.ratelimit.mode:local}") String mode,
+            @Value("${chat.ratelimit.per-second:10}") double perSecond,
+            @Value("${chat.ratelimit.burst:30}") int burst,
+            @Value("${chat.ratelimit.lease:5}") int lease,
+            @Autowired(required = false) StringRedisTemplate redis) {
+        this(registry, Mode.valueOf(mode.trim().toUpperCase(Locale.ROOT)), perSecond, burst, lease, redis,
+                System::nanoTime);
+    }
+
+    SendRateLimiter(MeterRegistry registry, Mode mode, double perSecond, int burst, int lease,
+            StringRedisTemplate redis, LongSupplier nanoClock) {
+        if (mode != Mode.OFF && (perSecond <= 0 || burst < 1)) {
+            throw new IllegalArgumentException("chat.ratelimit.per-second y chat.ratelimit.burst deben ser positivos");
+        }
+        if (mode == Mode.CLUSTER && redis == null) {
+            log.info("Redis deshabilitado: límite de envío por réplica (modo local).");
+            mode = Mode.LOCAL;
+        }
+        this.mode = mode;
+        this.tokensPerNano = perSecond / TimeUnit.SECONDS.toNanos(1);
+        this.tokensPerMs = perSecond / 1000;
+        this.burst = burst;
+        this.lease = Math.max(1, Math.min(lease, burst));
+        this.redis = redis;
+        this.nanoClock = nanoClock;
+        long refillMs = mode == Mode.OFF ? 1 : (long) Math.ceil(burst * 1000 / perSecond);
+        this.buckets = Caffeine.newBuilder()
+                .expireAfterAccess(Duration.ofMillis(refillMs + 1000))
+                .build();
+        // En modo cluster las fichas se piden a Redis; el balde local empieza vacío
+        int initial = mode == Mode.LOCAL ? burst : 0;
+        this.newBucket = k -> new Bucket(initial, nanoClock.getAsLong());
+        this.rejected = registry.counter("chat.ratelimit.rejected");
+        this.leases = registry.counter("chat.ratelimit.leases");
+    }
+
+    /**
+     * Modo en uso.
+     *
+     * @return el modo efectivo.
+     */
+    public Mode mode() {
+        return mode;
+    }
+
+    /**
+     * Intenta consumir fichas para enviar mensajes. No asigna objetos en el
+     * camino normal: devuelve 0 si se admite o los ms sugeridos para
+     * reintentar. Un lote mayor que la capacidad cuesta la capacidad completa.
+     *
+     * @param userId  el usuario que envía.
+     * @param permits cuántos mensajes quiere enviar (1, o el tamaño del lote).
+     * @return 0 si se admite; si no, los ms hasta que haya fichas.
+     */
+    public long acquire(String userId, int permits) {
+        if (mode == Mode.OFF || userId == null) {
+            return 0;
+        }
+        int cost = Math.max(1, Math.min(permits, burst));
+        Bucket bucket = buckets.get(userId, newBucket);
+        long retryAfterMs;
+        synchronized (bucket) {
+            retryAfterMs = mode == Mode.LOCAL
+                    ? bucket.take(cost, nanoClock.getAsLong(), tokensPerNano, burst)
+                    : takeLeased(userId, bucket, cost);
+        }
+        if (retryAfterMs > 0) {
+            rejected.increment();
+        }
+        return retryAfterMs;
+    }
+
+    /**
+     * Gasta fichas prestadas y, si no alcanzan, pide más a Redis.
+     */
+    private long takeLeased(String userId, Bucket bucket, int permits) {
+        if (bucket.tokens >= permits) {
+            bucket.tokens -= permits;
+            return 0;
+        }
+        int want = Math.max(lease, permits - (int) bucket.tokens);
+        List<?> reply;
+        try {
+            leases.increment();
+            reply = redis.execute(TAKE, List.of(KEY_PREFIX + userId),
+                    Double.toString(tokensPerMs),
+                    Integer.toString(burst), Integer.toString(want));
+        } catch (Exception e) {
+            log.warn("Límite de envío: no se pudo consultar Redis para {}: {}", userId, e.toString());
+            return 0;
+        }
+        if (reply == null || reply.size() < 2) {
+            return 0;
+        }
+        bucket.tokens += ((Number) reply.get(0)).longValue();
+        if (bucket.tokens >= permits) {
+            bucket.tokens -= permits;
+            return 0;
+        }
+        // Lo concedido queda prestado para el próximo intento
+        return Math.max(1, ((Number) reply.get(1)).longValue());
+    }
+
+    /**
+     * Balde de un usuario. En modo {@code local} se rellena con el tiempo; en
+     * modo {@code cluster} guarda las fichas prestadas por Redis. Se accede
+     * bajo su propio monitor.
+     */
+    static final class Bucket {
+        double tokens;
+        long refilledAt;
+
+        Bucket(int tokens, long now) {
+            this.tokens = tokens;
+            this.refilledAt = now;
+        }
+
+        long take(int permits, long now, double tokensPerNano, int burst) {
+            tokens = Math.min(burst, tokens + (now - refilledAt) * tokensPerNano);
+            refilledAt = now;
+            if (tokens >= permits) {
+                tokens -= permits;
+                return 0;
+            }
+            double missingNanos = (permits - tokens) / tokensPerNano;
+            return Math.max(1, (long) Math.ceil(missingNanos / TimeUnit.MILLISECONDS.toNanos(1)));
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package co.edu.escuelaing.uplearn.chat.ws;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+/**
+ * Control de admisión de conexiones WebSocket. Protege al nodo de las
+ * tormentas de reconexión con tres topes, cada uno desactivable con 0:
+ * <ul>
+ * <li>{@code ws.admission.connects-per-second}: conexiones nuevas por
+ * segundo (balde de fichas); se revisa en el handshake, antes de validar el
+ * token y del upgrade.</li>
+ * <li>{@code ws.admission.max-sessions}: sesiones abiertas en el nodo.</li>
+ * <li>{@code ws.admission.max-sessions-per-user}: sesiones de un mismo
+ * usuario en el nodo.</li>
+ * </ul>
+ * {@link TokenHandshakeInterceptor} aplica el ritmo y una revisión previa de
+ * los topes ({@link #checkCapacity(int)}) y responde {@code 503} sin hacer el
+ * upgrade; el gateway reserva el lugar con {@link #tryAdmit(int)}, que cubre
+ * las carreras entre el handshake y la conexión. En el modo reactivo ambas
+ * revisiones las hace {@code ReactiveChatGateway} al abrir la conexión.
+ * Cada rechazo trae una sugerencia de reintento al azar entre la mitad y el
+ * total de {@code ws.admission.retry-after-ms}, para que los clientes no
+ * vuelvan todos a la vez. Como indicador de salud, queda fuera de servicio
+ * cuando las sesiones superan {@code ws.admission.readiness-threshold} del
+ * tope del nodo, así el balanceador deja de enviarle tráfico mientras esté
+ * saturado. Durante el drenado ({@link #beginDrain()}) rechaza toda conexión
+ * nueva y también queda fuera de servicio.
+ */
+@Component
+public class SessionAdmission implements HealthIndicator {
+
+    private final int maxSessions;
+    private final int maxSessionsPerUser;
+    private final double connectsPerNano;
+    private final int connectBurst;
+    private final long retryAfterMs;
+    private final int readyLimit;
+    private final LongSupplier nanoClock;
+    private final SendRateLimiter.Bucket connects;
+    private final AtomicInteger open = new AtomicInteger();
+    private volatile boolean draining;
+    private final Counter rejectedRate;
+    private final Counter rejectedNode;
+    private final Counter rejectedUser;
+    private final Counter rejectedDrain;
+
+    @Autowired
+    public SessionAdmission(MeterRegistry registry,
+            @Value("${ws.admission.max-sessions:20000}") int maxSessions,
+            @Value("${ws.admission.max-sessions-per-user:5}") int maxSessionsPerUser,
+            @Value("${ws.admission.connects-per-second:200}") int connectsPerSecond,
+            @Value("${ws.admission.retry-after-ms:5000}") long retryAfterMs,
+            @Value("${ws.admission.readiness-threshold:0.9}") double readinessThreshold) {
+        this(registry, maxSessions, maxSessionsPerUser, connectsPerSecond, retryAfterMs, readinessThreshold,
+                System::nanoTime);
+    }
+
+    SessionAdmission(MeterRegistry registry, int maxSessions, int maxSessionsPerUser, int connectsPerSecond,
+            long retryAfterMs, double readinessThreshold, LongSupplier nanoClock) {
+        this.maxSessions = maxSessions;
+        this.maxSessionsPerUser = maxSessionsPerUser;
+        this.connectsPerNano = (double) connectsPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.connectBurst = Math.max(1, connectsPerSecond);
+        this.retryAfterMs = Math.max(1, retryAfterMs);
+        this.readyLimit = maxSessions > 0 ? (int) Math.ceil(maxSessions * readinessThreshold) : Integer.MAX_VALUE;
+        this.nanoClock = nanoClock;
+        this.connects = connectsPerSecond > 0 ? new SendRateLimiter.Bucket(connectBurst, nanoClock.getAsLong()) : null;
+        Gauge.builder("chat.ws.admission.open", open, AtomicInteger::get)
+                .description("Sesiones WebSocket admitidas en el nodo")
+                .register(registry);
+        this.rejectedRate = registry.counter("chat.ws.admission.rejected", "reason", "rate");
+        this.rejectedNode = registry.counter("chat.ws.admission.rejected", "reason", "node");
+        this.rejectedUser = registry.counter("chat.ws.admission.rejected", "reason", "user");
+        this.rejectedDrain = registry.counter("chat.ws.admission.rejected", "reason", "drain");
+    }
+
+    /**
+     * Consume una ficha de conexión nueva. Es lo primero que se revisa en el
+     * handshake, antes de validar el token.
+     *
+     * @return 0 si se admite; si no, los ms sugeridos para reintentar.
+     */
+    public long checkRate() {
+        if (draining) {
+            rejectedDrain.increment();
+            return jittered(0);
+        }
+        if (connects == null) {
+            return 0;
+        }
+        long wait;
+        synchronized (connects) {
+            wait = connects.take(1, nanoClock.getAsLong(), connectsPerNano, connectBurst);
+        }
+        if (wait == 0) {
+            return 0;
+        }
+        rejectedRate.increment();
+        return jittered(wait);
+    }
+
+    /**
+     * Revisa, sin reservar lugar, si el nodo y el usuario están por debajo de
+     * sus topes. Sirve para rechazar en el handshake antes del upgrade; la
+     * reserva la hace {@link #tryAdmit(int)} al establecerse la sesión.
+     *
+     * @param userSessions sesiones que el usuario ya tiene en este nodo.
+     * @return 0 si hay lugar; si no, los ms sugeridos para reintentar.
+     */
+    public long checkCapacity(int userSessions) {
+        if (draining) {
+            rejectedDrain.increment();
+            return jittered(0);
+        }
+        if (maxSessionsPerUser > 0 && userSessions >= maxSessionsPerUser) {
+            rejectedUser.increment();
+            return jittered(0);
+        }
+        if (maxSessions > 0 && open.get() >= maxSessions) {
+            rejectedNode.increment();
+            return jittered(0);
+        }
+        return 0;
+    }
+
+    /**
+     * Reserva un lugar para una sesión autenticada si el nodo y el usuario
+     * están por debajo de sus topes. Si se admite, la sesión debe liberarse
+     * con {@link #release()} al cerrarse.
+     *
+     * @param userSessions sesiones que el usuario ya tiene en este nodo.
+     * @return 0 si se admite; si no, los ms sugeridos para reintentar.
+     */
+    public long tryAdmit(int userSessions) {
+        if (draining) {
+            rejectedDrain.increment();
+            return jittered(0);
+        }
+        if (maxSessionsPerUser > 0 && userSessions >= maxSessionsPerUser) {
+            rejectedUser.increment();
+            return jittered(0);
+        }
+        if (maxSessions <= 0) {
+            open.incrementAndGet();
+            return 0;
+        }
+        int current;
+        do {
+            current = open.get();
+            if (current >= maxSessions) {
+                rejectedNode.increment();
+                return jittered(0);
+            }
+        } while (!open.compareAndSet(current, current + 1));
+        return 0;
+    }
+
+    /** Libera el lugar de una sesión admitida. */
+    public void release() {
+        open.decrementAndGet();
+    }
+
+    /**
+     * Sesiones admitidas abiertas en el nodo.
+     *
+     * @return la cantidad de sesiones.
+     */
+    public int openSessions() {
+        return open.get();
+    }
+
+    /**
+     * Deja de admitir conexiones: a partir de aquí todo intento se rechaza y
+     * el indicador queda fuera de servicio. No tiene vuelta atrás; se usa al
+     * apagar el nodo.
+     */
+    public void beginDrain() {
+        draining = true;
+    }
+
+    /**
+     * Indica si el nodo está drenando sus sesiones.
+     *
+     * @return true tras {@link #beginDrain()}.
+     */
+    public boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * Indica si el nodo está saturado según el umbral de preparación, o
+     * drenando.
+     *
+     * @return true si no debería recibir más tráfico.
+     */
+    public boolean isSaturated() {
+        return draining || open.get() >= readyLimit;
+    }
+
+    /**
+     * Fuera de servicio mientras el nodo esté saturado o drenando. Incluido
+     * en el grupo {@code readiness}.
+     */
+    @Override
+    public Health health() {
+        Health.Builder builder = isSaturated() ? Health.outOfService() : Health.up();
+        return builder.withDetail("sessions", open.get())
+                .withDetail("maxSessions", maxSessions)
+                .withDetail("draining", draining)
+                .build();
+    }
+
+    private long jittered(long min) {
+        return min + retryAfterMs / 2 + ThreadLocalRandom.current().nextLong(retryAfterMs / 2 + 1);
+    }
+}
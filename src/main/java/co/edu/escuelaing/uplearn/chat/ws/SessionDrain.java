@@ -0,0 +1,232 @@
+package co.edu.escuelaing.uplearn.chat.ws;
+
+import co.edu.escuelaing.uplearn.chat.service.DeliveryAckBuffer;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Drenado ordenado de las sesiones WebSocket al apagar el nodo, para que un
+ * despliegue no provoque que todos los clientes reconecten a la vez contra
+ * las demás réplicas.
+ * <p>
+ * Al detenerse el contexto, y antes de que se detenga el servidor web:
+ * <ol>
+ * <li>la admisión deja de aceptar conexiones y el nodo sale de
+ * {@code readiness};</li>
+ * <li>espera, hasta {@code ws.drain.flush-timeout-ms}, a que terminen las
+ * tramas entrantes en proceso y se vacíen las colas de salida, y escribe
+ * las confirmaciones de entrega acumuladas;</li>
+ * <li>cierra las sesiones en {@code ws.drain.waves} tandas repartidas a lo
+ * largo de {@code ws.drain.window-ms}, con código {@code 1012}
+ * ({@code SERVICE_RESTARTED}) y motivo
+ * {@code Reconectar en otro nodo; retryAfterMs=N}, donde N es un valor al
+ * azar hasta {@code ws.drain.reconnect-spread-ms}. Una sesión que aún tiene
+ * mensajes en su cola de salida pasa a la tanda siguiente, salvo en la
+ * última;</li>
+ * <li>vuelve a escribir las confirmaciones pendientes.</li>
+ * </ol>
+ * {@code spring.lifecycle.timeout-per-shutdown-phase} debe cubrir la ventana
+ * más la espera de vaciado.
+ */
+@Slf4j
+@Component
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+public class SessionDrain implements SmartLifecycle {
+
+    static final String RECONNECT_REASON = "Reconectar en otro nodo; retryAfterMs=";
+    static final long QUIET_POLL_MS = 50;
+
+    /** Pausa entre tandas; reemplazable en pruebas. */
+    @FunctionalInterface
+    interface Pause {
+        void sleep(long ms) throws InterruptedException;
+    }
+
+    private final SessionRegistry<WebSocketSession> sessions;
+    private final SessionAdmission admission;
+    private final InboundDispatcher inbound;
+    private final OutboundSessionFactory outbound;
+    private final DeliveryAckBuffer acks;
+    private final long windowMs;
+    private final int waves;
+    private final long flushTimeoutMs;
+    private final long reconnectSpreadMs;
+    private final Pause pause;
+    private final Counter closed;
+    private volatile boolean running;
+
+    @Autowired
+    public SessionDrain(MeterRegistry registry, SessionRegistry<WebSocketSession> sessions, SessionAdmission admission,
+            InboundDispatcher inbound, OutboundSessionFactory outbound, DeliveryAckBuffer acks,
+            @Value("${ws.drain.window-ms:20000}") long windowMs,
+            @Value("${ws.drain.waves:10}") int waves,
+            @Value("${ws.drain.flush-timeout-ms:5000}") long flushTimeoutMs,
+            @Value("${ws.drain.reconnect-spread-ms:10000}") long reconnectSpreadMs) {
+        this(registry, sessions, admission, inbound, outbound, acks, windowMs, waves, flushTimeoutMs,
+                reconnectSpreadMs, Thread::sleep);
+    }
+
+    SessionDrain(MeterRegistry registry, SessionRegistry<WebSocketSession> sessions, SessionAdmission admission,
+            InboundDispatcher inbound, OutboundSessionFactory outbound, DeliveryAckBuffer acks, long windowMs,
+            int waves, long flushTimeoutMs, long reconnectSpreadMs, Pause pause) {
+        this.sessions = sessions;
+        this.admission = admission;
+        this.inbound = inbound;
+        this.outbound = outbound;
+        this.acks = acks;
+        this.windowMs = Math.max(0, windowMs);
+        this.waves = Math.max(1, waves);
+        this.flushTimeoutMs = Math.max(0, flushTimeoutMs);
+        this.reconnectSpreadMs = Math.max(0, reconnectSpreadMs);
+        this.pause = pause;
+        this.closed = registry.counter("chat.ws.drain.closed");
+    }
+
+    @Override
+    public void start() {
+        running = true;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public void stop() {
+        try {
+            drain();
+        } finally {
+            running = false;
+        }
+    }
+
+    /**
+     * Drena en un hilo propio para no bloquear el apagado de otras fases
+     * del mismo nivel.
+     */
+    @Override
+    public void stop(Runnable callback) {
+        Thread t = new Thread(() -> {
+            try {
+                stop();
+            } finally {
+                callback.run();
+            }
+        }, "ws-drain");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Fase más alta: se detiene antes que el servidor web, mientras las
+     * conexiones siguen abiertas.
+     */
+    @Override
+    public int getPhase() {
+        return SmartLifecycle.DEFAULT_PHASE;
+    }
+
+    /**
+     * Ejecuta el drenado completo y vuelve al cerrar la última tanda.
+     */
+    void drain() {
+        admission.beginDrain();
+        log.info("WS: drenando {} sesiones en {} tandas durante {} ms", sessions.size(), waves, windowMs);
+        boolean interrupted = !awaitQuiet();
+        flushAcks();
+
+        List<WebSocketSession> remaining = new ArrayList<>(sessions.snapshot());
+        Collections.shuffle(remaining);
+        long gapMs = waves > 1 ? windowMs / (waves - 1) : 0;
+        for (int wave = 0; wave < waves && !remaining.isEmpty(); wave++) {
+            if (wave > 0 && !interrupted) {
+                interrupted = !sleep(gapMs);
+            }
+            boolean last = interrupted || wave == waves - 1;
+            int quota = last ? remaining.size() : (remaining.size() + waves - wave - 1) / (waves - wave);
+            closeWave(remaining, quota, last);
+        }
+        flushAcks();
+        log.info("WS: drenado terminado");
+    }
+
+    /**
+     * Cierra hasta {@code quota} sesiones de la lista y las retira de ella.
+     * Fuera de la última tanda, omite las que tienen mensajes por enviar.
+     */
+    private void closeWave(List<WebSocketSession> remaining, int quota, boolean last) {
+        int done = 0;
+        for (Iterator<WebSocketSession> it = remaining.iterator(); it.hasNext() && done < quota;) {
+            WebSocketSession s = it.next();
+            if (!last && s instanceof OutboundSession os && os.getQueueDepth() > 0) {
+                continue;
+            }
+            it.remove();
+            done++;
+            close(s);
+        }
+    }
+
+    private void close(WebSocketSession session) {
+        long retryAfterMs = ThreadLocalRandom.current().nextLong(reconnectSpreadMs + 1);
+        try {
+            session.close(CloseStatus.SERVICE_RESTARTED.withReason(RECONNECT_REASON + retryAfterMs));
+            closed.increment();
+        } catch (IOException | RuntimeException e) {
+            log.debug("WS: error cerrando sesión {} al drenar: {}", session.getId(), e.toString());
+        }
+    }
+
+    /**
+     * Espera a que no queden tramas entrantes ni mensajes de salida en
+     * proceso, hasta el tiempo límite.
+     *
+     * @return false si el hilo fue interrumpido.
+     */
+    private boolean awaitQuiet() {
+        for (long waited = 0; waited < flushTimeoutMs
+                && (inbound.pendingTasks() > 0 || outbound.queuedMessages() > 0); waited += QUIET_POLL_MS) {
+            if (!sleep(QUIET_POLL_MS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean sleep(long ms) {
+        if (ms <= 0) {
+            return true;
+        }
+        try {
+            pause.sleep(ms);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void flushAcks() {
+        try {
+            acks.flush();
+        } catch (Exception e) {
+            log.warn("WS: no se pudieron escribir confirmaciones al drenar: {}", e.toString());
+        }
+    }
+}
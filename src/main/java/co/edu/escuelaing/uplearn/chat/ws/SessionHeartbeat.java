@@ -0,0 +1,275 @@
+package co.edu.escuelaing.uplearn.chat.ws;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.PingMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Latido del servidor y desalojo de sesiones inactivas.
+ * <p>
+ * Cada sesión registrada ocupa una casilla de una rueda de tiempo
+ * (<i>hashed timing wheel</i>) con {@code ws.heartbeat.tick-ms} de
+ * resolución. En cada tick solo se revisa la casilla que vence: si la sesión
+ * no mostró actividad (trama o pong) durante {@code ws.heartbeat.interval-ms}
+ * se le envía un ping de protocolo, y si supera
+ * {@code ws.heartbeat.idle-timeout-ms} se entrega al manejador de inactivas
+ * para cerrarla y darla de baja. Registrar actividad es una escritura
+ * volátil; la rueda reubica la sesión de forma perezosa al revisarla, así el
+ * costo de un tick es proporcional a las sesiones que vencen y no al total.
+ */
+@Slf4j
+@Component
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+public class SessionHeartbeat {
+
+    static final String ATTR_ENTRY = "heartbeat";
+
+    private final boolean enabled;
+    private final long intervalMs;
+    private final long idleTimeoutMs;
+    private final long tickMs;
+    private final LongSupplier clock;
+    private final ScheduledExecutorService scheduler;
+
+    private final Queue<Entry>[] wheel;
+    private final Queue<Entry> incoming = new ConcurrentLinkedQueue<>();
+    private long tick;
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final Counter pings;
+    private final Counter idleEvicted;
+    private final Timer tickTime;
+    private volatile Consumer<WebSocketSession> onIdle = s -> {
+    };
+
+    @Autowired
+    public SessionHeartbeat(MeterRegistry registry,
+            @Value("${ws.heartbeat.interval-ms:25000}") long intervalMs,
+            @Value("${ws.heartbeat.idle-timeout-ms:60000}") long idleTimeoutMs,
+            @Value("${ws.heartbeat.tick-ms:1000}") long tickMs) {
+        this(registry, intervalMs, idleTimeoutMs, tickMs, System::currentTimeMillis,
+                intervalMs > 0 ? newScheduler() : null);
+    }
+
+    private static ScheduledExecutorService newScheduler() {
+        return Executors.newSingleThreadScheduledExecutor(OutboundSessionFactory.named("ws-heartbeat-"));
+    }
+
+    @SuppressWarnings("unchecked")
+    SessionHeartbeat(MeterRegistry registry, long intervalMs, long idleTimeoutMs, long tickMs, LongSupplier clock,
+            ScheduledExecutorService scheduler) {
+        this.enabled = intervalMs > 0;
+        this.intervalMs = Math.max(1, intervalMs);
+        this.idleTimeoutMs = Math.max(this.intervalMs, idleTimeoutMs);
+        this.tickMs = Math.max(1, tickMs);
+        this.clock = clock;
+        this.scheduler = scheduler;
+        int slots = (int) Math.min(4096, Math.max(1, (this.idleTimeoutMs + this.tickMs - 1) / this.tickMs));
+        this.wheel = new Queue[slots];
+        for (int i = 0; i < slots; i++) {
+            wheel[i] = new ArrayDeque<>();
+        }
+        Gauge.builder("chat.ws.sessions", active, AtomicInteger::get)
+                .description("Sesiones WebSocket vigiladas por el latido")
+                .register(registry);
+        this.pings = registry.counter("chat.ws.heartbeat.pings");
+        this.idleEvicted = registry.counter("chat.ws.heartbeat.idle-evicted");
+        this.tickTime = Timer.builder("chat.ws.heartbeat.tick")
+                .description("Costo de revisar una casilla de la rueda de latido")
+                .register(registry);
+        if (enabled && scheduler != null) {
+            scheduler.scheduleAtFixedRate(this::tickQuietly, this.tickMs, this.tickMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Sesión vigilada y su última actividad. */
+    static final class Entry {
+        final WebSocketSession session;
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        volatile long lastSeen;
+        /** Instante de la próxima revisión; solo lo toca el hilo de la rueda. */
+        long due;
+
+        Entry(WebSocketSession session, long now) {
+            this.session = session;
+            this.lastSeen = now;
+        }
+    }
+
+    /**
+     * Registra el manejador que cierra y da de baja las sesiones inactivas.
+     *
+     * @param handler recibe la sesión registrada que venció.
+     */
+    public void start(Consumer<WebSocketSession> handler) {
+        this.onIdle = handler;
+    }
+
+    /**
+     * Empieza a vigilar una sesión. Los pings se envían por la misma sesión,
+     * así que conviene registrar la sesión con cola de salida. Con
+     * {@code ws.heartbeat.interval-ms=0} solo se cuenta la sesión.
+     *
+     * @param session la sesión a vigilar.
+     */
+    public void register(WebSocketSession session) {
+        Entry entry = new Entry(session, clock.getAsLong());
+        entry.due = entry.lastSeen + intervalMs;
+        Object previous = session.getAttributes().put(ATTR_ENTRY, entry);
+        if (previous instanceof Entry old) {
+            cancel(old);
+        }
+        active.incrementAndGet();
+        if (enabled) {
+            incoming.add(entry);
+        }
+    }
+
+    /**
+     * Registra actividad de la sesión (cualquier trama entrante o un pong).
+     *
+     * @param session la sesión que mostró actividad.
+     */
+    public void touch(WebSocketSession session) {
+        if (session.getAttributes().get(ATTR_ENTRY) instanceof Entry entry) {
+            entry.lastSeen = clock.getAsLong();
+        }
+    }
+
+    /**
+     * Deja de vigilar la sesión. La casilla se libera de forma perezosa en su
+     * próxima revisión.
+     *
+     * @param session la sesión cerrada.
+     */
+    public void unregister(WebSocketSession session) {
+        if (session.getAttributes().remove(ATTR_ENTRY) instanceof Entry entry) {
+            cancel(entry);
+        }
+    }
+
+    private void cancel(Entry entry) {
+        if (entry.cancelled.compareAndSet(false, true)) {
+            active.decrementAndGet();
+        }
+    }
+
+    /**
+     * Número de sesiones vigiladas.
+     *
+     * @return la cantidad de sesiones registradas.
+     */
+    public int sessionCount() {
+        return active.get();
+    }
+
+    /**
+     * Avanza la rueda una casilla: ubica las sesiones recién registradas y
+     * revisa las que vencen en esta casilla. Solo lo llama el hilo del latido.
+     */
+    void tick() {
+        long start = System.nanoTime();
+        long now = clock.getAsLong();
+        Queue<Entry> bucket = wheel[(int) (tick % wheel.length)];
+        tick++;
+        int due = bucket.size();
+        Entry next;
+        while ((next = incoming.poll()) != null) {
+            if (!next.cancelled.get()) {
+                schedule(next, now);
+            }
+        }
+        for (int i = due; i > 0; i--) {
+            Entry e = bucket.poll();
+            if (e.cancelled.get()) {
+                continue;
+            }
+            if (e.due > now) {
+                // Aún le faltan vueltas a la rueda
+                bucket.add(e);
+                continue;
+            }
+            check(e, now);
+        }
+        tickTime.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    private void check(Entry e, long now) {
+        long idle = now - e.lastSeen;
+        if (idle >= idleTimeoutMs) {
+            if (e.cancelled.compareAndSet(false, true)) {
+                active.decrementAndGet();
+                idleEvicted.increment();
+                e.session.getAttributes().remove(ATTR_ENTRY, e);
+                reap(e.session, idle);
+            }
+            return;
+        }
+        if (idle >= intervalMs) {
+            ping(e.session);
+            e.due = Math.min(now + intervalMs, e.lastSeen + idleTimeoutMs);
+        } else {
+            e.due = e.lastSeen + intervalMs;
+        }
+        schedule(e, now);
+    }
+
+    private void schedule(Entry e, long now) {
+        long ticks = Math.max(1, (e.due - now + tickMs - 1) / tickMs);
+        wheel[(int) ((tick - 1 + ticks) % wheel.length)].add(e);
+    }
+
+    private void ping(WebSocketSession session) {
+        try {
+            session.sendMessage(new PingMessage());
+            pings.increment();
+        } catch (Exception e) {
+            log.debug("WS: no se pudo enviar ping a sesión {}: {}", session.getId(), e.toString());
+        }
+    }
+
+    private void reap(WebSocketSession session, long idleMs) {
+        log.info("WS: sesión {} sin actividad hace {} ms, cerrando", session.getId(), idleMs);
+        try {
+            onIdle.accept(session);
+        } catch (Exception e) {
+            log.warn("WS: error cerrando sesión inactiva {}: {}", session.getId(), e.toString());
+        }
+    }
+
+    private void tickQuietly() {
+        try {
+            tick();
+        } catch (Exception e) {
+            log.warn("WS: error en el latido: {}", e.toString());
+        }
+    }
+
+    /** Detiene el latido al apagar la aplicación. */
+    @PreDestroy
+    void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package co.edu.escuelaing.uplearn.chat.ws;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Registro local de sesiones por usuario, pensado para muchas conexiones por
+ * nodo.
+ * <p>
+ * Casi todos los usuarios tienen una sola sesión, así que el valor de cada
+ * usuario es directamente la sesión y solo pasa a ser un arreglo inmutable
+ * cuando hay dos o más: no se crea un conjunto concurrente por usuario. Las
+ * altas y bajas reemplazan el valor dentro de {@code compute} del mapa, de
+ * forma atómica por usuario, así una baja nunca descarta una sesión agregada
+ * en paralelo y los lectores recorren una copia estable sin bloquear. El
+ * mapa se reparte en {@code ws.registry.shards} fragmentos para acotar el
+ * costo de cada redimensionamiento, y los IDs de usuario se internan para
+ * que todas las sesiones de un usuario compartan la misma cadena.
+ * <p>
+ * El bean registra las sesiones del gateway de servlets; el gateway
+ * reactivo crea su propia instancia para sus conexiones.
+ *
+ * @param <S> el tipo de sesión registrada.
+ */
+@Component
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+public class SessionRegistry<S> {
+
+    private final ConcurrentHashMap<String, Object>[] shards;
+    private final int mask;
+    private final AtomicInteger sessions = new AtomicInteger();
+
+    @Autowired
+    @SuppressWarnings("unchecked")
+    public SessionRegistry(@Value("${ws.registry.shards:16}") int shards) {
+        int n = Integer.highestOneBit(Math.max(1, Math.min(shards, 1 << 10)));
+        this.shards = new ConcurrentHashMap[n];
+        for (int i = 0; i < n; i++) {
+            this.shards[i] = new ConcurrentHashMap<>();
+        }
+        this.mask = n - 1;
+    }
+
+    private ConcurrentHashMap<String, Object> shard(String userId) {
+        int h = userId.hashCode();
+        return shards[(h ^ (h >>> 16)) & mask];
+    }
+
+    /**
+     * Devuelve la instancia canónica de un ID de usuario, compartida por
+     * todas sus sesiones.
+     *
+     * @param userId el ID leído del token.
+     * @return la misma cadena, internada.
+     */
+    public static String intern(String userId) {
+        return userId != null ? userId.intern() : null;
+    }
+
+    /**
+     * Registra una sesión del usuario. Registrar dos veces la misma sesión no
+     * la duplica.
+     *
+     * @param userId  el usuario.
+     * @param session la sesión.
+     * @return cuántas sesiones tiene el usuario tras el alta.
+     */
+    public int add(String userId, S session) {
+        int[] count = new int[1];
+        shard(userId).compute(userId, (k, v) -> {
+            Object next = with(v, session);
+            if (next != v) {
+                sessions.incrementAndGet();
+            }
+            count[0] = sizeOf(next);
+            return next;
+        });
+        return count[0];
+    }
+
+    /**
+     * Retira una sesión del usuario; si era la última, el usuario desaparece
+     * del registro.
+     *
+     * @param userId  el usuario.
+     * @param session la sesión.
+     * @return true si la sesión estaba registrada.
+     */
+    public boolean remove(String userId, S session) {
+        boolean[] removed = new boolean[1];
+        shard(userId).computeIfPresent(userId, (k, v) -> {
+            Object next = without(v, session);
+            removed[0] = next != v;
+            return next;
+        });
+        if (removed[0]) {
+            sessions.decrementAndGet();
+        }
+        return removed[0];
+    }
+
+    /**
+     * Número de sesiones del usuario en este nodo.
+     *
+     * @param userId el usuario.
+     * @return la cantidad, 0 si no está conectado.
+     */
+    public int count(String userId) {
+        return userId == null ? 0 : sizeOf(shard(userId).get(userId));
+    }
+
+    /**
+     * Indica si el usuario tiene alguna sesión en este nodo.
+     *
+     * @param userId el usuario.
+     * @return true si hay al menos una sesión.
+     */
+    public boolean has(String userId) {
+        return userId != null && shard(userId).containsKey(userId);
+    }
+
+    /**
+     * Aplica una acción a cada sesión del usuario, sin asignar memoria en el
+     * caso de una sola sesión.
+     *
+     * @param userId el usuario.
+     * @param action la acción; devuelve true si tuvo éxito con esa sesión.
+     * @return cuántas sesiones devolvieron true.
+     */
+    @SuppressWarnings("unchecked")
+    public int forEach(String userId, Predicate<? super S> action) {
+        if (userId == null) {
+            return 0;
+        }
+        Object v = shard(userId).get(userId);
+        if (v == null) {
+            return 0;
+        }
+        if (!(v instanceof Object[] all)) {
+            return action.test((S) v) ? 1 : 0;
+        }
+        int ok = 0;
+        for (Object s : all) {
+            if (action.test((S) s)) {
+                ok++;
+            }
+        }
+        return ok;
+    }
+
+    /**
+     * Copia de todas las sesiones registradas en el nodo, para recorridos
+     * poco frecuentes como el drenado al apagar.
+     *
+     * @return las sesiones en el momento de la llamada.
+     */
+    @SuppressWarnings("unchecked")
+    public List<S> snapshot() {
+        List<Object> all = new ArrayList<>(sessions.get());
+        for (ConcurrentHashMap<String, Object> shard : shards) {
+            for (Object v : shard.values()) {
+                if (v instanceof Object[] many) {
+                    Collections.addAll(all, many);
+                } else {
+                    all.add(v);
+                }
+            }
+        }
+        return (List<S>) all;
+    }
+
+    /**
+     * Total de sesiones registradas en el nodo.
+     *
+     * @return la cantidad de sesiones.
+     */
+    public int size() {
+        return sessions.get();
+    }
+
+    /**
+     * Usuarios con al menos una sesión en el nodo.
+     *
+     * @return la cantidad de usuarios.
+     */
+    public int userCount() {
+        int n = 0;
+        for (ConcurrentHashMap<String, Object> shard : shards) {
+            n += shard.size();
+        }
+        return n;
+    }
+
+    private static int sizeOf(Object v) {
+        if (v == null) {
+            return 0;
+        }
+        return v instanceof Object[] all ? all.length : 1;
+    }
+
+    /** Valor con la sesión agregada; el mismo valor si ya estaba. */
+    private static Object with(Object v, Object session) {
+        if (v == null) {
+            return session;
+        }
+        if (!(v instanceof Object[] all)) {
+            return v == session ? v : new Object[] { v, session };
+        }
+        for (Object s : all) {
+            if (s == session) {
+                return v;
+            }
+        }
+        Object[] next = Arrays.copyOf(all, all.length + 1);
+        next[all.length] = session;
+        return next;
+    }
+
+    /** Valor sin la sesión (null si queda vacío); el mismo valor si no estaba. */
+    private static Object without(Object v, Object session) {
+        if (!(v instanceof Object[] all)) {
+            return v == session ? null : v;
+        }
+        int i = 0;
+        while (i < all.length && all[i] != session) {
+            i++;
+        }
+        if (i == all.length) {
+            return v;
+        }
+        if (all.length == 2) {
+            return all[1 - i];
+        }
+        Object[] next = new Object[all.length - 1];
+        System.arraycopy(all, 0, next, 0, i);
+        System.arraycopy(all, i + 1, next, i, all.length - i - 1);
+        return next;
+    }
+}
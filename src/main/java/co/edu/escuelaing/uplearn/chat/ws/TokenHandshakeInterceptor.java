@@ -0,0 +1,146 @@
+package co.edu.escuelaing.uplearn.chat.ws;
+
+import co.edu.escuelaing.uplearn.chat.service.AuthorizationService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.server.HandshakeInterceptor;
+import org.springframework.web.util.UriComponentsBuilder;
+import org.springframework.web.util.UriUtils;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Autentica el handshake de {@code /ws/chat} antes de aceptar la conexión.
+ * Primero consume una ficha de {@link SessionAdmission}; si el nodo está
+ * saturado responde {@code 503} con {@code Retry-After} sin validar el token
+ * ni hacer el upgrade. Luego valida el parámetro {@code token} con
+ * {@link AuthorizationService}; si falta o no es válido responde {@code 401}
+ * y no se crea la sesión WebSocket. Con el usuario ya conocido revisa los
+ * topes de sesiones del nodo y del usuario, también con {@code 503}. Si es válido deja en los atributos de la sesión el usuario, el
+ * encabezado {@code Bearer} y el cursor de reanudación, así el gateway no
+ * vuelve a leer la URL. El modo reactivo reutiliza la misma validación con
+ * {@link #authenticate(URI)}.
+ */
+@Slf4j
+@Component
+public class TokenHandshakeInterceptor implements HandshakeInterceptor {
+
+    public static final String ATTR_USER_ID = "userId";
+    public static final String ATTR_BEARER = "bearer";
+    public static final String ATTR_RESUME = "resume";
+    private static final String QUERY_PARAM_TOKEN = "token";
+    private static final String QUERY_PARAM_RESUME = "resume";
+    private static final String BEARER_PREFIX = "Bearer ";
+
+    private final AuthorizationService authz;
+    private final SessionAdmission admission;
+    private final SessionRegistry<WebSocketSession> sessions;
+
+    public TokenHandshakeInterceptor(AuthorizationService authz, SessionAdmission admission,
+            SessionRegistry<WebSocketSession> sessions) {
+        this.authz = authz;
+        this.admission = admission;
+        this.sessions = sessions;
+    }
+
+    /**
+     * Aplica la admisión y valida el token antes del upgrade.
+     *
+     * @param request    la petición HTTP del handshake.
+     * @param response   la respuesta; recibe {@code 401} o {@code 503} si se
+     *                   rechaza.
+     * @param wsHandler  el manejador destino.
+     * @param attributes los atributos que tendrá la sesión.
+     * @return true si se admite, el token es válido y el upgrade debe
+     *         continuar.
+     */
+    @Override
+    public boolean beforeHandshake(ServerHttpRequest request, ServerHttpResponse response,
+            WebSocketHandler wsHandler, Map<String, Object> attributes) {
+        long retryAfterMs = admission.checkRate();
+        if (retryAfterMs > 0) {
+            rejectOverloaded(response, retryAfterMs);
+            return false;
+        }
+        Map<String, Object> authenticated = authenticate(request.getURI());
+        if (authenticated == null) {
+            response.setStatusCode(HttpStatus.UNAUTHORIZED);
+            return false;
+        }
+        retryAfterMs = admission.checkCapacity(sessions.count((String) authenticated.get(ATTR_USER_ID)));
+        if (retryAfterMs > 0) {
+            rejectOverloaded(response, retryAfterMs);
+            return false;
+        }
+        attributes.putAll(authenticated);
+        return true;
+    }
+
+    /**
+     * Responde {@code 503} con {@code Retry-After} en segundos, redondeado
+     * hacia arriba desde la sugerencia de la admisión.
+     */
+    private static void rejectOverloaded(ServerHttpResponse response, long retryAfterMs) {
+        response.setStatusCode(HttpStatus.SERVICE_UNAVAILABLE);
+        response.getHeaders().set(HttpHeaders.RETRY_AFTER,
+                String.valueOf(TimeUnit.MILLISECONDS.toSeconds(retryAfterMs + 999)));
+        log.debug("WS: handshake rechazado por admisión, reintentar en {} ms", retryAfterMs);
+    }
+
+    /**
+     * Valida el token de la URL del handshake, sin depender del servidor:
+     * lo usan el handshake de servlets y el reactivo.
+     *
+     * @param uri la URL del handshake.
+     * @return los atributos de la sesión (usuario, {@code Bearer} y cursor),
+     *         o null si falta el token o no es válido.
+     */
+    public Map<String, Object> authenticate(URI uri) {
+        MultiValueMap<String, String> params = UriComponentsBuilder.fromUri(uri)
+                .build()
+                .getQueryParams();
+        String token = params.getFirst(QUERY_PARAM_TOKEN);
+        if (token == null || token.isBlank()) {
+            return null;
+        }
+
+        String bearer = BEARER_PREFIX + token;
+        String userId;
+        try {
+            userId = authz.subject(bearer);
+        } catch (Exception e) {
+            log.debug("WS: handshake rechazado, token inválido: {}", e.toString());
+            return null;
+        }
+        if (userId == null || userId.isBlank()) {
+            return null;
+        }
+
+        Map<String, Object> attributes = new HashMap<>(4);
+        attributes.put(ATTR_USER_ID, userId);
+        attributes.put(ATTR_BEARER, bearer);
+        String resume = params.getFirst(QUERY_PARAM_RESUME);
+        if (resume != null) {
+            // Un cursor ISO puede traer %2B en el desfase
+            attributes.put(ATTR_RESUME, UriUtils.decode(resume, StandardCharsets.UTF_8));
+        }
+        return attributes;
+    }
+
+    @Override
+    public void afterHandshake(ServerHttpRequest request, ServerHttpResponse response, WebSocketHandler wsHandler,
+            Exception exception) {
+        // Sin trabajo posterior al handshake
+    }
+}
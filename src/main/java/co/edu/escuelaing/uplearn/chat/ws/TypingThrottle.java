@@ -0,0 +1,67 @@
+package co.edu.escuelaing.uplearn.chat.ws;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Ticker;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * Limita los indicadores de escritura por par (emisor, contraparte). Un
+ * {@code start} se reenvía como mucho una vez por ventana; los repetidos
+ * dentro de la ventana se descartan. Un {@code stop} solo se reenvía si hubo
+ * un {@code start} reenviado aún vigente, y reabre la ventana.
+ * <p>
+ * Los eventos de escritura no se persisten: el receptor debe ocultar el
+ * indicador por su cuenta si no llega un {@code start} nuevo tras la ventana.
+ */
+@Component
+public class TypingThrottle {
+
+    private static final char SEP = '\u0000';
+
+    private final Cache<String, Boolean> recent;
+    private final Counter forwarded;
+    private final Counter collapsed;
+
+    @Autowired
+    public TypingThrottle(MeterRegistry registry, @Value("${chat.typing.window-ms:3000}") long windowMs) {
+        this(registry, windowMs, Ticker.systemTicker());
+    }
+
+    TypingThrottle(MeterRegistry registry, long windowMs, Ticker ticker) {
+        this.recent = Caffeine.newBuilder()
+                .expireAfterWrite(Duration.ofMillis(Math.max(1, windowMs)))
+                .ticker(ticker)
+                .maximumSize(100_000)
+                .build();
+        this.forwarded = Counter.builder("chat.typing.forwarded")
+                .description("Indicadores de escritura reenviados")
+                .register(registry);
+        this.collapsed = Counter.builder("chat.typing.collapsed")
+                .description("Indicadores de escritura descartados por repetidos")
+                .register(registry);
+    }
+
+    /**
+     * Decide si un indicador de escritura debe reenviarse.
+     *
+     * @param fromUserId el usuario que escribe.
+     * @param toUserId   la contraparte.
+     * @param stop       true si el usuario dejó de escribir.
+     * @return true si se debe reenviar.
+     */
+    public boolean shouldForward(String fromUserId, String toUserId, boolean stop) {
+        String key = fromUserId + SEP + toUserId;
+        boolean forward = stop
+                ? recent.asMap().remove(key) != null
+                : recent.asMap().putIfAbsent(key, Boolean.TRUE) == null;
+        (forward ? forwarded : collapsed).increment();
+        return forward;
+    }
+}
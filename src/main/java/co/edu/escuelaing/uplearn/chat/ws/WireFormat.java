@@ -0,0 +1,81 @@
+package co.edu.escuelaing.uplearn.chat.ws;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.List;
+
+/**
+ * Formatos de trama soportados por el WebSocket de chat. El cliente elige uno
+ * con el subprotocolo ({@code Sec-WebSocket-Protocol}); sin subprotocolo se
+ * usa JSON en tramas de texto, como antes. Ambos formatos transportan los
+ * mismos DTOs.
+ */
+public enum WireFormat {
+
+    /** JSON UTF-8 en tramas de texto. */
+    JSON("chat.json", new ObjectMapper()),
+
+    /** CBOR (JSON binario compacto) en tramas binarias. */
+    CBOR("chat.cbor", new ObjectMapper(new CBORFactory()));
+
+    static final String ATTR = "wireFormat";
+
+    private final String subProtocol;
+    private final ObjectMapper mapper;
+
+    WireFormat(String subProtocol, ObjectMapper mapper) {
+        this.subProtocol = subProtocol;
+        this.mapper = mapper;
+    }
+
+    /**
+     * Nombre del subprotocolo WebSocket de este formato.
+     *
+     * @return el subprotocolo.
+     */
+    public String subProtocol() {
+        return subProtocol;
+    }
+
+    /**
+     * ObjectMapper compartido del formato (seguro entre hilos).
+     *
+     * @return el mapper.
+     */
+    public ObjectMapper mapper() {
+        return mapper;
+    }
+
+    /**
+     * Subprotocolos anunciados en el handshake, en orden de preferencia.
+     *
+     * @return los nombres de subprotocolo.
+     */
+    public static List<String> subProtocols() {
+        return List.of(CBOR.subProtocol, JSON.subProtocol);
+    }
+
+    /**
+     * Formato correspondiente a un subprotocolo negociado.
+     *
+     * @param subProtocol el subprotocolo aceptado, o null.
+     * @return el formato; JSON si no hay subprotocolo o no se reconoce.
+     */
+    public static WireFormat fromSubProtocol(String subProtocol) {
+        return CBOR.subProtocol.equalsIgnoreCase(subProtocol) ? CBOR : JSON;
+    }
+
+    /**
+     * Formato de una sesión: el guardado al conectar o, si no hay, el del
+     * subprotocolo negociado.
+     *
+     * @param session la sesión.
+     * @return el formato de la sesión.
+     */
+    public static WireFormat of(WebSocketSession session) {
+        Object format = session.getAttributes().get(ATTR);
+        return format instanceof WireFormat wf ? wf : fromSubProtocol(session.getAcceptedProtocol());
+    }
+}
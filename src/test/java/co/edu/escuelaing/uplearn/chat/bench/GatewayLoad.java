@@ -0,0 +1,179 @@
+package co.edu.escuelaing.uplearn.chat.bench;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.web.reactive.socket.WebSocketMessage;
+import org.springframework.web.reactive.socket.WebSocketSession;
+import org.springframework.web.reactive.socket.client.ReactorNettyWebSocketClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Carga comparativa de los dos gateways contra un servidor en marcha (no es
+ * un benchmark JMH): abre {@code LOAD_CONNECTIONS} conexiones en parejas que
+ * se escriben entre sí y mide, desde el envío hasta la recepción en el otro
+ * extremo, mensajes por segundo y latencias p50/p99/máx. El servidor se
+ * levanta una vez con cada modo (sin perfil y con {@code reactive}) y se
+ * comparan las dos salidas.
+ * <p>
+ * El servidor solo decodifica el token, así que basta un JWT sin firmar; el
+ * servicio de reservas debe autorizar a los usuarios {@code load-u*} y el
+ * límite de envío debe admitir el ritmo elegido.
+ * <p>
+ * Variables: {@code LOAD_URL} (ws://localhost:8080/ws/chat),
+ * {@code LOAD_CONNECTIONS} (1000), {@code LOAD_MESSAGES} por conexión (100),
+ * {@code LOAD_INTERVAL_MS} entre envíos de una conexión (200) y
+ * {@code LOAD_TIMEOUT_S} (300).
+ * <p>
+ * Ejecutar:
+ * {@code mvn -Pbench test-compile exec:exec -Dbench.main=co.edu.escuelaing.uplearn.chat.bench.GatewayLoad -Dbench=servlet}
+ */
+public final class GatewayLoad {
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    private final URI url;
+    private final int connections;
+    private final int messages;
+    private final long intervalMs;
+    private final long[] latencies;
+    private final AtomicInteger received = new AtomicInteger();
+    private final AtomicInteger errors = new AtomicInteger();
+    private final AtomicInteger connected = new AtomicInteger();
+    private final Sinks.Empty<Void> allConnected = Sinks.empty();
+
+    private GatewayLoad(URI url, int connections, int messages, long intervalMs) {
+        this.url = url;
+        this.connections = connections;
+        this.messages = messages;
+        this.intervalMs = intervalMs;
+        this.latencies = new long[connections * messages];
+    }
+
+    public static void main(String[] args) {
+        String label = args.length > 0 ? args[0] : "gateway";
+        GatewayLoad load = new GatewayLoad(
+                URI.create(env("LOAD_URL", "ws://localhost:8080/ws/chat")),
+                Math.max(2, Integer.parseInt(env("LOAD_CONNECTIONS", "1000")) & ~1),
+                Math.max(1, Integer.parseInt(env("LOAD_MESSAGES", "100"))),
+                Math.max(1, Long.parseLong(env("LOAD_INTERVAL_MS", "200"))));
+        load.run(label, Duration.ofSeconds(Long.parseLong(env("LOAD_TIMEOUT_S", "300"))));
+    }
+
+    private void run(String label, Duration timeout) {
+        ReactorNettyWebSocketClient client = new ReactorNettyWebSocketClient();
+        long[] sendingSince = new long[1];
+        allConnected.asMono().doOnTerminate(() -> sendingSince[0] = System.nanoTime()).subscribe();
+
+        Flux.range(0, connections)
+                .flatMap(i -> connection(client, i), connections)
+                .timeout(timeout)
+                .onErrorResume(e -> {
+                    System.err.println("Carga interrumpida: " + e);
+                    return Mono.empty();
+                })
+                .blockLast();
+
+        double seconds = (System.nanoTime() - sendingSince[0]) / 1e9;
+        int count = Math.min(received.get(), latencies.length);
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        System.out.printf("%s: conexiones=%d conectadas=%d recibidos=%d/%d errores=%d%n", label, connections,
+                connected.get(), count, latencies.length, errors.get());
+        System.out.printf("%s: %.0f msg/s  p50=%.2f ms  p99=%.2f ms  max=%.2f ms%n", label, count / seconds,
+                percentile(sorted, 0.50), percentile(sorted, 0.99), percentile(sorted, 1.0));
+    }
+
+    /**
+     * Una conexión de la pareja {@code i / i^1}: espera a que todas estén
+     * abiertas, envía {@code messages} mensajes a su pareja con un desfase al
+     * azar y termina al recibir todos los de ella.
+     */
+    private Mono<Void> connection(ReactorNettyWebSocketClient client, int i) {
+        String me = "load-u" + i;
+        String peer = "load-u" + (i ^ 1);
+        URI uri = URI.create(url + "?token=" + token(me));
+        return client.execute(uri, session -> {
+            if (connected.incrementAndGet() == connections) {
+                allConnected.tryEmitEmpty();
+            }
+            long offset = ThreadLocalRandom.current().nextLong(intervalMs);
+            Flux<WebSocketMessage> out = allConnected.asMono()
+                    .thenMany(Flux.interval(Duration.ofMillis(offset), Duration.ofMillis(intervalMs)))
+                    .take(messages)
+                    .map(n -> session.textMessage(
+                            "{\"toUserId\":\"" + peer + "\",\"content\":\"" + System.nanoTime() + "\"}"));
+            AtomicInteger fromPeer = new AtomicInteger();
+            Mono<Void> in = session.receive()
+                    .filter(m -> m.getType() == WebSocketMessage.Type.TEXT)
+                    .map(WebSocketMessage::getPayloadAsText)
+                    .filter(text -> record(peer, text))
+                    .takeUntil(text -> fromPeer.incrementAndGet() >= messages)
+                    .then();
+            return Mono.when(session.send(out), in).then(Mono.defer(() -> close(session)));
+        }).onErrorResume(e -> {
+            errors.incrementAndGet();
+            return Mono.empty();
+        });
+    }
+
+    /**
+     * Registra la latencia si la trama es un mensaje de la pareja.
+     *
+     * @return true si era un mensaje de la pareja.
+     */
+    private boolean record(String peer, String text) {
+        long now = System.nanoTime();
+        try {
+            JsonNode node = JSON.readTree(text);
+            if (node.has("error")) {
+                errors.incrementAndGet();
+                return false;
+            }
+            if (!peer.equals(node.path("fromUserId").asText())) {
+                return false;
+            }
+            int slot = received.getAndIncrement();
+            if (slot < latencies.length) {
+                latencies[slot] = now - Long.parseLong(node.path("content").asText());
+            }
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private static Mono<Void> close(WebSocketSession session) {
+        return session.close().onErrorResume(e -> Mono.empty());
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+    }
+
+    /** JWT sin firmar con solo {@code sub}: el servidor no verifica la firma. */
+    private static String token(String subject) {
+        Base64.Encoder b64 = Base64.getUrlEncoder().withoutPadding();
+        String header = b64.encodeToString("{\"alg\":\"none\"}".getBytes(StandardCharsets.UTF_8));
+        String payload = b64.encodeToString(("{\"sub\":\"" + subject + "\"}").getBytes(StandardCharsets.UTF_8));
+        return header + "." + payload + ".x";
+    }
+
+    private static String env(String name, String fallback) {
+        String value = System.getenv(name);
+        return value == null || value.isBlank() ? fallback : value;
+    }
+}
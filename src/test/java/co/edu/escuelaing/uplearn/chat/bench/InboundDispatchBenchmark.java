@@ -0,0 +1,86 @@
+package co.edu.escuelaing.uplearn.chat.bench;
+
+import co.edu.escuelaing.uplearn.chat.ws.InboundDispatcher;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.adapter.standard.StandardWebSocketSession;
+
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Compara el procesamiento de tramas entrantes en el hilo del contenedor
+ * ({@code inline}, comportamiento previo) contra el despacho a un pool
+ * ({@code platform}). Cada hilo de JMH hace de hilo de E/S del contenedor con
+ * su propia sesión; el trabajo simulado emula la llamada bloqueante a
+ * reservas y las escrituras en Mongo.
+ * <ul>
+ * <li>{@code containerThreadOccupancy}: tiempo que el hilo del contenedor queda
+ * ocupado por trama (percentiles con SampleTime).</li>
+ * <li>{@code endToEndLatency}: latencia completa hasta que la trama termina de
+ * procesarse, incluida la espera en el carril de la sesión.</li>
+ * </ul>
+ * Ejecutar: {@code mvn -Pbench test-compile exec:exec -Dbench=InboundDispatch}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(16)
+public class InboundDispatchBenchmark {
+
+    @Param({ "inline", "platform" })
+    public String mode;
+
+    @Param({ "2" })
+    public long upstreamMillis;
+
+    private InboundDispatcher dispatcher;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        dispatcher = new InboundDispatcher(new SimpleMeterRegistry(), mode, 32, 10_000);
+    }
+
+    /** Conexión simulada: una sesión por hilo del contenedor. */
+    @State(Scope.Thread)
+    public static class Connection {
+        final WebSocketSession session = new StandardWebSocketSession(null, new HashMap<>(), null, null);
+        CountDownLatch previous = new CountDownLatch(0);
+
+        /** Un cliente real no envía la siguiente trama hasta recibir el eco. */
+        @Setup(Level.Invocation)
+        public void awaitPrevious() throws InterruptedException {
+            previous.await();
+        }
+    }
+
+    @Benchmark
+    public void containerThreadOccupancy(Connection c) throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        c.previous = done;
+        dispatcher.dispatch(c.session, () -> handle(done));
+    }
+
+    @Benchmark
+    public void endToEndLatency(Connection c) throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        dispatcher.dispatch(c.session, () -> handle(done));
+        done.await();
+    }
+
+    /**
+     * Trabajo bloqueante simulado de una trama (canChat + ensureChat + save).
+     *
+     * @param done latch a liberar al terminar.
+     */
+    private void handle(CountDownLatch done) {
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(upstreamMillis));
+        done.countDown();
+    }
+}
@@ -0,0 +1,93 @@
+package co.edu.escuelaing.uplearn.chat.bench;
+
+import co.edu.escuelaing.uplearn.chat.dto.ChatMessageData;
+import co.edu.escuelaing.uplearn.chat.ws.OutboundFrame;
+import co.edu.escuelaing.uplearn.chat.ws.RelayEnvelope;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.web.socket.TextMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Costo de difundir un mensaje de sala a todos sus miembros, por mensaje:
+ * <ul>
+ * <li>{@code room}: como {@code RoomFanOut}, una trama codificada una vez y
+ * compartida por todos los miembros, y un único sobre de sala para Redis.</li>
+ * <li>{@code perRecipient}: como un chat entre dos usuarios repetido por
+ * miembro, una serialización, una trama y un sobre por destinatario.</li>
+ * </ul>
+ * El contador auxiliar {@code bytesPublished} reporta los bytes enviados a
+ * Redis por mensaje.
+ * Ejecutar: {@code mvn -Pbench test-compile exec:exec -Dbench=RoomFanOut}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoomFanOutBenchmark {
+
+    private static final String NODE = "node-a";
+    private static final String ROOM = "6710f2a4c1e5b83d9a0f4e20";
+
+    @Param({ "30", "200" })
+    public int members;
+
+    private final ObjectMapper json = new ObjectMapper();
+    private final List<String> memberIds = new ArrayList<>();
+    private ChatMessageData message;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        for (int i = 0; i < members; i++) {
+            memberIds.add("b7e23ec2-9d4f-4a1b-8c3e-" + String.format("%012d", i));
+        }
+        message = ChatMessageData.builder()
+                .id("6710f2a4c1e5b83d9a0f4e21")
+                .chatId(ROOM)
+                .fromUserId(memberIds.get(0))
+                .content("x".repeat(256))
+                .createdAt("2024-10-17T15:04:05.123Z")
+                .seq(42)
+                .build();
+    }
+
+    /** Bytes publicados en Redis por mensaje, reportado como contador auxiliar. */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Published {
+        public long bytesPublished;
+    }
+
+    @Benchmark
+    public void room(Published published, Blackhole bh) throws Exception {
+        OutboundFrame frame = OutboundFrame.encode(json, message);
+        for (String userId : memberIds) {
+            bh.consume(userId);
+            bh.consume(frame.text());
+        }
+        byte[] body = RelayEnvelope.encodeRoom(NODE, ROOM, message.getId(), message.getFromUserId(), frame);
+        published.bytesPublished = body.length;
+        bh.consume(body);
+    }
+
+    @Benchmark
+    public void perRecipient(Published published, Blackhole bh) throws Exception {
+        long bytes = 0;
+        for (String userId : memberIds) {
+            OutboundFrame frame = OutboundFrame.wrap(json.writeValueAsBytes(message));
+            TextMessage text = frame.text();
+            bh.consume(userId);
+            bh.consume(text);
+            byte[] body = RelayEnvelope.encode(NODE, message.getId(), message.getFromUserId(), userId, frame);
+            bytes += body.length;
+            bh.consume(body);
+        }
+        published.bytesPublished = bytes;
+    }
+}
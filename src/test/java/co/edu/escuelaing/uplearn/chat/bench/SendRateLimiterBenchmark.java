@@ -0,0 +1,57 @@
+package co.edu.escuelaing.uplearn.chat.bench;
+
+import co.edu.escuelaing.uplearn.chat.ws.SendRateLimiter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Costo del límite de envío en el camino normal (sin rechazos): {@code off}
+ * es la línea base sin límite y {@code local} consulta el balde en memoria
+ * del usuario. Cada hilo de JMH hace de carril de entrada y rota entre
+ * {@code users} usuarios, de modo que con muchos usuarios también se mide el
+ * acceso a la caché de baldes. La tasa configurada es lo bastante alta para
+ * que ningún envío se rechace.
+ * Ejecutar: {@code mvn -Pbench test-compile exec:exec -Dbench=SendRateLimiter}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(16)
+public class SendRateLimiterBenchmark {
+
+    @Param({ "off", "local" })
+    public String mode;
+
+    @Param({ "1", "10000" })
+    public int users;
+
+    private SendRateLimiter limiter;
+    private String[] userIds;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        limiter = new SendRateLimiter(new SimpleMeterRegistry(), mode, 1e9, 1_000_000, 5, null);
+        userIds = new String[users];
+        for (int i = 0; i < users; i++) {
+            userIds[i] = "user-" + i;
+        }
+    }
+
+    /** Posición de cada hilo en la rotación de usuarios. */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Benchmark
+    public long acquire(Cursor c) {
+        int i = c.next;
+        c.next = i + 1 == userIds.length ? 0 : i + 1;
+        return limiter.acquire(userIds[i], 1);
+    }
+}
@@ -0,0 +1,200 @@
+package co.edu.escuelaing.uplearn.chat.bench;
+
+import co.edu.escuelaing.uplearn.chat.ws.SessionRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.adapter.standard.StandardWebSocketSession;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registro de sesiones del gateway: {@code map} reproduce el registro
+ * anterior (un {@code ConcurrentHashMap.newKeySet()} por usuario) y
+ * {@code registry} es {@link SessionRegistry}. Tres medidas:
+ * <ul>
+ * <li>{@code connectDisconnect}: alta y baja de la sesión de un usuario sin
+ * otras sesiones, el caso de una reconexión; 8 hilos compiten.</li>
+ * <li>{@code deliver}: recorrido de las sesiones de un usuario conectado,
+ * como en cada entrega.</li>
+ * <li>{@code footprint}: {@code connections} usuarios con una sesión cada
+ * uno; el contador auxiliar {@code bytesPerConnection} es el heap retenido
+ * por el registro por conexión. Las sesiones y los IDs se crean antes de
+ * medir, así solo cuenta la estructura del registro.</li>
+ * </ul>
+ * Ejecutar: {@code mvn -Pbench test-compile exec:exec -Dbench=SessionRegistry}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class SessionRegistryBenchmark {
+
+    @Param({ "map", "registry" })
+    public String impl;
+
+    @Param({ "100000" })
+    public int connections;
+
+    private Index index;
+    private String[] userIds;
+    private WebSocketSession[] sessions;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        userIds = new String[connections];
+        sessions = new WebSocketSession[connections];
+        for (int i = 0; i < connections; i++) {
+            userIds[i] = SessionRegistry.intern("user-" + i);
+            sessions[i] = new StandardWebSocketSession(null, new HashMap<>(), null, null);
+        }
+        index = newIndex(impl);
+        // La mitad conectada, para que deliver encuentre sesiones y connectDisconnect no
+        for (int i = 0; i < connections; i += 2) {
+            index.add(userIds[i], sessions[i]);
+        }
+    }
+
+    /**
+     * Posición par de cada hilo en la rotación de usuarios; cada hilo parte
+     * de un punto al azar para no competir siempre por el mismo usuario.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+        int bound;
+
+        @Setup(Level.Trial)
+        public void start(SessionRegistryBenchmark b) {
+            bound = b.connections & ~1;
+            next = ThreadLocalRandom.current().nextInt(bound / 2) * 2;
+        }
+
+        int advance() {
+            int i = next;
+            next = i + 2 == bound ? 0 : i + 2;
+            return i;
+        }
+    }
+
+    @Benchmark
+    @Threads(8)
+    public int connectDisconnect(Cursor c) {
+        // Impares: usuarios sin sesión
+        int i = c.advance() + 1;
+        int n = index.add(userIds[i], sessions[i]);
+        index.remove(userIds[i], sessions[i]);
+        return n;
+    }
+
+    @Benchmark
+    @Threads(8)
+    public int deliver(Cursor c) {
+        return index.deliver(userIds[c.advance()]);
+    }
+
+    /** Resultado de la medida de memoria, informado por JMH junto al tiempo. */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Footprint {
+        public long bytesPerConnection;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    @Threads(1)
+    public Object footprint(Footprint f) {
+        index = null;
+        long before = usedHeap();
+        Index fresh = newIndex(impl);
+        for (int i = 0; i < connections; i++) {
+            fresh.add(userIds[i], sessions[i]);
+        }
+        long after = usedHeap();
+        f.bytesPerConnection = (after - before) / connections;
+        index = fresh;
+        return fresh;
+    }
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    private static Index newIndex(String impl) {
+        return "map".equals(impl) ? new MapIndex() : new RegistryIndex();
+    }
+
+    private interface Index {
+        int add(String userId, WebSocketSession session);
+
+        void remove(String userId, WebSocketSession session);
+
+        int deliver(String userId);
+    }
+
+    /** El registro anterior del gateway, tal cual. */
+    private static final class MapIndex implements Index {
+        private final Map<String, Set<WebSocketSession>> sessionsByUser = new ConcurrentHashMap<>();
+
+        @Override
+        public int add(String userId, WebSocketSession session) {
+            return sessionsByUser.compute(userId, (k, set) -> {
+                Set<WebSocketSession> s = set != null ? set : ConcurrentHashMap.newKeySet();
+                s.add(session);
+                return s;
+            }).size();
+        }
+
+        @Override
+        public void remove(String userId, WebSocketSession session) {
+            sessionsByUser.computeIfPresent(userId, (k, set) -> {
+                set.remove(session);
+                return set.isEmpty() ? null : set;
+            });
+        }
+
+        @Override
+        public int deliver(String userId) {
+            int sent = 0;
+            for (WebSocketSession s : sessionsByUser.getOrDefault(userId, Collections.emptySet())) {
+                if (s != null) {
+                    sent++;
+                }
+            }
+            return sent;
+        }
+    }
+
+    private static final class RegistryIndex implements Index {
+        private final SessionRegistry<WebSocketSession> registry = new SessionRegistry<>(16);
+
+        @Override
+        public int add(String userId, WebSocketSession session) {
+            return registry.add(userId, session);
+        }
+
+        @Override
+        public void remove(String userId, WebSocketSession session) {
+            registry.remove(userId, session);
+        }
+
+        @Override
+        public int deliver(String userId) {
+            return registry.forEach(userId, s -> s != null);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package co.edu.escuelaing.uplearn.chat.bench;
+
+import co.edu.escuelaing.uplearn.chat.dto.ChatMessageData;
+import co.edu.escuelaing.uplearn.chat.dto.SendMessageRequest;
+import co.edu.escuelaing.uplearn.chat.ws.OutboundFrame;
+import co.edu.escuelaing.uplearn.chat.ws.WireFormat;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compara JSON (tramas de texto) contra CBOR (tramas binarias) por mensaje:
+ * <ul>
+ * <li>{@code encode}: serializar un {@link ChatMessageData} saliente.</li>
+ * <li>{@code decode}: leer un {@link SendMessageRequest} entrante como árbol y
+ * convertirlo al DTO, igual que el gateway.</li>
+ * <li>{@code transcodeRelayed}: costo extra de servir en CBOR una trama
+ * recibida de otro nodo (que siempre viaja en JSON).</li>
+ * </ul>
+ * El contador auxiliar {@code bytesPerMessage} reporta el tamaño de la trama
+ * de cada formato.
+ * Ejecutar: {@code mvn -Pbench test-compile exec:exec -Dbench=WireFormat}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WireFormatBenchmark {
+
+    @Param({ "json", "cbor" })
+    public String format;
+
+    @Param({ "64", "1024" })
+    public int contentLength;
+
+    private WireFormat wire;
+    private ObjectMapper mapper;
+    private ChatMessageData outbound;
+    private byte[] inbound;
+    private byte[] relayedJson;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        wire = WireFormat.valueOf(format.toUpperCase(Locale.ROOT));
+        mapper = wire.mapper();
+        String content = "x".repeat(contentLength);
+        outbound = ChatMessageData.builder()
+                .id("6710f2a4c1e5b83d9a0f4e21")
+                .chatId("9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08")
+                .fromUserId("b7e23ec2-9d4f-4a1b-8c3e-5f6a7b8c9d0e")
+                .toUserId("1a2b3c4d-5e6f-4a7b-8c9d-0e1f2a3b4c5d")
+                .content(content)
+                .createdAt("2024-10-17T15:04:05.123Z")
+                .build();
+        inbound = mapper.writeValueAsBytes(SendMessageRequest.builder()
+                .toUserId(outbound.getToUserId()).content(content).clientId("c-1").build());
+        relayedJson = WireFormat.JSON.mapper().writeValueAsBytes(outbound);
+    }
+
+    /** Tamaño de la trama saliente, reportado como contador auxiliar. */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Size {
+        public long bytesPerMessage;
+    }
+
+    @Benchmark
+    public byte[] encode(Size size) throws Exception {
+        byte[] bytes = mapper.writeValueAsBytes(outbound);
+        size.bytesPerMessage = bytes.length;
+        return bytes;
+    }
+
+    @Benchmark
+    public SendMessageRequest decode() throws Exception {
+        JsonNode root = mapper.readTree(inbound);
+        return mapper.treeToValue(root, SendMessageRequest.class);
+    }
+
+    @Benchmark
+    public Object transcodeRelayed() {
+        return OutboundFrame.wrap(relayedJson).messageFor(wire);
+    }
+}
@@ -1,6 +1,7 @@
 package co.edu.escuelaing.uplearn.chat.config;
 
 import co.edu.escuelaing.uplearn.chat.ws.ChatWebSocketGateway;
+import co.edu.escuelaing.uplearn.chat.ws.TokenHandshakeInterceptor;
 import org.junit.jupiter.api.Test;
 import org.springframework.test.util.ReflectionTestUtils; 
 import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistration;
@@ -14,7 +15,8 @@ class WebSocketConfigTest {
     @Test
     void registerWebSocketHandlers_agregaHandler_OK1y2() {
         ChatWebSocketGateway gw = mock(ChatWebSocketGateway.class);
-        WebSocketConfig cfg = new WebSocketConfig(gw);
+        TokenHandshakeInterceptor interceptor = mock(TokenHandshakeInterceptor.class);
+        WebSocketConfig cfg = new WebSocketConfig(gw, interceptor);
         
         ReflectionTestUtils.setField(cfg, "allowed", "*");
 
@@ -26,13 +28,14 @@ class WebSocketConfigTest {
         cfg.registerWebSocketHandlers(reg);
 
         verify(reg).addHandler(gw, "/ws/chat");
+        verify(registration).addInterceptors(interceptor);
         verify(registration).setAllowedOriginPatterns("*");
     }
 
     @Test
     void registerWebSocketHandlers_registryNull_FAIL1() {
         ChatWebSocketGateway gw = mock(ChatWebSocketGateway.class);
-        WebSocketConfig cfg = new WebSocketConfig(gw);
+        WebSocketConfig cfg = new WebSocketConfig(gw, mock(TokenHandshakeInterceptor.class));
         ReflectionTestUtils.setField(cfg, "allowed", "*"); 
         
         assertThrows(NullPointerException.class, () -> cfg.registerWebSocketHandlers(null));
@@ -40,7 +43,7 @@ class WebSocketConfigTest {
 
     @Test
     void registerWebSocketHandlers_gatewayNull_FAIL2() {
-        WebSocketConfig cfg = new WebSocketConfig(null);
+        WebSocketConfig cfg = new WebSocketConfig(null, null);
         ReflectionTestUtils.setField(cfg, "allowed", "*");
 
         WebSocketHandlerRegistry reg = mock(WebSocketHandlerRegistry.class);
@@ -6,16 +6,21 @@ import co.edu.escuelaing.uplearn.chat.dto.ChatMessageData;
 import co.edu.escuelaing.uplearn.chat.dto.PublicProfile;
 import co.edu.escuelaing.uplearn.chat.dto.RolesResponse;
 import co.edu.escuelaing.uplearn.chat.service.AuthorizationService;
+import co.edu.escuelaing.uplearn.chat.service.ChatPermissionCache;
 import co.edu.escuelaing.uplearn.chat.service.ChatService;
 import co.edu.escuelaing.uplearn.chat.service.ReservationClient;
 import co.edu.escuelaing.uplearn.chat.service.UserServiceClient;
+import co.edu.escuelaing.uplearn.chat.ws.ChatWebSocketGateway;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.http.ResponseEntity;
 
+import java.time.Instant;
 import java.util.*;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.*;
 
@@ -25,6 +30,8 @@ class ChatControllerTest {
     ChatService chat;
     ReservationClient reservations;
     UserServiceClient users;
+    ChatPermissionCache permissions;
+    ChatWebSocketGateway gateway;
     ChatController controller;
 
     @BeforeEach
@@ -33,7 +40,9 @@ class ChatControllerTest {
         chat = mock(ChatService.class);
         reservations = mock(ReservationClient.class);
         users = mock(UserServiceClient.class);
-        controller = new ChatController(authz, chat, reservations, users);
+        permissions = mock(ChatPermissionCache.class);
+        gateway = mock(ChatWebSocketGateway.class);
+        controller = new ChatController(authz, chat, reservations, users, permissions, gateway);
     }
 
     @Test
@@ -85,7 +94,7 @@ class ChatControllerTest {
         when(chat.isParticipant("c", "me")).thenReturn(true);
 
         Message m1 = Message.builder().id("1").build();
-        when(chat.history("c")).thenReturn(List.of(m1));
+        when(chat.history("c", "me")).thenReturn(List.of(m1));
         when(chat.toDto(m1)).thenReturn(ChatMessageData.builder().id("1").build());
 
         ResponseEntity<Object> rsp = controller.history("c", "B");
@@ -100,7 +109,7 @@ class ChatControllerTest {
         when(authz.subject("B")).thenReturn("me");
         when(chat.isParticipant("c", "me")).thenReturn(true);
 
-        when(chat.history("c")).thenReturn(null);
+        when(chat.history("c", "me")).thenReturn(null);
         ResponseEntity<Object> rsp = controller.history("c", "B");
         assertEquals(200, rsp.getStatusCode().value());
         assertEquals(List.of(), rsp.getBody());
@@ -113,7 +122,7 @@ class ChatControllerTest {
 
         Message m1 = Message.builder().id("1").build();
         Message m2 = Message.builder().id("2").build();
-        when(chat.history("c")).thenReturn(List.of(m1, m2));
+        when(chat.history("c", "me")).thenReturn(List.of(m1, m2));
         
         when(chat.toDto(m1)).thenThrow(new RuntimeException("bad"));
         when(chat.toDto(m2)).thenReturn(ChatMessageData.builder().id("2").build());
@@ -141,12 +150,49 @@ class ChatControllerTest {
         when(authz.subject("B")).thenReturn("me");
         when(chat.isParticipant("c", "me")).thenReturn(true);
 
-        when(chat.history("c")).thenThrow(new RuntimeException("boom"));
+        when(chat.history("c", "me")).thenThrow(new RuntimeException("boom"));
         ResponseEntity<Object> rsp = controller.history("c", "B");
         assertEquals(500, rsp.getStatusCode().value());
         assertTrue(rsp.getBody().toString().contains("Error cargando historial"));
     }
 
+    @Test
+    void historyAfter_limitaPaginaYMapea_OK() {
+        when(authz.subject("B")).thenReturn("me");
+        when(chat.isParticipant("c", "me")).thenReturn(true);
+        Message m = Message.builder().id("6").seq(6).build();
+        when(chat.historyAfter("c", 5, 500, "me")).thenReturn(List.of(m));
+        when(chat.toDto(m)).thenReturn(ChatMessageData.builder().id("6").seq(6).build());
+
+        ResponseEntity<Object> rsp = controller.historyAfter("c", 5, 10_000, "B");
+
+        assertEquals(200, rsp.getStatusCode().value());
+        @SuppressWarnings("unchecked")
+        List<ChatMessageData> list = (List<ChatMessageData>) rsp.getBody();
+        assertEquals(6L, list.get(0).getSeq());
+        controller.historyAfter("c", 5, 0, "B");
+        verify(chat).historyAfter("c", 5, 1, "me");
+    }
+
+    @Test
+    void historyAfter_forbidden_si_no_es_participante_FAIL() {
+        when(authz.subject("B")).thenReturn("intruder");
+
+        ResponseEntity<Object> rsp = controller.historyAfter("c", 0, 200, "B");
+
+        assertEquals(403, rsp.getStatusCode().value());
+        verify(chat, never()).historyAfter(anyString(), anyLong(), anyInt(), any());
+    }
+
+    @Test
+    void historyAfter_errorGeneralDevuelve500_FAIL() {
+        when(authz.subject("B")).thenReturn("me");
+        when(chat.isParticipant("c", "me")).thenReturn(true);
+        when(chat.historyAfter("c", 0, 200, "me")).thenThrow(new RuntimeException("boom"));
+
+        assertEquals(500, controller.historyAfter("c", 0, 200, "B").getStatusCode().value());
+    }
+
     @Test
     void chatId_okDevuelveMapa_OK1y2() {
         when(authz.subject("B")).thenReturn("me");
@@ -170,10 +216,49 @@ class ChatControllerTest {
         Message badMessage = mock(Message.class);
         when(badMessage.getId()).thenThrow(new RuntimeException("No ID access"));
 
-        when(chat.history("c")).thenReturn(List.of(badMessage));
+        when(chat.history("c", "me")).thenReturn(List.of(badMessage));
         when(chat.toDto(badMessage)).thenThrow(new RuntimeException("Convert fail"));
 
         ResponseEntity<Object> rsp = controller.history("c", "B");
         assertEquals(200, rsp.getStatusCode().value());
     }
-}
\ No newline at end of file
+
+    @Test
+    void invalidatePermission_invalidaParDelUsuario_OK() {
+        when(authz.subject("Bearer x")).thenReturn("me");
+
+        ResponseEntity<Void> res = controller.invalidatePermission("u2", "Bearer x");
+
+        assertEquals(204, res.getStatusCode().value());
+        verify(permissions).invalidate("me", "u2");
+    }
+
+    @Test
+    void markRead_avanzaMarcaYAvisa_OK() throws Exception {
+        when(authz.subject("B")).thenReturn("me");
+        when(chat.chatIdOf("me", "u2")).thenReturn("cid");
+        when(chat.isParticipant("cid", "me")).thenReturn(true);
+        Instant upTo = Instant.parse("2024-10-17T15:04:05Z");
+        when(gateway.markRead("me", "u2", upTo)).thenReturn(true);
+
+        ResponseEntity<Object> rsp = controller.markRead("u2", Map.of("upTo", upTo.toString()), "B");
+
+        assertEquals(200, rsp.getStatusCode().value());
+        assertEquals(Map.of("chatId", "cid", "advanced", true), rsp.getBody());
+
+        controller.markRead("u2", null, "B");
+        verify(gateway).markRead("me", "u2", null);
+    }
+
+    @Test
+    void markRead_noParticipante_oUpToInvalido_FAIL() throws Exception {
+        when(authz.subject("B")).thenReturn("me");
+        when(chat.chatIdOf("me", "u2")).thenReturn("cid");
+
+        assertEquals(403, controller.markRead("u2", null, "B").getStatusCode().value());
+
+        when(chat.isParticipant("cid", "me")).thenReturn(true);
+        assertEquals(400, controller.markRead("u2", Map.of("upTo", "ayer"), "B").getStatusCode().value());
+        verifyNoInteractions(gateway);
+    }
+}
@@ -0,0 +1,174 @@
+package co.edu.escuelaing.uplearn.chat.controller;
+
+import co.edu.escuelaing.uplearn.chat.domain.Message;
+import co.edu.escuelaing.uplearn.chat.dto.ChatContact;
+import co.edu.escuelaing.uplearn.chat.dto.ChatMessageData;
+import co.edu.escuelaing.uplearn.chat.dto.PublicProfile;
+import co.edu.escuelaing.uplearn.chat.dto.RolesResponse;
+import co.edu.escuelaing.uplearn.chat.service.AuthorizationService;
+import co.edu.escuelaing.uplearn.chat.service.ChatPermissionCache;
+import co.edu.escuelaing.uplearn.chat.service.ChatService;
+import co.edu.escuelaing.uplearn.chat.service.ReactiveChatService;
+import co.edu.escuelaing.uplearn.chat.service.ReservationClient;
+import co.edu.escuelaing.uplearn.chat.service.UserServiceClient;
+import co.edu.escuelaing.uplearn.chat.ws.ChatWebSocketGateway;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+class ReactiveChatControllerTest {
+
+    AuthorizationService authz;
+    ChatService chat;
+    ReactiveChatService reactiveChat;
+    ReservationClient reservations;
+    UserServiceClient users;
+    ChatPermissionCache permissions;
+    ChatWebSocketGateway gateway;
+    ReactiveChatController controller;
+
+    @BeforeEach
+    void setUp() {
+        authz = mock(AuthorizationService.class);
+        chat = mock(ChatService.class);
+        reactiveChat = mock(ReactiveChatService.class);
+        reservations = mock(ReservationClient.class);
+        users = mock(UserServiceClient.class);
+        permissions = mock(ChatPermissionCache.class);
+        gateway = mock(ChatWebSocketGateway.class);
+        controller = new ReactiveChatController(authz, chat, reactiveChat, reservations, users, permissions,
+                gateway);
+    }
+
+    private void meIs(String bearer, String id) {
+        RolesResponse me = new RolesResponse();
+        me.setId(id);
+        when(authz.meAsync(bearer)).thenReturn(Mono.just(me));
+    }
+
+    @Test
+    void contacts_perfilesEnParaleloEnOrdenYFallback_OK() {
+        meIs("t", "me");
+        Set<String> ids = new LinkedHashSet<>(List.of("u1", "z", "u2"));
+        when(reservations.counterpartIdsAsync("t", "me")).thenReturn(Mono.just(ids));
+        // u1 responde más tarde que u2: el orden de salida no cambia
+        when(users.getPublicProfileByIdAsync("u1")).thenReturn(
+                Mono.just(PublicProfile.builder().id("u1").name("User 1").build()).delayElement(Duration.ofMillis(50)));
+        when(users.getPublicProfileByIdAsync("z")).thenReturn(Mono.empty());
+        when(users.getPublicProfileByIdAsync("u2")).thenReturn(
+                Mono.just(PublicProfile.builder().id("u2").name("User 2").build()));
+
+        List<ChatContact> out = controller.contacts("t").block();
+
+        assertEquals(List.of("u1", "z", "u2"), out.stream().map(ChatContact::getId).toList());
+        assertEquals("Usuario", out.get(1).getName());
+        verify(users, never()).getPublicProfileById(anyString());
+    }
+
+    @Test
+    void contacts_sinUsuario_UNAUTHORIZED_FAIL() {
+        when(authz.meAsync("t")).thenReturn(Mono.just(new RolesResponse()));
+
+        StepVerifier.create(controller.contacts("t"))
+                .expectError(ResponseStatusException.class)
+                .verify();
+        verifyNoInteractions(reservations);
+    }
+
+    @Test
+    void history_mapeaYOmiteLosQueNoConvierten_OK() {
+        when(authz.subject("B")).thenReturn("me");
+        when(reactiveChat.isParticipant("c", "me")).thenReturn(Mono.just(true));
+        Message m1 = Message.builder().id("1").build();
+        Message m2 = Message.builder().id("2").build();
+        when(reactiveChat.history("c", "me")).thenReturn(Flux.just(m1, m2));
+        when(chat.toDto(m1)).thenThrow(new RuntimeException("bad"));
+        when(chat.toDto(m2)).thenReturn(ChatMessageData.builder().id("2").build());
+
+        ResponseEntity<Object> rsp = controller.history("c", "B").block();
+
+        assertEquals(200, rsp.getStatusCode().value());
+        @SuppressWarnings("unchecked")
+        List<ChatMessageData> list = (List<ChatMessageData>) rsp.getBody();
+        assertEquals(List.of("2"), list.stream().map(ChatMessageData::getId).toList());
+    }
+
+    @Test
+    void history_noParticipante_403_oErrorDeMongo_500_FAIL() {
+        when(authz.subject("B")).thenReturn("me");
+        when(reactiveChat.isParticipant("c", "me")).thenReturn(Mono.just(false));
+
+        assertEquals(403, controller.history("c", "B").block().getStatusCode().value());
+        verify(reactiveChat, never()).history(anyString(), any());
+
+        when(reactiveChat.isParticipant("c", "me")).thenReturn(Mono.just(true));
+        when(reactiveChat.history("c", "me")).thenReturn(Flux.error(new RuntimeException("boom")));
+        ResponseEntity<Object> rsp = controller.history("c", "B").block();
+        assertEquals(500, rsp.getStatusCode().value());
+        assertTrue(rsp.getBody().toString().contains("Error cargando historial"));
+    }
+
+    @Test
+    void historyAfter_limitaPagina_OK() {
+        when(authz.subject("B")).thenReturn("me");
+        when(reactiveChat.isParticipant("c", "me")).thenReturn(Mono.just(true));
+        when(reactiveChat.historyAfter(anyString(), anyLong(), anyInt(), any())).thenReturn(Flux.empty());
+
+        assertEquals(200, controller.historyAfter("c", 5, 10_000, "B").block().getStatusCode().value());
+        controller.historyAfter("c", 5, 0, "B").block();
+
+        verify(reactiveChat).historyAfter("c", 5, 500, "me");
+        verify(reactiveChat).historyAfter("c", 5, 1, "me");
+    }
+
+    @Test
+    void markRead_avanzaMarcaSinBloquear_OK() {
+        when(authz.subject("B")).thenReturn("me");
+        when(chat.chatIdOf("me", "u2")).thenReturn("cid");
+        when(reactiveChat.isParticipant("cid", "me")).thenReturn(Mono.just(true));
+        Instant upTo = Instant.parse("2024-10-17T15:04:05Z");
+        when(gateway.markReadAsync("me", "u2", upTo)).thenReturn(Mono.just(true));
+
+        ResponseEntity<Object> rsp = controller.markRead("u2", Map.of("upTo", upTo.toString()), "B").block();
+
+        assertEquals(200, rsp.getStatusCode().value());
+        assertEquals(Map.of("chatId", "cid", "advanced", true), rsp.getBody());
+    }
+
+    @Test
+    void markRead_noParticipante_oUpToInvalido_FAIL() {
+        when(authz.subject("B")).thenReturn("me");
+        when(chat.chatIdOf("me", "u2")).thenReturn("cid");
+        when(reactiveChat.isParticipant("cid", "me")).thenReturn(Mono.just(false));
+
+        assertEquals(403, controller.markRead("u2", null, "B").block().getStatusCode().value());
+
+        when(reactiveChat.isParticipant("cid", "me")).thenReturn(Mono.just(true));
+        assertEquals(400, controller.markRead("u2", Map.of("upTo", "ayer"), "B").block().getStatusCode().value());
+        verifyNoInteractions(gateway);
+    }
+
+    @Test
+    void chatId_eInvalidatePermission_OK() {
+        when(authz.subject("B")).thenReturn("me");
+        when(chat.chatIdOf("me", "u2")).thenReturn("cid");
+
+        assertEquals(Map.of("chatId", "cid", "meId", "me"), controller.chatId("u2", "B").block());
+        assertEquals(204, controller.invalidatePermission("u2", "B").block().getStatusCode().value());
+        verify(permissions).invalidate("me", "u2");
+    }
+}
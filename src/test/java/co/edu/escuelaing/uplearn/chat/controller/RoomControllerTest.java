@@ -0,0 +1,149 @@
+package co.edu.escuelaing.uplearn.chat.controller;
+
+import co.edu.escuelaing.uplearn.chat.domain.Chat;
+import co.edu.escuelaing.uplearn.chat.dto.ChatRoom;
+import co.edu.escuelaing.uplearn.chat.dto.RoomRequest;
+import co.edu.escuelaing.uplearn.chat.service.AuthorizationService;
+import co.edu.escuelaing.uplearn.chat.service.RoomService;
+import co.edu.escuelaing.uplearn.chat.ws.RoomFanOut;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.time.Instant;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+class RoomControllerTest {
+
+    AuthorizationService authz;
+    RoomService rooms;
+    RoomFanOut fanOut;
+    RoomController controller;
+
+    @BeforeEach
+    void setUp() {
+        authz = mock(AuthorizationService.class);
+        rooms = mock(RoomService.class);
+        fanOut = mock(RoomFanOut.class);
+        controller = new RoomController(authz, rooms, fanOut);
+        when(authz.subject("t")).thenReturn("t1");
+    }
+
+    private static Chat room(String... members) {
+        return Chat.builder().id("r1").room(true).name("Cálculo").ownerId("t1")
+                .participants(new LinkedHashSet<>(List.of(members))).createdAt(Instant.EPOCH).build();
+    }
+
+    @Test
+    void create_tutorCreaSalaYAvisaAMiembros_OK() throws Exception {
+        Chat room = room("t1", "s1", "s2");
+        when(rooms.create("t1", "Cálculo", List.of("s1", "s2"))).thenReturn(room);
+
+        ResponseEntity<Object> res = controller.create(
+                RoomRequest.builder().name("Cálculo").members(List.of("s1", "s2")).build(), "t");
+
+        assertEquals(HttpStatus.CREATED, res.getStatusCode());
+        ChatRoom dto = (ChatRoom) res.getBody();
+        assertEquals("r1", dto.getId());
+        assertEquals(Set.of("t1", "s1", "s2"), dto.getMembers());
+        verify(authz).requireRole("t", RoomController.OWNER_ROLE);
+        verify(fanOut).membershipChanged(eq("t1"), argThat(c -> c.joined().equals(room.getParticipants())));
+    }
+
+    @Test
+    void create_sinRolDeTutor_FAIL() {
+        doThrow(new ResponseStatusException(HttpStatus.FORBIDDEN)).when(authz).requireRole("s", "TUTOR");
+
+        assertThrows(ResponseStatusException.class,
+                () -> controller.create(RoomRequest.builder().name("x").build(), "s"));
+        verifyNoInteractions(rooms, fanOut);
+    }
+
+    @Test
+    void create_excedeCupo_400_FAIL() throws Exception {
+        when(rooms.create(anyString(), any(), any())).thenThrow(new IllegalArgumentException("cupo"));
+
+        ResponseEntity<Object> res = controller.create(RoomRequest.builder().name("x").build(), "t");
+
+        assertEquals(HttpStatus.BAD_REQUEST, res.getStatusCode());
+        assertEquals(Map.of("error", "cupo"), res.getBody());
+        verifyNoInteractions(fanOut);
+    }
+
+    @Test
+    void list_salasDelUsuario_OK() {
+        when(rooms.roomsOf("t1")).thenReturn(List.of(room("t1")));
+
+        List<ChatRoom> out = controller.list("t");
+
+        assertEquals(1, out.size());
+        assertEquals("Cálculo", out.get(0).getName());
+        assertEquals(Instant.EPOCH.toString(), out.get(0).getCreatedAt());
+    }
+
+    @Test
+    void addMembers_duenoAgrega_OK() throws Exception {
+        RoomService.Change change = new RoomService.Change(room("t1", "s1"), Set.of("s1"), Set.of());
+        when(rooms.addMembers("r1", "t1", List.of("s1"))).thenReturn(change);
+
+        ResponseEntity<Object> res = controller.addMembers("r1",
+                RoomRequest.builder().members(List.of("s1")).build(), "t");
+
+        assertEquals(HttpStatus.OK, res.getStatusCode());
+        verify(fanOut).membershipChanged("t1", change);
+    }
+
+    @Test
+    void addMembers_noDueno_403_FAIL() throws Exception {
+        ResponseEntity<Object> res = controller.addMembers("r1",
+                RoomRequest.builder().members(List.of("s1")).build(), "t");
+
+        assertEquals(HttpStatus.FORBIDDEN, res.getStatusCode());
+        verifyNoInteractions(fanOut);
+    }
+
+    @Test
+    void removeMember_miembroSale_204_OK() throws Exception {
+        RoomService.Change change = new RoomService.Change(room("t1"), Set.of(), Set.of("t1"));
+        when(rooms.removeMember("r1", "t1", "s1")).thenReturn(change);
+
+        assertEquals(HttpStatus.NO_CONTENT, controller.removeMember("r1", "s1", "t").getStatusCode());
+        verify(fanOut).membershipChanged("t1", change);
+    }
+
+    @Test
+    void removeMember_duenoNoPuedeSalir_400_FAIL() throws Exception {
+        when(rooms.removeMember("r1", "t1", "t1")).thenThrow(new IllegalArgumentException("dueño"));
+
+        assertEquals(HttpStatus.BAD_REQUEST, controller.removeMember("r1", "t1", "t").getStatusCode());
+        verifyNoInteractions(fanOut);
+    }
+
+    @Test
+    void markRead_miembroAvanzaSuMarca_OK() throws Exception {
+        when(rooms.isMember("r1", "t1")).thenReturn(true);
+        Instant upTo = Instant.parse("2024-10-17T15:00:00Z");
+        when(fanOut.markRead("r1", "t1", upTo)).thenReturn(true);
+
+        ResponseEntity<Object> res = controller.markRead("r1", Map.of("upTo", upTo.toString()), "t");
+
+        assertEquals(HttpStatus.OK, res.getStatusCode());
+        assertEquals(Map.of("roomId", "r1", "advanced", true), res.getBody());
+    }
+
+    @Test
+    void markRead_noMiembro403_oUpToInvalido400_FAIL() throws Exception {
+        assertEquals(HttpStatus.FORBIDDEN, controller.markRead("r1", null, "t").getStatusCode());
+
+        when(rooms.isMember("r1", "t1")).thenReturn(true);
+        assertEquals(HttpStatus.BAD_REQUEST, controller.markRead("r1", Map.of("upTo", "ayer"), "t").getStatusCode());
+        verifyNoInteractions(fanOut);
+    }
+}
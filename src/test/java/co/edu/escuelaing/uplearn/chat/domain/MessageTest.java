@@ -61,11 +61,11 @@ class MessageTest {
     @Test
     void equals_y_hashCode_Completo() {
         Instant now = Instant.now();
-        Message m1 = new Message("m1", "c1", "u1", "u2", "hola", now, true, false);
+        Message m1 = new Message("m1", "c1", "u1", "u2", "hola", now, 7L, true, false);
 
         assertEquals(m1, m1);
 
-        Message m2 = new Message("m1", "c1", "u1", "u2", "hola", now, true, false);
+        Message m2 = new Message("m1", "c1", "u1", "u2", "hola", now, 7L, true, false);
         assertEquals(m1, m2);
         assertEquals(m1.hashCode(), m2.hashCode());
 
@@ -73,14 +73,15 @@ class MessageTest {
         assertNotEquals("string", m1);
         assertNotEquals("string", m1); 
 
-        assertNotEquals(m1, new Message("diff", "c1", "u1", "u2", "hola", now, true, false));
-        assertNotEquals(m1, new Message("m1", "diff", "u1", "u2", "hola", now, true, false));
-        assertNotEquals(m1, new Message("m1", "c1", "diff", "u2", "hola", now, true, false));
-        assertNotEquals(m1, new Message("m1", "c1", "u1", "diff", "hola", now, true, false));
-        assertNotEquals(m1, new Message("m1", "c1", "u1", "u2", "diff", now, true, false));
-        assertNotEquals(m1, new Message("m1", "c1", "u1", "u2", "hola", Instant.MIN, true, false));
-        assertNotEquals(m1, new Message("m1", "c1", "u1", "u2", "hola", now, false, false)); // delivered diff
-        assertNotEquals(m1, new Message("m1", "c1", "u1", "u2", "hola", now, true, true));   // read diff
+        assertNotEquals(m1, new Message("diff", "c1", "u1", "u2", "hola", now, 7L, true, false));
+        assertNotEquals(m1, new Message("m1", "diff", "u1", "u2", "hola", now, 7L, true, false));
+        assertNotEquals(m1, new Message("m1", "c1", "diff", "u2", "hola", now, 7L, true, false));
+        assertNotEquals(m1, new Message("m1", "c1", "u1", "diff", "hola", now, 7L, true, false));
+        assertNotEquals(m1, new Message("m1", "c1", "u1", "u2", "diff", now, 7L, true, false));
+        assertNotEquals(m1, new Message("m1", "c1", "u1", "u2", "hola", Instant.MIN, 7L, true, false));
+        assertNotEquals(m1, new Message("m1", "c1", "u1", "u2", "hola", now, 8L, true, false));   // seq diff
+        assertNotEquals(m1, new Message("m1", "c1", "u1", "u2", "hola", now, 7L, false, false)); // delivered diff
+        assertNotEquals(m1, new Message("m1", "c1", "u1", "u2", "hola", now, 7L, true, true));   // read diff
 
         Message mNull = new Message();
         assertNotEquals(m1, mNull);
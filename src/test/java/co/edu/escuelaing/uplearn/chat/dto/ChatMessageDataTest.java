@@ -53,9 +53,9 @@ class ChatMessageDataTest {
 
     @Test
     void equals_y_hashCode_Completo() {
-        ChatMessageData d1 = new ChatMessageData("m1", "c1", "u1", "u2", "hola", "now", true, false);
-        ChatMessageData d2 = new ChatMessageData("m1", "c1", "u1", "u2", "hola", "now", true, false);
-        ChatMessageData d3 = new ChatMessageData("m2", "c1", "u1", "u2", "hola", "now", true, false);
+        ChatMessageData d1 = new ChatMessageData("m1", "c1", "u1", "u2", "hola", "now", 7L, true, false);
+        ChatMessageData d2 = new ChatMessageData("m1", "c1", "u1", "u2", "hola", "now", 7L, true, false);
+        ChatMessageData d3 = new ChatMessageData("m2", "c1", "u1", "u2", "hola", "now", 7L, true, false);
 
         assertEquals(d1, d1); 
         
@@ -31,8 +31,8 @@ class SendMessageRequestTest {
 
     @Test
     void equals_y_hashCode_cobertura_total() {
-        SendMessageRequest r1 = new SendMessageRequest("u1", "contenido");
-        SendMessageRequest r2 = new SendMessageRequest("u1", "contenido");
+        SendMessageRequest r1 = new SendMessageRequest("u1", null, "contenido", "c1");
+        SendMessageRequest r2 = new SendMessageRequest("u1", null, "contenido", "c1");
 
         assertEquals(r1, r1);
 
@@ -48,6 +48,14 @@ class SendMessageRequestTest {
         assertNotEquals(r1, r2);
         r2.setContent("contenido"); 
 
+        r2.setRoomId("r1");
+        assertNotEquals(r1, r2);
+        r2.setRoomId(null);
+
+        r2.setClientId("c2");
+        assertNotEquals(r1, r2);
+        r2.setClientId("c1");
+
         assertNotEquals(null, r1);
 
         assertNotEquals("un string", r1);
@@ -4,7 +4,9 @@ import co.edu.escuelaing.uplearn.chat.dto.RolesResponse;
 import org.junit.jupiter.api.Test;
 import org.springframework.web.server.ResponseStatusException;
 import co.edu.escuelaing.uplearn.chat.TestUtils;
+import reactor.core.publisher.Mono;
 import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.*;
 
 class AuthorizationServiceTest {
@@ -19,6 +21,16 @@ class AuthorizationServiceTest {
         assertSame(r, s.me("t")); 
     }
 
+    @Test
+    void meAsync_delegaAlClienteSinBloquear_OK() {
+        UserServiceClient c = mock(UserServiceClient.class);
+        AuthorizationService s = new AuthorizationService(c);
+        RolesResponse r = new RolesResponse();
+        when(c.getMyRolesAsync("t")).thenReturn(Mono.just(r));
+        assertSame(r, s.meAsync("t").block());
+        verify(c, never()).getMyRolesCached(anyString());
+    }
+
     @Test
     void requireRole_cumpleIgnoraMayus_OK1() {
         UserServiceClient c = mock(UserServiceClient.class);
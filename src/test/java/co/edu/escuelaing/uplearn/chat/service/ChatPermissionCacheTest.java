@@ -0,0 +1,131 @@
+package co.edu.escuelaing.uplearn.chat.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class ChatPermissionCacheTest {
+
+    ReservationClient reservations;
+    SimpleMeterRegistry registry;
+    ChatPermissionCache cache;
+
+    @BeforeEach
+    void setUp() {
+        reservations = mock(ReservationClient.class);
+        registry = new SimpleMeterRegistry();
+        cache = new ChatPermissionCache(reservations, registry, 300, 30, 1000);
+    }
+
+    @Test
+    void canChat_cacheaPositivo_unaSolaLlamadaRemota_OK() {
+        when(reservations.checkCanChat("B", "u2")).thenReturn(Optional.of(true));
+
+        assertTrue(cache.canChat("u1", "B", "u2"));
+        assertTrue(cache.canChat("u1", "B", "u2"));
+        assertTrue(cache.canChat("u1", "B", "u2"));
+
+        verify(reservations, times(1)).checkCanChat("B", "u2");
+        assertEquals(1, registry.get("chat.authz.upstream").timer().count());
+        assertTrue(registry.get("chat.authz.cache.hit.ratio").gauge().value() > 0.6);
+        assertTrue(registry.get("chat.authz.latency.saved").gauge().value() >= 0.0);
+    }
+
+    @Test
+    void cachedDecision_noConsultaReservas_OK() {
+        assertNull(cache.cachedDecision("u1", "u2"));
+        verifyNoInteractions(reservations);
+
+        when(reservations.checkCanChat("B", "u2")).thenReturn(Optional.of(true));
+        cache.canChat("u1", "B", "u2");
+
+        assertEquals(Boolean.TRUE, cache.cachedDecision("u1", "u2"));
+        assertNull(cache.cachedDecision("u2", "u1"));
+    }
+
+    @Test
+    void canChatAsync_comparteCacheYLlamadaRemota_OK() {
+        Sinks.One<Optional<Boolean>> remote = Sinks.one();
+        when(reservations.checkCanChatAsync("B", "u2")).thenReturn(remote.asMono());
+
+        Mono<Boolean> first = cache.canChatAsync("u1", "B", "u2");
+        Mono<Boolean> second = cache.canChatAsync("u1", "B", "u2");
+        remote.tryEmitValue(Optional.of(true));
+
+        assertEquals(Boolean.TRUE, first.block());
+        assertEquals(Boolean.TRUE, second.block());
+        assertTrue(cache.canChat("u1", "B", "u2"));
+        verify(reservations, times(1)).checkCanChatAsync("B", "u2");
+        verify(reservations, never()).checkCanChat(any(), any());
+    }
+
+    @Test
+    void canChatAsync_falloRemoto_niegaSinCachear_FAIL() {
+        when(reservations.checkCanChatAsync("B", "u2")).thenReturn(Mono.just(Optional.empty()));
+
+        assertEquals(Boolean.FALSE, cache.canChatAsync("u1", "B", "u2").block());
+
+        assertNull(cache.cachedDecision("u1", "u2"));
+    }
+
+    @Test
+    void canChat_cacheaNegativo_FAIL() {
+        when(reservations.checkCanChat("B", "u2")).thenReturn(Optional.of(false));
+
+        assertFalse(cache.canChat("u1", "B", "u2"));
+        assertFalse(cache.canChat("u1", "B", "u2"));
+
+        verify(reservations, times(1)).checkCanChat("B", "u2");
+    }
+
+    @Test
+    void canChat_errorRemoto_noSeCachea_FAIL() {
+        when(reservations.checkCanChat("B", "u2")).thenReturn(Optional.empty(), Optional.of(true));
+
+        assertFalse(cache.canChat("u1", "B", "u2"));
+        assertTrue(cache.canChat("u1", "B", "u2"));
+
+        verify(reservations, times(2)).checkCanChat("B", "u2");
+    }
+
+    @Test
+    void canChat_negativoExpiraConTtlPropio_OK() {
+        cache = new ChatPermissionCache(reservations, registry, 300, 0, 1000);
+        when(reservations.checkCanChat("B", "u2")).thenReturn(Optional.of(false), Optional.of(true));
+
+        assertFalse(cache.canChat("u1", "B", "u2"));
+        assertTrue(cache.canChat("u1", "B", "u2"));
+    }
+
+    @Test
+    void invalidate_ambosSentidos_yPorUsuario_OK() {
+        when(reservations.checkCanChat(anyString(), anyString())).thenReturn(Optional.of(true));
+        cache.canChat("u1", "B1", "u2");
+        cache.canChat("u2", "B2", "u1");
+        cache.canChat("u3", "B3", "u1");
+        cache.canChat("u3", "B3", "u4");
+
+        cache.invalidate("u2", "u1");
+        cache.canChat("u1", "B1", "u2");
+        cache.canChat("u2", "B2", "u1");
+        verify(reservations, times(2)).checkCanChat("B1", "u2");
+        verify(reservations, times(2)).checkCanChat("B2", "u1");
+
+        cache.invalidateUser("u1");
+        cache.canChat("u3", "B3", "u1");
+        cache.canChat("u3", "B3", "u4");
+        verify(reservations, times(2)).checkCanChat("B3", "u1");
+        verify(reservations, times(1)).checkCanChat("B3", "u4");
+
+        cache.invalidateAll();
+        cache.canChat("u3", "B3", "u4");
+        verify(reservations, times(2)).checkCanChat("B3", "u4");
+    }
+}
@@ -3,14 +3,20 @@ package co.edu.escuelaing.uplearn.chat.service;
 import co.edu.escuelaing.uplearn.chat.domain.Chat;
 import co.edu.escuelaing.uplearn.chat.domain.Message;
 import co.edu.escuelaing.uplearn.chat.dto.ChatMessageData;
+import co.edu.escuelaing.uplearn.chat.dto.SendMessageRequest;
 import co.edu.escuelaing.uplearn.chat.repository.ChatRepository;
 import co.edu.escuelaing.uplearn.chat.repository.MessageRepository;
+import com.mongodb.client.result.UpdateResult;
 import org.bson.Document;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 
 import java.time.Instant;
 import java.util.*;
@@ -18,6 +24,8 @@ import java.util.*;
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 
@@ -66,18 +74,214 @@ class ChatServiceTest {
         assertNotNull(out.getId());
     }
 
+    /**
+     * Simula el contador de secuencia de Mongo: cada findAndModify suma el
+     * $inc pedido al contador del chat consultado.
+     */
+    private Map<Object, Long> stubSeq() {
+        Map<Object, Long> seqs = new HashMap<>();
+        when(mongo.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class),
+                eq(Chat.class))).thenAnswer(i -> {
+                    Object id = ((Query) i.getArgument(0)).getQueryObject().get("id");
+                    Number inc = (Number) ((Document) ((Update) i.getArgument(1)).getUpdateObject().get("$inc"))
+                            .get("seq");
+                    long seq = seqs.merge(id, inc.longValue(), Long::sum);
+                    return Chat.builder().id((String) id).seq(seq).build();
+                });
+        return seqs;
+    }
+
     @Test
     void saveMessage_guardaCifrado_OK1y2() {
+        stubSeq();
         when(crypto.encrypt("hola")).thenReturn("ENC");
         when(messages.save(any())).thenAnswer(i -> i.getArgument(0));
         Message out = service.saveMessage("cid", "from", "to", "hola");
         assertEquals("ENC", out.getContent());
+        assertEquals(1L, out.getSeq());
+        assertEquals(2L, service.saveMessage("cid", "to", "from", "chao").getSeq());
+    }
+
+    @Test
+    void saveMessage_creaElChatAlReservarSecuencia_OK() {
+        stubSeq();
+        when(messages.save(any())).thenAnswer(i -> i.getArgument(0));
+
+        service.saveMessage("cid", "zed", "amy", "hola");
+
+        verify(mongo).findAndModify(
+                argThat((Query q) -> "cid".equals(q.getQueryObject().get("id"))),
+                argThat((Update u) -> {
+                    Document insert = (Document) u.getUpdateObject().get("$setOnInsert");
+                    return "amy".equals(insert.get("userA")) && "zed".equals(insert.get("userB"));
+                }),
+                argThat((FindAndModifyOptions o) -> o.isUpsert() && o.isReturnNew()),
+                eq(Chat.class));
+        verify(chats, never()).findByUserAAndUserB(any(), any());
+    }
+
+    @Test
+    void saveMessage_altaConcurrenteDelChat_reintenta_OK() {
+        when(mongo.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class),
+                eq(Chat.class)))
+                .thenThrow(new DuplicateKeyException("E11000"))
+                .thenReturn(Chat.builder().id("cid").seq(7).build());
+        when(messages.save(any())).thenAnswer(i -> i.getArgument(0));
+
+        assertEquals(7L, service.saveMessage("cid", "a", "b", "x").getSeq());
+    }
+
+    @Test
+    void saveMessage_sinChatDevuelto_lanza_FAIL() {
+        assertThrows(IllegalStateException.class, () -> service.saveMessage("cid", "a", "b", "x"));
+        verify(messages, never()).save(any());
+    }
+
+    @Test
+    void saveMessages_unaInsercion_conservaOrden_OK() {
+        stubSeq();
+        when(crypto.encrypt(anyString())).thenAnswer(i -> "ENC-" + i.getArgument(0));
+        List<SendMessageRequest> reqs = List.of(
+                SendMessageRequest.builder().toUserId("b").content("1").build(),
+                SendMessageRequest.builder().toUserId("c").content("2").build(),
+                SendMessageRequest.builder().toUserId("b").content("3").build());
+
+        List<Message> out = service.saveMessages("a", reqs);
+
+        verify(mongo, times(1)).insertAll(out);
+        verify(messages, never()).save(any());
+        assertEquals(List.of("ENC-1", "ENC-2", "ENC-3"), out.stream().map(Message::getContent).toList());
+        assertEquals(service.chatIdOf("a", "b"), out.get(0).getChatId());
+        assertEquals(service.chatIdOf("a", "c"), out.get(1).getChatId());
+        assertTrue(out.get(0).getCreatedAt().isBefore(out.get(2).getCreatedAt()));
+        assertTrue(service.saveMessages("a", List.of()).isEmpty());
+    }
+
+    @Test
+    void saveMessages_unBloqueDeSecuenciaPorChat_OK() {
+        Map<Object, Long> seqs = stubSeq();
+        seqs.put(service.chatIdOf("a", "b"), 10L);
+        List<SendMessageRequest> reqs = List.of(
+                SendMessageRequest.builder().toUserId("b").content("1").build(),
+                SendMessageRequest.builder().toUserId("c").content("2").build(),
+                SendMessageRequest.builder().toUserId("b").content("3").build(),
+                SendMessageRequest.builder().toUserId("b").content("4").build());
+
+        List<Message> out = service.saveMessages("a", reqs);
+
+        verify(mongo, times(2)).findAndModify(any(Query.class), any(Update.class),
+                any(FindAndModifyOptions.class), eq(Chat.class));
+        assertEquals(List.of(11L, 1L, 12L, 13L), out.stream().map(Message::getSeq).toList());
+    }
+
+    @Test
+    void markDeliveredFor_unaOperacionMasiva_porReceptor_OK() {
+        BulkOperations bulk = mock(BulkOperations.class);
+        when(mongo.bulkOps(BulkOperations.BulkMode.UNORDERED, Message.class)).thenReturn(bulk);
+
+        service.markDeliveredFor(Map.of("u1", List.of("1", "2"), "u2", List.of("3")));
+
+        verify(bulk, times(2)).updateMulti(any(Query.class), any(Update.class));
+        verify(bulk).updateMulti(argThat((Query q) -> "u1".equals(q.getQueryObject().get("toUserId"))),
+                any(Update.class));
+        verify(bulk, times(1)).execute();
+
+        service.markDeliveredFor(Map.of());
+        verify(mongo, times(1)).bulkOps(any(BulkOperations.BulkMode.class), eq(Message.class));
+    }
+
+    @Test
+    void advanceReadMark_unaEscrituraConMax_OK() {
+        Instant upTo = Instant.parse("2024-10-17T15:04:05Z");
+        when(mongo.updateFirst(any(Query.class), any(Update.class), eq(Chat.class)))
+                .thenReturn(UpdateResult.acknowledged(1, 1L, null))
+                .thenReturn(UpdateResult.acknowledged(1, 0L, null));
+
+        assertTrue(service.advanceReadMark("cid", "u2", upTo));
+        assertFalse(service.advanceReadMark("cid", "u2", upTo), "una marca anterior no retrocede");
+
+        verify(mongo, times(2)).updateFirst(
+                argThat((Query q) -> "u2".equals(q.getQueryObject().get("participants"))),
+                argThat((Update u) -> upTo.equals(((Document) u.getUpdateObject().get("$max")).get("readUpTo.u2"))),
+                eq(Chat.class));
+        verify(messages, never()).saveAll(anyList());
+
+        assertDoesNotThrow(() -> service.advanceReadMark("cid", "a.b$", upTo));
+        verify(mongo).updateFirst(any(Query.class),
+                argThat((Update u) -> ((Document) u.getUpdateObject().get("$max")).containsKey("readUpTo.a%2Eb%24")),
+                eq(Chat.class));
+    }
+
+    @Test
+    void readMarks_clavesEscapadas_vuelvenAlIdDelUsuario_OK() {
+        Instant mark = Instant.parse("2024-10-17T15:00:00Z");
+        when(chats.findById("cid")).thenReturn(Optional.of(Chat.builder().id("cid")
+                .readUpTo(Map.of(ChatService.readMarkKey("ana.p$%"), mark, "u2", mark)).build()));
+
+        assertEquals(Map.of("ana.p$%", mark, "u2", mark), service.readMarks("cid"));
+        assertEquals("u2", ChatService.readMarkKey("u2"));
+    }
+
+    @Test
+    void history_derivaLeidoDeLaMarca_OK() {
+        Instant mark = Instant.parse("2024-10-17T15:00:00Z");
+        Message before = Message.builder().id("1").toUserId("b").createdAt(mark.minusSeconds(1)).build();
+        Message at = Message.builder().id("2").toUserId("b").createdAt(mark).build();
+        Message after = Message.builder().id("3").toUserId("b").createdAt(mark.plusSeconds(1)).build();
+        Message toOther = Message.builder().id("4").toUserId("a").createdAt(mark.minusSeconds(5)).build();
+        when(messages.findByChatIdOrderBySeqAscCreatedAtAsc("cid")).thenReturn(List.of(before, at, after, toOther));
+        when(chats.findById("cid")).thenReturn(Optional.of(Chat.builder().id("cid")
+                .readUpTo(Map.of("b", mark)).build()));
+
+        service.history("cid");
+
+        assertTrue(before.isRead());
+        assertTrue(at.isRead());
+        assertFalse(after.isRead());
+        assertFalse(toOther.isRead());
+        assertEquals(Map.of("b", mark), service.readMarks("cid"));
+        assertEquals(Map.of(), service.readMarks("otro"));
+    }
+
+    @Test
+    void history_sala_leidoSegunLaMarcaDelLector_OK() {
+        Instant mark = Instant.parse("2024-10-17T15:00:00Z");
+        Message before = Message.builder().id("1").fromUserId("t1").createdAt(mark.minusSeconds(1)).build();
+        Message after = Message.builder().id("2").fromUserId("t1").createdAt(mark.plusSeconds(1)).build();
+        when(messages.findByChatIdOrderBySeqAscCreatedAtAsc("r1")).thenReturn(List.of(before, after));
+        when(chats.findById("r1")).thenReturn(Optional.of(Chat.builder().id("r1").room(true)
+                .readUpTo(Map.of("s1", mark)).build()));
+
+        service.history("r1", "s1");
+        assertTrue(before.isRead());
+        assertFalse(after.isRead());
+
+        before.setRead(false);
+        service.history("r1", "s2");
+        assertFalse(before.isRead(), "la marca de otro miembro no cuenta");
     }
 
     @Test
     void history_delegaRepo_OK1() {
         service.history("c");
-        verify(messages).findByChatIdOrderByCreatedAtAsc("c");
+        verify(messages).findByChatIdOrderBySeqAscCreatedAtAsc("c");
+    }
+
+    @Test
+    void historyAfter_rangoPorSecuenciaConLimite_OK() {
+        Instant mark = Instant.parse("2024-10-17T15:00:00Z");
+        Message m = Message.builder().id("6").toUserId("b").seq(6).createdAt(mark).build();
+        when(mongo.find(any(Query.class), eq(Message.class))).thenReturn(List.of(m));
+        when(chats.findById("cid")).thenReturn(Optional.of(Chat.builder().id("cid")
+                .readUpTo(Map.of("b", mark)).build()));
+
+        assertEquals(List.of(m), service.historyAfter("cid", 5, 50));
+
+        verify(mongo).find(argThat((Query q) -> "cid".equals(q.getQueryObject().get("chatId"))
+                && Long.valueOf(5).equals(((Document) q.getQueryObject().get("seq")).get("$gt"))
+                && q.getLimit() == 50
+                && Integer.valueOf(1).equals(q.getSortObject().get("seq"))), eq(Message.class));
+        assertTrue(m.isRead());
     }
 
     @Test
@@ -88,18 +292,80 @@ class ChatServiceTest {
 
     @Test
     void markDelivered_marcaYGuarda_OK1y2() {
-        Message m1 = new Message();
+        Message m1 = Message.builder().id("1").build();
         service.markDelivered(List.of(m1));
         assertTrue(m1.isDelivered());
-        verify(messages).saveAll(anyList());
+        verify(messages, never()).saveAll(anyList());
+        verify(mongo).updateMulti(any(Query.class), any(org.springframework.data.mongodb.core.query.Update.class),
+                eq(Message.class));
+    }
+
+    @Test
+    void streamPending_entregaPorPaginas_OK() {
+        Message m1 = Message.builder().id("1").build();
+        Message m2 = Message.builder().id("2").build();
+        Message m3 = Message.builder().id("3").build();
+        when(mongo.stream(any(Query.class), eq(Message.class))).thenReturn(java.util.stream.Stream.of(m1, m2, m3));
+        List<List<String>> pages = new ArrayList<>();
+
+        int total = service.streamPending("u", 2, page -> pages.add(page.stream().map(Message::getId).toList()));
+
+        assertEquals(3, total);
+        assertEquals(List.of(List.of("1", "2"), List.of("3")), pages);
+    }
+
+    @Test
+    void streamSince_unRangoPorIndiceEnCadaRama_sinMensajesDeSala_OK() {
+        Instant since = Instant.parse("2024-10-17T15:00:00Z");
+        Message m1 = Message.builder().id("1").build();
+        when(mongo.stream(any(Query.class), eq(Message.class))).thenReturn(java.util.stream.Stream.of(m1));
+        List<Message> seen = new ArrayList<>();
+
+        assertEquals(1, service.streamSince("u", since, 50, 10, seen::addAll));
+
+        assertEquals(List.of(m1), seen);
+        verify(mongo).stream(argThat((Query q) -> {
+            List<?> or = (List<?>) q.getQueryObject().get("$or");
+            Document to = (Document) or.get(0);
+            Document from = (Document) or.get(1);
+            return "u".equals(to.get("toUserId")) && "u".equals(from.get("fromUserId"))
+                    && from.get("toUserId") instanceof Document ne && ne.containsKey("$ne") && ne.get("$ne") == null
+                    && since.equals(((Document) to.get("createdAt")).get("$gte"))
+                    && q.getLimit() == 50
+                    && Integer.valueOf(1).equals(q.getSortObject().get("createdAt"));
+        }), eq(Message.class));
+    }
+
+    @Test
+    void createdAtOf_soloMensajesDelUsuario_OK() {
+        Instant t = Instant.parse("2024-10-17T15:00:00Z");
+        when(messages.findById("m")).thenReturn(Optional.of(Message.builder().id("m")
+                .fromUserId("a").toUserId("b").createdAt(t).build()));
+
+        assertEquals(t, service.createdAtOf("a", "m"));
+        assertEquals(t, service.createdAtOf("b", "m"));
+        assertNull(service.createdAtOf("intruso", "m"));
+        assertNull(service.createdAtOf("a", "otro"));
+    }
+
+    @Test
+    void markDeliveredByIds_actualizacionMasiva_OK() {
+        service.markDeliveredByIds(List.of("1", "2"));
+        verify(mongo).updateMulti(any(Query.class), any(org.springframework.data.mongodb.core.query.Update.class),
+                eq(Message.class));
+
+        service.markDeliveredByIds(List.of());
+        verify(mongo, times(1)).updateMulti(any(Query.class),
+                any(org.springframework.data.mongodb.core.query.Update.class), eq(Message.class));
     }
 
     @Test
     void toDto_desencripta_yConservaCampos_OK1() {
-        Message m = Message.builder().content("ENC").createdAt(Instant.now()).build();
+        Message m = Message.builder().content("ENC").createdAt(Instant.now()).seq(4).build();
         when(crypto.decrypt("ENC")).thenReturn("plain");
         ChatMessageData dto = service.toDto(m);
         assertEquals("plain", dto.getContent());
+        assertEquals(4L, dto.getSeq());
     }
     
     @Test
@@ -0,0 +1,135 @@
+package co.edu.escuelaing.uplearn.chat.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class DeliveryAckBufferTest {
+
+    ChatService chatService;
+    SimpleMeterRegistry registry;
+    ScheduledExecutorService scheduler;
+
+    @BeforeEach
+    void setUp() {
+        chatService = mock(ChatService.class);
+        registry = new SimpleMeterRegistry();
+        scheduler = mock(ScheduledExecutorService.class);
+    }
+
+    @Test
+    void acknowledge_agrupaEnUnaSolaEscritura_OK() {
+        DeliveryAckBuffer buffer = new DeliveryAckBuffer(chatService, registry, scheduler, 50, 500);
+        verify(scheduler).scheduleWithFixedDelay(any(Runnable.class), eq(50L), eq(50L), eq(TimeUnit.MILLISECONDS));
+
+        buffer.acknowledge("1");
+        buffer.acknowledge("2");
+        buffer.acknowledgeAll(List.of("2", "3"));
+        verify(chatService, never()).markDeliveredByIds(anyCollection());
+
+        assertEquals(3, buffer.flush());
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<Collection<String>> ids = ArgumentCaptor.forClass(Collection.class);
+        verify(chatService, times(1)).markDeliveredByIds(ids.capture());
+        assertEquals(Set.of("1", "2", "3"), new HashSet<>(ids.getValue()));
+        assertEquals(4.0, registry.get("chat.delivery.acks").counter().count());
+        assertEquals(1.0, registry.get("chat.delivery.writes").counter().count());
+        assertEquals(0, buffer.flush());
+    }
+
+    @Test
+    void acknowledge_loteLleno_escribeEnElTemporizadorSinEsperarVentana_OK() {
+        DeliveryAckBuffer buffer = new DeliveryAckBuffer(chatService, registry, scheduler, 50, 2);
+
+        buffer.acknowledge("1");
+        verify(scheduler, never()).execute(any());
+        buffer.acknowledge("2");
+        buffer.acknowledge("3");
+
+        verify(chatService, never()).markDeliveredByIds(anyCollection());
+        ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduler, times(1)).execute(task.capture());
+        task.getValue().run();
+        verify(chatService, times(2)).markDeliveredByIds(anyCollection());
+        assertEquals(0, buffer.flush());
+    }
+
+    @Test
+    void acknowledge_sinVentana_escribeDeInmediato_OK() {
+        DeliveryAckBuffer buffer = new DeliveryAckBuffer(chatService, registry, null, 0, 500);
+
+        buffer.acknowledge("1");
+        buffer.acknowledge(null);
+
+        verify(chatService).markDeliveredByIds(List.of("1"));
+    }
+
+    @Test
+    void flush_errorDeMongo_noPropagaEnAcknowledge_FAIL() {
+        doThrow(new RuntimeException("DB error")).when(chatService).markDeliveredByIds(anyCollection());
+        DeliveryAckBuffer buffer = new DeliveryAckBuffer(chatService, registry, null, 0, 500);
+
+        assertDoesNotThrow(() -> buffer.acknowledge("1"));
+        assertEquals(0, buffer.flush(), "los IDs fallidos no se reintentan");
+    }
+
+    @Test
+    void shutdown_escribeLoPendiente_OK() {
+        DeliveryAckBuffer buffer = new DeliveryAckBuffer(chatService, registry, scheduler, 50, 500);
+        buffer.acknowledge("1");
+
+        buffer.shutdown();
+
+        verify(scheduler).shutdown();
+        verify(chatService).markDeliveredByIds(List.of("1"));
+    }
+
+    @Test
+    void confirm_agrupaPorUsuario_enUnaOperacionMasiva_OK() {
+        DeliveryAckBuffer buffer = new DeliveryAckBuffer(chatService, registry, scheduler, 50, 500, true);
+        assertTrue(buffer.isClientConfirmed());
+
+        buffer.confirm("u1", List.of("1", "2"));
+        buffer.confirm("u1", List.of("2", "3"));
+        buffer.confirm("u2", List.of("9"));
+        buffer.confirm(null, List.of("x"));
+        verify(chatService, never()).markDeliveredFor(anyMap());
+
+        assertEquals(4, buffer.flush());
+
+        verify(chatService, times(1)).markDeliveredFor(Map.of("u1", Set.of("1", "2", "3"), "u2", Set.of("9")));
+        verify(chatService, never()).markDeliveredByIds(anyCollection());
+        assertEquals(5.0, registry.get("chat.delivery.client-acks").counter().count());
+        assertEquals(1.0, registry.get("chat.delivery.writes").counter().count());
+        assertEquals(0, buffer.flush());
+    }
+
+    @Test
+    void confirm_loteLleno_escribeSinEsperarVentana_OK() {
+        DeliveryAckBuffer buffer = new DeliveryAckBuffer(chatService, registry, scheduler, 50, 2);
+        assertFalse(buffer.isClientConfirmed());
+
+        buffer.confirm("u1", List.of("1"));
+        buffer.confirm("u2", List.of("2"));
+        verify(chatService, never()).markDeliveredFor(anyMap());
+
+        ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduler).execute(task.capture());
+        task.getValue().run();
+        verify(chatService).markDeliveredFor(Map.of("u1", Set.of("1"), "u2", Set.of("2")));
+    }
+}
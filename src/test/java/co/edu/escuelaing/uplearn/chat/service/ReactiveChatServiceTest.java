@@ -0,0 +1,79 @@
+package co.edu.escuelaing.uplearn.chat.service;
+
+import co.edu.escuelaing.uplearn.chat.domain.Chat;
+import co.edu.escuelaing.uplearn.chat.domain.Message;
+import co.edu.escuelaing.uplearn.chat.repository.ReactiveChatRepository;
+import co.edu.escuelaing.uplearn.chat.repository.ReactiveMessageRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.PageRequest;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+class ReactiveChatServiceTest {
+
+    ReactiveChatRepository chats;
+    ReactiveMessageRepository messages;
+    ReactiveChatService service;
+
+    @BeforeEach
+    void setUp() {
+        chats = mock(ReactiveChatRepository.class);
+        messages = mock(ReactiveMessageRepository.class);
+        service = new ReactiveChatService(chats, messages);
+    }
+
+    @Test
+    void isParticipant_participanteYChatInexistente_OK() {
+        when(chats.findById("c")).thenReturn(Mono.just(Chat.builder().id("c").participants(Set.of("a", "b")).build()));
+        when(chats.findById("x")).thenReturn(Mono.empty());
+
+        StepVerifier.create(service.isParticipant("c", "a")).expectNext(true).verifyComplete();
+        StepVerifier.create(service.isParticipant("c", "z")).expectNext(false).verifyComplete();
+        StepVerifier.create(service.isParticipant("x", "a")).expectNext(false).verifyComplete();
+    }
+
+    @Test
+    void history_aplicaMarcasDeLecturaLeyendoElChatUnaVez_OK() {
+        Instant t0 = Instant.parse("2024-01-01T00:00:00Z");
+        Message leido = Message.builder().id("1").toUserId("b").createdAt(t0).build();
+        Message nuevo = Message.builder().id("2").toUserId("b").createdAt(t0.plusSeconds(60)).build();
+        when(messages.findByChatIdOrderBySeqAscCreatedAtAsc("c")).thenReturn(Flux.just(leido, nuevo));
+        when(chats.findById("c")).thenReturn(Mono.just(Chat.builder().id("c")
+                .readUpTo(Map.of("b", t0.plusSeconds(1))).build()));
+
+        List<Message> out = service.history("c").collectList().block();
+
+        assertEquals(List.of(true, false), out.stream().map(Message::isRead).toList());
+        verify(chats, times(1)).findById("c");
+    }
+
+    @Test
+    void historyAfter_sinMensajes_noLeeMarcas_OK() {
+        when(messages.findByChatIdAndSeqGreaterThanOrderBySeqAsc("c", 5, PageRequest.of(0, 10)))
+                .thenReturn(Flux.empty());
+        when(chats.findById(anyString())).thenReturn(Mono.just(Chat.builder().id("c").build()));
+
+        StepVerifier.create(service.historyAfter("c", 5, 10)).verifyComplete();
+        verify(chats, never()).findById(anyString());
+    }
+
+    @Test
+    void readMarks_chatSinMarcas_vacio_FAIL() {
+        when(chats.findById("c")).thenReturn(Mono.just(Chat.builder().id("c").build()));
+        when(chats.findById("x")).thenReturn(Mono.empty());
+
+        StepVerifier.create(service.readMarks("c")).expectNext(Map.of()).verifyComplete();
+        StepVerifier.create(service.readMarks("x")).expectNext(Map.of()).verifyComplete();
+    }
+}
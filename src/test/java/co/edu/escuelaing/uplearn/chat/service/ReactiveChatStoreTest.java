@@ -0,0 +1,140 @@
+package co.edu.escuelaing.uplearn.chat.service;
+
+import co.edu.escuelaing.uplearn.chat.domain.Chat;
+import co.edu.escuelaing.uplearn.chat.domain.Message;
+import co.edu.escuelaing.uplearn.chat.dto.SendMessageRequest;
+import co.edu.escuelaing.uplearn.chat.repository.ChatRepository;
+import co.edu.escuelaing.uplearn.chat.repository.MessageRepository;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.time.Instant;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class ReactiveChatStoreTest {
+
+    ReactiveMongoTemplate mongo;
+    CryptoService crypto;
+    ChatService chats;
+    ReactiveChatStore store;
+
+    @BeforeEach
+    void setUp() {
+        mongo = mock(ReactiveMongoTemplate.class);
+        crypto = mock(CryptoService.class);
+        chats = new ChatService(mock(ChatRepository.class), mock(MessageRepository.class), crypto,
+                mock(MongoTemplate.class));
+        store = new ReactiveChatStore(mongo, crypto, chats);
+        when(crypto.encrypt(anyString())).thenAnswer(i -> "ENC-" + i.getArgument(0));
+        when(mongo.insert(any(Message.class))).thenAnswer(i -> Mono.just(i.getArgument(0)));
+        when(mongo.insertAll(anyList())).thenAnswer(i -> Flux.fromIterable(i.<List<Message>>getArgument(0)));
+    }
+
+    /** Contador de secuencia simulado, como en {@code ChatServiceTest}. */
+    private Map<Object, Long> stubSeq() {
+        Map<Object, Long> seqs = new HashMap<>();
+        when(mongo.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class),
+                eq(Chat.class))).thenAnswer(i -> {
+                    Object id = ((Query) i.getArgument(0)).getQueryObject().get("id");
+                    Number inc = (Number) ((Document) ((Update) i.getArgument(1)).getUpdateObject().get("$inc"))
+                            .get("seq");
+                    synchronized (seqs) {
+                        long seq = seqs.merge(id, inc.longValue(), Long::sum);
+                        return Mono.just(Chat.builder().id((String) id).seq(seq).build());
+                    }
+                });
+        return seqs;
+    }
+
+    @Test
+    void saveMessage_guardaCifradoConSecuencia_OK() {
+        stubSeq().put("cid", 4L);
+
+        StepVerifier.create(store.saveMessage("cid", "a", "b", "hola"))
+                .assertNext(m -> {
+                    assertEquals("ENC-hola", m.getContent());
+                    assertEquals(5L, m.getSeq());
+                    assertFalse(m.isDelivered());
+                })
+                .verifyComplete();
+    }
+
+    @Test
+    void saveMessage_altaConcurrenteDelChat_reintentaUnaVez_OK() {
+        when(mongo.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class),
+                eq(Chat.class)))
+                .thenReturn(Mono.error(new DuplicateKeyException("E11000")))
+                .thenReturn(Mono.just(Chat.builder().id("cid").seq(7).build()));
+
+        StepVerifier.create(store.saveMessage("cid", "a", "b", "hola"))
+                .assertNext(m -> assertEquals(7L, m.getSeq()))
+                .verifyComplete();
+    }
+
+    @Test
+    void saveMessages_unaInsercionYUnBloquePorChat_OK() {
+        stubSeq().put(chats.chatIdOf("a", "b"), 10L);
+        List<SendMessageRequest> reqs = List.of(
+                SendMessageRequest.builder().toUserId("b").content("1").build(),
+                SendMessageRequest.builder().toUserId("c").content("2").build(),
+                SendMessageRequest.builder().toUserId("b").content("3").build());
+
+        List<Message> out = store.saveMessages("a", reqs).block();
+
+        verify(mongo, times(1)).insertAll(out);
+        verify(mongo, times(2)).findAndModify(any(Query.class), any(Update.class),
+                any(FindAndModifyOptions.class), eq(Chat.class));
+        assertEquals(List.of(11L, 1L, 12L), out.stream().map(Message::getSeq).toList());
+        assertEquals(List.of("ENC-1", "ENC-2", "ENC-3"), out.stream().map(Message::getContent).toList());
+        assertTrue(store.saveMessages("a", List.of()).block().isEmpty());
+    }
+
+    @Test
+    void createdAtOf_mensajeAjeno_vacio_FAIL() {
+        Instant at = Instant.parse("2024-01-01T00:00:00Z");
+        when(mongo.findById("m1", Message.class))
+                .thenReturn(Mono.just(Message.builder().id("m1").fromUserId("a").toUserId("b").createdAt(at).build()));
+
+        StepVerifier.create(store.createdAtOf("b", "m1")).expectNext(at).verifyComplete();
+        StepVerifier.create(store.createdAtOf("x", "m1")).verifyComplete();
+    }
+
+    @Test
+    void advanceReadMark_avanzaSoloSiModifica_OK() {
+        when(mongo.updateFirst(any(Query.class), any(Update.class), eq(Chat.class)))
+                .thenReturn(Mono.just(UpdateResult.acknowledged(1, 1L, null)))
+                .thenReturn(Mono.just(UpdateResult.acknowledged(1, 0L, null)));
+        Instant upTo = Instant.now();
+
+        StepVerifier.create(store.advanceReadMark("cid", "a", upTo)).expectNext(true).verifyComplete();
+        StepVerifier.create(store.advanceReadMark("cid", "a", upTo)).expectNext(false).verifyComplete();
+        StepVerifier.create(store.advanceReadMark("cid", "a.b", upTo)).expectNext(false).verifyComplete();
+        verify(mongo).updateFirst(any(Query.class),
+                argThat((Update u) -> ((Document) u.getUpdateObject().get("$max")).containsKey("readUpTo.a%2Eb")),
+                eq(Chat.class));
+    }
+
+    @Test
+    void markDeliveredByIds_sinIds_noEscribe_OK() {
+        StepVerifier.create(store.markDeliveredByIds(List.of())).verifyComplete();
+        verify(mongo, never()).updateMulti(any(Query.class), any(Update.class), eq(Message.class));
+    }
+}
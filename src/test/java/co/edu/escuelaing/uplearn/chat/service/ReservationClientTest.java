@@ -7,11 +7,14 @@ import org.springframework.http.MediaType;
 import org.springframework.web.reactive.function.client.*;
 
 import java.lang.reflect.Field;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import co.edu.escuelaing.uplearn.chat.TestUtils;
 import org.springframework.http.HttpHeaders;
 import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -67,6 +70,37 @@ class ReservationClientTest {
         assertFalse(client.canChat("B", "x"));
     }
 
+    @Test
+    void checkCanChat_distingueNegativaDeFalloRemoto_OK() {
+        setWebClient(webClientReturning(Map.of("canChat", false)));
+        assertEquals(Optional.of(false), client.checkCanChat("B", "x"));
+
+        setWebClient(webClientError(HttpStatus.FORBIDDEN));
+        assertEquals(Optional.of(false), client.checkCanChat("B", "x"));
+
+        setWebClient(webClientError(HttpStatus.UNAUTHORIZED));
+        assertEquals(Optional.empty(), client.checkCanChat("B", "x"));
+
+        setWebClient(webClientError(HttpStatus.SERVICE_UNAVAILABLE));
+        assertEquals(Optional.empty(), client.checkCanChat("B", "x"));
+
+        setWebClient(WebClient.builder().exchangeFunction(req -> Mono.error(new RuntimeException("boom"))).build());
+        assertEquals(Optional.empty(), client.checkCanChat("B", "x"));
+    }
+
+    @Test
+    void checkCanChatAsync_noTerminaConError_OK() {
+        setWebClient(webClientReturning(Map.of("canChat", true)));
+        StepVerifier.create(client.checkCanChatAsync("B", "x"))
+                .expectNext(Optional.of(true))
+                .verifyComplete();
+
+        setWebClient(webClientError(HttpStatus.TOO_MANY_REQUESTS));
+        StepVerifier.create(client.checkCanChatAsync("B", "x"))
+                .expectNext(Optional.empty())
+                .verifyComplete();
+    }
+
     @Test
     void counterpartIds_filtraEstadosYExcluyeMiId_OK1y2() {
         List<Map<String, Object>> my = List.of(
@@ -118,4 +152,29 @@ class ReservationClientTest {
         Set<String> out = client.counterpartIds("B", "me");
         assertEquals(Set.of("a"), out);
     }
+
+    @Test
+    void counterpartIdsAsync_consultaAmbosEndpointsEnParalelo_OK() {
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        WebClient wc = WebClient.builder().exchangeFunction(req -> {
+            String key = req.url().toString().endsWith("/my") ? "tutorId" : "studentId";
+            List<Map<String, Object>> body = List.of(Map.of("status", "ACEPTADO", key, key + "-1"));
+            return Mono.fromRunnable(() -> maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max))
+                    .then(Mono.delay(Duration.ofMillis(50)))
+                    .then(Mono.fromSupplier(() -> {
+                        inFlight.decrementAndGet();
+                        return ClientResponse.create(HttpStatus.OK)
+                                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                                .body(TestUtils.toJsonArray(body))
+                                .build();
+                    }));
+        }).build();
+        setWebClient(wc);
+
+        StepVerifier.create(client.counterpartIdsAsync("B", "me"))
+                .expectNext(Set.of("tutorId-1", "studentId-1"))
+                .verifyComplete();
+        assertEquals(2, maxInFlight.get());
+    }
 }
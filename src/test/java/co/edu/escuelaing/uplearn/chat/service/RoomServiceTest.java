@@ -0,0 +1,159 @@
+package co.edu.escuelaing.uplearn.chat.service;
+
+import co.edu.escuelaing.uplearn.chat.domain.Chat;
+import co.edu.escuelaing.uplearn.chat.domain.Message;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Instant;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class RoomServiceTest {
+
+    MongoTemplate mongo;
+    CryptoService crypto;
+    RoomService service;
+
+    @BeforeEach
+    void setUp() {
+        mongo = mock(MongoTemplate.class);
+        crypto = mock(CryptoService.class);
+        service = new RoomService(mongo, crypto);
+        when(mongo.insert(any(Chat.class))).thenAnswer(i -> i.getArgument(0));
+        when(mongo.insert(any(Message.class))).thenAnswer(i -> {
+            Message m = i.getArgument(0);
+            m.setId("m1");
+            return m;
+        });
+    }
+
+    @Test
+    void create_duenoEsMiembroYSinDuplicados_OK() {
+        Chat room = service.create("t1", " Cálculo I ", Arrays.asList("s1", "s2", "s1", " ", null));
+
+        assertTrue(room.isRoom());
+        assertEquals("Cálculo I", room.getName());
+        assertEquals("t1", room.getOwnerId());
+        assertEquals(new LinkedHashSet<>(List.of("t1", "s1", "s2")), room.getParticipants());
+        assertNull(room.getUserA());
+        assertEquals(24, room.getId().length());
+    }
+
+    @Test
+    void create_sinNombreOExcedeCupo_FAIL() {
+        ReflectionTestUtils.setField(service, "maxMembers", 3);
+
+        assertThrows(IllegalArgumentException.class, () -> service.create("t1", " ", List.of("s1")));
+        assertThrows(IllegalArgumentException.class, () -> service.create("t1", "Sala", List.of("s1", "s2", "s3")));
+        verify(mongo, never()).insert(any(Chat.class));
+    }
+
+    @Test
+    void post_unSoloDocumentoSinReceptor_yMiembrosDeLaReserva_OK() {
+        when(crypto.encrypt("hola")).thenReturn("ENC");
+        Chat reserved = Chat.builder().id("r1").seq(42).participants(Set.of("t1", "s1", "s2")).build();
+        when(mongo.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class),
+                eq(Chat.class))).thenReturn(reserved);
+
+        RoomService.Post post = service.post("r1", "s1", "hola");
+
+        ArgumentCaptor<Query> q = ArgumentCaptor.forClass(Query.class);
+        verify(mongo).findAndModify(q.capture(), any(Update.class), any(FindAndModifyOptions.class), eq(Chat.class));
+        assertEquals("s1", q.getValue().getQueryObject().get("participants"));
+        assertEquals(true, q.getValue().getQueryObject().get("room"));
+        verify(mongo, times(1)).insert(any(Message.class));
+        Message m = post.message();
+        assertEquals("r1", m.getChatId());
+        assertNull(m.getToUserId());
+        assertEquals("ENC", m.getContent());
+        assertEquals(42, m.getSeq());
+        assertEquals(Set.of("t1", "s1", "s2"), post.members());
+    }
+
+    @Test
+    void post_noMiembro_null_FAIL() {
+        assertNull(service.post("r1", "x", "hola"));
+        verify(mongo, never()).insert(any(Message.class));
+    }
+
+    @Test
+    void addMembers_soloNuevos_yCupoEnLaEscritura_OK() {
+        ReflectionTestUtils.setField(service, "maxMembers", 5);
+        Chat before = Chat.builder().id("r1").ownerId("t1").participants(Set.of("t1", "s1")).build();
+        Chat after = Chat.builder().id("r1").ownerId("t1").participants(Set.of("t1", "s1", "s2")).build();
+        when(mongo.findOne(any(Query.class), eq(Chat.class))).thenReturn(before);
+        when(mongo.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class),
+                eq(Chat.class))).thenReturn(after);
+
+        RoomService.Change change = service.addMembers("r1", "t1", List.of("s1", "s2"));
+
+        assertEquals(Set.of("s2"), change.joined());
+        assertSame(after, change.room());
+        ArgumentCaptor<Query> q = ArgumentCaptor.forClass(Query.class);
+        verify(mongo).findAndModify(q.capture(), any(Update.class), any(FindAndModifyOptions.class), eq(Chat.class));
+        assertTrue(q.getValue().getQueryObject().containsKey("participants.4"));
+    }
+
+    @Test
+    void addMembers_noDuenoOExcedeCupo_FAIL() {
+        ReflectionTestUtils.setField(service, "maxMembers", 3);
+        assertNull(service.addMembers("r1", "s1", List.of("s9")));
+
+        when(mongo.findOne(any(Query.class), eq(Chat.class))).thenReturn(
+                Chat.builder().id("r1").ownerId("t1").participants(Set.of("t1", "s1")).build());
+        assertThrows(IllegalArgumentException.class, () -> service.addMembers("r1", "t1", List.of("s2", "s3")));
+        assertThrows(IllegalArgumentException.class, () -> service.addMembers("r1", "t1", List.of("s2")));
+    }
+
+    @Test
+    void removeMember_miembroSale_oDuenoNoPuede_OKyFAIL() {
+        Chat after = Chat.builder().id("r1").ownerId("t1").participants(Set.of("t1")).build();
+        when(mongo.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class),
+                eq(Chat.class))).thenReturn(after, (Chat) null, (Chat) null);
+        when(mongo.exists(any(Query.class), eq(Chat.class))).thenReturn(true);
+
+        assertEquals(Set.of("s1"), service.removeMember("r1", "s1", "s1").left());
+        assertThrows(IllegalArgumentException.class, () -> service.removeMember("r1", "t1", "t1"));
+        assertNull(service.removeMember("r1", "s2", "s1"));
+    }
+
+    @Test
+    void roomIdsOf_soloIds_OK() {
+        when(mongo.find(any(Query.class), eq(Chat.class))).thenReturn(List.of(Chat.builder().id("r1").build()));
+
+        assertEquals(Set.of("r1"), service.roomIdsOf("s1"));
+        ArgumentCaptor<Query> q = ArgumentCaptor.forClass(Query.class);
+        verify(mongo).find(q.capture(), eq(Chat.class));
+        assertFalse(q.getValue().getFieldsObject().containsKey("participants"));
+    }
+
+    @Test
+    void markRead_marcaPropiaSinRetroceder_yMiembrosEnLaMismaEscritura_OK() {
+        Instant upTo = Instant.parse("2024-10-17T15:00:00Z");
+        when(mongo.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class),
+                eq(Chat.class))).thenReturn(Chat.builder().id("r1").participants(Set.of("t1", "s1")).build(), (Chat) null);
+
+        assertEquals(Set.of("t1", "s1"), service.markRead("r1", "s1", upTo));
+        assertNull(service.markRead("r1", "s1", upTo), "una marca que ya cubre upTo no avanza");
+
+        ArgumentCaptor<Query> q = ArgumentCaptor.forClass(Query.class);
+        ArgumentCaptor<Update> u = ArgumentCaptor.forClass(Update.class);
+        verify(mongo, times(2)).findAndModify(q.capture(), u.capture(), any(FindAndModifyOptions.class),
+                eq(Chat.class));
+        assertEquals("s1", q.getValue().getQueryObject().get("participants"));
+        assertTrue(q.getValue().getQueryObject().containsKey("readUpTo.s1"));
+        assertEquals(upTo, ((Document) u.getValue().getUpdateObject().get("$max")).get("readUpTo.s1"));
+    }
+}
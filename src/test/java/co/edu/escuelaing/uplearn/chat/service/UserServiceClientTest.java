@@ -11,6 +11,7 @@ import org.springframework.http.MediaType;
 import org.springframework.web.reactive.function.client.*;
 
 import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
 import co.edu.escuelaing.uplearn.chat.TestUtils;
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -107,4 +108,26 @@ class UserServiceClientTest {
         setWc(c, WebClient.builder().exchangeFunction(req -> Mono.error(new RuntimeException("boom"))).build());
         assertNull(c.getPublicProfileById("x"));
     }
+
+    @Test
+    void getMyRolesAsync_aciertoDeCacheNoVaALaRed_OK() {
+        UserServiceClient c = new UserServiceClient(cacheManager, "http://u", "/public");
+        setWc(c, wcReturning(new RolesResponse(){{
+            setRoles(java.util.List.of("tutor"));
+        }}));
+        RolesResponse r1 = c.getMyRolesAsync("B").block();
+
+        setWc(c, WebClient.builder().exchangeFunction(req -> Mono.error(new RuntimeException("boom"))).build());
+        StepVerifier.create(c.getMyRolesAsync("B")).expectNext(r1).verifyComplete();
+        StepVerifier.create(c.getMyRolesAsync("C"))
+                .expectError(UserServiceClient.UserServiceException.class)
+                .verify();
+    }
+
+    @Test
+    void getPublicProfileByIdAsync_error_vacioSinExcepcion_FAIL() {
+        UserServiceClient c = new UserServiceClient(cacheManager, "http://u", "/public");
+        setWc(c, wcError(HttpStatus.INTERNAL_SERVER_ERROR, ""));
+        StepVerifier.create(c.getPublicProfileByIdAsync("x")).verifyComplete();
+    }
 }
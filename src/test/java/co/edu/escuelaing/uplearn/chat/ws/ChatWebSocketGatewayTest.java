@@ -2,27 +2,44 @@ package co.edu.escuelaing.uplearn.chat.ws;
 
 import co.edu.escuelaing.uplearn.chat.domain.Message;
 import co.edu.escuelaing.uplearn.chat.dto.ChatMessageData;
+import co.edu.escuelaing.uplearn.chat.dto.SendMessageRequest;
 import co.edu.escuelaing.uplearn.chat.service.AuthorizationService;
+import co.edu.escuelaing.uplearn.chat.service.ChatPermissionCache;
 import co.edu.escuelaing.uplearn.chat.service.ChatService;
+import co.edu.escuelaing.uplearn.chat.service.DeliveryAckBuffer;
 import co.edu.escuelaing.uplearn.chat.service.ReservationClient;
+import co.edu.escuelaing.uplearn.chat.service.RoomService;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentCaptor;
 import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
 import org.springframework.data.redis.listener.PatternTopic;
 import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.data.redis.listener.Topic;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.web.socket.BinaryMessage;
 import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.PingMessage;
+import org.springframework.web.socket.PongMessage;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 
 import java.io.IOException;
-import java.lang.reflect.Field;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.*;
@@ -33,8 +50,25 @@ class ChatWebSocketGatewayTest {
     private AuthorizationService authz;
     private ChatService chatService;
     private ReservationClient reservations;
+    private ChatPermissionCache permissions;
     private StringRedisTemplate redis;
     private RedisMessageListenerContainer container;
+    private OutboundSessionFactory outbound;
+    private InboundDispatcher inbound;
+    private PendingReplay replay;
+    private DeliveryAckBuffer acks;
+    private final NodeIdentity node = new NodeIdentity("node-a");
+    private final PresenceRegistry presence = new PresenceRegistry(node, null, 30_000, System::currentTimeMillis, null);
+    private ClusterRelay relay;
+    private TypingThrottle typing;
+    private final AtomicLong clock = new AtomicLong();
+    private SessionHeartbeat heartbeat;
+    private SendRateLimiter limiter;
+    private SessionAdmission admission;
+    private SessionRegistry<WebSocketSession> sessionRegistry;
+    private RoomService roomService;
+    private RoomFanOut rooms;
+    private TokenHandshakeInterceptor interceptor;
     private ChatWebSocketGateway gw;
     private final ObjectMapper json = new ObjectMapper();
 
@@ -43,14 +77,31 @@ class ChatWebSocketGatewayTest {
         authz = mock(AuthorizationService.class);
         chatService = mock(ChatService.class);
         reservations = mock(ReservationClient.class);
+        permissions = new ChatPermissionCache(reservations, new SimpleMeterRegistry(), 300, 30, 1000);
         redis = mock(StringRedisTemplate.class);
         container = mock(RedisMessageListenerContainer.class);
-        gw = new ChatWebSocketGateway(authz, chatService, reservations, redis, container);
+        outbound = new OutboundSessionFactory(new SimpleMeterRegistry(), Runnable::run, 256, 1 << 20, 10_000, null);
+        inbound = new InboundDispatcher(new SimpleMeterRegistry(), InboundDispatcher.Mode.INLINE, null);
+        acks = new DeliveryAckBuffer(chatService, new SimpleMeterRegistry(), null, 0, 500);
+        replay = new PendingReplay(chatService, acks, json, Runnable::run, 200, 1, 10_000);
+        relay = new ClusterRelay(node, presence, "broadcast", redis, container);
+        typing = new TypingThrottle(new SimpleMeterRegistry(), 3_000);
+        heartbeat = new SessionHeartbeat(new SimpleMeterRegistry(), 25_000, 60_000, 1_000, clock::get, null);
+        limiter = new SendRateLimiter(new SimpleMeterRegistry(), SendRateLimiter.Mode.LOCAL, 10, 30, 5, null, clock::get);
+        admission = new SessionAdmission(new SimpleMeterRegistry(), 100, 5, 0, 1_000, 0.9, clock::get);
+        sessionRegistry = new SessionRegistry<>(4);
+        roomService = mock(RoomService.class);
+        rooms = new RoomFanOut(roomService, chatService, relay);
+        interceptor = new TokenHandshakeInterceptor(authz, admission, sessionRegistry);
+        gw = new ChatWebSocketGateway(chatService, permissions, outbound, inbound, replay, acks, relay, typing, heartbeat, limiter, admission, sessionRegistry, rooms);
+        gw.initHeartbeat();
+        gw.initRooms();
     }
 
     @Test
     void initRedisListener_conContainerNull_noFalla() {
-        ChatWebSocketGateway localGw = new ChatWebSocketGateway(authz, chatService, reservations, redis, null);
+        ChatWebSocketGateway localGw = new ChatWebSocketGateway(chatService, permissions, outbound, inbound, replay, acks,
+                new ClusterRelay(node, presence, "broadcast", redis, null), typing, heartbeat, limiter, admission, sessionRegistry, rooms);
         assertDoesNotThrow(localGw::initRedisListener);
     }
 
@@ -60,12 +111,8 @@ class ChatWebSocketGatewayTest {
         WebSocketSession failingSession = mock(WebSocketSession.class);
         doThrow(new IOException("boom")).when(failingSession).sendMessage(any(TextMessage.class));
 
-        Map<String, Set<WebSocketSession>> sessions = sessionsMap();
-        sessions.clear();
-        Set<WebSocketSession> set = new HashSet<>();
-        set.add(okSession);
-        set.add(failingSession);
-        sessions.put("u1", set);
+        sessionRegistry.add("u1", okSession);
+        sessionRegistry.add("u1", failingSession);
 
         ArgumentCaptor<MessageListener> listenerCap = ArgumentCaptor.forClass(MessageListener.class);
         ArgumentCaptor<Topic> topicCap = ArgumentCaptor.forClass(Topic.class);
@@ -95,6 +142,7 @@ class ChatWebSocketGatewayTest {
 
         verify(okSession, atLeastOnce()).sendMessage(any(TextMessage.class));
         verify(failingSession, atLeastOnce()).sendMessage(any(TextMessage.class));
+        verify(okSession).sendMessage(argThat((TextMessage tm) -> Arrays.equals(tm.asBytes(), okMsg.getBody())));
 
         org.springframework.data.redis.connection.Message badMsg = mock(
                 org.springframework.data.redis.connection.Message.class);
@@ -103,39 +151,93 @@ class ChatWebSocketGatewayTest {
         assertDoesNotThrow(() -> listener.onMessage(badMsg, "chat:cid".getBytes(StandardCharsets.UTF_8)));
     }
 
+    @Test
+    void redisListener_omitePublicacionPropia_yEntregaAjena_OK() throws Exception {
+        WebSocketSession recipient = sessionWithUser("u2", "tokB");
+        ArgumentCaptor<MessageListener> listenerCap = ArgumentCaptor.forClass(MessageListener.class);
+        gw.initRedisListener();
+        verify(container).addMessageListener(listenerCap.capture(), any(Topic.class));
+        MessageListener listener = listenerCap.getValue();
+        OutboundFrame frame = OutboundFrame.encode(json, ChatMessageData.builder().id("m1").build());
+
+        org.springframework.data.redis.connection.Message own = mock(
+                org.springframework.data.redis.connection.Message.class);
+        when(own.getBody()).thenReturn(RelayEnvelope.encode("node-a", "m1", "u1", "u2", frame));
+        listener.onMessage(own, "chat:cid".getBytes(StandardCharsets.UTF_8));
+
+        verify(recipient, never()).sendMessage(any());
+        verify(chatService, never()).markDeliveredByIds(anyCollection());
+
+        org.springframework.data.redis.connection.Message remote = mock(
+                org.springframework.data.redis.connection.Message.class);
+        when(remote.getBody()).thenReturn(RelayEnvelope.encode("node-b", "m1", "u1", "u2", frame));
+        listener.onMessage(remote, "chat:cid".getBytes(StandardCharsets.UTF_8));
+
+        verify(recipient).sendMessage(argThat((TextMessage tm) -> Arrays.equals(tm.asBytes(), frame.text().asBytes())));
+        verify(chatService).markDeliveredByIds(List.of("m1"));
+    }
+
+    @Test
+    void redisListener_modoUsuario_entregaSoloAlDuenoDelCanal_OK() throws Exception {
+        relay = new ClusterRelay(node, presence, "user", redis, container);
+        gw = new ChatWebSocketGateway(chatService, permissions, outbound, inbound, replay, acks, relay, typing, heartbeat, limiter, admission, sessionRegistry, rooms);
+        gw.initRedisListener();
+        verify(container, never()).addMessageListener(any(MessageListener.class), any(Topic.class));
+
+        WebSocketSession sender = sessionWithUser("u1", "tokA");
+        WebSocketSession recipient = sessionWithUser("u2", "tokB");
+        ArgumentCaptor<MessageListener> listenerCap = ArgumentCaptor.forClass(MessageListener.class);
+        verify(container).addMessageListener(listenerCap.capture(), eq(new ChannelTopic("user:u2")));
+        OutboundFrame frame = OutboundFrame.encode(json, ChatMessageData.builder().id("m1").build());
+
+        org.springframework.data.redis.connection.Message onSenderChannel = mock(
+                org.springframework.data.redis.connection.Message.class);
+        when(onSenderChannel.getBody()).thenReturn(RelayEnvelope.encode("node-b", "m1", "u1", "u2", frame));
+        when(onSenderChannel.getChannel()).thenReturn("user:u1".getBytes(StandardCharsets.UTF_8));
+        listenerCap.getValue().onMessage(onSenderChannel, null);
+
+        verify(sender).sendMessage(any(TextMessage.class));
+        verify(recipient, never()).sendMessage(any());
+        verify(chatService, never()).markDeliveredByIds(anyCollection());
+
+        gw.afterConnectionClosed(recipient, CloseStatus.NORMAL);
+        verify(container).removeMessageListener(any(MessageListener.class), eq(new ChannelTopic("user:u2")));
+    }
+
     @Test
     void afterConnectionEstablished_tokenValido_entregaPendientes_OK() throws Exception {
         String token = "tok1";
         WebSocketSession s = mock(WebSocketSession.class);
-        when(s.getUri()).thenReturn(new URI("ws://x/ws?token=" + token));
         when(authz.subject("Bearer " + token)).thenReturn("u1");
-        when(s.getAttributes()).thenReturn(new HashMap<>());
+        Map<String, Object> attrs = handshake("token=" + token);
+        when(s.getAttributes()).thenReturn(attrs);
         when(s.isOpen()).thenReturn(true);
 
         Message m = Message.builder().id("1").content("E").build();
-        when(chatService.pendingFor("u1")).thenReturn(List.of(m));
+        stubPending("u1", List.of(m));
         when(chatService.toDto(m)).thenReturn(ChatMessageData.builder()
                 .id("1").fromUserId("u1").toUserId("u2").build());
 
         gw.afterConnectionEstablished(s);
 
         verify(s, atLeastOnce()).sendMessage(isA(TextMessage.class));
-        verify(chatService).markDelivered(anyList());
+        verify(chatService).markDeliveredByIds(List.of("1"));
     }
 
     @Test
     void afterConnectionEstablished_tokenValido_sinPendientes_OK() throws Exception {
         String token = "tok2";
         WebSocketSession s = mock(WebSocketSession.class);
-        when(s.getUri()).thenReturn(new URI("ws://x/ws?token=" + token));
         when(authz.subject("Bearer " + token)).thenReturn("u2");
-        when(s.getAttributes()).thenReturn(new HashMap<>());
+        Map<String, Object> attrs = handshake("token=" + token);
+        when(s.getAttributes()).thenReturn(attrs);
         when(s.isOpen()).thenReturn(true);
-        when(chatService.pendingFor("u2")).thenReturn(Collections.emptyList());
+        stubPending("u2", Collections.emptyList());
 
         gw.afterConnectionEstablished(s);
 
-        verify(chatService, never()).markDelivered(anyList());
+        verify(chatService).streamPending(eq("u2"), eq(200), any());
+        verify(chatService, never()).markDeliveredByIds(anyCollection());
         verify(s, never()).sendMessage(any());
     }
 
@@ -143,34 +245,49 @@ class ChatWebSocketGatewayTest {
     void afterConnectionEstablished_pendienteFalla_conversion_LOG() throws Exception {
         String token = "tok3";
         WebSocketSession s = mock(WebSocketSession.class);
-        when(s.getUri()).thenReturn(new URI("ws://x/ws?token=" + token));
         when(authz.subject("Bearer " + token)).thenReturn("u3");
-        when(s.getAttributes()).thenReturn(new HashMap<>());
+        Map<String, Object> attrs = handshake("token=" + token);
+        when(s.getAttributes()).thenReturn(attrs);
         when(s.isOpen()).thenReturn(true);
 
         Message m = Message.builder().id("1").content("E").build();
-        when(chatService.pendingFor("u3")).thenReturn(List.of(m));
+        stubPending("u3", List.of(m));
         when(chatService.toDto(m)).thenThrow(new RuntimeException("boom"));
 
         assertDoesNotThrow(() -> gw.afterConnectionEstablished(s));
         verify(s, never()).sendMessage(any());
-        verify(chatService).markDelivered(anyList());
+        verify(chatService).markDeliveredByIds(List.of("1"));
+    }
+
+    @Test
+    void afterConnectionEstablished_conCursor_reanudaDesdeElCursor_OK() throws Exception {
+        WebSocketSession s = mock(WebSocketSession.class);
+        when(authz.subject("Bearer tok4")).thenReturn("u4");
+        Map<String, Object> attrs = handshake("token=tok4&resume=2024-10-17T15:04:05%2B00:00");
+        when(s.getAttributes()).thenReturn(attrs);
+        when(s.isOpen()).thenReturn(true);
+
+        gw.afterConnectionEstablished(s);
+
+        verify(chatService).streamSince(eq("u4"), eq(Instant.parse("2024-10-17T15:04:03Z")), eq(1000), eq(200), any());
+        verify(chatService, never()).streamPending(any(), anyInt(), any());
+        ArgumentCaptor<TextMessage> sent = ArgumentCaptor.forClass(TextMessage.class);
+        verify(s).sendMessage(sent.capture());
+        assertEquals("resume", json.readTree(sent.getValue().getPayload()).get("type").asText());
     }
 
     @Test
-    void afterConnectionEstablished_sinToken_oTokenInvalido_cierra_FAIL() throws Exception {
-        WebSocketSession s1 = mock(WebSocketSession.class);
-        when(s1.getUri()).thenReturn(new URI("ws://x/ws"));
-        gw.afterConnectionEstablished(s1);
-        verify(s1).close(argThat(st -> st.getCode() == CloseStatus.NOT_ACCEPTABLE.getCode()
-                && st.getReason().contains("Falta token")));
+    void afterConnectionEstablished_sinPrincipalDelHandshake_cierra_FAIL() throws Exception {
+        WebSocketSession s = mock(WebSocketSession.class);
+        when(s.getAttributes()).thenReturn(new HashMap<>());
 
-        WebSocketSession s2 = mock(WebSocketSession.class);
-        when(s2.getUri()).thenReturn(new URI("ws://x/ws?token=bad"));
-        when(authz.subject("Bearer bad")).thenThrow(new RuntimeException("bad"));
-        gw.afterConnectionEstablished(s2);
-        verify(s2).close(argThat(st -> st.getCode() == CloseStatus.NOT_ACCEPTABLE.getCode()
-                && st.getReason().contains("Token inválido")));
+        gw.afterConnectionEstablished(s);
+
+        verify(s).close(argThat(st -> st.getCode() == CloseStatus.NOT_ACCEPTABLE.getCode()
+                && st.getReason().contains("No autenticado")));
+        verify(s, never()).getUri();
+        verifyNoInteractions(authz);
+        assertEquals(0, admission.openSessions());
     }
 
     @Test
@@ -178,7 +295,7 @@ class ChatWebSocketGatewayTest {
         WebSocketSession sSender = sessionWithUser("u1", "tokA");
         WebSocketSession sRecipient = sessionWithUser("u2", "tokB");
 
-        when(reservations.canChat("Bearer tokA", "u2")).thenReturn(true);
+        when(reservations.checkCanChat("Bearer tokA", "u2")).thenReturn(Optional.of(true));
 
         Message savedMsg = Message.builder()
                 .id("msg1")
@@ -195,23 +312,30 @@ class ChatWebSocketGatewayTest {
 
         gw.handleTextMessage(sSender, new TextMessage("{\"toUserId\":\"u2\",\"content\":\"Hello\"}"));
 
-        verify(chatService).ensureChat("u1", "u2");
+        verify(chatService, never()).ensureChat(any(), any());
         verify(chatService).saveMessage("chat123", "u1", "u2", "Hello");
 
-        verify(sSender).sendMessage(any(TextMessage.class));
-        verify(sRecipient).sendMessage(any(TextMessage.class));
+        ArgumentCaptor<TextMessage> toSender = ArgumentCaptor.forClass(TextMessage.class);
+        ArgumentCaptor<TextMessage> toRecipient = ArgumentCaptor.forClass(TextMessage.class);
+        verify(sSender).sendMessage(toSender.capture());
+        verify(sRecipient).sendMessage(toRecipient.capture());
+        assertSame(toSender.getValue(), toRecipient.getValue());
 
-        verify(chatService).markDelivered(anyList());
+        verify(chatService).markDeliveredByIds(List.of("msg1"));
         assertTrue(savedMsg.isDelivered());
 
-        verify(redis).convertAndSend(eq("chat:chat123"), anyString());
+        RelayEnvelope published = RelayEnvelope.decode(json.getFactory(), publishedTo("chat:chat123"));
+        assertEquals("node-a", published.origin());
+        assertEquals("msg1", published.messageId());
+        assertEquals("u2", published.toUserId());
+        assertArrayEquals(toSender.getValue().asBytes(), published.frame().text().asBytes());
     }
 
     @Test
     void handleTextMessage_Exito_DestinatarioOffline_RedisOK() throws Exception {
         WebSocketSession sSender = sessionWithUser("u1", "tokA");
 
-        when(reservations.canChat("Bearer tokA", "uOffline")).thenReturn(true);
+        when(reservations.checkCanChat("Bearer tokA", "uOffline")).thenReturn(Optional.of(true));
 
         Message savedMsg = Message.builder()
                 .id("msg2")
@@ -232,9 +356,9 @@ class ChatWebSocketGatewayTest {
         verify(sSender).sendMessage(any(TextMessage.class));
 
         assertFalse(savedMsg.isDelivered());
-        verify(chatService, never()).markDelivered(anyList());
+        verify(chatService, never()).markDeliveredByIds(anyCollection());
 
-        verify(redis).convertAndSend(eq("chat:chat999"), anyString());
+        publishedTo("chat:chat999");
     }
 
     @Test
@@ -242,26 +366,95 @@ class ChatWebSocketGatewayTest {
         WebSocketSession sSender = sessionWithUser("u1", "tokA");
         sessionWithUser("u2", "tokB"); 
 
-        when(reservations.canChat("Bearer tokA", "u2")).thenReturn(true);
+        when(reservations.checkCanChat("Bearer tokA", "u2")).thenReturn(Optional.of(true));
 
         Message savedMsg = Message.builder().id("m").chatId("c").build();
         when(chatService.saveMessage(any(), any(), any(), any())).thenReturn(savedMsg);
         when(chatService.toDto(savedMsg)).thenReturn(ChatMessageData.builder().build());
 
-        doThrow(new RuntimeException("DB error")).when(chatService).markDelivered(anyList());
+        doThrow(new RuntimeException("DB error")).when(chatService).markDeliveredByIds(anyCollection());
 
         assertDoesNotThrow(
                 () -> gw.handleTextMessage(sSender, new TextMessage("{\"toUserId\":\"u2\",\"content\":\"H\"}")));
 
-        verify(redis).convertAndSend(eq("chat:c"), anyString());
+        publishedTo("chat:c");
+    }
+
+    @Test
+    void handleTextMessage_destinatarioEnOtroNodo_loMarcaEseNodoAlEscribir_OK() throws Exception {
+        PresenceRegistry registry = mock(PresenceRegistry.class);
+        when(registry.isOnlineElsewhere("u2")).thenReturn(true);
+        gw = new ChatWebSocketGateway(chatService, permissions, outbound, inbound, replay, acks,
+                new ClusterRelay(node, registry, "broadcast", redis, container), typing, heartbeat, limiter, admission, sessionRegistry, rooms);
+        WebSocketSession s = sessionWithUser("u1", "tokA");
+        verify(registry).userConnected("u1");
+        when(reservations.checkCanChat("Bearer tokA", "u2")).thenReturn(Optional.of(true));
+        Message m = Message.builder().id("m").chatId("c").fromUserId("u1").toUserId("u2").build();
+        when(chatService.saveMessage(any(), any(), any(), any())).thenReturn(m);
+        when(chatService.toDto(m)).thenReturn(ChatMessageData.builder().build());
+
+        gw.handleTextMessage(s, new TextMessage("{\"toUserId\":\"u2\",\"content\":\"H\"}"));
+
+        assertFalse(m.isDelivered());
+        verify(chatService, never()).markDeliveredByIds(anyCollection());
+        publishedTo("chat:c");
+
+        gw.afterConnectionClosed(s, CloseStatus.NORMAL);
+        verify(registry).userDisconnected("u1");
+    }
+
+    @Test
+    void handleTextMessage_sesionDelDestinatarioRechaza_noMarcaEntregado_FAIL() throws Exception {
+        WebSocketSession sender = sessionWithUser("u1", "tokA");
+        WebSocketSession recipient = sessionWithUser("u2", "tokB");
+        when(recipient.isOpen()).thenReturn(false);
+        when(reservations.checkCanChat("Bearer tokA", "u2")).thenReturn(Optional.of(true));
+        Message m = Message.builder().id("m").chatId("c").fromUserId("u1").toUserId("u2").build();
+        when(chatService.saveMessage(any(), any(), any(), any())).thenReturn(m);
+        when(chatService.toDto(m)).thenReturn(ChatMessageData.builder().id("m").build());
+
+        gw.handleTextMessage(sender, new TextMessage("{\"toUserId\":\"u2\",\"content\":\"H\"}"));
+
+        verify(recipient, never()).sendMessage(any());
+        assertFalse(m.isDelivered());
+        verify(chatService, never()).markDeliveredByIds(anyCollection());
+    }
+
+    @Test
+    void handleTextMessage_marcaEntregadoAlEscribir_noAlEncolar_OK() throws Exception {
+        Queue<Runnable> drains = new ArrayDeque<>();
+        outbound = new OutboundSessionFactory(new SimpleMeterRegistry(), drains::add, 256, 1 << 20, 10_000, null);
+        gw = new ChatWebSocketGateway(chatService, permissions, outbound, inbound, replay, acks, relay, typing, heartbeat, limiter, admission, sessionRegistry, rooms);
+        WebSocketSession sender = sessionWithUser("u1", "tokA");
+        WebSocketSession recipient = sessionWithUser("u2", "tokB");
+        WebSocketSession second = sessionWithUser("u2", "tokB");
+        when(reservations.checkCanChat("Bearer tokA", "u2")).thenReturn(Optional.of(true));
+        Message m = Message.builder().id("m").chatId("c").fromUserId("u1").toUserId("u2").build();
+        when(chatService.saveMessage(any(), any(), any(), any())).thenReturn(m);
+        when(chatService.toDto(m)).thenReturn(ChatMessageData.builder().id("m").build());
+
+        gw.handleTextMessage(sender, new TextMessage("{\"toUserId\":\"u2\",\"content\":\"H\"}"));
+
+        verify(chatService, never()).markDeliveredByIds(anyCollection());
+
+        Runnable r;
+        while ((r = drains.poll()) != null) {
+            r.run();
+        }
+
+        verify(recipient).sendMessage(any(TextMessage.class));
+        verify(second).sendMessage(any(TextMessage.class));
+        verify(chatService, times(1)).markDeliveredByIds(List.of("m"));
+        assertTrue(m.isDelivered());
     }
 
     @Test
     void handleTextMessage_RedisNull_NoPublica() throws Exception {
-        gw = new ChatWebSocketGateway(authz, chatService, reservations, null, container);
+        gw = new ChatWebSocketGateway(chatService, permissions, outbound, inbound, replay, acks,
+                new ClusterRelay(node, presence, "broadcast", null, container), typing, heartbeat, limiter, admission, sessionRegistry, rooms);
         WebSocketSession s = sessionWithUser("u1", "tok");
 
-        when(reservations.canChat(any(), any())).thenReturn(true);
+        when(reservations.checkCanChat(any(), any())).thenReturn(Optional.of(true));
         Message m = Message.builder().chatId("c").build();
         when(chatService.saveMessage(any(), any(), any(), any())).thenReturn(m);
         when(chatService.toDto(m)).thenReturn(ChatMessageData.builder().build());
@@ -271,6 +464,45 @@ class ChatWebSocketGatewayTest {
         verifyNoInteractions(redis);
     }
 
+    @Test
+    void handleTextMessage_modoAsincrono_liberaHiloDelContenedor_OK() throws Exception {
+        Queue<Runnable> pool = new ArrayDeque<>();
+        inbound = new InboundDispatcher(new SimpleMeterRegistry(), InboundDispatcher.Mode.PLATFORM, pool::add);
+        gw = new ChatWebSocketGateway(chatService, permissions, outbound, inbound, replay, acks, relay, typing, heartbeat, limiter, admission, sessionRegistry, rooms);
+        WebSocketSession s = sessionWithUser("u1", "tokA");
+        when(reservations.checkCanChat("Bearer tokA", "u2")).thenReturn(Optional.of(true));
+        Message m = Message.builder().id("m").chatId("c").fromUserId("u1").toUserId("u2").build();
+        when(chatService.saveMessage(any(), any(), any(), any())).thenReturn(m);
+        when(chatService.toDto(m)).thenReturn(ChatMessageData.builder().build());
+
+        gw.handleTextMessage(s, new TextMessage("{\"toUserId\":\"u2\",\"content\":\"H\"}"));
+
+        verifyNoInteractions(reservations);
+        assertEquals(1, pool.size());
+
+        pool.poll().run();
+
+        verify(chatService).saveMessage(any(), eq("u1"), eq("u2"), eq("H"));
+        verify(s).sendMessage(any(TextMessage.class));
+    }
+
+    @Test
+    void handleTextMessage_conversacionActiva_unaSolaConsultaDeReservas_OK() throws Exception {
+        WebSocketSession s = sessionWithUser("u1", "tokA");
+        when(reservations.checkCanChat("Bearer tokA", "u2")).thenReturn(Optional.of(true));
+        Message m = Message.builder().id("m").chatId("c").build();
+        when(chatService.saveMessage(any(), any(), any(), any())).thenReturn(m);
+        when(chatService.toDto(m)).thenReturn(ChatMessageData.builder().build());
+
+        for (int i = 0; i < 3; i++)
+            gw.handleTextMessage(s, new TextMessage("{\"toUserId\":\"u2\",\"content\":\"H\"}"));
+
+        verify(reservations, times(1)).checkCanChat("Bearer tokA", "u2");
+        verify(chatService, times(3)).saveMessage(any(), any(), any(), any());
+        verify(s, never()).getUri();
+        verify(authz, times(1)).subject("Bearer tokA");
+    }
+
     @Test
     void handleTextMessage_sinUserId_cierra_FAIL() throws Exception {
         WebSocketSession s = mock(WebSocketSession.class);
@@ -318,21 +550,404 @@ class ChatWebSocketGatewayTest {
     void handleTextMessage_sinAutorizacionPorReservas_enviaError_FAIL() throws Exception {
         WebSocketSession s = sessionWithUser("u1", "tokAuth");
         
-        when(reservations.canChat("Bearer tokAuth", "u2")).thenReturn(false);
+        when(reservations.checkCanChat("Bearer tokAuth", "u2")).thenReturn(Optional.of(false));
 
         gw.handleTextMessage(s, new TextMessage("{\"toUserId\":\"u2\",\"content\":\"hola\"}"));
 
         verify(s).sendMessage(argThat((TextMessage tm) -> tm.getPayload().contains("No autorizado")));
-        verify(redis, never()).convertAndSend(anyString(), anyString());
+        verify(redis, never()).execute(any(RedisCallback.class));
+    }
+
+    @Test
+    void handleTextMessage_lote_unaInsercion_yUnaConfirmacion_OK() throws Exception {
+        WebSocketSession sSender = sessionWithUser("u1", "tokA");
+        WebSocketSession sRecipient = sessionWithUser("u2", "tokB");
+        when(reservations.checkCanChat("Bearer tokA", "u2")).thenReturn(Optional.of(true));
+        when(reservations.checkCanChat("Bearer tokA", "u3")).thenReturn(Optional.of(false));
+
+        Message m1 = Message.builder().id("m1").chatId("c12").fromUserId("u1").toUserId("u2").build();
+        Message m2 = Message.builder().id("m2").chatId("c12").fromUserId("u1").toUserId("u2").build();
+        when(chatService.saveMessages(eq("u1"), anyList())).thenReturn(List.of(m1, m2));
+        when(chatService.toDto(any(Message.class))).thenAnswer(inv -> ChatMessageData.builder()
+                .id(((Message) inv.getArgument(0)).getId()).build());
+
+        gw.handleTextMessage(sSender, new TextMessage("{\"type\":\"batch\",\"batchId\":\"b1\",\"messages\":["
+                + "{\"toUserId\":\"u2\",\"content\":\"a\",\"clientId\":\"k1\"},"
+                + "{\"toUserId\":\"u3\",\"content\":\"b\",\"clientId\":\"k2\"},"
+                + "{\"toUserId\":\"u2\",\"content\":\"\",\"clientId\":\"k3\"},"
+                + "{\"toUserId\":\"u2\",\"content\":\"c\",\"clientId\":\"k4\"}]}"));
+
+        verify(reservations, times(1)).checkCanChat("Bearer tokA", "u2");
+        verify(chatService, never()).ensureChat(any(), any());
+        verify(chatService).saveMessages(eq("u1"), argThat(l -> l.size() == 2
+                && "a".equals(l.get(0).getContent()) && "c".equals(l.get(1).getContent())));
+        verify(chatService, never()).saveMessage(any(), any(), any(), any());
+
+        ArgumentCaptor<TextMessage> toSender = ArgumentCaptor.forClass(TextMessage.class);
+        verify(sSender, times(3)).sendMessage(toSender.capture());
+        var ack = json.readTree(toSender.getAllValues().get(0).getPayload());
+        assertEquals("batch-ack", ack.get("type").asText());
+        assertEquals("b1", ack.get("batchId").asText());
+        assertEquals("m1", ack.get("results").get(0).get("id").asText());
+        assertEquals("k1", ack.get("results").get(0).get("clientId").asText());
+        assertEquals("forbidden", ack.get("results").get(1).get("error").asText());
+        assertEquals("invalid", ack.get("results").get(2).get("error").asText());
+        assertEquals("m2", ack.get("results").get(3).get("id").asText());
+        verify(sRecipient, times(2)).sendMessage(any(TextMessage.class));
+        verify(chatService).markDeliveredByIds(List.of("m1"));
+        verify(chatService).markDeliveredByIds(List.of("m2"));
+    }
+
+    @Test
+    void handleTextMessage_loteDemasiadoGrande_enviaError_FAIL() throws Exception {
+        WebSocketSession s = sessionWithUser("u1", "tokA");
+        StringBuilder payload = new StringBuilder("{\"type\":\"batch\",\"batchId\":\"big\",\"messages\":[");
+        for (int i = 0; i < 101; i++) {
+            payload.append(i == 0 ? "" : ",").append("{\"toUserId\":\"u2\",\"content\":\"x\"}");
+        }
+        payload.append("]}");
+
+        gw.handleTextMessage(s, new TextMessage(payload.toString()));
+        gw.handleTextMessage(s, new TextMessage("{\"type\":\"batch\",\"messages\":[]}"));
+
+        verify(s, times(2)).sendMessage(argThat((TextMessage tm) -> tm.getPayload().contains("error")));
+        verifyNoInteractions(reservations);
+        verify(chatService, never()).saveMessages(any(), anyList());
+    }
+
+    @Test
+    void handleBinaryMessage_clienteCbor_yClienteJson_conviven_OK() throws Exception {
+        WebSocketSession sSender = sessionWithUser("u1", "tokA", "chat.cbor");
+        WebSocketSession sRecipient = sessionWithUser("u2", "tokB");
+        when(reservations.checkCanChat("Bearer tokA", "u2")).thenReturn(Optional.of(true));
+        Message savedMsg = Message.builder().id("msg1").chatId("c12").fromUserId("u1").toUserId("u2").build();
+        when(chatService.chatIdOf("u1", "u2")).thenReturn("c12");
+        when(chatService.saveMessage("c12", "u1", "u2", "Hola")).thenReturn(savedMsg);
+        ChatMessageData dto = ChatMessageData.builder().id("msg1").content("Hola").build();
+        when(chatService.toDto(savedMsg)).thenReturn(dto);
+
+        byte[] cbor = WireFormat.CBOR.mapper().writeValueAsBytes(
+                SendMessageRequest.builder().toUserId("u2").content("Hola").build());
+        gw.handleBinaryMessage(sSender, new BinaryMessage(cbor));
+
+        ArgumentCaptor<BinaryMessage> toSender = ArgumentCaptor.forClass(BinaryMessage.class);
+        verify(sSender).sendMessage(toSender.capture());
+        assertEquals(dto, WireFormat.CBOR.mapper().readValue(toSender.getValue().getPayload().array(),
+                ChatMessageData.class));
+        verify(sRecipient).sendMessage(argThat((TextMessage tm) -> tm.getPayload().contains("\"msg1\"")));
+
+        RelayEnvelope published = RelayEnvelope.decode(json.getFactory(), publishedTo("chat:c12"));
+        assertEquals("msg1", json.readTree(published.frame().text().getPayload()).get("id").asText());
+    }
+
+    @Test
+    void handleBinaryMessage_noCbor_oSinAutorizacion_respondeEnBinario_FAIL() throws Exception {
+        WebSocketSession s = sessionWithUser("u1", "tokA", "chat.cbor");
+        when(reservations.checkCanChat("Bearer tokA", "u2")).thenReturn(Optional.of(false));
+
+        gw.handleBinaryMessage(s, new BinaryMessage(new byte[] { (byte) 0xff, 0x01 }));
+        gw.handleBinaryMessage(s, new BinaryMessage(new byte[0]));
+        verifyNoInteractions(reservations);
+
+        gw.handleBinaryMessage(s, new BinaryMessage(WireFormat.CBOR.mapper().writeValueAsBytes(
+                Map.of("toUserId", "u2", "content", "hola"))));
+
+        ArgumentCaptor<BinaryMessage> error = ArgumentCaptor.forClass(BinaryMessage.class);
+        verify(s).sendMessage(error.capture());
+        assertEquals("No autorizado para chatear",
+                WireFormat.CBOR.mapper().readTree(error.getValue().getPayload().array()).get("error").asText());
+        verify(chatService, never()).saveMessage(any(), any(), any(), any());
+    }
+
+    @Test
+    void getSubProtocols_anunciaCborYJson_OK() {
+        assertEquals(List.of("chat.cbor", "chat.json"), gw.getSubProtocols());
+    }
+
+    @Test
+    void handleTextMessage_ack_confirmaSoloParaElReceptor_OK() throws Exception {
+        WebSocketSession s = sessionWithUser("u2", "tokB");
+
+        gw.handleTextMessage(s, new TextMessage("{\"type\":\"ack\",\"ids\":[\"m1\",\"m2\",7,\"\"]}"));
+        gw.handleTextMessage(s, new TextMessage("{\"type\":\"ack\"}"));
+
+        verify(chatService, times(1)).markDeliveredFor(Map.of("u2", Set.of("m1", "m2")));
+        verify(chatService, never()).saveMessage(any(), any(), any(), any());
+        verifyNoInteractions(reservations);
+    }
+
+    @Test
+    void handleTextMessage_confirmacionDelCliente_noMarcaAlEncolar_OK() throws Exception {
+        acks = new DeliveryAckBuffer(chatService, new SimpleMeterRegistry(), null, 0, 500, true);
+        gw = new ChatWebSocketGateway(chatService, permissions, outbound, inbound, replay, acks, relay, typing, heartbeat, limiter, admission, sessionRegistry, rooms);
+        WebSocketSession sSender = sessionWithUser("u1", "tokA");
+        WebSocketSession sRecipient = sessionWithUser("u2", "tokB");
+        when(reservations.checkCanChat("Bearer tokA", "u2")).thenReturn(Optional.of(true));
+        Message savedMsg = Message.builder().id("msg1").chatId("c12").fromUserId("u1").toUserId("u2").build();
+        when(chatService.chatIdOf("u1", "u2")).thenReturn("c12");
+        when(chatService.saveMessage("c12", "u1", "u2", "Hola")).thenReturn(savedMsg);
+        when(chatService.toDto(savedMsg)).thenReturn(ChatMessageData.builder().id("msg1").build());
+
+        gw.handleTextMessage(sSender, new TextMessage("{\"toUserId\":\"u2\",\"content\":\"Hola\"}"));
+
+        verify(sRecipient).sendMessage(any(TextMessage.class));
+        assertFalse(savedMsg.isDelivered());
+        verify(chatService, never()).markDeliveredByIds(anyCollection());
+
+        gw.handleTextMessage(sRecipient, new TextMessage("{\"type\":\"ack\",\"ids\":[\"msg1\"]}"));
+        verify(chatService).markDeliveredFor(Map.of("u2", Set.of("msg1")));
+    }
+
+    @Test
+    void handleTextMessage_read_avanzaMarca_yAvisaAAmbos_OK() throws Exception {
+        WebSocketSession sReader = sessionWithUser("u2", "tokB");
+        WebSocketSession sSender = sessionWithUser("u1", "tokA");
+        when(chatService.chatIdOf("u2", "u1")).thenReturn("c12");
+        Instant upTo = Instant.parse("2024-10-17T15:04:05Z");
+        when(chatService.advanceReadMark("c12", "u2", upTo)).thenReturn(true);
+
+        gw.handleTextMessage(sReader, new TextMessage(
+                "{\"type\":\"read\",\"withUserId\":\"u1\",\"upTo\":\"" + upTo + "\"}"));
+
+        ArgumentCaptor<TextMessage> toSender = ArgumentCaptor.forClass(TextMessage.class);
+        verify(sSender).sendMessage(toSender.capture());
+        var receipt = json.readTree(toSender.getValue().getPayload());
+        assertEquals("read", receipt.get("type").asText());
+        assertEquals("c12", receipt.get("chatId").asText());
+        assertEquals("u2", receipt.get("userId").asText());
+        assertEquals(upTo.toString(), receipt.get("upTo").asText());
+        verify(sReader).sendMessage(toSender.getValue());
+        verify(chatService, never()).saveMessage(any(), any(), any(), any());
+
+        RelayEnvelope published = RelayEnvelope.decode(json.getFactory(), publishedTo("chat:c12"));
+        assertNull(published.messageId());
+        assertEquals("u1", published.toUserId());
+    }
+
+    @Test
+    void handleTextMessage_read_sinAvanceOInvalido_noAvisa_FAIL() throws Exception {
+        WebSocketSession sReader = sessionWithUser("u2", "tokB");
+        WebSocketSession sSender = sessionWithUser("u1", "tokA");
+        when(chatService.chatIdOf("u2", "u1")).thenReturn("c12");
+
+        gw.handleTextMessage(sReader, new TextMessage("{\"type\":\"read\",\"withUserId\":\"u1\"}"));
+        gw.handleTextMessage(sReader, new TextMessage("{\"type\":\"read\",\"withUserId\":\"u1\",\"upTo\":\"x\"}"));
+        gw.handleTextMessage(sReader, new TextMessage("{\"type\":\"read\"}"));
+
+        verify(chatService, times(1)).advanceReadMark(eq("c12"), eq("u2"), any(Instant.class));
+        verify(sSender, never()).sendMessage(any());
+        verify(redis, never()).execute(any(RedisCallback.class));
+    }
+
+    @Test
+    void handleTextMessage_readDeSala_avanzaMarcaPropia_yAvisaALaSala_OK() throws Exception {
+        when(roomService.roomIdsOf(anyString())).thenReturn(Set.of("r1"));
+        WebSocketSession sReader = sessionWithUser("u2", "tokB");
+        WebSocketSession sMember = sessionWithUser("u1", "tokA");
+        Instant upTo = Instant.parse("2024-10-17T15:04:05Z");
+        when(roomService.markRead("r1", "u2", upTo)).thenReturn(Set.of("u1", "u2"));
+
+        gw.handleTextMessage(sReader, new TextMessage(
+                "{\"type\":\"read\",\"roomId\":\"r1\",\"upTo\":\"" + upTo + "\"}"));
+
+        ArgumentCaptor<TextMessage> toMember = ArgumentCaptor.forClass(TextMessage.class);
+        verify(sMember).sendMessage(toMember.capture());
+        var receipt = json.readTree(toMember.getValue().getPayload());
+        assertEquals("r1", receipt.get("chatId").asText());
+        assertEquals("u2", receipt.get("userId").asText());
+        verify(chatService, never()).chatIdOf(any(), any());
+        verify(chatService, never()).advanceReadMark(any(), any(), any());
+    }
+
+    @Test
+    void handleTextMessage_escribiendo_seAtiendeEnElHilo_yColapsaRepetidos_OK() throws Exception {
+        Queue<Runnable> pool = new ArrayDeque<>();
+        inbound = new InboundDispatcher(new SimpleMeterRegistry(), InboundDispatcher.Mode.PLATFORM, pool::add);
+        gw = new ChatWebSocketGateway(chatService, permissions, outbound, inbound, replay, acks, relay, typing, heartbeat, limiter, admission, sessionRegistry, rooms);
+        WebSocketSession sSender = sessionWithUser("u1", "tokA");
+        WebSocketSession sRecipient = sessionWithUser("u2", "tokB");
+        when(reservations.checkCanChat("Bearer tokA", "u2")).thenReturn(Optional.of(true));
+        assertTrue(permissions.canChat("u1", "Bearer tokA", "u2"));
+        when(chatService.chatIdOf("u1", "u2")).thenReturn("c12");
+
+        gw.handleTextMessage(sSender, new TextMessage("{\"type\":\"typing\",\"toUserId\":\"u2\",\"state\":\"start\"}"));
+        gw.handleTextMessage(sSender, new TextMessage("{\"type\":\"typing\",\"toUserId\":\"u2\",\"state\":\"start\"}"));
+
+        assertTrue(pool.isEmpty());
+        ArgumentCaptor<TextMessage> out = ArgumentCaptor.forClass(TextMessage.class);
+        verify(sRecipient, times(1)).sendMessage(out.capture());
+        var event = json.readTree(out.getValue().getPayload());
+        assertEquals("typing", event.get("type").asText());
+        assertEquals("c12", event.get("chatId").asText());
+        assertEquals("u1", event.get("fromUserId").asText());
+        assertEquals("start", event.get("state").asText());
+        verify(sSender, never()).sendMessage(any());
+        verify(chatService, never()).saveMessage(any(), any(), any(), any());
+
+        RelayEnvelope published = RelayEnvelope.decode(json.getFactory(), publishedTo("chat:c12"));
+        assertNull(published.messageId());
+        assertEquals("u2", published.toUserId());
+    }
+
+    @Test
+    void handleTextMessage_escribiendo_relayFalla_noCierraSesion_FAIL() throws Exception {
+        WebSocketSession sSender = sessionWithUser("u1", "tokA");
+        WebSocketSession sRecipient = sessionWithUser("u2", "tokB");
+        when(reservations.checkCanChat("Bearer tokA", "u2")).thenReturn(Optional.of(true));
+        assertTrue(permissions.canChat("u1", "Bearer tokA", "u2"));
+        when(chatService.chatIdOf("u1", "u2")).thenReturn("c12");
+        when(redis.execute(any(RedisCallback.class))).thenThrow(new IllegalStateException("redis caído"));
+
+        assertDoesNotThrow(() -> gw.handleTextMessage(sSender,
+                new TextMessage("{\"type\":\"typing\",\"toUserId\":\"u2\"}")));
+
+        verify(sRecipient).sendMessage(any(TextMessage.class));
+        verify(redis, timeout(1_000)).execute(any(RedisCallback.class));
+        verify(sSender, never()).close(any(CloseStatus.class));
+    }
+
+    @Test
+    void handleTextMessage_escribiendo_sinPermisoEnCache_vaAlEjecutor_OK() throws Exception {
+        Queue<Runnable> pool = new ArrayDeque<>();
+        inbound = new InboundDispatcher(new SimpleMeterRegistry(), InboundDispatcher.Mode.PLATFORM, pool::add);
+        gw = new ChatWebSocketGateway(chatService, permissions, outbound, inbound, replay, acks, relay, typing, heartbeat, limiter, admission, sessionRegistry, rooms);
+        WebSocketSession sSender = sessionWithUser("u1", "tokA");
+        WebSocketSession sRecipient = sessionWithUser("u2", "tokB");
+        when(reservations.checkCanChat("Bearer tokA", "u2")).thenReturn(Optional.of(true));
+        when(chatService.chatIdOf("u1", "u2")).thenReturn("c12");
+
+        gw.handleTextMessage(sSender, new TextMessage("{\"type\":\"typing\",\"toUserId\":\"u2\"}"));
+
+        verifyNoInteractions(reservations);
+        assertEquals(1, pool.size());
+
+        pool.poll().run();
+
+        verify(reservations).checkCanChat("Bearer tokA", "u2");
+        verify(sRecipient).sendMessage(any(TextMessage.class));
+    }
+
+    @Test
+    void handleTextMessage_escribiendo_sinPermisoOHaciaSiMismo_noReenvia_FAIL() throws Exception {
+        WebSocketSession sSender = sessionWithUser("u1", "tokA");
+        WebSocketSession sRecipient = sessionWithUser("u3", "tokC");
+        when(reservations.checkCanChat("Bearer tokA", "u3")).thenReturn(Optional.of(false));
+
+        gw.handleTextMessage(sSender, new TextMessage("{\"type\":\"typing\",\"toUserId\":\"u3\"}"));
+        gw.handleTextMessage(sSender, new TextMessage("{\"type\":\"typing\",\"toUserId\":\"u1\"}"));
+        gw.handleTextMessage(sSender, new TextMessage("{\"type\":\"typing\"}"));
+
+        verify(sRecipient, never()).sendMessage(any());
+        verify(sSender, never()).sendMessage(any());
+        verify(redis, never()).execute(any(RedisCallback.class));
+    }
+
+    @Test
+    void latido_sesionSinPong_seCierraYSeDaDeBaja_OK() throws Exception {
+        WebSocketSession idle = sessionWithUser("u1", "tokA");
+        WebSocketSession alive = sessionWithUser("u2", "tokB");
+        assertEquals(2, heartbeat.sessionCount());
+
+        for (int t = 1; t <= 30; t++) {
+            clock.set(t * 1_000L);
+            heartbeat.tick();
+        }
+        verify(idle).sendMessage(isA(PingMessage.class));
+        verify(alive).sendMessage(isA(PingMessage.class));
+
+        gw.handlePongMessage(alive, new PongMessage());
+        for (int t = 31; t <= 61; t++) {
+            clock.set(t * 1_000L);
+            heartbeat.tick();
+        }
+
+        verify(idle).close(ChatWebSocketGateway.IDLE);
+        verify(alive, never()).close(any());
+        assertFalse(sessionRegistry.has("u1"));
+        assertTrue(sessionRegistry.has("u2"));
+        assertEquals(1, heartbeat.sessionCount());
+
+        assertEquals(1, admission.openSessions(), "la sesión inactiva libera su lugar de admisión");
+
+        gw.afterConnectionClosed(idle, ChatWebSocketGateway.IDLE);
+        assertEquals(1, heartbeat.sessionCount());
+        assertEquals(1, admission.openSessions());
+    }
+
+    @Test
+    void latido_cualquierTramaCuentaComoActividad_OK() throws Exception {
+        WebSocketSession s = sessionWithUser("u1", "tokA");
+
+        for (int t = 1; t <= 90; t++) {
+            clock.set(t * 1_000L);
+            if (t % 20 == 0) {
+                gw.handleTextMessage(s, new TextMessage("ping"));
+            }
+            heartbeat.tick();
+        }
+
+        verify(s, never()).close(any());
+        assertTrue(sessionRegistry.has("u1"));
+        gw.afterConnectionClosed(s, CloseStatus.NORMAL);
+        assertEquals(0, heartbeat.sessionCount());
+    }
+
+    @Test
+    void handleTextMessage_limiteDeEnvio_rechazaConReintento_sinPersistir_FAIL() throws Exception {
+        limiter = new SendRateLimiter(new SimpleMeterRegistry(), SendRateLimiter.Mode.LOCAL, 1, 2, 1, null, clock::get);
+        gw = new ChatWebSocketGateway(chatService, permissions, outbound, inbound, replay, acks, relay, typing,
+                heartbeat, limiter, admission, sessionRegistry, rooms);
+        WebSocketSession s = sessionWithUser("u1", "tokA");
+        when(reservations.checkCanChat("Bearer tokA", "u2")).thenReturn(Optional.of(true));
+        Message m = Message.builder().id("m").chatId("c").build();
+        when(chatService.saveMessage(any(), any(), any(), any())).thenReturn(m);
+        when(chatService.toDto(m)).thenReturn(ChatMessageData.builder().build());
+
+        for (int i = 0; i < 3; i++) {
+            gw.handleTextMessage(s, new TextMessage("{\"toUserId\":\"u2\",\"content\":\"H\",\"clientId\":\"k" + i + "\"}"));
+        }
+
+        verify(chatService, times(2)).saveMessage(any(), any(), any(), any());
+        ArgumentCaptor<TextMessage> out = ArgumentCaptor.forClass(TextMessage.class);
+        verify(s, atLeastOnce()).sendMessage(out.capture());
+        var error = json.readTree(out.getAllValues().get(out.getAllValues().size() - 1).getPayload());
+        assertEquals("rate_limited", error.get("code").asText());
+        assertEquals("k2", error.get("clientId").asText());
+        assertEquals(1000, error.get("retryAfterMs").asLong());
+
+        clock.addAndGet(java.util.concurrent.TimeUnit.SECONDS.toNanos(1));
+        gw.handleTextMessage(s, new TextMessage("{\"toUserId\":\"u2\",\"content\":\"H\"}"));
+        verify(chatService, times(3)).saveMessage(any(), any(), any(), any());
+    }
+
+    @Test
+    void handleTextMessage_limiteDeEnvio_loteSinFichas_seRechazaCompleto_FAIL() throws Exception {
+        limiter = new SendRateLimiter(new SimpleMeterRegistry(), SendRateLimiter.Mode.LOCAL, 1, 3, 1, null, clock::get);
+        gw = new ChatWebSocketGateway(chatService, permissions, outbound, inbound, replay, acks, relay, typing,
+                heartbeat, limiter, admission, sessionRegistry, rooms);
+        WebSocketSession s = sessionWithUser("u1", "tokA");
+        assertEquals(0, limiter.acquire("u1", 1));
+
+        gw.handleTextMessage(s, new TextMessage("{\"type\":\"batch\",\"batchId\":\"b9\",\"messages\":["
+                + "{\"toUserId\":\"u2\",\"content\":\"a\"},{\"toUserId\":\"u2\",\"content\":\"b\"},"
+                + "{\"toUserId\":\"u2\",\"content\":\"c\"}]}"));
+
+        ArgumentCaptor<TextMessage> out = ArgumentCaptor.forClass(TextMessage.class);
+        verify(s).sendMessage(out.capture());
+        var error = json.readTree(out.getValue().getPayload());
+        assertEquals("rate_limited", error.get("code").asText());
+        assertEquals("b9", error.get("batchId").asText());
+        verifyNoInteractions(reservations);
+        verify(chatService, never()).saveMessages(any(), anyList());
     }
 
     @Test
     void afterConnectionClosed_remueveSesion_OK_yNoRevientaSinUser() throws Exception {
         WebSocketSession s = sessionWithUser("u1");
-        assertTrue(sessionsMap().containsKey("u1"));
+        assertTrue(sessionRegistry.has("u1"));
 
         gw.afterConnectionClosed(s, CloseStatus.NORMAL);
-        assertFalse(sessionsMap().containsKey("u1"));
+        assertFalse(sessionRegistry.has("u1"));
 
         WebSocketSession s2 = mock(WebSocketSession.class);
         when(s2.getAttributes()).thenReturn(new HashMap<>());
@@ -340,31 +955,169 @@ class ChatWebSocketGatewayTest {
     }
 
 
+    @Test
+    void handleTextMessage_sala_unaTramaParaTodosYUnaPublicacion_OK() throws Exception {
+        when(roomService.roomIdsOf(anyString())).thenReturn(Set.of("r1"));
+        WebSocketSession s1 = sessionWithUser("u1", "tokA");
+        WebSocketSession s2 = sessionWithUser("u2", "tokB");
+        WebSocketSession s3 = sessionWithUser("u3", "tokC");
+        Message saved = Message.builder().id("m1").chatId("r1").fromUserId("u1").content("ENC").seq(7).build();
+        when(roomService.post("r1", "u1", "Hola")).thenReturn(
+                new RoomService.Post(saved, Set.of("u1", "u2", "u3", "u4")));
+        when(chatService.toDto(saved)).thenReturn(ChatMessageData.builder().id("m1").chatId("r1").build());
+
+        gw.handleTextMessage(s1, new TextMessage("{\"roomId\":\"r1\",\"content\":\"Hola\"}"));
+
+        ArgumentCaptor<TextMessage> a = ArgumentCaptor.forClass(TextMessage.class);
+        ArgumentCaptor<TextMessage> b = ArgumentCaptor.forClass(TextMessage.class);
+        ArgumentCaptor<TextMessage> c = ArgumentCaptor.forClass(TextMessage.class);
+        verify(s1).sendMessage(a.capture());
+        verify(s2).sendMessage(b.capture());
+        verify(s3).sendMessage(c.capture());
+        assertSame(a.getValue(), b.getValue());
+        assertSame(a.getValue(), c.getValue());
+        verify(chatService, times(1)).toDto(saved);
+        verify(chatService, never()).saveMessage(any(), any(), any(), any());
+        verifyNoInteractions(reservations);
+
+        RelayEnvelope published = RelayEnvelope.decode(json.getFactory(), publishedTo("chat:r1"));
+        assertEquals("r1", published.roomId());
+        assertEquals("m1", published.messageId());
+        assertNull(published.toUserId());
+    }
+
+    @Test
+    void handleTextMessage_salaSinSerMiembro_respondeErrorYNoPublica_FAIL() throws Exception {
+        WebSocketSession s1 = sessionWithUser("u1", "tokA");
+
+        gw.handleTextMessage(s1, new TextMessage("{\"roomId\":\"r1\",\"content\":\"Hola\"}"));
+        gw.handleTextMessage(s1, new TextMessage("{\"roomId\":\" \",\"content\":\"Hola\"}"));
+
+        verify(roomService, times(1)).post("r1", "u1", "Hola");
+        verify(s1).sendMessage(argThat((TextMessage tm) -> tm.getPayload().contains("No eres miembro de la sala")));
+        verify(redis, never()).execute(any(RedisCallback.class));
+    }
+
+    @Test
+    void redisListener_sobreDeSala_entregaSoloAMiembrosLocales_OK() throws Exception {
+        when(roomService.roomIdsOf("u2")).thenReturn(Set.of("r1"));
+        WebSocketSession member = sessionWithUser("u2", "tokB");
+        WebSocketSession other = sessionWithUser("u3", "tokC");
+        ArgumentCaptor<MessageListener> listenerCap = ArgumentCaptor.forClass(MessageListener.class);
+        gw.initRedisListener();
+        verify(container).addMessageListener(listenerCap.capture(), any(Topic.class));
+        OutboundFrame frame = OutboundFrame.encode(json, ChatMessageData.builder().id("m1").chatId("r1").build());
+
+        org.springframework.data.redis.connection.Message remote = mock(
+                org.springframework.data.redis.connection.Message.class);
+        when(remote.getBody()).thenReturn(RelayEnvelope.encodeRoom("node-b", "r1", "m1", "u1", frame));
+        listenerCap.getValue().onMessage(remote, "chat:r1".getBytes(StandardCharsets.UTF_8));
+
+        verify(member).sendMessage(argThat((TextMessage tm) -> Arrays.equals(tm.asBytes(), frame.text().asBytes())));
+        verify(other, never()).sendMessage(any());
+        verify(chatService, never()).markDeliveredByIds(anyCollection());
+
+        gw.afterConnectionClosed(member, CloseStatus.NORMAL);
+        assertTrue(rooms.localMembersOf("r1").isEmpty());
+    }
+
+    private byte[] publishedTo(String channel) {
+        ArgumentCaptor<RedisCallback<Long>> callback = ArgumentCaptor.forClass(RedisCallback.class);
+        verify(redis, timeout(1_000)).execute(callback.capture());
+        RedisConnection conn = mock(RedisConnection.class);
+        callback.getValue().doInRedis(conn);
+        ArgumentCaptor<byte[]> body = ArgumentCaptor.forClass(byte[].class);
+        verify(conn).publish(eq(channel.getBytes(StandardCharsets.UTF_8)), body.capture());
+        return body.getValue();
+    }
+
     private WebSocketSession sessionWithUser(String userId) throws Exception {
         return sessionWithUser(userId, "tok");
     }
 
     private WebSocketSession sessionWithUser(String userId, String token) throws Exception {
+        return sessionWithUser(userId, token, null);
+    }
+
+    private WebSocketSession sessionWithUser(String userId, String token, String subProtocol) throws Exception {
         WebSocketSession s = mock(WebSocketSession.class);
-        when(s.getUri()).thenReturn(new URI("ws://x/ws?token=" + token));
+        when(s.getAcceptedProtocol()).thenReturn(subProtocol);
         when(authz.subject("Bearer " + token)).thenReturn(userId);
-        Map<String, Object> attrs = new HashMap<>();
+        Map<String, Object> attrs = handshake("token=" + token);
         when(s.getAttributes()).thenReturn(attrs);
         when(s.isOpen()).thenReturn(true);
-        when(chatService.pendingFor(userId)).thenReturn(Collections.emptyList());
 
         gw.afterConnectionEstablished(s);
         return s;
     }
 
+    /**
+     * Atributos de sesión que deja el interceptor tras un handshake válido.
+     */
+    private Map<String, Object> handshake(String query) throws Exception {
+        ServerHttpRequest request = mock(ServerHttpRequest.class);
+        when(request.getURI()).thenReturn(new URI("ws://x/ws/chat?" + query));
+        Map<String, Object> attrs = new HashMap<>();
+        assertTrue(interceptor.beforeHandshake(request, mock(ServerHttpResponse.class), gw, attrs));
+        return attrs;
+    }
+
     @SuppressWarnings("unchecked")
-    private Map<String, Set<WebSocketSession>> sessionsMap() {
-        try {
-            Field f = ChatWebSocketGateway.class.getDeclaredField("sessionsByUser");
-            f.setAccessible(true);
-            return (Map<String, Set<WebSocketSession>>) f.get(gw);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+    private void stubPending(String userId, List<Message> pending) {
+        when(chatService.streamPending(eq(userId), anyInt(), any())).thenAnswer(inv -> {
+            if (!pending.isEmpty()) {
+                ((Consumer<List<Message>>) inv.getArgument(2)).accept(pending);
+            }
+            return pending.size();
+        });
+    }
+
+    @Test
+    void afterConnectionEstablished_topeOcupadoTrasElHandshake_cierraCon1013YReintento_FAIL() throws Exception {
+        admission = new SessionAdmission(new SimpleMeterRegistry(), 100, 1, 0, 1_000, 0.9, clock::get);
+        interceptor = new TokenHandshakeInterceptor(authz, admission, sessionRegistry);
+        gw = new ChatWebSocketGateway(chatService, permissions, outbound, inbound, replay, acks, relay, typing, heartbeat, limiter, admission, sessionRegistry, rooms);
+        when(authz.subject("Bearer t1")).thenReturn("u1");
+        Map<String, Object> racing = handshake("token=t1");
+
+        WebSocketSession first = sessionWithUser("u1", "t1");
+        WebSocketSession second = mock(WebSocketSession.class);
+        when(second.getAttributes()).thenReturn(racing);
+        gw.afterConnectionEstablished(second);
+
+        verify(first, never()).close(any());
+        ArgumentCaptor<CloseStatus> status = ArgumentCaptor.forClass(CloseStatus.class);
+        verify(second).close(status.capture());
+        assertEquals(1013, status.getValue().getCode());
+        long retry = Long.parseLong(status.getValue().getReason().substring(ChatWebSocketGateway.RETRY_AFTER_REASON.length()));
+        assertTrue(retry >= 500 && retry <= 1_000);
+        assertEquals(1, admission.openSessions());
+        assertEquals(1, sessionRegistry.count("u1"));
+        verify(chatService, times(1)).streamPending(eq("u1"), anyInt(), any());
+
+        gw.afterConnectionClosed(second, CloseStatus.SERVICE_OVERLOAD);
+        assertEquals(1, admission.openSessions(), "una sesión rechazada no libera lugar");
+        gw.afterConnectionClosed(first, CloseStatus.NORMAL);
+        gw.afterConnectionClosed(first, CloseStatus.NORMAL);
+        assertEquals(0, admission.openSessions());
+    }
+
+    @Test
+    void beforeHandshake_topeDeUsuario_noLlegaAlGateway_FAIL() throws Exception {
+        admission = new SessionAdmission(new SimpleMeterRegistry(), 100, 1, 0, 1_000, 0.9, clock::get);
+        interceptor = new TokenHandshakeInterceptor(authz, admission, sessionRegistry);
+        gw = new ChatWebSocketGateway(chatService, permissions, outbound, inbound, replay, acks, relay, typing, heartbeat, limiter, admission, sessionRegistry, rooms);
+        sessionWithUser("u1", "t1");
+
+        ServerHttpRequest request = mock(ServerHttpRequest.class);
+        when(request.getURI()).thenReturn(new URI("ws://x/ws/chat?token=t1"));
+        ServerHttpResponse response = mock(ServerHttpResponse.class);
+        when(response.getHeaders()).thenReturn(new HttpHeaders());
+
+        assertFalse(interceptor.beforeHandshake(request, response, gw, new HashMap<>()));
+
+        verify(response).setStatusCode(HttpStatus.SERVICE_UNAVAILABLE);
+        assertEquals(1, admission.openSessions());
+        assertEquals(1, sessionRegistry.count("u1"));
     }
-}
\ No newline at end of file
+}
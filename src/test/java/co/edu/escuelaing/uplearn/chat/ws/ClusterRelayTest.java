@@ -0,0 +1,313 @@
+package co.edu.escuelaing.uplearn.chat.ws;
+
+import co.edu.escuelaing.uplearn.chat.domain.Message;
+import com.fasterxml.jackson.core.JsonFactory;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.ReactivePubSubCommands;
+import org.springframework.data.redis.connection.ReactiveRedisConnection;
+import org.springframework.data.redis.connection.ReactiveRedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.PatternTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.listener.Topic;
+import reactor.core.publisher.Mono;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class ClusterRelayTest {
+
+    private final NodeIdentity node = new NodeIdentity("node-a");
+    private final PresenceRegistry presence = new PresenceRegistry(node, null, 30_000, System::currentTimeMillis, null);
+    private StringRedisTemplate redis;
+    private RedisMessageListenerContainer container;
+    private final List<String> received = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        redis = mock(StringRedisTemplate.class);
+        container = mock(RedisMessageListenerContainer.class);
+    }
+
+    private Message message() {
+        return Message.builder().id("m1").chatId("c1").fromUserId("u1").toUserId("u2").build();
+    }
+
+    private OutboundFrame frame() {
+        return OutboundFrame.wrap("{}".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @SuppressWarnings("unchecked")
+    private RedisConnection publishedConnection() {
+        ArgumentCaptor<RedisCallback<?>> callback = ArgumentCaptor.forClass(RedisCallback.class);
+        verify(redis).execute(callback.capture());
+        RedisConnection conn = mock(RedisConnection.class);
+        callback.getValue().doInRedis(conn);
+        return conn;
+    }
+
+    @Test
+    void broadcast_escuchaPatronYPublicaEnCanalDeChat_OK() {
+        ClusterRelay relay = new ClusterRelay(node, presence, " Broadcast ", redis, container);
+        relay.start((user, env) -> received.add(user + "|" + env.messageId()));
+
+        ArgumentCaptor<Topic> topic = ArgumentCaptor.forClass(Topic.class);
+        verify(container).addMessageListener(any(MessageListener.class), topic.capture());
+        assertEquals(new PatternTopic("chat:*"), topic.getValue());
+        assertEquals(ClusterRelay.Routing.BROADCAST, relay.routing());
+
+        relay.userConnected("u1");
+        verifyNoMoreInteractions(container);
+
+        relay.publish(message(), frame());
+        RedisConnection conn = publishedConnection();
+        verify(conn).publish(eq("chat:c1".getBytes(StandardCharsets.UTF_8)), any(byte[].class));
+    }
+
+    @Test
+    void usuario_suscribeSoloUsuariosConectados_OK() {
+        ClusterRelay relay = new ClusterRelay(node, presence, "user", redis, container);
+        relay.start((user, env) -> received.add(user + "|" + env.messageId()));
+        verify(container, never()).addMessageListener(any(MessageListener.class), any(Topic.class));
+
+        relay.userConnected("u1");
+        relay.userConnected("u1");
+        ArgumentCaptor<MessageListener> listener = ArgumentCaptor.forClass(MessageListener.class);
+        verify(container, times(1)).addMessageListener(listener.capture(), eq(new ChannelTopic("user:u1")));
+        assertEquals(1, relay.subscribedUserCount());
+
+        relay.userDisconnected("u1", () -> true);
+        verify(container, never()).removeMessageListener(any(MessageListener.class), any(Topic.class));
+
+        relay.userDisconnected("u1", () -> false);
+        verify(container).removeMessageListener(listener.getValue(), new ChannelTopic("user:u1"));
+        assertEquals(0, relay.subscribedUserCount());
+    }
+
+    @Test
+    void usuario_suscribeSinCandado_yDesconexionCruzadaNoDejaCanal_OK() throws Exception {
+        ClusterRelay relay = new ClusterRelay(node, presence, "user", redis, container);
+        relay.start((user, env) -> received.add(user + "|" + env.messageId()));
+        AtomicBoolean u1Connected = new AtomicBoolean(true);
+        doAnswer(inv -> {
+            Thread other = new Thread(() -> relay.userConnected("u2", () -> true));
+            other.start();
+            other.join(1_000);
+            assertFalse(other.isAlive(), "SUBSCRIBE de u1 no debe bloquear a otros usuarios");
+            u1Connected.set(false);
+            relay.userDisconnected("u1", u1Connected::get);
+            return null;
+        }).when(container).addMessageListener(any(MessageListener.class), eq(new ChannelTopic("user:u1")));
+
+        relay.userConnected("u1", u1Connected::get);
+
+        verify(container).addMessageListener(any(MessageListener.class), eq(new ChannelTopic("user:u2")));
+        verify(container).removeMessageListener(any(MessageListener.class), eq(new ChannelTopic("user:u1")));
+        assertEquals(1, relay.subscribedUserCount());
+
+        relay.userConnected("u3", () -> false);
+        verify(container, never()).addMessageListener(any(MessageListener.class), eq(new ChannelTopic("user:u3")));
+    }
+
+    @Test
+    void usuario_publicaEnCanalesDeEmisorYReceptor_OK() {
+        ClusterRelay relay = new ClusterRelay(node, presence, "user", redis, container);
+
+        relay.publish(message(), frame());
+
+        RedisConnection conn = publishedConnection();
+        verify(conn).publish(eq("user:u2".getBytes(StandardCharsets.UTF_8)), any(byte[].class));
+        verify(conn).publish(eq("user:u1".getBytes(StandardCharsets.UTF_8)), any(byte[].class));
+        verify(conn, never()).publish(eq("chat:c1".getBytes(StandardCharsets.UTF_8)), any(byte[].class));
+    }
+
+    @Test
+    void usuario_eventoEfimero_publicaSoloEnCanalDelReceptor_OK() {
+        ClusterRelay relay = new ClusterRelay(node, presence, "user", redis, container);
+
+        relay.publishToRecipient("c1", "u1", "u2", frame());
+
+        RedisConnection conn = publishedConnection();
+        verify(conn).publish(eq("user:u2".getBytes(StandardCharsets.UTF_8)), any(byte[].class));
+        verify(conn, never()).publish(eq("user:u1".getBytes(StandardCharsets.UTF_8)), any(byte[].class));
+    }
+
+    @Test
+    void listener_omiteOrigenPropio_yPasaUsuarioDelCanal_OK() {
+        ClusterRelay relay = new ClusterRelay(node, presence, "user", redis, container);
+        relay.start((user, env) -> received.add(user + "|" + env.messageId()));
+        relay.userConnected("u2");
+        ArgumentCaptor<MessageListener> listener = ArgumentCaptor.forClass(MessageListener.class);
+        verify(container).addMessageListener(listener.capture(), any(Topic.class));
+
+        listener.getValue().onMessage(redisMessage("node-a", "user:u2"), null);
+        listener.getValue().onMessage(redisMessage("node-b", "user:u2"), null);
+
+        assertEquals(List.of("u2|m1"), received);
+    }
+
+    @Test
+    void nodo_escuchaSuCanalYPublicaSoloANodosConPresencia_OK() {
+        PresenceRegistry registry = mock(PresenceRegistry.class);
+        when(registry.isEnabled()).thenReturn(true);
+        when(registry.nodesOfAny(List.of("u2", "u1"))).thenReturn(new java.util.HashSet<>(List.of("node-a", "node-b")));
+        ClusterRelay relay = new ClusterRelay(node, registry, "node", redis, container);
+        relay.start((user, env) -> received.add(user + "|" + env.messageId()));
+        verify(container).addMessageListener(any(MessageListener.class), eq(new ChannelTopic("node:node-a")));
+
+        relay.userConnected("u1");
+        verify(registry).userConnected("u1");
+        verifyNoMoreInteractions(container);
+
+        relay.publish(message(), frame());
+
+        RedisConnection conn = publishedConnection();
+        verify(conn).publish(eq("node:node-b".getBytes(StandardCharsets.UTF_8)), any(byte[].class));
+        verify(conn, never()).publish(eq("node:node-a".getBytes(StandardCharsets.UTF_8)), any(byte[].class));
+
+        relay.userDisconnected("u1", () -> false);
+        verify(registry).userDisconnected("u1");
+    }
+
+    @Test
+    void nodo_sinOtrosNodos_noPublica_OK() {
+        PresenceRegistry registry = mock(PresenceRegistry.class);
+        when(registry.isEnabled()).thenReturn(true);
+        when(registry.nodesOfAny(anyCollection())).thenReturn(new java.util.HashSet<>(List.of("node-a")));
+        ClusterRelay relay = new ClusterRelay(node, registry, "node", redis, container);
+
+        relay.publish(message(), frame());
+
+        verifyNoInteractions(redis);
+    }
+
+    @Test
+    void nodo_sinPresencia_FAIL() {
+        assertThrows(IllegalStateException.class, () -> new ClusterRelay(node, presence, "node", redis, container));
+    }
+
+    @Test
+    void sinRedis_noPublicaNiSuscribe_OK() {
+        ClusterRelay relay = new ClusterRelay(node, presence, "user", null, null);
+        relay.start((user, env) -> received.add(user));
+
+        assertDoesNotThrow(() -> relay.userConnected("u1"));
+        assertDoesNotThrow(() -> relay.publish(message(), frame()));
+        assertEquals(0, relay.subscribedUserCount());
+    }
+
+    @Test
+    void publishAsync_usuario_publicaConClienteReactivoEnAmbosCanales_OK() {
+        ReactiveRedisConnectionFactory factory = mock(ReactiveRedisConnectionFactory.class);
+        ReactiveRedisConnection conn = mock(ReactiveRedisConnection.class);
+        ReactivePubSubCommands pubSub = mock(ReactivePubSubCommands.class);
+        when(factory.getReactiveConnection()).thenReturn(conn);
+        when(conn.pubSubCommands()).thenReturn(pubSub);
+        when(conn.closeLater()).thenReturn(Mono.empty());
+        List<String> channels = new ArrayList<>();
+        when(pubSub.publish(any(ByteBuffer.class), any(ByteBuffer.class))).thenAnswer(inv -> {
+            channels.add(StandardCharsets.UTF_8.decode(inv.getArgument(0, ByteBuffer.class)).toString());
+            return Mono.just(1L);
+        });
+        ClusterRelay relay = new ClusterRelay(node, presence, "user", redis, container, factory);
+
+        relay.publishAsync(message(), frame()).block();
+
+        assertEquals(List.of("user:u2", "user:u1"), channels);
+        verifyNoInteractions(redis);
+    }
+
+    @Test
+    void publishAsync_sinClienteReactivo_publicaFueraDelHilo_OK() {
+        ClusterRelay relay = new ClusterRelay(node, presence, "broadcast", redis, container);
+
+        relay.publishAsync(message(), frame()).block();
+
+        RedisConnection conn = publishedConnection();
+        verify(conn).publish(eq("chat:c1".getBytes(StandardCharsets.UTF_8)), any(byte[].class));
+        assertEquals(Boolean.FALSE, relay.isOnlineElsewhereAsync("u2").block());
+    }
+
+    @Test
+    void sala_usuario_unaPublicacionEnLaSalaYEnCanalesDeAgregados_OK() {
+        ClusterRelay relay = new ClusterRelay(node, presence, "user", redis, container);
+        relay.start((user, env) -> received.add(user + "|" + env.roomId()));
+        relay.subscribeRoom("r1");
+        relay.subscribeRoom("r1");
+        ArgumentCaptor<MessageListener> listener = ArgumentCaptor.forClass(MessageListener.class);
+        verify(container, times(1)).addMessageListener(listener.capture(), eq(new ChannelTopic("room:r1")));
+        assertEquals(1, relay.subscribedRoomCount());
+
+        List<String> members = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            members.add("u" + i);
+        }
+        relay.publishRoom("r1", "m1", "u1", members, List.of("u9"), frame());
+
+        RedisConnection conn = publishedConnection();
+        verify(conn, times(1)).publish(eq("room:r1".getBytes(StandardCharsets.UTF_8)), any(byte[].class));
+        verify(conn, times(1)).publish(eq("user:u9".getBytes(StandardCharsets.UTF_8)), any(byte[].class));
+        verify(conn, times(2)).publish(any(byte[].class), any(byte[].class));
+
+        relay.unsubscribeRoom("r1");
+        verify(container).removeMessageListener(listener.getValue(), new ChannelTopic("room:r1"));
+        assertEquals(0, relay.subscribedRoomCount());
+    }
+
+    @Test
+    void sala_nodo_unaPublicacionPorNodoConMiembros_OK() {
+        PresenceRegistry registry = mock(PresenceRegistry.class);
+        when(registry.isEnabled()).thenReturn(true);
+        List<String> members = List.of("u1", "u2", "u3");
+        when(registry.nodesOfAny(members)).thenReturn(new java.util.HashSet<>(List.of("node-a", "node-b", "node-c")));
+        ClusterRelay relay = new ClusterRelay(node, registry, "node", redis, container);
+        relay.subscribeRoom("r1");
+
+        relay.publishRoom("r1", "m1", "u1", members, List.of(), frame());
+
+        RedisConnection conn = publishedConnection();
+        verify(conn).publish(eq("node:node-b".getBytes(StandardCharsets.UTF_8)), any(byte[].class));
+        verify(conn).publish(eq("node:node-c".getBytes(StandardCharsets.UTF_8)), any(byte[].class));
+        verify(conn, times(2)).publish(any(byte[].class), any(byte[].class));
+        assertEquals(0, relay.subscribedRoomCount());
+    }
+
+    @Test
+    void sala_broadcast_publicaEnCanalDeChatDeLaSala_OK() throws Exception {
+        ClusterRelay relay = new ClusterRelay(node, presence, "broadcast", redis, container);
+
+        relay.publishRoom("r1", "m1", "u1", List.of("u1", "u2"), List.of("u2"), frame());
+
+        RedisConnection conn = publishedConnection();
+        ArgumentCaptor<byte[]> body = ArgumentCaptor.forClass(byte[].class);
+        verify(conn).publish(eq("chat:r1".getBytes(StandardCharsets.UTF_8)), body.capture());
+        verify(conn, times(1)).publish(any(byte[].class), any(byte[].class));
+        assertEquals("r1", RelayEnvelope.decode(new JsonFactory(), body.getValue()).roomId());
+    }
+
+    @Test
+    void constructor_modoInvalido_FAIL() {
+        assertThrows(IllegalArgumentException.class, () -> new ClusterRelay(node, presence, "mesh", redis, container));
+    }
+
+    private org.springframework.data.redis.connection.Message redisMessage(String origin, String channel) {
+        org.springframework.data.redis.connection.Message m = mock(
+                org.springframework.data.redis.connection.Message.class);
+        when(m.getBody()).thenReturn(RelayEnvelope.encode(origin, "m1", "u1", "u2", frame()));
+        when(m.getChannel()).thenReturn(channel.getBytes(StandardCharsets.UTF_8));
+        return m;
+    }
+}
@@ -0,0 +1,118 @@
+package co.edu.escuelaing.uplearn.chat.ws;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Queue;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class InboundDispatcherTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    private WebSocketSession session() {
+        WebSocketSession s = mock(WebSocketSession.class);
+        when(s.getAttributes()).thenReturn(new HashMap<>());
+        return s;
+    }
+
+    @Test
+    void dispatch_inline_ejecutaYPropagaErrores_OK() throws Exception {
+        InboundDispatcher d = new InboundDispatcher(registry, InboundDispatcher.Mode.INLINE, null);
+        List<String> seen = new ArrayList<>();
+
+        d.dispatch(session(), () -> seen.add("a"));
+
+        assertEquals(List.of("a"), seen);
+        assertEquals(InboundDispatcher.Mode.INLINE, d.mode());
+        assertThrows(IllegalStateException.class, () -> d.dispatch(session(), () -> {
+            throw new IllegalStateException("boom");
+        }));
+    }
+
+    @Test
+    void dispatch_asincrono_noBloqueaYConservaOrdenPorSesion_OK() throws Exception {
+        Queue<Runnable> pool = new ArrayDeque<>();
+        InboundDispatcher d = new InboundDispatcher(registry, InboundDispatcher.Mode.PLATFORM, pool::add);
+        WebSocketSession s1 = session();
+        WebSocketSession s2 = session();
+        List<String> seen = new ArrayList<>();
+
+        d.dispatch(s1, () -> seen.add("s1-a"));
+        d.dispatch(s2, () -> seen.add("s2-a"));
+        d.dispatch(s1, () -> seen.add("s1-b"));
+
+        assertTrue(seen.isEmpty());
+        assertEquals(2, pool.size(), "un carril por sesión");
+        assertEquals(3.0, registry.get("chat.ws.inbound.pending").gauge().value());
+        assertEquals(3, d.pendingTasks());
+
+        Runnable r;
+        while ((r = pool.poll()) != null)
+            r.run();
+
+        assertEquals(List.of("s1-a", "s1-b", "s2-a"), seen);
+        assertEquals(0.0, registry.get("chat.ws.inbound.pending").gauge().value());
+        assertEquals(0, d.pendingTasks());
+        assertEquals(3, registry.get("chat.ws.inbound.wait").timer().count());
+    }
+
+    @Test
+    void dispatch_asincrono_errorCierraSesion_FAIL() throws Exception {
+        InboundDispatcher d = new InboundDispatcher(registry, InboundDispatcher.Mode.PLATFORM, Runnable::run);
+        WebSocketSession s = session();
+
+        assertDoesNotThrow(() -> d.dispatch(s, () -> {
+            throw new IllegalStateException("boom");
+        }));
+
+        verify(s).close(CloseStatus.SERVER_ERROR);
+    }
+
+    @Test
+    void dispatch_carrilLleno_descartaYCierraUnaVez_FAIL() throws Exception {
+        Queue<Runnable> pool = new ArrayDeque<>();
+        InboundDispatcher d = new InboundDispatcher(registry, InboundDispatcher.Mode.PLATFORM, pool::add, 2);
+        WebSocketSession s = session();
+        List<String> seen = new ArrayList<>();
+
+        d.dispatch(s, () -> seen.add("a"));
+        d.dispatch(s, () -> seen.add("b"));
+        d.dispatch(s, () -> seen.add("c"));
+        d.dispatch(s, () -> seen.add("d"));
+
+        verify(s, times(1)).close(InboundDispatcher.FLOODING);
+        assertEquals(2.0, registry.get("chat.ws.inbound.rejected").counter().count());
+        assertEquals(2, d.pendingTasks());
+        pool.poll().run();
+        assertEquals(List.of("a", "b"), seen);
+
+        d.dispatch(s, () -> seen.add("e"));
+        pool.poll().run();
+        assertEquals(List.of("a", "b", "e"), seen, "al vaciarse el carril vuelve a admitir");
+    }
+
+    @Test
+    void constructor_modoVirtual_usaHilosVirtualesOPool_OK() throws Exception {
+        InboundDispatcher d = new InboundDispatcher(registry, " virtual ", 2, 10);
+        assertEquals(InboundDispatcher.Mode.VIRTUAL, d.mode());
+
+        var done = new java.util.concurrent.CountDownLatch(1);
+        d.dispatch(session(), done::countDown);
+        assertTrue(done.await(5, java.util.concurrent.TimeUnit.SECONDS));
+        d.shutdown();
+    }
+
+    @Test
+    void constructor_modoInvalido_FAIL() {
+        assertThrows(IllegalArgumentException.class, () -> new InboundDispatcher(registry, "turbo", 1, 1));
+    }
+}
@@ -0,0 +1,81 @@
+package co.edu.escuelaing.uplearn.chat.ws;
+
+import co.edu.escuelaing.uplearn.chat.dto.ChatMessageData;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.BinaryMessage;
+
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OutboundFrameTest {
+
+    private final ObjectMapper json = new ObjectMapper();
+
+    @Test
+    void encode_serializaUnaVez_yCompartePayload_OK() throws Exception {
+        ChatMessageData dto = ChatMessageData.builder().id("m1").content("Hola 👋").build();
+
+        OutboundFrame frame = OutboundFrame.encode(json, dto);
+
+        assertEquals(json.readTree(json.writeValueAsString(dto)), json.readTree(frame.text().getPayload()));
+        assertEquals("Hola 👋", json.readTree(frame.bytes()).get("content").asText());
+        assertSame(frame.bytes(), frame.text().asBytes());
+        assertSame(frame.text(), frame.text());
+        assertEquals(frame.bytes().length, frame.size());
+    }
+
+    @Test
+    void wrap_reutilizaBytesRecibidos_OK() {
+        byte[] body = "{\"id\":\"x\"}".getBytes(StandardCharsets.UTF_8);
+
+        OutboundFrame frame = OutboundFrame.wrap(body);
+
+        assertSame(body, frame.bytes());
+        assertEquals("{\"id\":\"x\"}", frame.text().getPayload());
+    }
+
+    @Test
+    void binary_codificaCborUnaVez_yEquivaleAlJson_OK() throws Exception {
+        ChatMessageData dto = ChatMessageData.builder().id("m1").fromUserId("u1").content("Hola 👋").build();
+        OutboundFrame frame = OutboundFrame.encode(json, dto);
+
+        BinaryMessage binary = frame.binary();
+
+        assertSame(binary, frame.binary());
+        assertSame(binary, frame.messageFor(WireFormat.CBOR));
+        assertSame(frame.text(), frame.messageFor(WireFormat.JSON));
+        assertTrue(binary.getPayloadLength() < frame.size());
+        ChatMessageData back = WireFormat.CBOR.mapper().readValue(binary.getPayload().array(), ChatMessageData.class);
+        assertEquals(dto, back);
+    }
+
+    @Test
+    void binary_desdeJsonEnvuelto_transcodifica_OK() throws Exception {
+        ChatMessageData dto = ChatMessageData.builder().id("m1").content("hola").build();
+        OutboundFrame wrapped = OutboundFrame.wrap(json.writeValueAsBytes(dto));
+
+        byte[] cbor = wrapped.binary().getPayload().array();
+
+        assertArrayEquals(OutboundFrame.encode(json, dto).binary().getPayload().array(), cbor);
+    }
+
+    @Test
+    void binary_jsonInvalido_lanza_FAIL() {
+        OutboundFrame wrapped = OutboundFrame.wrap("{\"id\":".getBytes(StandardCharsets.UTF_8));
+
+        assertThrows(UncheckedIOException.class, wrapped::binary);
+    }
+
+    @Test
+    void wireFormat_porSubprotocolo_OK() {
+        assertEquals(WireFormat.CBOR, WireFormat.fromSubProtocol("chat.cbor"));
+        assertEquals(WireFormat.JSON, WireFormat.fromSubProtocol("chat.json"));
+        assertEquals(WireFormat.JSON, WireFormat.fromSubProtocol(null));
+        assertEquals(WireFormat.JSON, WireFormat.fromSubProtocol("otro"));
+        assertEquals(List.of("chat.cbor", "chat.json"), WireFormat.subProtocols());
+    }
+}
@@ -0,0 +1,212 @@
+package co.edu.escuelaing.uplearn.chat.ws;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class OutboundSessionTest {
+
+    private SimpleMeterRegistry registry;
+    private Queue<Runnable> tasks;
+    private WebSocketSession delegate;
+
+    @BeforeEach
+    void setUp() {
+        registry = new SimpleMeterRegistry();
+        tasks = new ArrayDeque<>();
+        delegate = mock(WebSocketSession.class);
+        when(delegate.isOpen()).thenReturn(true);
+    }
+
+    private OutboundSessionFactory factory(Executor executor, int maxMessages, int bufferBytes, long sendTimeMs) {
+        return new OutboundSessionFactory(registry, executor, maxMessages, bufferBytes, sendTimeMs, null);
+    }
+
+    private void runTasks() {
+        Runnable r;
+        while ((r = tasks.poll()) != null)
+            r.run();
+    }
+
+    @Test
+    void sendMessage_encolaYEnviaEnOrden_sinBloquear_OK() throws Exception {
+        OutboundSessionFactory f = factory(tasks::add, 10, 1024, 10_000);
+        OutboundSession out = f.wrap(delegate);
+
+        out.sendMessage(new TextMessage("a"));
+        out.sendMessage(new TextMessage("b"));
+
+        verify(delegate, never()).sendMessage(any());
+        assertEquals(2, out.getQueueDepth());
+        assertEquals(2.0, registry.get("chat.ws.outbound.queued").gauge().value());
+
+        runTasks();
+
+        var order = inOrder(delegate);
+        order.verify(delegate).sendMessage(new TextMessage("a"));
+        order.verify(delegate).sendMessage(new TextMessage("b"));
+        assertEquals(0, out.getQueueDepth());
+        assertEquals(0.0, registry.get("chat.ws.outbound.queued").gauge().value());
+    }
+
+    @Test
+    void sendMessage_colaLlena_desalojaConCierreClaro_FAIL() throws Exception {
+        OutboundSessionFactory f = factory(tasks::add, 2, 1024, 10_000);
+        OutboundSession out = f.wrap(delegate);
+
+        out.sendMessage(new TextMessage("a"));
+        out.sendMessage(new TextMessage("b"));
+        assertThrows(IOException.class, () -> out.sendMessage(new TextMessage("c")));
+
+        assertTrue(out.isEvicted());
+        verify(delegate).close(OutboundSession.SLOW_CONSUMER);
+        assertEquals(3.0, registry.get("chat.ws.outbound.dropped").counter().count());
+        assertEquals(1.0, registry.get("chat.ws.outbound.evicted").tag("reason", "buffer").counter().count());
+
+        runTasks();
+        verify(delegate, never()).sendMessage(any());
+    }
+
+    @Test
+    void sendMessage_superaBytes_desaloja_FAIL() throws Exception {
+        OutboundSessionFactory f = factory(tasks::add, 100, 4, 10_000);
+        OutboundSession out = f.wrap(delegate);
+
+        assertFalse(out.offer(new TextMessage("12345"), null));
+
+        assertTrue(out.isEvicted());
+        verify(delegate).close(OutboundSession.SLOW_CONSUMER);
+    }
+
+    @Test
+    void evictStalledSends_envioAtascado_desaloja_FAIL() throws Exception {
+        CountDownLatch sending = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(inv -> {
+            sending.countDown();
+            release.await();
+            throw new IOException("closed");
+        }).when(delegate).sendMessage(any());
+        doAnswer(inv -> {
+            release.countDown();
+            return null;
+        }).when(delegate).close(any(CloseStatus.class));
+
+        OutboundSessionFactory f = factory(r -> new Thread(r).start(), 10, 1024, 1);
+        OutboundSession out = f.wrap(delegate);
+        out.sendMessage(new TextMessage("x"));
+        sending.await();
+        Thread.sleep(5);
+
+        f.evictStalledSends();
+
+        assertTrue(out.isEvicted());
+        verify(delegate).close(OutboundSession.SLOW_CONSUMER);
+        assertEquals(1.0, registry.get("chat.ws.outbound.evicted").tag("reason", "send-time").counter().count());
+    }
+
+    @Test
+    void drain_errorDeEnvio_cierraSesion_FAIL() throws Exception {
+        doThrow(new IOException("boom")).when(delegate).sendMessage(any());
+        OutboundSession out = factory(Runnable::run, 10, 1024, 10_000).wrap(delegate);
+
+        out.sendMessage(new TextMessage("x"));
+        assertThrows(IOException.class, () -> out.sendMessage(new TextMessage("y")));
+
+        assertTrue(out.isEvicted());
+        verify(delegate, times(1)).sendMessage(any());
+        verify(delegate).close(OutboundSession.SEND_FAILED);
+    }
+
+    @Test
+    void onClosed_descartaPendientes_yNoEnviaMas_OK() throws Exception {
+        OutboundSession out = factory(tasks::add, 10, 1024, 10_000).wrap(delegate);
+        out.sendMessage(new TextMessage("x"));
+
+        out.onClosed();
+        runTasks();
+        assertThrows(IOException.class, () -> out.sendMessage(new TextMessage("y")));
+
+        verify(delegate, never()).sendMessage(any());
+        assertEquals(0, out.getQueueDepth());
+        assertEquals(2.0, registry.get("chat.ws.outbound.dropped").counter().count());
+    }
+
+    @Test
+    void sendMessage_ejecutorRechaza_desaloja_FAIL() throws Exception {
+        OutboundSession out = factory(r -> {
+            throw new java.util.concurrent.RejectedExecutionException("full");
+        }, 10, 1024, 10_000).wrap(delegate);
+
+        assertFalse(out.offer(new TextMessage("x"), null));
+
+        assertTrue(out.isEvicted());
+        verify(delegate).close(OutboundSession.SLOW_CONSUMER);
+    }
+
+    @Test
+    void offer_accionTrasEscribir_soloCuandoSaleAlSocket_OK() throws Exception {
+        OutboundSession out = factory(tasks::add, 10, 1024, 10_000).wrap(delegate);
+        AtomicInteger written = new AtomicInteger();
+
+        assertTrue(out.offer(new TextMessage("a"), written::incrementAndGet));
+        assertTrue(out.offer(new TextMessage("b"), null));
+        assertEquals(0, written.get());
+
+        runTasks();
+
+        verify(delegate).sendMessage(new TextMessage("a"));
+        assertEquals(1, written.get());
+    }
+
+    @Test
+    void offer_descartadosAlDesalojar_noEjecutanAccion_FAIL() throws Exception {
+        OutboundSession out = factory(tasks::add, 2, 1024, 10_000).wrap(delegate);
+        AtomicInteger written = new AtomicInteger();
+
+        assertTrue(out.offer(new TextMessage("a"), written::incrementAndGet));
+        assertTrue(out.offer(new TextMessage("b"), written::incrementAndGet));
+        assertFalse(out.offer(new TextMessage("c"), written::incrementAndGet));
+        runTasks();
+
+        verify(delegate, never()).sendMessage(any());
+        assertEquals(0, written.get());
+    }
+
+    @Test
+    void offer_errorDeEscritura_noEjecutaAccion_FAIL() throws Exception {
+        doThrow(new IOException("boom")).when(delegate).sendMessage(any());
+        OutboundSession out = factory(Runnable::run, 10, 1024, 10_000).wrap(delegate);
+        AtomicInteger written = new AtomicInteger();
+
+        out.offer(new TextMessage("x"), written::incrementAndGet);
+
+        assertTrue(out.isEvicted());
+        assertEquals(0, written.get());
+    }
+
+    @Test
+    void send_sesionSinCola_escribeYEjecutaAccion_OK() throws Exception {
+        AtomicInteger written = new AtomicInteger();
+
+        assertTrue(OutboundSession.send(delegate, new TextMessage("x"), written::incrementAndGet));
+        doThrow(new IOException("boom")).when(delegate).sendMessage(any());
+        assertFalse(OutboundSession.send(delegate, new TextMessage("y"), written::incrementAndGet));
+
+        assertEquals(1, written.get());
+    }
+}
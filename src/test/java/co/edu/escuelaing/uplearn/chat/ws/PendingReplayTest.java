@@ -0,0 +1,306 @@
+package co.edu.escuelaing.uplearn.chat.ws;
+
+import co.edu.escuelaing.uplearn.chat.domain.Message;
+import co.edu.escuelaing.uplearn.chat.dto.ChatMessageData;
+import co.edu.escuelaing.uplearn.chat.service.ChatService;
+import co.edu.escuelaing.uplearn.chat.service.DeliveryAckBuffer;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class PendingReplayTest {
+
+    private final ObjectMapper json = new ObjectMapper();
+    private ChatService chatService;
+    private DeliveryAckBuffer acks;
+    private WebSocketSession session;
+
+    @BeforeEach
+    void setUp() {
+        chatService = mock(ChatService.class);
+        acks = mock(DeliveryAckBuffer.class);
+        session = mock(WebSocketSession.class);
+        when(session.isOpen()).thenReturn(true);
+    }
+
+    private Message message(String id) {
+        Message m = Message.builder().id(id).content("c" + id).build();
+        when(chatService.toDto(m)).thenReturn(ChatMessageData.builder().id(id).content("c" + id).build());
+        return m;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void stubPages(List<List<Message>> pages) {
+        when(chatService.streamPending(eq("u1"), anyInt(), any())).thenAnswer(inv -> {
+            Consumer<List<Message>> onPage = inv.getArgument(2);
+            int total = 0;
+            for (List<Message> p : pages) {
+                onPage.accept(p);
+                total += p.size();
+            }
+            return total;
+        });
+    }
+
+    private List<JsonNode> sentFrames() throws Exception {
+        ArgumentCaptor<TextMessage> captor = ArgumentCaptor.forClass(TextMessage.class);
+        verify(session, atLeast(0)).sendMessage(captor.capture());
+        List<JsonNode> frames = new ArrayList<>();
+        for (TextMessage m : captor.getAllValues()) {
+            frames.add(json.readTree(m.getPayload()));
+        }
+        return frames;
+    }
+
+    @Test
+    void replayPending_unMensajePorTrama_conservaProtocolo_OK() throws Exception {
+        Message m1 = message("1");
+        Message m2 = message("2");
+        stubPages(List.of(List.of(m1, m2)));
+        PendingReplay replay = new PendingReplay(chatService, acks, json, Runnable::run, 200, 1, 1000);
+
+        replay.replayPending("u1", session);
+
+        List<JsonNode> frames = sentFrames();
+        assertEquals(2, frames.size());
+        assertTrue(frames.get(0).isObject());
+        assertEquals("1", frames.get(0).get("id").asText());
+        var order = inOrder(acks, chatService);
+        order.verify(acks).flush();
+        order.verify(chatService).streamPending(eq("u1"), eq(200), any());
+        verify(acks).acknowledgeAll(List.of("1", "2"));
+    }
+
+    @Test
+    void replayPending_variosPorTrama_yConfirmaCadaPagina_OK() throws Exception {
+        Message m1 = message("1");
+        Message m2 = message("2");
+        Message m3 = message("3");
+        stubPages(List.of(List.of(m1, m2, m3), List.of(message("4"))));
+        PendingReplay replay = new PendingReplay(chatService, acks, json, Runnable::run, 3, 2, 1000);
+
+        replay.replayPending("u1", session);
+
+        List<JsonNode> frames = sentFrames();
+        assertEquals(3, frames.size());
+        assertTrue(frames.get(0).isArray());
+        assertEquals(2, frames.get(0).size());
+        assertTrue(frames.get(1).isObject());
+        assertEquals("4", frames.get(2).get("id").asText());
+        var order = inOrder(chatService, acks);
+        order.verify(acks).acknowledgeAll(List.of("1", "2", "3"));
+        order.verify(acks).acknowledgeAll(List.of("4"));
+    }
+
+    @Test
+    void replayPending_conversionFalla_omiteYConfirma_LOG() throws Exception {
+        Message bad = Message.builder().id("x").build();
+        when(chatService.toDto(bad)).thenThrow(new RuntimeException("boom"));
+        Message ok = message("1");
+        stubPages(List.of(List.of(bad, ok)));
+        PendingReplay replay = new PendingReplay(chatService, acks, json, Runnable::run, 200, 1, 1000);
+
+        assertDoesNotThrow(() -> replay.replayPending("u1", session));
+
+        assertEquals(1, sentFrames().size());
+        verify(acks).acknowledgeAll(List.of("x", "1"));
+    }
+
+    @Test
+    void replayPending_sesionCerrada_noConfirmaPagina_FAIL() throws Exception {
+        stubPages(List.of(List.of(message("1"))));
+        OutboundSessionFactory factory = new OutboundSessionFactory(new SimpleMeterRegistry(), r -> {
+        }, 10, 1 << 20, 10_000, null);
+        OutboundSession out = factory.wrap(session);
+        out.close();
+        PendingReplay replay = new PendingReplay(chatService, acks, json, Runnable::run, 200, 1, 1000);
+
+        assertDoesNotThrow(() -> replay.replayPending("u1", out));
+
+        verify(session, never()).sendMessage(any());
+        verify(acks, never()).acknowledgeAll(anyCollection());
+    }
+
+    @Test
+    void replayPending_confirmaLaPaginaAlEscribirSuUltimaTrama_OK() throws Exception {
+        stubPages(List.of(List.of(message("1"), message("2"))));
+        List<Runnable> drains = new ArrayList<>();
+        OutboundSession out = new OutboundSessionFactory(new SimpleMeterRegistry(), drains::add, 10, 1 << 20,
+                10_000, null).wrap(session);
+        PendingReplay replay = new PendingReplay(chatService, acks, json, Runnable::run, 200, 1, 1000);
+
+        replay.replayPending("u1", out);
+
+        assertEquals(2, out.getQueueDepth());
+        verify(acks, never()).acknowledgeAll(anyCollection());
+
+        drains.forEach(Runnable::run);
+
+        verify(session, times(2)).sendMessage(any());
+        verify(acks).acknowledgeAll(List.of("1", "2"));
+    }
+
+    @Test
+    void replayPending_desalojadaConPaginaEncolada_noConfirma_FAIL() throws Exception {
+        stubPages(List.of(List.of(message("1"))));
+        List<Runnable> drains = new ArrayList<>();
+        OutboundSession out = new OutboundSessionFactory(new SimpleMeterRegistry(), drains::add, 10, 1 << 20,
+                10_000, null).wrap(session);
+        PendingReplay replay = new PendingReplay(chatService, acks, json, Runnable::run, 200, 1, 1000);
+
+        replay.replayPending("u1", out);
+        out.evict(OutboundSession.SLOW_CONSUMER, "buffer");
+        drains.forEach(Runnable::run);
+
+        verify(session, never()).sendMessage(any());
+        verify(acks, never()).acknowledgeAll(anyCollection());
+    }
+
+    @Test
+    void replayPending_colaLlena_esperaHastaPlazo_FAIL() throws Exception {
+        stubPages(List.of(List.of(message("1"), message("2"))));
+        OutboundSessionFactory factory = new OutboundSessionFactory(new SimpleMeterRegistry(), r -> {
+        }, 2, 1 << 20, 10_000, null);
+        OutboundSession out = factory.wrap(session);
+        PendingReplay replay = new PendingReplay(chatService, acks, json, Runnable::run, 200, 1, 20);
+
+        replay.replayPending("u1", out);
+
+        assertEquals(1, out.getQueueDepth(), "la segunda trama espera capacidad y se aborta");
+        verify(acks, never()).acknowledgeAll(anyCollection());
+    }
+
+    @Test
+    void replayPending_confirmacionDelCliente_noMarcaPaginas_OK() throws Exception {
+        stubPages(List.of(List.of(message("1"))));
+        when(acks.isClientConfirmed()).thenReturn(true);
+        PendingReplay replay = new PendingReplay(chatService, acks, json, Runnable::run, 200, 1, 1000);
+
+        replay.replayPending("u1", session);
+
+        assertEquals(1, sentFrames().size());
+        verify(acks).flush();
+        verify(acks, never()).acknowledgeAll(anyCollection());
+    }
+
+    @SuppressWarnings("unchecked")
+    private void stubSince(List<Message> page) {
+        when(chatService.streamSince(eq("u1"), any(Instant.class), anyInt(), anyInt(), any())).thenAnswer(inv -> {
+            Consumer<List<Message>> onPage = inv.getArgument(4);
+            if (!page.isEmpty()) {
+                onPage.accept(page);
+            }
+            return page.size();
+        });
+    }
+
+    @Test
+    void resume_cursorISO_enviaDeltaYNuevoCursor_OK() throws Exception {
+        Instant t = Instant.parse("2024-10-17T15:00:00Z");
+        Message in = message("1");
+        in.setToUserId("u1");
+        in.setCreatedAt(t.plusSeconds(1));
+        Message own = message("2");
+        own.setFromUserId("u1");
+        own.setToUserId("u2");
+        own.setCreatedAt(t.plusSeconds(2));
+        stubSince(List.of(in, own));
+        PendingReplay replay = new PendingReplay(chatService, acks, json, Runnable::run, 200, 1, 1000, 1000, 500);
+
+        replay.resume("u1", t.toString(), session);
+
+        verify(chatService).streamSince(eq("u1"), eq(t.minusMillis(500)), eq(1000), eq(200), any());
+        verify(chatService, never()).streamPending(any(), anyInt(), any());
+        verify(acks).acknowledgeAll(List.of("1"));
+        List<JsonNode> frames = sentFrames();
+        assertEquals(3, frames.size());
+        assertEquals("2", frames.get(1).get("id").asText());
+        JsonNode end = frames.get(2);
+        assertEquals("resume", end.get("type").asText());
+        assertEquals(t.plusSeconds(2).toString(), end.get("cursor").asText());
+        assertEquals(2, end.get("count").asInt());
+        assertFalse(end.get("more").asBoolean());
+    }
+
+    @Test
+    void resume_cursorPorId_yTopeAlcanzado_indicaMas_OK() throws Exception {
+        Instant t = Instant.parse("2024-10-17T15:00:00Z");
+        when(chatService.createdAtOf("u1", "m9")).thenReturn(t);
+        Message m = message("1");
+        m.setToUserId("u1");
+        m.setDelivered(true);
+        m.setCreatedAt(t);
+        stubSince(List.of(m));
+        PendingReplay replay = new PendingReplay(chatService, acks, json, Runnable::run, 200, 1, 1000, 1, 0);
+
+        replay.resume("u1", "m9", session);
+
+        verify(chatService).streamSince(eq("u1"), eq(t), eq(1), eq(200), any());
+        verify(acks, never()).acknowledgeAll(anyCollection());
+        JsonNode end = sentFrames().get(1);
+        assertTrue(end.get("more").asBoolean());
+        assertEquals(t.toString(), end.get("cursor").asText());
+    }
+
+    @Test
+    void resume_cursorDesconocido_reenviaPendientesConReset_FAIL() throws Exception {
+        stubPages(List.of(List.of(message("1"))));
+        PendingReplay replay = new PendingReplay(chatService, acks, json, Runnable::run, 200, 1, 1000);
+
+        replay.resume("u1", "no-existe", session);
+
+        verify(chatService, never()).streamSince(any(), any(), anyInt(), anyInt(), any());
+        verify(acks).acknowledgeAll(List.of("1"));
+        JsonNode end = sentFrames().get(1);
+        assertTrue(end.get("reset").asBoolean());
+        assertTrue(end.get("cursor").isNull());
+    }
+
+    @Test
+    void resume_sinCursor_equivaleAReplayPending_OK() throws Exception {
+        stubPages(List.of(List.of(message("1"))));
+        PendingReplay replay = new PendingReplay(chatService, acks, json, Runnable::run, 200, 1, 1000);
+
+        replay.resume("u1", null, session);
+
+        assertEquals(1, sentFrames().size());
+        verify(chatService).streamPending(eq("u1"), eq(200), any());
+    }
+
+    @Test
+    void onConnect_corriendoEnElEjecutor_errorORechazoNoSalen_FAIL() {
+        List<Runnable> queued = new ArrayList<>();
+        PendingReplay replay = new PendingReplay(chatService, acks, json, queued::add, 200, 1, 1000);
+        List<String> ran = new ArrayList<>();
+
+        replay.onConnect("u1", () -> ran.add("salas"));
+        assertTrue(ran.isEmpty(), "la tarea no corre en el hilo que conecta");
+        queued.get(0).run();
+        assertEquals(List.of("salas"), ran);
+
+        replay.onConnect("u1", () -> {
+            throw new IllegalStateException("mongo");
+        });
+        assertDoesNotThrow(() -> queued.get(1).run());
+
+        PendingReplay full = new PendingReplay(chatService, acks, json, r -> {
+            throw new java.util.concurrent.RejectedExecutionException("full");
+        }, 200, 1, 1000);
+        assertDoesNotThrow(() -> full.onConnect("u1", () -> ran.add("x")));
+        assertEquals(List.of("salas"), ran);
+    }
+}
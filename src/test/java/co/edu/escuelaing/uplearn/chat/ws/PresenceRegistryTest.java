@@ -0,0 +1,154 @@
+package co.edu.escuelaing.uplearn.chat.ws;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisKeyCommands;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.AdditionalMatchers.aryEq;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class PresenceRegistryTest {
+
+    private static final long NOW = 1_000_000L;
+
+    private final NodeIdentity node = new NodeIdentity("node-a");
+    private StringRedisTemplate redis;
+    private RedisConnection conn;
+    private RedisZSetCommands zset;
+    private RedisKeyCommands keys;
+    private PresenceRegistry registry;
+
+    @BeforeEach
+    void setUp() {
+        redis = mock(StringRedisTemplate.class);
+        conn = mock(RedisConnection.class);
+        zset = mock(RedisZSetCommands.class);
+        keys = mock(RedisKeyCommands.class);
+        when(conn.zSetCommands()).thenReturn(zset);
+        when(conn.keyCommands()).thenReturn(keys);
+        registry = new PresenceRegistry(node, redis, 30_000, () -> NOW, null);
+    }
+
+    private static byte[] b(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void runPipelined(int times) {
+        ArgumentCaptor<RedisCallback<Object>> cb = ArgumentCaptor.forClass(RedisCallback.class);
+        verify(redis, times(times)).executePipelined(cb.capture());
+        cb.getValue().doInRedis(conn);
+    }
+
+    @Test
+    void userConnected_registraNodoConExpiracion_OK() {
+        registry.userConnected("u1");
+
+        runPipelined(1);
+        verify(zset).zAdd(aryEq(b("presence:u1")), eq((double) NOW + 30_000), aryEq(b("node-a")));
+        verify(keys).pExpire(aryEq(b("presence:u1")), eq(30_000L));
+        assertEquals(1, registry.localUserCount());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void userDisconnected_retiraSoloSiEraLocal_OK() {
+        registry.userDisconnected("u1");
+        verify(redis, never()).execute(any(RedisCallback.class));
+
+        registry.userConnected("u1");
+        registry.userDisconnected("u1");
+
+        ArgumentCaptor<RedisCallback<Long>> cb = ArgumentCaptor.forClass(RedisCallback.class);
+        verify(redis).execute(cb.capture());
+        cb.getValue().doInRedis(conn);
+        verify(zset).zRem(aryEq(b("presence:u1")), aryEq(b("node-a")));
+        assertEquals(0, registry.localUserCount());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void isOnlineElsewhere_ignoraEsteNodo_yToleraFallos_OK() {
+        ZSetOperations<String, String> ops = mock(ZSetOperations.class);
+        when(redis.opsForZSet()).thenReturn(ops);
+        when(ops.rangeByScore("presence:u1", NOW, Double.POSITIVE_INFINITY)).thenReturn(Set.of("node-a"));
+        when(ops.rangeByScore("presence:u2", NOW, Double.POSITIVE_INFINITY)).thenReturn(Set.of("node-a", "node-b"));
+        when(ops.rangeByScore("presence:u3", NOW, Double.POSITIVE_INFINITY)).thenThrow(new RuntimeException("down"));
+
+        assertFalse(registry.isOnlineElsewhere("u1"));
+        assertTrue(registry.isOnlineElsewhere("u2"));
+        assertFalse(registry.isOnlineElsewhere("u3"));
+        assertEquals(Set.of("node-a", "node-b"), registry.nodesOf("u2"));
+    }
+
+    @Test
+    void nodesOfAny_unaSolaIdaYVuelta_OK() {
+        when(redis.executePipelined(any(RedisCallback.class)))
+                .thenReturn(List.of(new LinkedHashSet<>(List.of("node-a")), Set.of("node-b", "node-c")));
+
+        Set<String> nodes = registry.nodesOfAny(List.of("u1", "u2", "u1"));
+
+        assertEquals(Set.of("node-a", "node-b", "node-c"), nodes);
+        runPipelined(1);
+        verify(zset).zRangeByScore(aryEq(b("presence:u1")), eq((double) NOW), eq(Double.POSITIVE_INFINITY));
+        verify(zset).zRangeByScore(aryEq(b("presence:u2")), eq((double) NOW), eq(Double.POSITIVE_INFINITY));
+    }
+
+    @Test
+    void heartbeat_renuevaYPurgaVencidas_OK() {
+        registry.heartbeat();
+        verify(redis, never()).executePipelined(any(RedisCallback.class));
+
+        registry.userConnected("u1");
+        registry.heartbeat();
+
+        runPipelined(2);
+        verify(zset).zAdd(aryEq(b("presence:u1")), eq((double) NOW + 30_000), aryEq(b("node-a")));
+        verify(zset).zRemRangeByScore(aryEq(b("presence:u1")), eq(Double.NEGATIVE_INFINITY), eq((double) NOW));
+    }
+
+    @Test
+    void deshabilitado_sinRedis_noHaceNada_OK() {
+        PresenceRegistry off = new PresenceRegistry(node, null, 30_000, () -> NOW, null);
+
+        off.userConnected("u1");
+        off.heartbeat();
+
+        assertFalse(off.isEnabled());
+        assertTrue(off.nodesOf("u1").isEmpty());
+        assertTrue(off.nodesOfAny(List.of("u1")).isEmpty());
+        assertFalse(off.isOnlineElsewhere("u1"));
+        assertEquals(0, off.localUserCount());
+    }
+
+    @Test
+    void shutdown_programaLatidoYLimpiaAlApagar_OK() {
+        ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        PresenceRegistry withBeat = new PresenceRegistry(node, redis, 30_000, () -> NOW, scheduler);
+        verify(scheduler).scheduleWithFixedDelay(any(Runnable.class), eq(10_000L), eq(10_000L),
+                eq(TimeUnit.MILLISECONDS));
+        withBeat.userConnected("u1");
+
+        withBeat.shutdown();
+
+        verify(scheduler).shutdown();
+        runPipelined(2);
+        verify(zset).zRem(aryEq(b("presence:u1")), aryEq(b("node-a")));
+        assertEquals(0, withBeat.localUserCount());
+    }
+}
@@ -0,0 +1,271 @@
+package co.edu.escuelaing.uplearn.chat.ws;
+
+import co.edu.escuelaing.uplearn.chat.domain.Message;
+import co.edu.escuelaing.uplearn.chat.dto.ChatMessageData;
+import co.edu.escuelaing.uplearn.chat.service.ChatPermissionCache;
+import co.edu.escuelaing.uplearn.chat.service.ChatService;
+import co.edu.escuelaing.uplearn.chat.service.DeliveryAckBuffer;
+import co.edu.escuelaing.uplearn.chat.service.ReactiveChatStore;
+import co.edu.escuelaing.uplearn.chat.service.ReservationClient;
+import co.edu.escuelaing.uplearn.chat.service.RoomService;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.reactive.socket.CloseStatus;
+import org.springframework.web.reactive.socket.HandshakeInfo;
+import org.springframework.web.reactive.socket.WebSocketMessage;
+import org.springframework.web.reactive.socket.WebSocketSession;
+import org.reactivestreams.Publisher;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.test.StepVerifier;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class ReactiveChatGatewayTest {
+
+    private final ObjectMapper json = new ObjectMapper();
+    private final SimpleMeterRegistry meters = new SimpleMeterRegistry();
+    private ChatService chatService;
+    private ReactiveChatStore store;
+    private ReservationClient reservations;
+    private SessionAdmission admission;
+    private RoomService roomService;
+    private RoomFanOut rooms;
+    private ReactiveChatGateway gw;
+
+    @BeforeEach
+    void setUp() {
+        chatService = mock(ChatService.class);
+        store = mock(ReactiveChatStore.class);
+        reservations = mock(ReservationClient.class);
+        when(chatService.chatIdOf(anyString(), anyString())).thenReturn("cid");
+        when(store.pending(anyString(), anyInt())).thenReturn(Flux.empty());
+        ChatPermissionCache permissions = new ChatPermissionCache(reservations, meters, 300, 30, 1000);
+        DeliveryAckBuffer acks = new DeliveryAckBuffer(chatService, meters, null, 0, 500);
+        NodeIdentity node = new NodeIdentity("node-a");
+        PresenceRegistry presence = new PresenceRegistry(node, null, 30_000, System::currentTimeMillis, null);
+        ClusterRelay relay = new ClusterRelay(node, presence, "broadcast", null, null);
+        TypingThrottle typing = new TypingThrottle(meters, 3_000);
+        SendRateLimiter limiter = new SendRateLimiter(meters, SendRateLimiter.Mode.LOCAL, 10, 30, 5, null,
+                System::nanoTime);
+        admission = new SessionAdmission(meters, 100, 5, 0, 1_000, 0.9, System::nanoTime);
+        roomService = mock(RoomService.class);
+        rooms = new RoomFanOut(roomService, chatService, relay);
+        gw = new ReactiveChatGateway(meters, chatService, store, permissions, acks, relay, typing, limiter,
+                admission, rooms, 4);
+    }
+
+    /** Sesión simulada: entrada desde un sink y salida acumulada en una lista. */
+    private static final class FakeSession {
+        final WebSocketSession session = mock(WebSocketSession.class);
+        final Sinks.Many<WebSocketMessage> in = Sinks.many().unicast().onBackpressureBuffer();
+        final List<String> sent = new CopyOnWriteArrayList<>();
+        final List<CloseStatus> closed = new CopyOnWriteArrayList<>();
+
+        FakeSession(Map<String, Object> attributes) {
+            HandshakeInfo info = mock(HandshakeInfo.class);
+            when(session.getId()).thenReturn("s1");
+            when(session.getAttributes()).thenReturn(attributes);
+            when(session.getHandshakeInfo()).thenReturn(info);
+            when(session.bufferFactory()).thenReturn(DefaultDataBufferFactory.sharedInstance);
+            when(session.receive()).thenReturn(in.asFlux());
+            when(session.send(any())).thenAnswer(inv -> Flux.from(inv.<Publisher<WebSocketMessage>>getArgument(0))
+                    .doOnNext(m -> sent.add(m.getPayloadAsText()))
+                    .then());
+            when(session.close(any())).thenAnswer(inv -> {
+                closed.add(inv.getArgument(0));
+                in.tryEmitComplete();
+                return Mono.empty();
+            });
+        }
+
+        void receive(String text) {
+            in.tryEmitNext(new WebSocketMessage(WebSocketMessage.Type.TEXT,
+                    DefaultDataBufferFactory.sharedInstance.wrap(text.getBytes(StandardCharsets.UTF_8))));
+        }
+    }
+
+    private static Map<String, Object> user(String userId) {
+        Map<String, Object> attributes = new HashMap<>();
+        attributes.put(TokenHandshakeInterceptor.ATTR_USER_ID, userId);
+        attributes.put(TokenHandshakeInterceptor.ATTR_BEARER, "Bearer tok-" + userId);
+        return attributes;
+    }
+
+    private static void awaitSize(List<?> list, int size) throws InterruptedException {
+        for (int i = 0; i < 200 && list.size() < size; i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(list.size() >= size, "se esperaban " + size + " elementos: " + list);
+    }
+
+    @Test
+    void handle_mensajeValido_persisteYEntregaAlEmisor_OK() throws Exception {
+        when(reservations.checkCanChatAsync("Bearer tok-u1", "u2")).thenReturn(Mono.just(Optional.of(true)));
+        Message saved = Message.builder().id("m1").chatId("cid").fromUserId("u1").toUserId("u2").build();
+        when(store.saveMessage("cid", "u1", "u2", "hola")).thenReturn(Mono.just(saved));
+        when(chatService.toDto(saved)).thenReturn(ChatMessageData.builder().id("m1").fromUserId("u1")
+                .toUserId("u2").content("hola").build());
+        FakeSession s = new FakeSession(user("u1"));
+
+        Disposable connection = gw.handle(s.session).subscribe();
+        assertEquals(1, gw.connectionCount());
+        s.receive("{\"toUserId\":\"u2\",\"content\":\"hola\"}");
+
+        awaitSize(s.sent, 1);
+        JsonNode echo = json.readTree(s.sent.get(0));
+        assertEquals("m1", echo.get("id").asText());
+        assertEquals("hola", echo.get("content").asText());
+
+        s.in.tryEmitComplete();
+        connection.dispose();
+        assertEquals(0, gw.connectionCount());
+        assertEquals(0, admission.openSessions());
+    }
+
+    @Test
+    void handle_noAutorizado_respondeErrorSinPersistir_FAIL() throws Exception {
+        when(reservations.checkCanChatAsync("Bearer tok-u1", "u2")).thenReturn(Mono.just(Optional.of(false)));
+        FakeSession s = new FakeSession(user("u1"));
+
+        gw.handle(s.session).subscribe();
+        s.receive("{\"toUserId\":\"u2\",\"content\":\"hola\"}");
+
+        awaitSize(s.sent, 1);
+        assertEquals("No autorizado para chatear", json.readTree(s.sent.get(0)).get("error").asText());
+        verify(store, never()).saveMessage(anyString(), anyString(), anyString(), anyString());
+        s.in.tryEmitComplete();
+    }
+
+    @Test
+    void handle_mensajeDeSala_seGuardaUnaVezYLlegaAlMiembro_OK() throws Exception {
+        when(roomService.roomIdsOf("u1")).thenReturn(Set.of("r1"));
+        Message saved = Message.builder().id("m1").chatId("r1").fromUserId("u1").build();
+        when(roomService.post("r1", "u1", "hola")).thenReturn(new RoomService.Post(saved, Set.of("u1", "u2")));
+        when(chatService.toDto(saved)).thenReturn(ChatMessageData.builder().id("m1").chatId("r1").content("hola")
+                .build());
+        gw.initRelay();
+        FakeSession s = new FakeSession(user("u1"));
+
+        gw.handle(s.session).subscribe();
+        for (int i = 0; i < 200 && rooms.localMembersOf("r1").isEmpty(); i++) {
+            Thread.sleep(10);
+        }
+        s.receive("{\"roomId\":\"r1\",\"content\":\"hola\"}");
+
+        awaitSize(s.sent, 1);
+        assertEquals("r1", json.readTree(s.sent.get(0)).get("chatId").asText());
+        verify(roomService, times(1)).post("r1", "u1", "hola");
+        verify(store, never()).saveMessage(anyString(), anyString(), anyString(), anyString());
+        s.in.tryEmitComplete();
+    }
+
+    @Test
+    void handle_mensajeDeSalaSinSerMiembro_respondeError_FAIL() throws Exception {
+        FakeSession s = new FakeSession(user("u1"));
+
+        gw.handle(s.session).subscribe();
+        s.receive("{\"roomId\":\"r1\",\"content\":\"hola\"}");
+
+        awaitSize(s.sent, 1);
+        assertEquals("No eres miembro de la sala", json.readTree(s.sent.get(0)).get("error").asText());
+        s.in.tryEmitComplete();
+    }
+
+    @Test
+    void handle_loteInvalido_respondeErrorConBatchId_FAIL() throws Exception {
+        FakeSession s = new FakeSession(user("u1"));
+
+        gw.handle(s.session).subscribe();
+        s.receive("{\"type\":\"batch\",\"batchId\":\"b1\",\"messages\":[]}");
+
+        awaitSize(s.sent, 1);
+        JsonNode error = json.readTree(s.sent.get(0));
+        assertEquals("b1", error.get("batchId").asText());
+        assertTrue(error.get("error").asText().startsWith("Lote vacío"));
+        verify(store, never()).saveMessages(anyString(), anyList());
+        s.in.tryEmitComplete();
+    }
+
+    @Test
+    void handle_sinUsuario_cierraNoAutenticado_FAIL() {
+        FakeSession s = new FakeSession(new HashMap<>());
+
+        StepVerifier.create(gw.handle(s.session)).verifyComplete();
+
+        assertEquals(CloseStatus.NOT_ACCEPTABLE.getCode(), s.closed.get(0).getCode());
+        assertEquals(0, gw.connectionCount());
+    }
+
+    @Test
+    void handle_admisionCerrada_rechazaConReintento_FAIL() {
+        admission.beginDrain();
+        FakeSession s = new FakeSession(user("u1"));
+
+        StepVerifier.create(gw.handle(s.session)).verifyComplete();
+
+        CloseStatus status = s.closed.get(0);
+        assertEquals(CloseStatus.SERVICE_OVERLOAD.getCode(), status.getCode());
+        assertTrue(status.getReason().startsWith(ReactiveChatGateway.RETRY_AFTER_REASON));
+        assertEquals(0, gw.connectionCount());
+    }
+
+    @Test
+    void handle_sinActividad_cierraPorInactividad_FAIL() throws Exception {
+        ReflectionTestUtils.setField(gw, "idleTimeoutMs", 50L);
+        FakeSession s = new FakeSession(user("u1"));
+
+        gw.handle(s.session).subscribe();
+
+        awaitSize(s.closed, 1);
+        assertEquals(ReactiveChatGateway.IDLE, s.closed.get(0));
+    }
+
+    @Test
+    void resume_cursorDesconocido_reenviaPendientesConReset_OK() throws Exception {
+        Message pending = Message.builder().id("m1").toUserId("u1").createdAt(Instant.now()).build();
+        when(store.createdAtOf("u1", "desconocido")).thenReturn(Mono.empty());
+        when(store.pending("u1", 200)).thenReturn(Flux.just(pending));
+        when(store.markDeliveredByIds(List.of("m1"))).thenReturn(Mono.empty());
+        when(chatService.toDto(pending)).thenReturn(ChatMessageData.builder().id("m1").build());
+        ReactiveChatGateway.Connection conn = new ReactiveChatGateway.Connection(
+                new FakeSession(user("u1")).session, "u1", "Bearer tok-u1", WireFormat.JSON, 16);
+
+        List<JsonNode> frames = gw.resume(conn, "desconocido")
+                .map(f -> {
+                    try {
+                        return json.readTree(f.bytes());
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                })
+                .collectList()
+                .block();
+
+        assertEquals(2, frames.size());
+        assertEquals("m1", frames.get(0).get("id").asText());
+        JsonNode resume = frames.get(1);
+        assertEquals("resume", resume.get("type").asText());
+        assertEquals(1, resume.get("count").asInt());
+        assertTrue(resume.get("reset").asBoolean());
+        verify(store).markDeliveredByIds(List.of("m1"));
+    }
+}
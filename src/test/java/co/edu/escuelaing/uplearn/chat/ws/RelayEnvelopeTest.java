@@ -0,0 +1,87 @@
+package co.edu.escuelaing.uplearn.chat.ws;
+
+import co.edu.escuelaing.uplearn.chat.dto.ChatMessageData;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RelayEnvelopeTest {
+
+    private final ObjectMapper json = new ObjectMapper();
+
+    @Test
+    void encodeDecode_conservaOrigenRutaYTrama_OK() throws Exception {
+        OutboundFrame frame = OutboundFrame.encode(json, ChatMessageData.builder().id("m1").content("hola").build());
+
+        byte[] body = RelayEnvelope.encode("node-a", "m1", "u1", "u2", frame);
+        RelayEnvelope env = RelayEnvelope.decode(json.getFactory(), body);
+
+        assertEquals(RelayEnvelope.MAGIC, body[0]);
+        assertEquals("node-a", env.origin());
+        assertEquals("m1", env.messageId());
+        assertEquals("u1", env.fromUserId());
+        assertEquals("u2", env.toUserId());
+        assertNull(env.roomId());
+        assertArrayEquals(frame.text().asBytes(), env.frame().text().asBytes());
+        assertTrue(env.isFrom("node-a"));
+        assertFalse(env.isFrom("node-b"));
+    }
+
+    @Test
+    void encodeRoom_llevaSalaSinReceptor_OK() throws Exception {
+        OutboundFrame frame = OutboundFrame.encode(json, ChatMessageData.builder().id("m1").chatId("r1").build());
+
+        byte[] body = RelayEnvelope.encodeRoom("node-a", "r1", "m1", "u1", frame);
+        RelayEnvelope env = RelayEnvelope.decode(json.getFactory(), body);
+
+        assertEquals(RelayEnvelope.VERSION_ROOM, body[1]);
+        assertEquals("r1", env.roomId());
+        assertEquals("m1", env.messageId());
+        assertEquals("u1", env.fromUserId());
+        assertNull(env.toUserId());
+        assertArrayEquals(frame.text().asBytes(), env.frame().text().asBytes());
+    }
+
+    @Test
+    void encodeDecode_camposNull_OK() throws Exception {
+        OutboundFrame frame = OutboundFrame.wrap("{}".getBytes(StandardCharsets.UTF_8));
+
+        RelayEnvelope env = RelayEnvelope.decode(json.getFactory(), RelayEnvelope.encode(null, null, "u1", null, frame));
+
+        assertNull(env.origin());
+        assertNull(env.messageId());
+        assertNull(env.toUserId());
+        assertFalse(env.isFrom("node-a"));
+    }
+
+    @Test
+    void decode_jsonPlanoDeNodoAnterior_leeRuta_OK() throws Exception {
+        byte[] body = "{\"id\":\"m1\",\"meta\":{\"x\":[1]},\"fromUserId\":\"u1\",\"toUserId\":\"u2\"}"
+                .getBytes(StandardCharsets.UTF_8);
+
+        RelayEnvelope env = RelayEnvelope.decode(json.getFactory(), body);
+
+        assertNull(env.origin());
+        assertEquals("u1", env.fromUserId());
+        assertEquals("u2", env.toUserId());
+        assertEquals(body.length, env.frame().size());
+    }
+
+    @Test
+    void decode_invalido_FAIL() {
+        assertThrows(IOException.class,
+                () -> RelayEnvelope.decode(json.getFactory(), "NOT_JSON".getBytes(StandardCharsets.UTF_8)));
+        assertThrows(IOException.class, () -> RelayEnvelope.decode(json.getFactory(), new byte[] { 0, 9 }));
+    }
+
+    @Test
+    void nodeIdentity_configuradoOAleatorio_OK() {
+        assertEquals("node-a", new NodeIdentity(" node-a ").id());
+        assertFalse(new NodeIdentity("").id().isBlank());
+        assertNotEquals(new NodeIdentity(null).id(), new NodeIdentity(null).id());
+    }
+}
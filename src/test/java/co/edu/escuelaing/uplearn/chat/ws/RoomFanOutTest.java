@@ -0,0 +1,226 @@
+package co.edu.escuelaing.uplearn.chat.ws;
+
+import co.edu.escuelaing.uplearn.chat.domain.Chat;
+import co.edu.escuelaing.uplearn.chat.domain.Message;
+import co.edu.escuelaing.uplearn.chat.dto.ChatMessageData;
+import co.edu.escuelaing.uplearn.chat.service.ChatService;
+import co.edu.escuelaing.uplearn.chat.service.RoomService;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class RoomFanOutTest {
+
+    private final NodeIdentity node = new NodeIdentity("node-a");
+    private final PresenceRegistry presence = new PresenceRegistry(node, null, 30_000, System::currentTimeMillis, null);
+    private final ObjectMapper json = new ObjectMapper();
+    private final Map<String, List<OutboundFrame>> delivered = new LinkedHashMap<>();
+    private RoomService rooms;
+    private ChatService chatService;
+    private StringRedisTemplate redis;
+    private RedisMessageListenerContainer container;
+
+    @BeforeEach
+    void setUp() {
+        rooms = mock(RoomService.class);
+        chatService = mock(ChatService.class);
+        redis = mock(StringRedisTemplate.class);
+        container = mock(RedisMessageListenerContainer.class);
+    }
+
+    private RoomFanOut fanOut(ClusterRelay relay) {
+        RoomFanOut fanOut = new RoomFanOut(rooms, chatService, relay);
+        fanOut.start((userId, frame) -> {
+            delivered.computeIfAbsent(userId, k -> new ArrayList<>()).add(frame);
+            return 1;
+        });
+        return fanOut;
+    }
+
+    private OutboundFrame event(String roomId, List<String> joined, List<String> left) throws Exception {
+        return OutboundFrame.encode(json, Map.of("type", "room", "roomId", roomId, "joined", joined, "left", left));
+    }
+
+    @Test
+    void userConnected_indexaSalasYDesconexionLimpia_OK() {
+        RoomFanOut fanOut = fanOut(new ClusterRelay(node, presence, "broadcast", redis, container));
+        when(rooms.roomIdsOf("u1")).thenReturn(Set.of("r1", "r2"));
+        when(rooms.roomIdsOf("u2")).thenReturn(Set.of("r1"));
+
+        fanOut.userConnected("u1", () -> true);
+        fanOut.userConnected("u1", () -> true);
+        fanOut.userConnected("u2", () -> false);
+
+        verify(rooms, times(1)).roomIdsOf("u1");
+        assertEquals(Set.of("u1"), fanOut.localMembersOf("r1"));
+        assertEquals(Set.of("u1"), fanOut.localMembersOf("r2"));
+
+        fanOut.userDisconnected("u1", () -> true);
+        assertEquals(Set.of("u1"), fanOut.localMembersOf("r1"));
+        fanOut.userDisconnected("u1", () -> false);
+        assertTrue(fanOut.localMembersOf("r1").isEmpty());
+        assertTrue(fanOut.localMembersOf("r2").isEmpty());
+    }
+
+    @Test
+    void send_codificaUnaVezYEntregaAMiembrosLocales_OK() throws Exception {
+        RoomFanOut fanOut = fanOut(new ClusterRelay(node, presence, "broadcast", redis, container));
+        when(rooms.roomIdsOf(anyString())).thenReturn(Set.of("r1"));
+        fanOut.userConnected("u1", () -> true);
+        fanOut.userConnected("u2", () -> true);
+        Message saved = Message.builder().id("m1").chatId("r1").fromUserId("u1").build();
+        when(rooms.post("r1", "u1", "hola")).thenReturn(new RoomService.Post(saved, Set.of("u1", "u2", "u3")));
+        when(chatService.toDto(saved)).thenReturn(ChatMessageData.builder().id("m1").chatId("r1").build());
+
+        assertSame(saved, fanOut.send("r1", "u1", "hola"));
+
+        assertEquals(Set.of("u1", "u2"), delivered.keySet());
+        assertSame(delivered.get("u1").get(0), delivered.get("u2").get(0));
+        verify(chatService, times(1)).toDto(saved);
+        verify(redis, times(1)).execute(any(RedisCallback.class));
+    }
+
+    @Test
+    void send_noMiembro_noEntregaNiPublica_FAIL() throws Exception {
+        RoomFanOut fanOut = fanOut(new ClusterRelay(node, presence, "broadcast", redis, container));
+
+        assertNull(fanOut.send("r1", "u9", "hola"));
+
+        assertTrue(delivered.isEmpty());
+        verifyNoInteractions(redis, chatService);
+    }
+
+    @Test
+    void membershipChanged_avisaAPreviosYAgregados_yActualizaIndice_OK() throws Exception {
+        RoomFanOut fanOut = fanOut(new ClusterRelay(node, presence, "broadcast", redis, container));
+        when(rooms.roomIdsOf("u1")).thenReturn(Set.of("r1"));
+        fanOut.userConnected("u1", () -> true);
+        fanOut.userConnected("u2", () -> true);
+        fanOut.userConnected("u3", () -> true);
+        Chat room = Chat.builder().id("r1").name("Cálculo").participants(Set.of("u1", "u2")).build();
+
+        fanOut.membershipChanged("u1", new RoomService.Change(room, Set.of("u2"), Set.of()));
+
+        assertEquals(Set.of("u1", "u2"), delivered.keySet());
+        assertEquals(Set.of("u1", "u2"), fanOut.localMembersOf("r1"));
+        assertEquals("Cálculo", json.readTree(delivered.get("u2").get(0).text().getPayload()).get("name").asText());
+
+        delivered.clear();
+        fanOut.membershipChanged("u1", new RoomService.Change(room, Set.of(), Set.of("u2")));
+
+        assertEquals(Set.of("u1", "u2"), delivered.keySet());
+        assertEquals(Set.of("u1"), fanOut.localMembersOf("r1"));
+    }
+
+    @Test
+    void onRelay_modoUsuario_agregadoLlegaSoloPorSuCanal_OK() throws Exception {
+        ClusterRelay relay = new ClusterRelay(node, presence, "user", redis, container);
+        relay.start((user, env) -> {
+        });
+        RoomFanOut fanOut = fanOut(relay);
+        when(rooms.roomIdsOf("u1")).thenReturn(Set.of("r1"));
+        fanOut.userConnected("u1", () -> true);
+        fanOut.userConnected("u2", () -> true);
+        verify(container).addMessageListener(any(MessageListener.class), eq(new ChannelTopic("room:r1")));
+        OutboundFrame event = event("r1", List.of("u2"), List.of());
+
+        fanOut.onRelay(null, RelayEnvelope.decode(json.getFactory(),
+                RelayEnvelope.encodeRoom("node-b", "r1", null, "u0", event)));
+        fanOut.onRelay("u2", RelayEnvelope.decode(json.getFactory(),
+                RelayEnvelope.encodeRoom("node-b", "r1", null, "u0", event)));
+
+        assertEquals(1, delivered.get("u1").size());
+        assertEquals(1, delivered.get("u2").size());
+        assertEquals(Set.of("u1", "u2"), fanOut.localMembersOf("r1"));
+
+        OutboundFrame msg = OutboundFrame.wrap("{\"id\":\"m1\"}".getBytes(StandardCharsets.UTF_8));
+        fanOut.onRelay(null, RelayEnvelope.decode(json.getFactory(),
+                RelayEnvelope.encodeRoom("node-b", "r1", "m1", "u0", msg)));
+        assertEquals(2, delivered.get("u2").size());
+
+        fanOut.userDisconnected("u1", () -> false);
+        fanOut.userDisconnected("u2", () -> false);
+        verify(container).removeMessageListener(any(MessageListener.class), eq(new ChannelTopic("room:r1")));
+    }
+
+    @Test
+    void markRead_avisaALaSalaYOtrosNodosEntreganElAviso_OK() throws Exception {
+        RoomFanOut fanOut = fanOut(new ClusterRelay(node, presence, "broadcast", redis, container));
+        when(rooms.roomIdsOf(anyString())).thenReturn(Set.of("r1"));
+        fanOut.userConnected("u1", () -> true);
+        fanOut.userConnected("u2", () -> true);
+        Instant upTo = Instant.parse("2024-10-17T15:00:00Z");
+        when(rooms.markRead("r1", "u2", upTo)).thenReturn(Set.of("u1", "u2", "u3"));
+
+        assertTrue(fanOut.markRead("r1", "u2", upTo));
+
+        assertEquals(Set.of("u1", "u2"), delivered.keySet());
+        var receipt = json.readTree(delivered.get("u1").get(0).bytes());
+        assertEquals("read", receipt.get("type").asText());
+        assertEquals("r1", receipt.get("chatId").asText());
+        assertEquals("u2", receipt.get("userId").asText());
+        verify(redis, times(1)).execute(any(RedisCallback.class));
+
+        fanOut.onRelay(null, RelayEnvelope.decode(json.getFactory(),
+                RelayEnvelope.encodeRoom("node-b", "r1", null, "u3", delivered.get("u1").get(0))));
+        assertEquals(2, delivered.get("u1").size());
+        assertEquals(Set.of("u1", "u2"), fanOut.localMembersOf("r1"));
+    }
+
+    @Test
+    void markRead_noMiembroOMarcaSinAvanzar_noAvisa_FAIL() throws Exception {
+        RoomFanOut fanOut = fanOut(new ClusterRelay(node, presence, "broadcast", redis, container));
+        when(rooms.markRead(eq("r1"), eq("u9"), any(Instant.class))).thenReturn(null);
+        when(rooms.markRead(eq("r1"), eq("u8"), any(Instant.class))).thenReturn(Set.of());
+
+        assertFalse(fanOut.markRead("r1", "u9", null));
+        assertFalse(fanOut.markRead("r1", "u8", null));
+
+        verify(rooms).markRead(eq("r1"), eq("u9"), any(Instant.class));
+        assertTrue(delivered.isEmpty());
+        verifyNoInteractions(redis);
+    }
+
+    @Test
+    void userConnected_modoUsuario_suscribeFueraDelCandadoDelIndice_OK() throws Exception {
+        ClusterRelay relay = new ClusterRelay(node, presence, "user", redis, container);
+        relay.start((user, env) -> {
+        });
+        RoomFanOut fanOut = fanOut(relay);
+        when(rooms.roomIdsOf("u1")).thenReturn(Set.of("r1"));
+        when(rooms.roomIdsOf("u2")).thenReturn(Set.of("r2"));
+        doAnswer(inv -> {
+            Thread other = new Thread(() -> fanOut.userConnected("u2", () -> true));
+            other.start();
+            other.join(1_000);
+            assertFalse(other.isAlive(), "SUBSCRIBE no debe bloquear el índice de otras salas");
+            return null;
+        }).when(container).addMessageListener(any(MessageListener.class), eq(new ChannelTopic("room:r1")));
+
+        fanOut.userConnected("u1", () -> true);
+
+        assertEquals(Set.of("u2"), fanOut.localMembersOf("r2"));
+        verify(container).addMessageListener(any(MessageListener.class), eq(new ChannelTopic("room:r2")));
+
+        fanOut.userDisconnected("u1", () -> false);
+        verify(container).removeMessageListener(any(MessageListener.class), eq(new ChannelTopic("room:r1")));
+        verify(container, never()).removeMessageListener(any(MessageListener.class), eq(new ChannelTopic("room:r2")));
+    }
+}
@@ -0,0 +1,110 @@
+package co.edu.escuelaing.uplearn.chat.ws;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class SendRateLimiterTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final AtomicLong nanos = new AtomicLong();
+
+    private SendRateLimiter local(double perSecond, int burst) {
+        return new SendRateLimiter(registry, SendRateLimiter.Mode.LOCAL, perSecond, burst, 5, null, nanos::get);
+    }
+
+    @Test
+    void acquire_local_admiteRafaga_yLuegoRechazaConReintento_OK() {
+        SendRateLimiter limiter = local(10, 3);
+
+        assertEquals(0, limiter.acquire("u1", 1));
+        assertEquals(0, limiter.acquire("u1", 1));
+        assertEquals(0, limiter.acquire("u1", 1));
+        assertEquals(100, limiter.acquire("u1", 1));
+        assertEquals(0, limiter.acquire("u2", 1), "cada usuario tiene su balde");
+
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(150));
+        assertEquals(0, limiter.acquire("u1", 1));
+        assertEquals(1.0, registry.get("chat.ratelimit.rejected").counter().count());
+    }
+
+    @Test
+    void acquire_local_noAcumulaMasQueLaCapacidad_OK() {
+        SendRateLimiter limiter = local(10, 2);
+        nanos.addAndGet(TimeUnit.MINUTES.toNanos(5));
+
+        assertEquals(0, limiter.acquire("u1", 2));
+        assertTrue(limiter.acquire("u1", 1) > 0);
+    }
+
+    @Test
+    void acquire_loteMayorQueLaCapacidad_cuestaLaCapacidad_OK() {
+        SendRateLimiter limiter = local(1, 5);
+
+        assertEquals(0, limiter.acquire("u1", 100));
+        assertEquals(1000, limiter.acquire("u1", 1));
+    }
+
+    @Test
+    void acquire_off_siempreAdmite_OK() {
+        SendRateLimiter limiter = new SendRateLimiter(registry, SendRateLimiter.Mode.OFF, 0, 0, 0, null, nanos::get);
+
+        for (int i = 0; i < 1_000; i++) {
+            assertEquals(0, limiter.acquire("u1", 1));
+        }
+    }
+
+    @Test
+    void acquire_cluster_pidePrestadoARedis_unaVezPorLote_OK() {
+        StringRedisTemplate redis = mock(StringRedisTemplate.class);
+        when(redis.execute(eq(SendRateLimiter.TAKE), eq(List.of("ratelimit:u1")), any(), any(), any()))
+                .thenReturn(List.of(5L, 0L), List.of(0L, 250L));
+        SendRateLimiter limiter = new SendRateLimiter(registry, SendRateLimiter.Mode.CLUSTER, 4, 20, 5, redis,
+                nanos::get);
+        assertEquals(SendRateLimiter.Mode.CLUSTER, limiter.mode());
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, limiter.acquire("u1", 1));
+        }
+        verify(redis, times(1)).execute(eq(SendRateLimiter.TAKE), anyList(), eq("0.004"), eq("20"), eq("5"));
+
+        assertEquals(250, limiter.acquire("u1", 1));
+        assertEquals(2.0, registry.get("chat.ratelimit.leases").counter().count());
+    }
+
+    @Test
+    void acquire_cluster_redisCaido_admite_FAIL() {
+        StringRedisTemplate redis = mock(StringRedisTemplate.class);
+        when(redis.execute(eq(SendRateLimiter.TAKE), anyList(), any(), any(), any()))
+                .thenThrow(new RedisConnectionFailureException("down"));
+        SendRateLimiter limiter = new SendRateLimiter(registry, SendRateLimiter.Mode.CLUSTER, 1, 1, 1, redis,
+                nanos::get);
+
+        assertEquals(0, limiter.acquire("u1", 1));
+        assertEquals(0, limiter.acquire("u1", 1));
+    }
+
+    @Test
+    void constructor_clusterSinRedis_usaModoLocal_OK() {
+        SendRateLimiter limiter = new SendRateLimiter(registry, "cluster", 10, 30, 5, null);
+
+        assertEquals(SendRateLimiter.Mode.LOCAL, limiter.mode());
+    }
+
+    @Test
+    void constructor_parametrosInvalidos_FAIL() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new SendRateLimiter(registry, "local", 0, 30, 5, null));
+        assertThrows(IllegalArgumentException.class,
+                () -> new SendRateLimiter(registry, "sliding", 10, 30, 5, null));
+    }
+}
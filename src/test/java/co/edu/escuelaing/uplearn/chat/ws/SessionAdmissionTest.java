@@ -0,0 +1,106 @@
+package co.edu.escuelaing.uplearn.chat.ws;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.actuate.health.Status;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SessionAdmissionTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final AtomicLong nanos = new AtomicLong();
+
+    private SessionAdmission admission(int maxSessions, int perUser, int perSecond) {
+        return new SessionAdmission(registry, maxSessions, perUser, perSecond, 2_000, 0.5, nanos::get);
+    }
+
+    @Test
+    void checkRate_agotaRafaga_yRecuperaConElTiempo_OK() {
+        SessionAdmission admission = admission(0, 0, 2);
+
+        assertEquals(0, admission.checkRate());
+        assertEquals(0, admission.checkRate());
+        long retry = admission.checkRate();
+        assertTrue(retry >= 500 + 1_000 && retry <= 500 + 2_000, "espera del balde más variación: " + retry);
+
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(500));
+        assertEquals(0, admission.checkRate());
+        assertEquals(1.0, registry.get("chat.ws.admission.rejected").tag("reason", "rate").counter().count());
+    }
+
+    @Test
+    void tryAdmit_topesDeNodoYUsuario_conReintentoVariable_FAIL() {
+        SessionAdmission admission = admission(2, 2, 0);
+
+        long user = admission.tryAdmit(2);
+        assertTrue(user >= 1_000 && user <= 2_000);
+        assertEquals(0, admission.tryAdmit(0));
+        assertEquals(0, admission.tryAdmit(1));
+        assertTrue(admission.tryAdmit(0) > 0);
+        assertEquals(2, admission.openSessions());
+
+        admission.release();
+        assertEquals(0, admission.tryAdmit(0));
+        assertEquals(1.0, registry.get("chat.ws.admission.rejected").tag("reason", "user").counter().count());
+        assertEquals(1.0, registry.get("chat.ws.admission.rejected").tag("reason", "node").counter().count());
+        assertEquals(2.0, registry.get("chat.ws.admission.open").gauge().value());
+    }
+
+    @Test
+    void checkCapacity_revisaTopesSinReservar_FAIL() {
+        SessionAdmission admission = admission(1, 2, 0);
+
+        assertEquals(0, admission.checkCapacity(0));
+        assertEquals(0, admission.checkCapacity(1));
+        assertEquals(0, admission.openSessions());
+        assertTrue(admission.checkCapacity(2) > 0);
+
+        assertEquals(0, admission.tryAdmit(0));
+        assertTrue(admission.checkCapacity(0) > 0);
+        assertEquals(1.0, registry.get("chat.ws.admission.rejected").tag("reason", "user").counter().count());
+        assertEquals(1.0, registry.get("chat.ws.admission.rejected").tag("reason", "node").counter().count());
+    }
+
+    @Test
+    void sinTopes_siempreAdmite_OK() {
+        SessionAdmission admission = admission(0, 0, 0);
+
+        for (int i = 0; i < 1_000; i++) {
+            assertEquals(0, admission.checkRate());
+            assertEquals(0, admission.tryAdmit(i));
+        }
+        assertFalse(admission.isSaturated());
+    }
+
+    @Test
+    void health_fueraDeServicioAlSuperarElUmbral_OK() {
+        SessionAdmission admission = admission(4, 0, 0);
+
+        admission.tryAdmit(0);
+        assertEquals(Status.UP, admission.health().getStatus());
+        admission.tryAdmit(0);
+        assertEquals(Status.OUT_OF_SERVICE, admission.health().getStatus());
+        assertEquals(2, admission.health().getDetails().get("sessions"));
+
+        admission.release();
+        assertEquals(Status.UP, admission.health().getStatus());
+    }
+
+    @Test
+    void beginDrain_rechazaTodoYSaleDeReadiness_FAIL() {
+        SessionAdmission admission = admission(0, 0, 0);
+
+        admission.beginDrain();
+
+        assertTrue(admission.checkRate() > 0);
+        assertTrue(admission.tryAdmit(0) > 0);
+        assertEquals(0, admission.openSessions());
+        assertEquals(Status.OUT_OF_SERVICE, admission.health().getStatus());
+        assertEquals(true, admission.health().getDetails().get("draining"));
+        assertEquals(2.0, registry.get("chat.ws.admission.rejected").tag("reason", "drain").counter().count());
+    }
+}
@@ -0,0 +1,129 @@
+package co.edu.escuelaing.uplearn.chat.ws;
+
+import co.edu.escuelaing.uplearn.chat.service.DeliveryAckBuffer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class SessionDrainTest {
+
+    private final SimpleMeterRegistry meters = new SimpleMeterRegistry();
+    private final List<Long> pauses = new ArrayList<>();
+    private final Queue<Runnable> outboundTasks = new ArrayDeque<>();
+    private SessionRegistry<WebSocketSession> sessions;
+    private SessionAdmission admission;
+    private InboundDispatcher inbound;
+    private OutboundSessionFactory outbound;
+    private DeliveryAckBuffer acks;
+
+    @BeforeEach
+    void setUp() {
+        sessions = new SessionRegistry<>(4);
+        admission = new SessionAdmission(meters, 100, 5, 0, 1_000, 0.9, System::nanoTime);
+        inbound = new InboundDispatcher(meters, InboundDispatcher.Mode.INLINE, null);
+        outbound = new OutboundSessionFactory(meters, outboundTasks::add, 256, 1 << 20, 10_000, null);
+        acks = mock(DeliveryAckBuffer.class);
+    }
+
+    private SessionDrain drain(long windowMs, int waves) {
+        return new SessionDrain(meters, sessions, admission, inbound, outbound, acks, windowMs, waves, 200, 3_000,
+                pauses::add);
+    }
+
+    private WebSocketSession session(String userId) {
+        WebSocketSession s = mock(WebSocketSession.class);
+        when(s.getAttributes()).thenReturn(new HashMap<>());
+        when(s.getId()).thenReturn(userId);
+        sessions.add(userId, s);
+        return s;
+    }
+
+    private static CloseStatus closedWith(WebSocketSession s) throws Exception {
+        ArgumentCaptor<CloseStatus> status = ArgumentCaptor.forClass(CloseStatus.class);
+        verify(s).close(status.capture());
+        return status.getValue();
+    }
+
+    @Test
+    void drain_cierraEnTandasConMotivoYReintentoVariable_OK() throws Exception {
+        List<WebSocketSession> all = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            all.add(session("u" + i));
+        }
+
+        drain(9_000, 4).drain();
+
+        assertTrue(admission.isDraining());
+        assertTrue(admission.tryAdmit(0) > 0, "no admite conexiones nuevas");
+        assertEquals(List.of(3_000L, 3_000L, 3_000L), pauses);
+        for (WebSocketSession s : all) {
+            CloseStatus status = closedWith(s);
+            assertEquals(CloseStatus.SERVICE_RESTARTED.getCode(), status.getCode());
+            assertTrue(status.getReason().startsWith(SessionDrain.RECONNECT_REASON));
+            long hint = Long.parseLong(status.getReason().substring(SessionDrain.RECONNECT_REASON.length()));
+            assertTrue(hint >= 0 && hint <= 3_000, "sugerencia dentro del margen: " + hint);
+        }
+        assertEquals(10.0, meters.get("chat.ws.drain.closed").counter().count());
+        verify(acks, times(2)).flush();
+    }
+
+    @Test
+    void drain_sesionConColaPendiente_pasaALaUltimaTanda_OK() throws Exception {
+        WebSocketSession plain = session("u1");
+        WebSocketSession raw = mock(WebSocketSession.class);
+        when(raw.getAttributes()).thenReturn(new HashMap<>());
+        when(raw.isOpen()).thenReturn(true);
+        OutboundSession busy = outbound.wrap(raw);
+        busy.sendMessage(new TextMessage("pendiente"));
+        sessions.add("u2", busy);
+        List<String> order = new ArrayList<>();
+        doAnswer(inv -> order.add("u1")).when(plain).close(any());
+        doAnswer(inv -> order.add("u2")).when(raw).close(any());
+
+        drain(1_000, 2).drain();
+
+        assertEquals(List.of("u1", "u2"), order);
+        // Esperó el vaciado de salida hasta el límite antes de la tanda 1
+        assertEquals(List.of(50L, 50L, 50L, 50L, 1_000L), pauses);
+        assertEquals(CloseStatus.SERVICE_RESTARTED.getCode(), closedWith(raw).getCode());
+    }
+
+    @Test
+    void drain_sinSesiones_soloEscribeConfirmaciones_OK() {
+        drain(5_000, 5).drain();
+
+        assertTrue(pauses.isEmpty());
+        verify(acks, times(2)).flush();
+        assertTrue(admission.isSaturated());
+    }
+
+    @Test
+    void stop_conCallback_drenaEnOtroHiloYAvisa_OK() throws Exception {
+        WebSocketSession s = session("u1");
+        SessionDrain drain = drain(0, 1);
+        drain.start();
+        assertTrue(drain.isRunning());
+        CountDownLatch done = new CountDownLatch(1);
+
+        drain.stop(done::countDown);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertFalse(drain.isRunning());
+        assertEquals(CloseStatus.SERVICE_RESTARTED.getCode(), closedWith(s).getCode());
+    }
+}
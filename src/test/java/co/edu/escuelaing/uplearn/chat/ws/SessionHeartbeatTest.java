@@ -0,0 +1,153 @@
+package co.edu.escuelaing.uplearn.chat.ws;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.PingMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class SessionHeartbeatTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final AtomicLong clock = new AtomicLong();
+    private final List<WebSocketSession> reaped = new ArrayList<>();
+
+    private SessionHeartbeat heartbeat(long intervalMs, long idleMs, long tickMs) {
+        SessionHeartbeat hb = new SessionHeartbeat(registry, intervalMs, idleMs, tickMs, clock::get, null);
+        hb.start(reaped::add);
+        return hb;
+    }
+
+    private WebSocketSession session() {
+        WebSocketSession s = mock(WebSocketSession.class);
+        when(s.getAttributes()).thenReturn(new HashMap<>());
+        when(s.getId()).thenReturn("s");
+        return s;
+    }
+
+    private void advanceTo(SessionHeartbeat hb, long fromMs, long toMs, long tickMs) {
+        for (long t = fromMs + tickMs; t <= toMs; t += tickMs) {
+            clock.set(t);
+            hb.tick();
+        }
+    }
+
+    @Test
+    void tick_sinActividad_pingTrasIntervalo_yDesalojoTrasInactividad_OK() throws Exception {
+        SessionHeartbeat hb = heartbeat(10_000, 30_000, 1_000);
+        WebSocketSession s = session();
+        hb.register(s);
+
+        advanceTo(hb, 0, 9_000, 1_000);
+        verify(s, never()).sendMessage(any());
+
+        advanceTo(hb, 9_000, 10_000, 1_000);
+        verify(s, times(1)).sendMessage(isA(PingMessage.class));
+        assertTrue(reaped.isEmpty());
+
+        advanceTo(hb, 10_000, 30_000, 1_000);
+        assertEquals(List.of(s), reaped);
+        assertEquals(0, hb.sessionCount());
+        assertFalse(s.getAttributes().containsKey(SessionHeartbeat.ATTR_ENTRY));
+        assertEquals(1.0, registry.get("chat.ws.heartbeat.idle-evicted").counter().count());
+        assertTrue(registry.get("chat.ws.heartbeat.pings").counter().count() >= 2.0);
+        assertEquals(30, registry.get("chat.ws.heartbeat.tick").timer().count());
+    }
+
+    @Test
+    void touch_actividadReciente_postergaPingYDesalojo_OK() throws Exception {
+        SessionHeartbeat hb = heartbeat(10_000, 30_000, 1_000);
+        WebSocketSession s = session();
+        hb.register(s);
+
+        advanceTo(hb, 0, 8_000, 1_000);
+        hb.touch(s);
+        advanceTo(hb, 8_000, 17_000, 1_000);
+
+        verify(s, never()).sendMessage(any());
+        advanceTo(hb, 17_000, 18_000, 1_000);
+        verify(s).sendMessage(isA(PingMessage.class));
+
+        hb.touch(s);
+        advanceTo(hb, 18_000, 47_000, 1_000);
+        assertTrue(reaped.isEmpty());
+        advanceTo(hb, 47_000, 48_000, 1_000);
+        assertEquals(List.of(s), reaped);
+    }
+
+    @Test
+    void unregister_sesionCerrada_noRecibePingNiSeDesaloja_OK() throws Exception {
+        SessionHeartbeat hb = heartbeat(10_000, 30_000, 1_000);
+        WebSocketSession s = session();
+        hb.register(s);
+        assertEquals(1, hb.sessionCount());
+        assertEquals(1.0, registry.get("chat.ws.sessions").gauge().value());
+
+        hb.unregister(s);
+        hb.unregister(s);
+        advanceTo(hb, 0, 60_000, 1_000);
+
+        verify(s, never()).sendMessage(any());
+        assertTrue(reaped.isEmpty());
+        assertEquals(0, hb.sessionCount());
+    }
+
+    @Test
+    void tick_plazoMayorQueLaRueda_esperaLasVueltas_OK() throws Exception {
+        SessionHeartbeat hb = heartbeat(10_000, 10_000, 1);
+        WebSocketSession s = session();
+        hb.register(s);
+
+        advanceTo(hb, 0, 9_999, 1);
+        assertTrue(reaped.isEmpty());
+        advanceTo(hb, 9_999, 10_000, 1);
+        assertEquals(List.of(s), reaped);
+    }
+
+    @Test
+    void tick_errorAlEnviarPing_noInterrumpeLaRueda_FAIL() throws Exception {
+        SessionHeartbeat hb = heartbeat(10_000, 30_000, 1_000);
+        WebSocketSession broken = session();
+        doThrow(new java.io.IOException("cerrado")).when(broken).sendMessage(any());
+        WebSocketSession ok = session();
+        hb.register(broken);
+        hb.register(ok);
+
+        assertDoesNotThrow(() -> advanceTo(hb, 0, 10_000, 1_000));
+        verify(ok).sendMessage(isA(PingMessage.class));
+    }
+
+    @Test
+    void constructor_deshabilitado_soloCuentaSesiones_OK() throws Exception {
+        ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        SessionHeartbeat hb = new SessionHeartbeat(registry, 0, 30_000, 1_000, clock::get, scheduler);
+        WebSocketSession s = session();
+
+        hb.register(s);
+        advanceTo(hb, 0, 60_000, 1_000);
+
+        verifyNoInteractions(scheduler);
+        verify(s, never()).sendMessage(any());
+        assertEquals(1, hb.sessionCount());
+    }
+
+    @Test
+    void constructor_programaElTick_OK() {
+        ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        SessionHeartbeat hb = new SessionHeartbeat(registry, 10_000, 30_000, 500, clock::get, scheduler);
+
+        verify(scheduler).scheduleAtFixedRate(any(Runnable.class), eq(500L), eq(500L), eq(TimeUnit.MILLISECONDS));
+        hb.shutdown();
+        verify(scheduler).shutdownNow();
+    }
+}
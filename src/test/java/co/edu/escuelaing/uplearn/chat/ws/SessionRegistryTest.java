@@ -0,0 +1,114 @@
+package co.edu.escuelaing.uplearn.chat.ws;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+class SessionRegistryTest {
+
+    private final SessionRegistry<WebSocketSession> registry = new SessionRegistry<>(4);
+
+    @Test
+    void addRemove_pasaDeUnaSesionAVariasYVuelve_OK() {
+        WebSocketSession a = mock(WebSocketSession.class);
+        WebSocketSession b = mock(WebSocketSession.class);
+        WebSocketSession c = mock(WebSocketSession.class);
+
+        assertEquals(1, registry.add("u1", a));
+        assertEquals(1, registry.add("u1", a));
+        assertEquals(2, registry.add("u1", b));
+        assertEquals(3, registry.add("u1", c));
+        assertEquals(3, registry.size());
+        assertEquals(1, registry.userCount());
+
+        assertTrue(registry.remove("u1", b));
+        List<WebSocketSession> seen = new ArrayList<>();
+        assertEquals(2, registry.forEach("u1", seen::add));
+        assertEquals(List.of(a, c), seen);
+
+        assertTrue(registry.remove("u1", a));
+        assertEquals(1, registry.count("u1"));
+        assertTrue(registry.remove("u1", c));
+        assertFalse(registry.has("u1"));
+        assertEquals(0, registry.size());
+        assertEquals(0, registry.userCount());
+    }
+
+    @Test
+    void remove_sesionAjenaODesconocida_noCambiaNada_FAIL() {
+        WebSocketSession a = mock(WebSocketSession.class);
+        registry.add("u1", a);
+
+        assertFalse(registry.remove("u1", mock(WebSocketSession.class)));
+        assertFalse(registry.remove("u2", a));
+        assertTrue(registry.remove("u1", a));
+        assertFalse(registry.remove("u1", a));
+
+        assertEquals(0, registry.size());
+        assertEquals(0, registry.forEach("u1", s -> true));
+        assertEquals(0, registry.forEach(null, s -> true));
+        assertEquals(0, registry.count(null));
+        assertFalse(registry.has(null));
+    }
+
+    @Test
+    void forEach_cuentaSoloLosExitos_OK() {
+        WebSocketSession ok = mock(WebSocketSession.class);
+        WebSocketSession failing = mock(WebSocketSession.class);
+        registry.add("u1", ok);
+        registry.add("u1", failing);
+
+        assertEquals(1, registry.forEach("u1", s -> s == ok));
+    }
+
+    @Test
+    void intern_devuelveLaInstanciaCanonica_OK() {
+        String id = new String("user-42");
+
+        assertSame("user-42", SessionRegistry.intern(id));
+        assertNull(SessionRegistry.intern(null));
+    }
+
+    @Test
+    void concurrencia_altasYBajasDelMismoUsuario_noPierdenSesiones_OK() throws Exception {
+        int threads = 8;
+        int rounds = 2_000;
+        WebSocketSession resident = mock(WebSocketSession.class);
+        registry.add("u1", resident);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> done = new ArrayList<>();
+        try {
+            for (int t = 0; t < threads; t++) {
+                WebSocketSession own = mock(WebSocketSession.class);
+                done.add(pool.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < rounds; i++) {
+                        registry.add("u1", own);
+                        assertTrue(registry.remove("u1", own));
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> f : done) {
+                f.get();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        assertEquals(1, registry.count("u1"));
+        assertEquals(1, registry.forEach("u1", s -> s == resident));
+        assertEquals(1, registry.size());
+    }
+}
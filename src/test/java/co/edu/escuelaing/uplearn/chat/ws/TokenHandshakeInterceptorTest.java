@@ -0,0 +1,141 @@
+package co.edu.escuelaing.uplearn.chat.ws;
+
+import co.edu.escuelaing.uplearn.chat.service.AuthorizationService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class TokenHandshakeInterceptorTest {
+
+    private AuthorizationService authz;
+    private SessionRegistry<WebSocketSession> sessions;
+    private TokenHandshakeInterceptor interceptor;
+    private ServerHttpResponse response;
+    private HttpHeaders headers;
+    private final AtomicLong nanos = new AtomicLong();
+    private final WebSocketHandler handler = mock(WebSocketHandler.class);
+
+    @BeforeEach
+    void setUp() {
+        authz = mock(AuthorizationService.class);
+        sessions = new SessionRegistry<>(4);
+        interceptor = interceptor(new SessionAdmission(new SimpleMeterRegistry(), 100, 5, 0, 2_000, 0.9, nanos::get));
+        response = mock(ServerHttpResponse.class);
+        headers = new HttpHeaders();
+        when(response.getHeaders()).thenReturn(headers);
+    }
+
+    private TokenHandshakeInterceptor interceptor(SessionAdmission admission) {
+        return new TokenHandshakeInterceptor(authz, admission, sessions);
+    }
+
+    private ServerHttpRequest request(String uri) throws Exception {
+        ServerHttpRequest request = mock(ServerHttpRequest.class);
+        when(request.getURI()).thenReturn(new URI(uri));
+        return request;
+    }
+
+    @Test
+    void beforeHandshake_tokenValido_dejaPrincipalYCursorEnAtributos_OK() throws Exception {
+        when(authz.subject("Bearer tok")).thenReturn("u1");
+        Map<String, Object> attrs = new HashMap<>();
+
+        assertTrue(interceptor.beforeHandshake(
+                request("ws://x/ws/chat?token=tok&resume=2024-10-17T15:04:05%2B00:00"), response, handler, attrs));
+
+        assertEquals("u1", attrs.get(TokenHandshakeInterceptor.ATTR_USER_ID));
+        assertEquals("Bearer tok", attrs.get(TokenHandshakeInterceptor.ATTR_BEARER));
+        assertEquals("2024-10-17T15:04:05+00:00", attrs.get(TokenHandshakeInterceptor.ATTR_RESUME));
+        verify(response, never()).setStatusCode(any());
+    }
+
+    @Test
+    void beforeHandshake_sinToken_responde401_FAIL() throws Exception {
+        Map<String, Object> attrs = new HashMap<>();
+
+        assertFalse(interceptor.beforeHandshake(request("ws://x/ws/chat"), response, handler, attrs));
+        assertFalse(interceptor.beforeHandshake(request("ws://x/ws/chat?token="), response, handler, attrs));
+
+        verify(response, times(2)).setStatusCode(HttpStatus.UNAUTHORIZED);
+        verifyNoInteractions(authz);
+        assertTrue(attrs.isEmpty());
+    }
+
+    @Test
+    void beforeHandshake_tokenInvalido_responde401_FAIL() throws Exception {
+        when(authz.subject("Bearer bad")).thenThrow(new RuntimeException("bad"));
+        Map<String, Object> attrs = new HashMap<>();
+
+        assertFalse(interceptor.beforeHandshake(request("ws://x/ws/chat?token=bad"), response, handler, attrs));
+
+        verify(response).setStatusCode(HttpStatus.UNAUTHORIZED);
+        assertTrue(attrs.isEmpty());
+    }
+
+    @Test
+    void beforeHandshake_sinSujeto_responde401_FAIL() throws Exception {
+        when(authz.subject("Bearer anon")).thenReturn(null);
+
+        assertFalse(interceptor.beforeHandshake(request("ws://x/ws/chat?token=anon"), response, handler,
+                new HashMap<>()));
+
+        verify(response).setStatusCode(HttpStatus.UNAUTHORIZED);
+    }
+
+    @Test
+    void beforeHandshake_ritmoExcedido_responde503SinValidarToken_FAIL() throws Exception {
+        interceptor = interceptor(new SessionAdmission(new SimpleMeterRegistry(), 100, 5, 1, 2_000, 0.9, nanos::get));
+        when(authz.subject("Bearer tok")).thenReturn("u1");
+        assertTrue(interceptor.beforeHandshake(request("ws://x/ws/chat?token=tok"), response, handler,
+                new HashMap<>()));
+        Map<String, Object> attrs = new HashMap<>();
+
+        assertFalse(interceptor.beforeHandshake(request("ws://x/ws/chat?token=tok"), response, handler, attrs));
+
+        verify(response).setStatusCode(HttpStatus.SERVICE_UNAVAILABLE);
+        long retryAfter = Long.parseLong(headers.getFirst(HttpHeaders.RETRY_AFTER));
+        assertTrue(retryAfter >= 1 && retryAfter <= 3, "segundos de reintento: " + retryAfter);
+        verify(authz, times(1)).subject(any());
+        assertTrue(attrs.isEmpty());
+    }
+
+    @Test
+    void beforeHandshake_topeDeUsuario_responde503AntesDelUpgrade_FAIL() throws Exception {
+        interceptor = interceptor(new SessionAdmission(new SimpleMeterRegistry(), 100, 1, 0, 2_000, 0.9, nanos::get));
+        when(authz.subject("Bearer tok")).thenReturn("u1");
+        sessions.add("u1", mock(WebSocketSession.class));
+        Map<String, Object> attrs = new HashMap<>();
+
+        assertFalse(interceptor.beforeHandshake(request("ws://x/ws/chat?token=tok"), response, handler, attrs));
+
+        verify(response).setStatusCode(HttpStatus.SERVICE_UNAVAILABLE);
+        assertNotNull(headers.getFirst(HttpHeaders.RETRY_AFTER));
+        assertTrue(attrs.isEmpty());
+    }
+
+    @Test
+    void authenticate_sinServidor_devuelveAtributosONull_OK() throws Exception {
+        when(authz.subject("Bearer tok")).thenReturn("u1");
+
+        Map<String, Object> attrs = interceptor.authenticate(new URI("ws://x/ws/chat?token=tok"));
+
+        assertEquals(Map.of(TokenHandshakeInterceptor.ATTR_USER_ID, "u1",
+                TokenHandshakeInterceptor.ATTR_BEARER, "Bearer tok"), attrs);
+        assertNull(interceptor.authenticate(new URI("ws://x/ws/chat")));
+    }
+}
@@ -0,0 +1,45 @@
+package co.edu.escuelaing.uplearn.chat.ws;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TypingThrottleTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final AtomicLong nanos = new AtomicLong();
+    private final TypingThrottle throttle = new TypingThrottle(registry, 3_000, nanos::get);
+
+    @Test
+    void shouldForward_startRepetidoEnLaVentana_seDescarta_OK() {
+        assertTrue(throttle.shouldForward("u1", "u2", false));
+        assertFalse(throttle.shouldForward("u1", "u2", false));
+        assertTrue(throttle.shouldForward("u1", "u3", false), "otra contraparte tiene su propia ventana");
+
+        assertEquals(2.0, registry.get("chat.typing.forwarded").counter().count());
+        assertEquals(1.0, registry.get("chat.typing.collapsed").counter().count());
+    }
+
+    @Test
+    void shouldForward_trasLaVentana_reenviaDeNuevo_OK() {
+        assertTrue(throttle.shouldForward("u1", "u2", false));
+
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(3_001));
+
+        assertTrue(throttle.shouldForward("u1", "u2", false));
+    }
+
+    @Test
+    void shouldForward_stopSoloTrasUnStart_yReabreLaVentana_OK() {
+        assertFalse(throttle.shouldForward("u1", "u2", true), "stop sin start previo");
+
+        assertTrue(throttle.shouldForward("u1", "u2", false));
+        assertTrue(throttle.shouldForward("u1", "u2", true));
+        assertFalse(throttle.shouldForward("u1", "u2", true));
+        assertTrue(throttle.shouldForward("u1", "u2", false));
+    }
+}